@@ -15,12 +15,15 @@
 
 package org.cloudfoundry.identity.uaa.util;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Date;
 import java.util.Map;
 
@@ -43,6 +46,22 @@ public class JsonUtils {
         }
     }
 
+    public static JsonGenerator createGenerator(OutputStream out) throws JsonUtilException {
+        try {
+            return objectMapper.getFactory().createGenerator(out, JsonEncoding.UTF8);
+        } catch (IOException e) {
+            throw new JsonUtilException(e);
+        }
+    }
+
+    public static void writeValue(JsonGenerator generator, Object object) throws JsonUtilException {
+        try {
+            objectMapper.writeValue(generator, object);
+        } catch (IOException e) {
+            throw new JsonUtilException(e);
+        }
+    }
+
     public static <T> T readValue(String s, Class<T> clazz) throws JsonUtilException {
         try {
             if (hasText(s)) {
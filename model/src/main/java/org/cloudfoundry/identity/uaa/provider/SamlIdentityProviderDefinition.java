@@ -56,6 +56,7 @@ public class SamlIdentityProviderDefinition extends ExternalIdentityProviderDefi
     private ExternalGroupMappingMode groupMappingMode = ExternalGroupMappingMode.EXPLICITLY_MAPPED;
     private boolean skipSslValidation = false;
     private List<String> authnContext;
+    private String aggregateEntityId;
 
     public SamlIdentityProviderDefinition() {}
 
@@ -85,6 +86,7 @@ public class SamlIdentityProviderDefinition extends ExternalIdentityProviderDefi
         def.setSkipSslValidation(isSkipSslValidation());
         def.setStoreCustomAttributes(isStoreCustomAttributes());
         def.setAuthnContext(authnContext);
+        def.setAggregateEntityId(aggregateEntityId);
         return def;
     }
 
@@ -160,6 +162,19 @@ public class SamlIdentityProviderDefinition extends ExternalIdentityProviderDefi
         return this;
     }
 
+    /**
+     * @return the entityID of this identity provider when the metadata location is a federation
+     * aggregate that contains many entities, or null when the metadata describes a single entity
+     */
+    public String getAggregateEntityId() {
+        return aggregateEntityId;
+    }
+
+    public SamlIdentityProviderDefinition setAggregateEntityId(String aggregateEntityId) {
+        this.aggregateEntityId = aggregateEntityId;
+        return this;
+    }
+
     public int getAssertionConsumerIndex() {
         return assertionConsumerIndex;
     }
@@ -275,6 +290,7 @@ public class SamlIdentityProviderDefinition extends ExternalIdentityProviderDefi
             ", linkText='" + linkText + '\'' +
             ", iconUrl='" + iconUrl + '\'' +
             ", zoneId='" + zoneId + '\'' +
+            ", aggregateEntityId='" + aggregateEntityId + '\'' +
             ", addShadowUserOnLogin='" + isAddShadowUserOnLogin() + '\'' +
             '}';
     }
@@ -0,0 +1,106 @@
+/*
+ * ****************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2017] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ * ****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.provider.saml.idp;
+
+import org.cloudfoundry.identity.uaa.authentication.UaaPrincipal;
+import org.cloudfoundry.identity.uaa.constants.OriginKeys;
+import org.cloudfoundry.identity.uaa.scim.jdbc.JdbcScimUserProvisioning;
+import org.cloudfoundry.identity.uaa.user.UaaUser;
+import org.cloudfoundry.identity.uaa.user.UaaUserPrototype;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensaml.saml2.core.NameIDType;
+import org.opensaml.saml2.core.Response;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.saml.context.SAMLMessageContext;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Measures building and signing a SAML response, including the attribute statement
+ * with mapped user attributes. Run with <code>./gradlew :cloudfoundry-identity-server:jmh</code>.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class IdpWebSsoProfileImplBenchmark {
+
+    private IdpWebSsoProfileImpl profile;
+    private Authentication authentication;
+    private SAMLMessageContext context;
+    private IdpWebSSOProfileOptions options;
+
+    @Setup
+    public void setup() throws Exception {
+        SamlTestUtils samlTestUtils = new SamlTestUtils();
+        samlTestUtils.initialize();
+
+        SamlServiceProvider samlServiceProvider = new SamlServiceProvider();
+        SamlServiceProviderDefinition config = new SamlServiceProviderDefinition();
+        Map<String, Object> attributeMappings = new HashMap<>();
+        attributeMappings.put("given_name", "first_name");
+        attributeMappings.put("family_name", "last_name");
+        attributeMappings.put("phone_number", "cell_phone");
+        config.setAttributeMappings(attributeMappings);
+        samlServiceProvider.setConfig(config);
+
+        JdbcSamlServiceProviderProvisioning samlServiceProviderProvisioning = mock(JdbcSamlServiceProviderProvisioning.class);
+        when(samlServiceProviderProvisioning.retrieveByEntityId(any(), any())).thenReturn(samlServiceProvider);
+
+        profile = new IdpWebSsoProfileImpl();
+        profile.setSamlServiceProviderProvisioning(samlServiceProviderProvisioning);
+        profile.setScimUserProvisioning(mock(JdbcScimUserProvisioning.class));
+
+        authentication = samlTestUtils.mockUaaAuthentication();
+        UaaPrincipal principal = new UaaPrincipal(new UaaUser(new UaaUserPrototype()
+            .withId("benchmark-user-id")
+            .withUsername("marissa")
+            .withEmail("marissa@testing.org")
+            .withGivenName("Marissa")
+            .withFamilyName("Bloggs")
+            .withPhoneNumber("456")
+            .withOrigin(OriginKeys.UAA)
+            .withZoneId("uaa")));
+        when(authentication.getPrincipal()).thenReturn(principal);
+
+        context = samlTestUtils.mockSamlMessageContext(samlTestUtils.mockAuthnRequest(NameIDType.UNSPECIFIED));
+        options = new IdpWebSSOProfileOptions();
+        options.setAssertionsSigned(true);
+    }
+
+    @Benchmark
+    public Response buildAndSignResponse() throws Exception {
+        profile.buildResponse(authentication, context, options);
+        return (Response) context.getOutboundSAMLMessage();
+    }
+}
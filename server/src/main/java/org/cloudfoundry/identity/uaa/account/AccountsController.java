@@ -86,7 +86,10 @@ public class AccountsController {
             return handleUnprocessableEntity(model, response, "error_message_code", "invalid_email");
         }
 
-        List<IdentityProvider> identityProviderList = DomainFilter.getIdpsForEmailDomain(identityProviderProvisioning.retrieveAll(true, IdentityZoneHolder.get().getId()), email.getEmail());
+        String zoneId = IdentityZoneHolder.get().getId();
+        List<IdentityProvider> identityProviderList =
+            DomainFilter.getEmailDomainIndex(identityProviderProvisioning, zoneId, () -> identityProviderProvisioning.retrieveAll(true, zoneId))
+                .getIdpsForEmailDomain(email.getEmail());
         identityProviderList = identityProviderList.stream().filter(idp -> !idp.getOriginKey().equals(OriginKeys.UAA)).collect(Collectors.toList());
         if(!identityProviderList.isEmpty()) {
             model.addAttribute("email", email.getEmail());
@@ -18,6 +18,17 @@ public interface ApprovalStore {
 
     public boolean addApproval(Approval approval, final String zoneId);
 
+    /**
+     * Stores all approvals of one consent decision, see {@link #addApproval(Approval, String)}
+     */
+    default boolean addApprovals(List<Approval> approvals, final String zoneId) {
+        boolean added = true;
+        for (Approval approval : approvals) {
+            added &= addApproval(approval, zoneId);
+        }
+        return added;
+    }
+
     public boolean revokeApproval(Approval approval, final String zoneId);
 
     public boolean revokeApprovalsForUser(String userId, final String zoneId);
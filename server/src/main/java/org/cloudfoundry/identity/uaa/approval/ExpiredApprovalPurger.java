@@ -0,0 +1,60 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2017] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.approval;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Purges expired approvals on a background thread, so that no request waits for it.
+ */
+public class ExpiredApprovalPurger implements InitializingBean, DisposableBean {
+
+    private final JdbcApprovalStore approvalStore;
+    private long purgeInterval = 0;
+    private ScheduledExecutorService executor;
+
+    public ExpiredApprovalPurger(JdbcApprovalStore approvalStore) {
+        this.approvalStore = approvalStore;
+    }
+
+    /**
+     * @param purgeInterval milliseconds between two purges, 0 disables purging
+     */
+    public void setPurgeInterval(long purgeInterval) {
+        this.purgeInterval = purgeInterval;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (purgeInterval > 0) {
+            executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "expired-approval-purger");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.scheduleWithFixedDelay(approvalStore::purgeExpiredApprovals, purgeInterval, purgeInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -12,11 +12,16 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.approval;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.cloudfoundry.identity.uaa.approval.Approval.ApprovalStatus;
 import org.cloudfoundry.identity.uaa.audit.event.ApprovalModifiedEvent;
 import org.cloudfoundry.identity.uaa.audit.event.SystemDeletable;
+import org.cloudfoundry.identity.uaa.resources.jdbc.DefaultUpsertSqlAdapter;
+import org.cloudfoundry.identity.uaa.resources.jdbc.UpsertSqlAdapter;
+import org.cloudfoundry.identity.uaa.resources.jdbc.UpsertSqlSupport;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
 import org.springframework.context.ApplicationEvent;
 import org.springframework.context.ApplicationEventPublisher;
@@ -35,8 +40,16 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.cloudfoundry.identity.uaa.approval.Approval.ApprovalStatus.APPROVED;
 
@@ -52,6 +65,10 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
 
     private static final String FIELDS = "user_id,client_id,scope,expiresAt,status,lastModifiedAt,identity_zone_id";
 
+    private static final List<String> COLUMNS = Arrays.asList(FIELDS.split(","));
+
+    private static final List<String> KEY_COLUMNS = Arrays.asList("user_id", "client_id", "scope");
+
     private static final String ADD_AUTHZ_SQL =
         String.format("insert into %s ( %s ) values (?,?,?,?,?,?,?)",
                       TABLE_NAME,
@@ -75,9 +92,18 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
 
     public static final String DELETE_OF_USER_APPROVALS_BY_PROVIDER = "delete from authz_approvals where user_id in (select id from users where identity_zone_id = ? and origin = ?)";
 
+    private static final String SELECT_EXPIRED_SQL = String.format("select user_id,client_id,scope from %s where expiresAt <= ?", TABLE_NAME);
+
+    private static final String DELETE_EXPIRED_SQL = DELETE_AUTHZ_SQL + " where user_id = ? and client_id = ? and scope = ? and expiresAt <= ?";
+
 
     private boolean handleRevocationsAsExpiry = false;
     private ApplicationEventPublisher applicationEventPublisher;
+    private UpsertSqlAdapter upsertSqlAdapter = new DefaultUpsertSqlAdapter();
+    private int purgeChunkSize = 1000;
+
+    private volatile Cache<List<String>, List<Approval>> approvalCache;
+    private final AtomicLong evictions = new AtomicLong();
 
     public JdbcApprovalStore(JdbcTemplate jdbcTemplate) {
         Assert.notNull(jdbcTemplate);
@@ -88,20 +114,39 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
         this.handleRevocationsAsExpiry = handleRevocationsAsExpiry;
     }
 
+    public void setUpsertSqlAdapter(UpsertSqlAdapter upsertSqlAdapter) {
+        this.upsertSqlAdapter = upsertSqlAdapter;
+    }
+
+    /**
+     * @param purgeChunkSize the number of expired approvals deleted per batch by {@link #purgeExpiredApprovals()}
+     */
+    public void setPurgeChunkSize(int purgeChunkSize) {
+        this.purgeChunkSize = purgeChunkSize;
+    }
+
+    /**
+     * Caches the approvals of each zone, user and client for the given number of seconds.
+     * Every change made through this store evicts the approvals it affects, changes made
+     * by other servers are seen once the cached approvals expire.
+     *
+     * @param cacheTtlSeconds the time to live, 0 disables caching
+     */
+    public void setCacheTtlSeconds(int cacheTtlSeconds) {
+        if (cacheTtlSeconds > 0) {
+            approvalCache = CacheBuilder.newBuilder()
+                .expireAfterWrite(cacheTtlSeconds, TimeUnit.SECONDS)
+                .maximumSize(10000)
+                .build();
+        } else {
+            approvalCache = null;
+        }
+    }
+
     public boolean refreshApproval(final Approval approval, final String zoneId) {
         logger.debug(String.format("refreshing approval: [%s]", approval));
-        int refreshed = jdbcTemplate.update(REFRESH_AUTHZ_SQL, new PreparedStatementSetter() {
-            @Override
-            public void setValues(PreparedStatement ps) throws SQLException {
-                ps.setTimestamp(1, new Timestamp(approval.getLastUpdatedAt().getTime()));
-                ps.setTimestamp(2, new Timestamp(approval.getExpiresAt().getTime()));
-                ps.setString(3, (approval.getStatus() == null ? APPROVED : approval.getStatus()).toString());
-                ps.setString(4, approval.getUserId());
-                ps.setString(5, approval.getClientId());
-                ps.setString(6, approval.getScope());
-                ps.setString(7, zoneId);
-            }
-        });
+        int refreshed = jdbcTemplate.update(REFRESH_AUTHZ_SQL, ps -> setRefreshValues(ps, approval, zoneId));
+        evictApprovals(zoneId, approval.getUserId(), approval.getClientId());
         if (refreshed != 1) {
             throw new DataIntegrityViolationException("Attempt to refresh non-existent authorization");
         }
@@ -115,18 +160,8 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
             refreshApproval(approval, IdentityZoneHolder.get().getId()); // try to refresh the approval
         } catch (DataIntegrityViolationException ex) { // could not find the
             // approval. add it.
-            int count = jdbcTemplate.update(ADD_AUTHZ_SQL, new PreparedStatementSetter() {
-                @Override
-                public void setValues(PreparedStatement ps) throws SQLException {
-                    ps.setString(1, approval.getUserId());
-                    ps.setString(2, approval.getClientId());
-                    ps.setString(3, approval.getScope());
-                    ps.setTimestamp(4, new Timestamp(approval.getExpiresAt().getTime()));
-                    ps.setString(5, (approval.getStatus() == null ? APPROVED : approval.getStatus()).toString());
-                    ps.setTimestamp(6, new Timestamp(approval.getLastUpdatedAt().getTime()));
-                    ps.setString(7, zoneId);
-                }
-            });
+            int count = jdbcTemplate.update(ADD_AUTHZ_SQL, ps -> setInsertValues(ps, 1, approval, zoneId));
+            evictApprovals(zoneId, approval.getUserId(), approval.getClientId());
             if (count == 0) throw new EmptyResultDataAccessException("Approval add failed", 1);
         }
         Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
@@ -134,6 +169,64 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
         return true;
     }
 
+    /**
+     * Stores the approvals with {@link UpsertSqlSupport#upsert}
+     */
+    @Override
+    public boolean addApprovals(List<Approval> approvals, final String zoneId) {
+        Map<List<String>, Approval> byKey = new LinkedHashMap<>();
+        for (Approval approval : approvals) {
+            byKey.put(Arrays.asList(approval.getUserId(), approval.getClientId(), approval.getScope()), approval);
+        }
+        List<Approval> rows = new ArrayList<>(byKey.values());
+        if (rows.isEmpty()) {
+            return true;
+        }
+        logger.debug(String.format("adding %d approvals: %s", rows.size(), rows));
+        UpsertSqlSupport.upsert(jdbcTemplate, upsertSqlAdapter, TABLE_NAME, COLUMNS, KEY_COLUMNS, rows,
+                                (ps, pos, approval) -> setInsertValues(ps, pos, approval, zoneId),
+                                REFRESH_AUTHZ_SQL,
+                                (ps, approval) -> setRefreshValues(ps, approval, zoneId));
+        Set<List<String>> userClients = new LinkedHashSet<>();
+        for (Approval approval : rows) {
+            userClients.add(Arrays.asList(approval.getUserId(), approval.getClientId()));
+        }
+        for (List<String> userClient : userClients) {
+            evictApprovals(zoneId, userClient.get(0), userClient.get(1));
+        }
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        for (Approval approval : rows) {
+            publish(new ApprovalModifiedEvent(approval, authentication));
+        }
+        return true;
+    }
+
+    private static void setRefreshValues(PreparedStatement ps, Approval approval, String zoneId) throws SQLException {
+        ps.setTimestamp(1, new Timestamp(approval.getLastUpdatedAt().getTime()));
+        ps.setTimestamp(2, new Timestamp(approval.getExpiresAt().getTime()));
+        ps.setString(3, (approval.getStatus() == null ? APPROVED : approval.getStatus()).toString());
+        ps.setString(4, approval.getUserId());
+        ps.setString(5, approval.getClientId());
+        ps.setString(6, approval.getScope());
+        ps.setString(7, zoneId);
+    }
+
+    /**
+     * Sets the values of the {@link #FIELDS} of an approval, starting at the given position
+     *
+     * @return the position after the values of the approval
+     */
+    private static int setInsertValues(PreparedStatement ps, int pos, Approval approval, String zoneId) throws SQLException {
+        ps.setString(pos++, approval.getUserId());
+        ps.setString(pos++, approval.getClientId());
+        ps.setString(pos++, approval.getScope());
+        ps.setTimestamp(pos++, new Timestamp(approval.getExpiresAt().getTime()));
+        ps.setString(pos++, (approval.getStatus() == null ? APPROVED : approval.getStatus()).toString());
+        ps.setTimestamp(pos++, new Timestamp(approval.getLastUpdatedAt().getTime()));
+        ps.setString(pos++, zoneId);
+        return pos;
+    }
+
     @Override
     public boolean revokeApproval(Approval approval, final String zoneId) {
         String sql = handleRevocationsAsExpiry ? EXPIRE_AUTHZ_SQL : DELETE_AUTHZ_SQL;
@@ -148,6 +241,7 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
                 ps.setString(pos++, zoneId);
             }
         });
+        evictApprovals(zoneId, approval.getUserId(), approval.getClientId());
         return count > 0;
     }
 
@@ -163,6 +257,7 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
                 ps.setString(pos++, zoneId);
             }
         });
+        evictApprovals(zoneId, userId, null);
         return count > 0;
     }
 
@@ -178,6 +273,7 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
                 ps.setString(pos++, zoneId);
             }
         });
+        evictApprovals(zoneId, null, clientId);
         return count > 0;
     }
 
@@ -194,16 +290,50 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
                 ps.setString(pos++, zoneId);
             }
         });
+        evictApprovals(zoneId, userId, clientId);
         return count > 0;
     }
 
+    /**
+     * Deletes the expired approvals in batches of {@link #setPurgeChunkSize(int)} approvals,
+     * so that a large backlog does not hold locks on the table in a single statement.
+     */
     public boolean purgeExpiredApprovals() {
         logger.debug("Purging expired approvals from database");
         try {
-            int deleted = jdbcTemplate.update(DELETE_AUTHZ_SQL + " where expiresAt <= ?",
-                                              ps -> { //PreparedStatementSetter
-                                                  ps.setTimestamp(1, new Timestamp(new Date().getTime()));
-                                              });
+            Timestamp now = new Timestamp(System.currentTimeMillis());
+            int deleted = 0;
+            List<String[]> expired;
+            do {
+                expired = jdbcTemplate.query(
+                    con -> {
+                        PreparedStatement ps = con.prepareStatement(SELECT_EXPIRED_SQL);
+                        ps.setMaxRows(purgeChunkSize);
+                        ps.setTimestamp(1, now);
+                        return ps;
+                    },
+                    (rs, rowNum) -> new String[] {rs.getString(1), rs.getString(2), rs.getString(3)}
+                );
+                if (expired.isEmpty()) {
+                    break;
+                }
+                int[] counts = jdbcTemplate.batchUpdate(DELETE_EXPIRED_SQL, expired, expired.size(), (ps, key) -> {
+                    ps.setString(1, key[0]);
+                    ps.setString(2, key[1]);
+                    ps.setString(3, key[2]);
+                    ps.setTimestamp(4, now);
+                })[0];
+                int chunkDeleted = 0;
+                for (int count : counts) {
+                    chunkDeleted += Math.max(count, 0);
+                }
+                deleted += chunkDeleted;
+                //stop if the chunk was changed concurrently, rather than selecting it again
+                if (chunkDeleted == 0) {
+                    break;
+                }
+            } while (expired.size() >= purgeChunkSize);
+            evictApprovals(null, null, null);
             logger.debug(deleted + " expired approvals deleted");
         } catch (DataAccessException ex) {
             logger.error("Error purging expired approvals", ex);
@@ -248,6 +378,28 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
 
     @Override
     public List<Approval> getApprovals(String userId, String clientId, final String zoneId) {
+        Cache<List<String>, List<Approval>> cache = approvalCache;
+        if (cache == null) {
+            return queryApprovals(userId, clientId, zoneId);
+        }
+        List<String> key = Arrays.asList(zoneId, userId, clientId);
+        List<Approval> approvals = cache.getIfPresent(key);
+        if (approvals == null) {
+            long evicted = evictions.get();
+            approvals = queryApprovals(userId, clientId, zoneId);
+            //a change made during the query may not be part of the result
+            if (evicted == evictions.get()) {
+                cache.put(key, approvals);
+            }
+        }
+        List<Approval> result = new ArrayList<>(approvals.size());
+        for (Approval approval : approvals) {
+            result.add(copy(approval));
+        }
+        return result;
+    }
+
+    private List<Approval> queryApprovals(String userId, String clientId, final String zoneId) {
         String sql = GET_AUTHZ_SQL + " WHERE user_id = ? AND client_id = ? AND identity_zone_id = ?";
         return jdbcTemplate.query(
             sql,
@@ -264,6 +416,36 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
         );
     }
 
+    private static Approval copy(Approval approval) {
+        return new Approval()
+            .setUserId(approval.getUserId())
+            .setClientId(approval.getClientId())
+            .setScope(approval.getScope())
+            .setExpiresAt(new Date(approval.getExpiresAt().getTime()))
+            .setStatus(approval.getStatus())
+            .setLastUpdatedAt(new Date(approval.getLastUpdatedAt().getTime()));
+    }
+
+    /**
+     * Evicts the cached approvals matching the zone, user and client, where null matches any value
+     */
+    private void evictApprovals(String zoneId, String userId, String clientId) {
+        evictions.incrementAndGet();
+        Cache<List<String>, List<Approval>> cache = approvalCache;
+        if (cache == null) {
+            return;
+        }
+        if (zoneId != null && userId != null && clientId != null) {
+            cache.invalidate(Arrays.asList(zoneId, userId, clientId));
+        } else {
+            cache.asMap().keySet().removeIf(key ->
+                (zoneId == null || zoneId.equals(key.get(0))) &&
+                (userId == null || userId.equals(key.get(1))) &&
+                (clientId == null || clientId.equals(key.get(2)))
+            );
+        }
+    }
+
     @Override
     public void setApplicationEventPublisher(ApplicationEventPublisher applicationEventPublisher) {
         this.applicationEventPublisher = applicationEventPublisher;
@@ -278,6 +460,7 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
     @Override
     public int deleteByIdentityZone(String zoneId) {
         int approvalCount = jdbcTemplate.update(DELETE_ZONE_APPROVALS, zoneId);
+        evictApprovals(zoneId, null, null);
         getLogger().debug(String.format("Deleted zone approvals '%s' and count:%s", zoneId, approvalCount));
         return approvalCount;
     }
@@ -285,6 +468,7 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
     @Override
     public int deleteByOrigin(String origin, String zoneId) {
         int approvalCount = jdbcTemplate.update(DELETE_OF_USER_APPROVALS_BY_PROVIDER, origin, zoneId);
+        evictApprovals(zoneId, null, null);
         getLogger().debug(String.format("Deleted provider approvals '%s'/%s and count:%s", origin, zoneId, approvalCount));
         return approvalCount;
     }
@@ -292,6 +476,7 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
     @Override
     public int deleteByClient(String clientId, String zoneId) {
         int approvalCount = jdbcTemplate.update(DELETE_CLIENT_APPROVALS, clientId, zoneId);
+        evictApprovals(zoneId, null, clientId);
         getLogger().debug(String.format("Deleted client '%s' and %s approvals", clientId, approvalCount));
         return approvalCount;
     }
@@ -299,6 +484,7 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
     @Override
     public int deleteByUser(String userId, String zoneId) {
         int approvalCount = jdbcTemplate.update(DELETE_USER_APPROVALS, userId, zoneId);
+        evictApprovals(zoneId, userId, null);
         getLogger().debug(String.format("Deleted user '%s' and %s approvals", userId, approvalCount));
         return approvalCount;
     }
@@ -16,6 +16,7 @@ import java.io.Serializable;
 import java.security.Principal;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import org.cloudfoundry.identity.uaa.user.UaaUser;
 
@@ -27,6 +28,8 @@ import org.cloudfoundry.identity.uaa.user.UaaUser;
  * application itself.
  */
 public class UaaPrincipal implements Principal, Serializable {
+    private static final long serialVersionUID = -6792316812891733676L;
+
     private final String id;
     private final String name;
     private final String email;
@@ -34,6 +37,12 @@ public class UaaPrincipal implements Principal, Serializable {
     private final String externalId;
     private final String zoneId;
 
+    // user attributes known at authentication time, not part of the serialized form
+    private transient boolean userAttributesLoaded;
+    private transient String givenName;
+    private transient String familyName;
+    private transient String phoneNumber;
+
     public UaaPrincipal(UaaUser user) {
         this(
             user.getId(),
@@ -43,6 +52,10 @@ public class UaaPrincipal implements Principal, Serializable {
             user.getExternalId(),
             user.getZoneId()
         );
+        this.userAttributesLoaded = true;
+        this.givenName = user.getGivenName();
+        this.familyName = user.getFamilyName();
+        this.phoneNumber = user.getPhoneNumber();
     }
 
     @JsonCreator
@@ -80,6 +93,22 @@ public class UaaPrincipal implements Principal, Serializable {
 
     public String getZoneId() { return zoneId; }
 
+    /**
+     * @return true if the given name, family name and phone number of the user were
+     * captured when this principal was created
+     */
+    @JsonIgnore
+    public boolean isUserAttributesLoaded() { return userAttributesLoaded; }
+
+    @JsonIgnore
+    public String getGivenName() { return givenName; }
+
+    @JsonIgnore
+    public String getFamilyName() { return familyName; }
+
+    @JsonIgnore
+    public String getPhoneNumber() { return phoneNumber; }
+
     /**
      * Returns {@code true} if the supplied object is a {@code UAAPrincipal}
      * instance with the
@@ -2,6 +2,7 @@ package org.cloudfoundry.identity.uaa.authentication.manager;
 
 import org.cloudfoundry.identity.uaa.impl.config.EnvironmentPropertiesFactoryBean;
 import org.cloudfoundry.identity.uaa.provider.LdapIdentityProviderDefinition;
+import org.cloudfoundry.identity.uaa.provider.ldap.PooledLdapContextSource;
 import org.cloudfoundry.identity.uaa.scim.ScimGroupExternalMembershipManager;
 import org.cloudfoundry.identity.uaa.scim.ScimGroupProvisioning;
 import org.cloudfoundry.identity.uaa.util.LdapUtils;
@@ -11,20 +12,31 @@ import org.springframework.context.support.ClassPathXmlApplicationContext;
 import org.springframework.context.support.GenericApplicationContext;
 import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
 import org.springframework.core.env.ConfigurableEnvironment;
+import org.springframework.core.env.MapPropertySource;
 import org.springframework.security.authentication.AuthenticationManager;
+import org.springframework.security.authentication.ProviderNotFoundException;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.AuthenticationException;
 
-import java.nio.file.ProviderNotFoundException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DynamicLdapAuthenticationManager implements AuthenticationManager {
+    /**
+     * Set in {@link #state} once the manager is retired, the other bits count the authentications in progress
+     */
+    private static final int RETIRED = Integer.MIN_VALUE;
+
     private final LdapIdentityProviderDefinition definition;
-    private ClassPathXmlApplicationContext context = null;
+    private volatile ClassPathXmlApplicationContext context = null;
     private ScimGroupExternalMembershipManager scimGroupExternalMembershipManager;
     private ScimGroupProvisioning scimGroupProvisioning;
     private LdapLoginAuthenticationManager ldapLoginAuthenticationManager;
-    private AuthenticationManager manager;
+    private volatile AuthenticationManager manager;
     private AuthenticationManager ldapManagerActual;
+    private Map<String, Object> ldapProperties = Collections.emptyMap();
+    private final AtomicInteger state = new AtomicInteger();
 
 
     public DynamicLdapAuthenticationManager(LdapIdentityProviderDefinition definition,
@@ -41,47 +53,70 @@ public class DynamicLdapAuthenticationManager implements AuthenticationManager {
         return context;
     }
 
-    public synchronized AuthenticationManager getLdapAuthenticationManager() throws BeansException {
+    /**
+     * Deployment wide settings, such as the connection pool (see {@link PooledLdapContextSource})
+     * and group search settings, added to the LDAP environment after the provider definition
+     */
+    public void setLdapProperties(Map<String, Object> ldapProperties) {
+        this.ldapProperties = ldapProperties;
+    }
+
+    public AuthenticationManager getLdapAuthenticationManager() throws BeansException {
         if (definition==null) {
             return null;
         }
-        if (manager!=null) {
-            return manager;
+        AuthenticationManager result = manager;
+        if (result!=null) {
+            return result;
         }
-        if (context==null) {
-            ConfigurableEnvironment environment = LdapUtils.getLdapConfigurationEnvironment(definition);
-            //create parent BeanFactory to inject singletons from the parent
-            DefaultListableBeanFactory parentBeanFactory = new DefaultListableBeanFactory();
-            parentBeanFactory.registerSingleton("externalGroupMembershipManager", scimGroupExternalMembershipManager);
-            parentBeanFactory.registerSingleton("scimGroupProvisioning", scimGroupProvisioning);
-            parentBeanFactory.registerSingleton("ldapLoginAuthenticationMgr", ldapLoginAuthenticationManager);
-            GenericApplicationContext parent = new GenericApplicationContext(parentBeanFactory);
-            parent.refresh();
-
-            //create the context that holds LDAP
-            context = new ClassPathXmlApplicationContext(new String[] {"ldap-integration.xml"}, false, parent);
-            context.setEnvironment(environment);
-            EnvironmentPropertiesFactoryBean factoryBean = new EnvironmentPropertiesFactoryBean();
-            factoryBean.setEnvironment(environment);
-            PropertySourcesPlaceholderConfigurer placeholderConfigurer = new PropertySourcesPlaceholderConfigurer();
-            placeholderConfigurer.setProperties(factoryBean.getObject());
-            placeholderConfigurer.setLocalOverride(true);
-            context.addBeanFactoryPostProcessor(placeholderConfigurer);
-            context.refresh();
-            ldapManagerActual = (AuthenticationManager)context.getBean("ldapAuthenticationManager");
-            AuthenticationManager shadowUserManager = (AuthenticationManager)context.getBean("ldapLoginAuthenticationMgr");
-
-            //chain the LDAP with the shadow account creation manager
-            ChainedAuthenticationManager chainedAuthenticationManager = new ChainedAuthenticationManager();
-            ChainedAuthenticationManager.AuthenticationManagerConfiguration config1 =
-                new ChainedAuthenticationManager.AuthenticationManagerConfiguration(ldapManagerActual, null);
-            ChainedAuthenticationManager.AuthenticationManagerConfiguration config2 =
-                new ChainedAuthenticationManager.AuthenticationManagerConfiguration(shadowUserManager, "ifPreviousTrue");
-            chainedAuthenticationManager.setDelegates(new ChainedAuthenticationManager.AuthenticationManagerConfiguration[] {config1, config2});
-            manager = chainedAuthenticationManager;
+        synchronized (this) {
+            if (isRetired()) {
+                throw new ProviderNotFoundException("LDAP provider has been replaced");
+            }
+            if (manager==null && context==null) {
+                manager = createLdapAuthenticationManager();
+            }
+            return manager;
         }
+    }
 
-        return manager;
+    public boolean isRetired() {
+        return (state.get() & RETIRED) != 0;
+    }
+
+    private AuthenticationManager createLdapAuthenticationManager() {
+        ConfigurableEnvironment environment = LdapUtils.getLdapConfigurationEnvironment(definition);
+        environment.getPropertySources().addLast(new MapPropertySource("ldapDefaults", ldapProperties));
+        //create parent BeanFactory to inject singletons from the parent
+        DefaultListableBeanFactory parentBeanFactory = new DefaultListableBeanFactory();
+        parentBeanFactory.registerSingleton("externalGroupMembershipManager", scimGroupExternalMembershipManager);
+        parentBeanFactory.registerSingleton("scimGroupProvisioning", scimGroupProvisioning);
+        parentBeanFactory.registerSingleton("ldapLoginAuthenticationMgr", ldapLoginAuthenticationManager);
+        GenericApplicationContext parent = new GenericApplicationContext(parentBeanFactory);
+        parent.refresh();
+
+        //create the context that holds LDAP
+        ClassPathXmlApplicationContext ldapContext = new ClassPathXmlApplicationContext(new String[] {"ldap-integration.xml"}, false, parent);
+        ldapContext.setEnvironment(environment);
+        EnvironmentPropertiesFactoryBean factoryBean = new EnvironmentPropertiesFactoryBean();
+        factoryBean.setEnvironment(environment);
+        PropertySourcesPlaceholderConfigurer placeholderConfigurer = new PropertySourcesPlaceholderConfigurer();
+        placeholderConfigurer.setProperties(factoryBean.getObject());
+        placeholderConfigurer.setLocalOverride(true);
+        ldapContext.addBeanFactoryPostProcessor(placeholderConfigurer);
+        ldapContext.refresh();
+        context = ldapContext;
+        ldapManagerActual = (AuthenticationManager)ldapContext.getBean("ldapAuthenticationManager");
+        AuthenticationManager shadowUserManager = (AuthenticationManager)ldapContext.getBean("ldapLoginAuthenticationMgr");
+
+        //chain the LDAP with the shadow account creation manager
+        ChainedAuthenticationManager chainedAuthenticationManager = new ChainedAuthenticationManager();
+        ChainedAuthenticationManager.AuthenticationManagerConfiguration config1 =
+            new ChainedAuthenticationManager.AuthenticationManagerConfiguration(ldapManagerActual, null);
+        ChainedAuthenticationManager.AuthenticationManagerConfiguration config2 =
+            new ChainedAuthenticationManager.AuthenticationManagerConfiguration(shadowUserManager, "ifPreviousTrue");
+        chainedAuthenticationManager.setDelegates(new ChainedAuthenticationManager.AuthenticationManagerConfiguration[] {config1, config2});
+        return chainedAuthenticationManager;
     }
 
     public AuthenticationManager getLdapManagerActual() {
@@ -92,20 +127,70 @@ public class DynamicLdapAuthenticationManager implements AuthenticationManager {
         return definition;
     }
 
+    /**
+     * @return the pooled context source of this LDAP provider, or null if it has not been
+     * created yet or pooling is not used for it
+     */
+    public PooledLdapContextSource getPooledContextSource() {
+        ClassPathXmlApplicationContext applicationContext = context;
+        if (applicationContext == null) {
+            return null;
+        }
+        Map<String, PooledLdapContextSource> sources = applicationContext.getBeansOfType(PooledLdapContextSource.class);
+        return sources.isEmpty() ? null : sources.values().iterator().next();
+    }
+
 
     @Override
     public Authentication authenticate(Authentication authentication) throws AuthenticationException {
-        AuthenticationManager manager = getLdapAuthenticationManager();
-        if (manager!=null) {
-            return manager.authenticate(authentication);
+        int current;
+        do {
+            current = state.get();
+            if ((current & RETIRED) != 0) {
+                throw new ProviderNotFoundException("LDAP provider has been replaced");
+            }
+        } while (!state.compareAndSet(current, current + 1));
+        try {
+            AuthenticationManager manager = getLdapAuthenticationManager();
+            if (manager!=null) {
+                return manager.authenticate(authentication);
+            }
+            throw new ProviderNotFoundException("LDAP provider not configured");
+        } finally {
+            if (state.decrementAndGet() == RETIRED) {
+                closeContext();
+            }
         }
-        throw new ProviderNotFoundException("LDAP provider not configured");
     }
 
+    /**
+     * Retires this manager. New authentications fail with a {@link ProviderNotFoundException}, and its
+     * LDAP context, and the connection pools in it, are closed once the authentications in progress
+     * have completed. The context is closed by whichever of this call or the last authentication
+     * leaves the manager retired with nothing in progress, which happens exactly once.
+     */
     public void destroy() {
-        ClassPathXmlApplicationContext applicationContext = context;
-        if (applicationContext != null) {
+        int current;
+        do {
+            current = state.get();
+            if ((current & RETIRED) != 0) {
+                return;
+            }
+        } while (!state.compareAndSet(current, current | RETIRED));
+        if (current == 0) {
+            closeContext();
+        }
+    }
+
+    protected void closeContext() {
+        ClassPathXmlApplicationContext applicationContext;
+        synchronized (this) {
+            applicationContext = context;
             context = null;
+            manager = null;
+            ldapManagerActual = null;
+        }
+        if (applicationContext != null) {
             applicationContext.destroy();
         }
     }
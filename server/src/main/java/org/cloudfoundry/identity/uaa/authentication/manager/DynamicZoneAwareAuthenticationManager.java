@@ -15,9 +15,13 @@ package org.cloudfoundry.identity.uaa.authentication.manager;
 import org.cloudfoundry.identity.uaa.authentication.AccountNotVerifiedException;
 import org.cloudfoundry.identity.uaa.authentication.AuthenticationPolicyRejectionException;
 import org.cloudfoundry.identity.uaa.authentication.PasswordChangeRequiredException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.cloudfoundry.identity.uaa.authentication.manager.ChainedAuthenticationManager.AuthenticationManagerConfiguration;
 import org.cloudfoundry.identity.uaa.constants.OriginKeys;
 import org.cloudfoundry.identity.uaa.provider.LdapIdentityProviderDefinition;
+import org.cloudfoundry.identity.uaa.provider.ldap.PooledLdapContextSource;
+import org.cloudfoundry.identity.uaa.provider.ldap.extension.NestedLdapAuthoritiesPopulator;
 import org.cloudfoundry.identity.uaa.scim.ScimGroupExternalMembershipManager;
 import org.cloudfoundry.identity.uaa.scim.ScimGroupProvisioning;
 import org.cloudfoundry.identity.uaa.util.ObjectUtils;
@@ -25,22 +29,41 @@ import org.cloudfoundry.identity.uaa.provider.IdentityProvider;
 import org.cloudfoundry.identity.uaa.provider.IdentityProviderProvisioning;
 import org.cloudfoundry.identity.uaa.zone.IdentityZone;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
+import org.cloudfoundry.identity.uaa.zone.event.IdentityProviderModifiedEvent;
+import org.springframework.context.ApplicationListener;
 import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
 import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.AuthenticationException;
 
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.ToIntFunction;
 
-public class DynamicZoneAwareAuthenticationManager implements AuthenticationManager {
+@ManagedResource(
+    objectName = "cloudfoundry.identity:name=LdapConnectionPools",
+    description = "LDAP connection pools per identity zone"
+)
+public class DynamicZoneAwareAuthenticationManager implements AuthenticationManager, ApplicationListener<IdentityProviderModifiedEvent> {
+
+    private static final Log logger = LogFactory.getLog(DynamicZoneAwareAuthenticationManager.class);
 
     private final IdentityProviderProvisioning provisioning;
     private final AuthenticationManager internalUaaAuthenticationManager;
-    private final ConcurrentMap<IdentityZone, DynamicLdapAuthenticationManager> ldapAuthManagers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, DynamicLdapAuthenticationManager> ldapAuthManagers = new ConcurrentHashMap<>();
+    private final Map<String, Object> ldapProperties = new HashMap<>();
+    private volatile Executor prepareExecutor;
     private final ScimGroupExternalMembershipManager scimGroupExternalMembershipManager;
     private final ScimGroupProvisioning scimGroupProvisioning;
     private final LdapLoginAuthenticationManager ldapLoginAuthenticationManager;
@@ -80,7 +103,7 @@ public class DynamicZoneAwareAuthenticationManager implements AuthenticationMana
             //has LDAP IDP config changed since last time?
             DynamicLdapAuthenticationManager existing = getLdapAuthenticationManager(zone, ldapProvider);
             if (!existing.getDefinition().equals(ldapProvider.getConfig())) {
-                ldapAuthManagers.remove(zone);
+                ldapAuthManagers.remove(zone.getId(), existing);
                 existing.destroy();
             }
             DynamicLdapAuthenticationManager ldapAuthenticationManager = getLdapAuthenticationManager(zone, ldapProvider);
@@ -110,7 +133,7 @@ public class DynamicZoneAwareAuthenticationManager implements AuthenticationMana
     }
 
     public DynamicLdapAuthenticationManager getLdapAuthenticationManager(IdentityZone zone, IdentityProvider provider) {
-        DynamicLdapAuthenticationManager ldapMgr = ldapAuthManagers.get(zone);
+        DynamicLdapAuthenticationManager ldapMgr = ldapAuthManagers.get(zone.getId());
         if (ldapMgr!=null) {
             return ldapMgr;
         }
@@ -118,16 +141,158 @@ public class DynamicZoneAwareAuthenticationManager implements AuthenticationMana
         if (definition==null || !definition.isConfigured()) {
             throw new IllegalArgumentException("LDAP provider not configured ID:"+provider.getId());
         }
-        ldapMgr = new DynamicLdapAuthenticationManager(definition,
+        ldapMgr = newLdapAuthenticationManager(definition);
+        ldapAuthManagers.putIfAbsent(zone.getId(), ldapMgr);
+        return ldapAuthManagers.get(zone.getId());
+    }
+
+    protected DynamicLdapAuthenticationManager newLdapAuthenticationManager(LdapIdentityProviderDefinition definition) {
+        DynamicLdapAuthenticationManager ldapMgr = new DynamicLdapAuthenticationManager(definition,
             scimGroupExternalMembershipManager,
             scimGroupProvisioning,
             ldapLoginAuthenticationManager);
-        ldapAuthManagers.putIfAbsent(zone, ldapMgr);
-        return ldapAuthManagers.get(zone);
+        ldapMgr.setLdapProperties(ldapProperties);
+        return ldapMgr;
+    }
+
+    /**
+     * Builds the LDAP context and opens its connection pools in the background as soon as an
+     * LDAP provider is created or updated, so that the first login does not pay for it.
+     */
+    @Override
+    public void onApplicationEvent(IdentityProviderModifiedEvent event) {
+        IdentityProvider provider = (IdentityProvider) event.getSource();
+        if (!OriginKeys.LDAP.equals(provider.getType()) || !provider.isActive() || provider.getIdentityZoneId() == null) {
+            return;
+        }
+        LdapIdentityProviderDefinition definition = ObjectUtils.castInstance(provider.getConfig(), LdapIdentityProviderDefinition.class);
+        if (definition == null || !definition.isConfigured()) {
+            return;
+        }
+        getPrepareExecutor().execute(() -> prepareLdapAuthenticationManager(provider.getIdentityZoneId(), definition));
+    }
+
+    protected void prepareLdapAuthenticationManager(String zoneId, LdapIdentityProviderDefinition definition) {
+        DynamicLdapAuthenticationManager existing = ldapAuthManagers.get(zoneId);
+        if (existing != null && definition.equals(existing.getDefinition())) {
+            return;
+        }
+        DynamicLdapAuthenticationManager prepared = newLdapAuthenticationManager(definition);
+        try {
+            prepared.getLdapAuthenticationManager();
+        } catch (Exception e) {
+            logger.warn("Unable to prepare LDAP provider for zone " + zoneId + ": " + e.getMessage());
+            prepared.destroy();
+            return;
+        }
+        boolean swapped = existing == null ?
+            ldapAuthManagers.putIfAbsent(zoneId, prepared) == null :
+            ldapAuthManagers.replace(zoneId, existing, prepared);
+        if (swapped) {
+            if (existing != null) {
+                existing.destroy();
+            }
+        } else {
+            prepared.destroy();
+        }
+    }
+
+    private Executor getPrepareExecutor() {
+        Executor executor = prepareExecutor;
+        if (executor == null) {
+            synchronized (this) {
+                if (prepareExecutor == null) {
+                    prepareExecutor = Executors.newSingleThreadExecutor(r -> {
+                        Thread thread = new Thread(r, "ldap-context-prepare");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+                executor = prepareExecutor;
+            }
+        }
+        return executor;
+    }
+
+    public void setPrepareExecutor(Executor prepareExecutor) {
+        this.prepareExecutor = prepareExecutor;
+    }
+
+    public void setLdapPoolEnabled(boolean enabled) {
+        ldapProperties.put(PooledLdapContextSource.LDAP_POOL_ENABLED, enabled);
+    }
+
+    public void setLdapPoolMaxActive(int maxActive) {
+        ldapProperties.put(PooledLdapContextSource.LDAP_POOL_MAX_ACTIVE, maxActive);
+    }
+
+    public void setLdapPoolMinIdle(int minIdle) {
+        ldapProperties.put(PooledLdapContextSource.LDAP_POOL_MIN_IDLE, minIdle);
+    }
+
+    public void setLdapPoolMaxIdleTimeMillis(long maxIdleTimeMillis) {
+        ldapProperties.put(PooledLdapContextSource.LDAP_POOL_MAX_IDLE_TIME, maxIdleTimeMillis);
+    }
+
+    public void setLdapPoolMaxWaitMillis(long maxWaitMillis) {
+        ldapProperties.put(PooledLdapContextSource.LDAP_POOL_MAX_WAIT, maxWaitMillis);
+    }
+
+    public void setLdapGroupCacheTtlSeconds(int ttlSeconds) {
+        ldapProperties.put(NestedLdapAuthoritiesPopulator.LDAP_GROUPS_CACHE_TTL, ttlSeconds);
+    }
+
+    public void setLdapGroupMatchingRuleInChain(boolean matchingRuleInChain) {
+        ldapProperties.put(NestedLdapAuthoritiesPopulator.LDAP_GROUPS_MATCHING_RULE_IN_CHAIN, matchingRuleInChain);
+    }
+
+    @ManagedMetric(category = "performance", displayName = "LDAP connections in use")
+    public int getActiveLdapConnections() {
+        return sum(pool -> pool.getActiveSearchConnections() + pool.getActiveBindConnections());
+    }
+
+    @ManagedMetric(category = "performance", displayName = "Idle LDAP connections")
+    public int getIdleLdapConnections() {
+        return sum(pool -> pool.getIdleSearchConnections() + pool.getIdleBindConnections());
+    }
+
+    @ManagedMetric(category = "performance", displayName = "Requests waiting for an LDAP connection")
+    public int getWaitingLdapRequests() {
+        return sum(PooledLdapContextSource::getWaitingRequests);
+    }
+
+    @ManagedAttribute(description = "Active and idle search and bind connections per zone")
+    public Map<String, String> getLdapPoolStats() {
+        Map<String, String> result = new LinkedHashMap<>();
+        ldapAuthManagers.forEach((zoneId, manager) -> {
+            PooledLdapContextSource pool = manager.getPooledContextSource();
+            if (pool != null) {
+                result.put(zoneId, String.format("{\"searchActive\":%d,\"searchIdle\":%d,\"bindActive\":%d,\"bindIdle\":%d,\"waiting\":%d,\"max\":%d}",
+                                                 pool.getActiveSearchConnections(), pool.getIdleSearchConnections(),
+                                                 pool.getActiveBindConnections(), pool.getIdleBindConnections(),
+                                                 pool.getWaitingRequests(), pool.getMaxActive()));
+            }
+        });
+        return result;
+    }
+
+    private int sum(ToIntFunction<PooledLdapContextSource> stat) {
+        int result = 0;
+        for (DynamicLdapAuthenticationManager manager : ldapAuthManagers.values()) {
+            PooledLdapContextSource pool = manager.getPooledContextSource();
+            if (pool != null) {
+                result += stat.applyAsInt(pool);
+            }
+        }
+        return result;
     }
 
     public void destroy() {
-        for (Map.Entry<IdentityZone, DynamicLdapAuthenticationManager> entry : ldapAuthManagers.entrySet()) {
+        Executor executor = prepareExecutor;
+        if (executor instanceof ExecutorService) {
+            ((ExecutorService) executor).shutdownNow();
+        }
+        for (Map.Entry<String, DynamicLdapAuthenticationManager> entry : ldapAuthManagers.entrySet()) {
             entry.getValue().destroy();
         }
     }
@@ -25,6 +25,7 @@ import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.ClientHttpRequestFactory;
 import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.authentication.BadCredentialsException;
@@ -87,17 +88,27 @@ public class RestAuthenticationManager implements AuthenticationManager {
         return restTemplate;
     }
 
+    /**
+     * @param requestFactory the request factory, e.g. a pooled client, for the default rest template
+     */
+    public void setRequestFactory(ClientHttpRequestFactory requestFactory) {
+        this.restTemplate = createRestTemplate(requestFactory);
+    }
+
     public RestAuthenticationManager() {
-        RestTemplate restTemplate = new RestTemplate();
         // The default java.net client doesn't allow you to handle 4xx responses
-        restTemplate.setRequestFactory(new HttpComponentsClientHttpRequestFactory());
+        this.restTemplate = createRestTemplate(new HttpComponentsClientHttpRequestFactory());
+    }
+
+    private static RestTemplate createRestTemplate(ClientHttpRequestFactory requestFactory) {
+        RestTemplate restTemplate = new RestTemplate(requestFactory);
         restTemplate.setErrorHandler(new DefaultResponseErrorHandler() {
             @Override
             protected boolean hasError(HttpStatus statusCode) {
                 return statusCode.series() == HttpStatus.Series.SERVER_ERROR;
             }
         });
-        this.restTemplate = restTemplate;
+        return restTemplate;
     }
 
     @Override
@@ -23,6 +23,7 @@ import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -38,21 +39,22 @@ public class LdapGroupMappingAuthorizationManager implements ExternalGroupMappin
     @Override
     public Set<? extends GrantedAuthority> findScopesFromAuthorities(Set<? extends GrantedAuthority> authorities) {
         Set<GrantedAuthority> result = new HashSet<>();
+        List<String> groupDns = new ArrayList<>();
         for (GrantedAuthority a : authorities) {
             if (a instanceof LdapAuthority) {
-                LdapAuthority la = (LdapAuthority)a;
-                List<ScimGroupExternalMember> members = extMbrMgr.getExternalGroupMapsByExternalGroup(la.getDn(), OriginKeys.LDAP, IdentityZoneHolder.get().getId());
-                for (ScimGroupExternalMember member : members) {
-                    SimpleGrantedAuthority mapped = new SimpleGrantedAuthority(member.getDisplayName());
-                    result.add(mapped);
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("Ldap Group Mapped[dn="+la.getDn()+" scope:"+mapped.getAuthority());
-                    }
-                }
+                groupDns.add(((LdapAuthority)a).getDn());
             } else {
                 result.add(a);
             }
         }
+        List<ScimGroupExternalMember> members = extMbrMgr.getExternalGroupMapsByExternalGroups(groupDns, OriginKeys.LDAP, IdentityZoneHolder.get().getId());
+        for (ScimGroupExternalMember member : members) {
+            SimpleGrantedAuthority mapped = new SimpleGrantedAuthority(member.getDisplayName());
+            result.add(mapped);
+            if (logger.isDebugEnabled()) {
+                logger.debug("Ldap Group Mapped[dn="+member.getExternalGroup()+" scope:"+mapped.getAuthority());
+            }
+        }
         return result;
     }
 
@@ -0,0 +1,31 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2017] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.cache;
+
+/**
+ * Implemented by beans that cache entities, to evict what other servers changed.
+ * The listeners are collected from the application context by {@link JdbcCacheInvalidationBus}.
+ */
+public interface CacheInvalidationListener {
+
+    /**
+     * Called for every change recorded by any server, including this one.
+     *
+     * @param entityType one of the entity types of {@link JdbcCacheInvalidationBus}
+     * @param zoneId the zone of the changed entity
+     * @param entityId the id of the changed entity, null if any entity of the type in the zone may have changed
+     */
+    void invalidate(String entityType, String zoneId, String entityId);
+}
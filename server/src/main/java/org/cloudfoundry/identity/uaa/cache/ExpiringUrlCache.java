@@ -21,29 +21,76 @@ import com.google.common.cache.CacheBuilder;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.cloudfoundry.identity.uaa.util.TimeService;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class ExpiringUrlCache implements UrlContentCache {
+/**
+ * Caches the content of external URLs, such as SAML metadata and OpenID Connect discovery documents.
+ *
+ * Only one fetch per URL is in flight at a time. Content is refreshed in the background shortly before
+ * it expires, and revalidated with {@code If-None-Match}/{@code If-Modified-Since} when the server
+ * provided an {@code ETag} or {@code Last-Modified} header. If a refresh fails, or another caller is
+ * already refreshing, expired content keeps being served for up to {@code maxStaleTimeMillis}.
+ */
+@ManagedResource(
+    objectName = "cloudfoundry.identity:name=UrlContentCache",
+    description = "Cache for SAML metadata and OpenID Connect discovery documents"
+)
+public class ExpiringUrlCache implements UrlContentCache, DisposableBean {
 
     private static Log logger = LogFactory.getLog(ExpiringUrlCache.class);
 
     private final long expiringTimeMillis;
     private final int maxEntries;
     private final TimeService ticker;
+    private final long maxStaleTimeMillis;
     protected Cache<String, CacheEntry> cache = null;
 
+    private final ConcurrentMap<String, CompletableFuture<CacheEntry>> inflight = new ConcurrentHashMap<>();
+    private double refreshAheadFactor = 0.8;
+    private long retryIntervalMillis = 30 * 1000;
+    private volatile ExecutorService refreshExecutor;
+
+    private final AtomicLong fetchCount = new AtomicLong();
+    private final AtomicLong fetchFailureCount = new AtomicLong();
+    private final AtomicLong notModifiedCount = new AtomicLong();
+    private final AtomicLong staleResponseCount = new AtomicLong();
+    private final AtomicLong totalFetchTime = new AtomicLong();
+    private final AtomicLong lastFetchTime = new AtomicLong();
+    private final AtomicLong lastPayloadSize = new AtomicLong();
+    private final AtomicLong maxPayloadSize = new AtomicLong();
+
     public ExpiringUrlCache(long expiringTimeMillis, TimeService ticker, int maxEntries) {
+        this(expiringTimeMillis, ticker, maxEntries, 24 * 60 * 60 * 1000);
+    }
+
+    public ExpiringUrlCache(long expiringTimeMillis, TimeService ticker, int maxEntries, long maxStaleTimeMillis) {
         this.expiringTimeMillis = expiringTimeMillis;
         this.ticker = ticker;
         this.maxEntries = maxEntries;
+        this.maxStaleTimeMillis = maxStaleTimeMillis;
         cache = CacheBuilder
             .newBuilder()
-            .expireAfterWrite(expiringTimeMillis, TimeUnit.MILLISECONDS)
+            .expireAfterWrite(expiringTimeMillis + maxStaleTimeMillis, TimeUnit.MILLISECONDS)
             .maximumSize(maxEntries)
             .ticker(Ticker.systemTicker())
             .build();
@@ -52,22 +99,189 @@ public class ExpiringUrlCache implements UrlContentCache {
 
     @Override
     public byte[] getUrlContent(String uri, final RestTemplate template) {
+        final URI netUri;
         try {
-            final URI netUri = new URI(uri);
-            CacheEntry entry = cache.getIfPresent(uri);
-            byte[] metadata = entry != null ? entry.getData() : null;
-            long now = ticker.getCurrentTimeMillis();
-            if (metadata == null || (now - entry.getTimeEntered()) > this.expiringTimeMillis) {
-                logger.debug("Fetching metadata for "+uri);
-                metadata = template.getForObject(netUri, byte[].class);
-                cache.put(uri, new CacheEntry(now, metadata));
+            netUri = new URI(uri);
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException(e);
+        }
+        CacheEntry entry = cache.getIfPresent(uri);
+        long now = ticker.getCurrentTimeMillis();
+        if (entry != null) {
+            if (now < entry.getExpiresAt()) {
+                if (now >= entry.getRefreshAt() && now >= entry.getRetryAt()) {
+                    refreshInBackground(uri, netUri, template, entry, now);
+                }
+                return entry.getData();
             }
-            return metadata;
+            if (isServableWhenStale(entry, now) && (now < entry.getRetryAt() || inflight.containsKey(uri))) {
+                staleResponseCount.incrementAndGet();
+                return entry.getData();
+            }
+        }
+        try {
+            return load(uri, netUri, template, entry, now).getData();
         } catch (RestClientException x) {
+            if (entry != null && isServableWhenStale(entry, now)) {
+                logger.warn("Unable to fetch metadata for " + uri + ", serving content fetched at " + entry.getTimeEntered(), x);
+                staleResponseCount.incrementAndGet();
+                return entry.getData();
+            }
             logger.warn("Unable to fetch metadata for "+uri, x);
             return null;
-        } catch (URISyntaxException e) {
-            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private boolean isServableWhenStale(CacheEntry entry, long now) {
+        return now - entry.getExpiresAt() <= maxStaleTimeMillis;
+    }
+
+    /**
+     * Fetches the content unless another caller is already doing so, in which case this waits for that fetch.
+     */
+    private CacheEntry load(String uri, URI netUri, RestTemplate template, CacheEntry previous, long now) {
+        CompletableFuture<CacheEntry> future = new CompletableFuture<>();
+        CompletableFuture<CacheEntry> existing = inflight.putIfAbsent(uri, future);
+        if (existing != null) {
+            return await(uri, existing);
+        }
+        return load(future, uri, netUri, template, previous, now);
+    }
+
+    /**
+     * Fetches the content for the future registered in {@link #inflight}, and completes it. A fetch that
+     * completed between the caller reading <code>previous</code> and registering the future has already
+     * replaced the cached entry, which is then used instead of fetching again.
+     */
+    private CacheEntry load(CompletableFuture<CacheEntry> future, String uri, URI netUri, RestTemplate template, CacheEntry previous, long now) {
+        try {
+            CacheEntry current = cache.getIfPresent(uri);
+            if (current != null && current != previous && (now < current.getExpiresAt() || now < current.getRetryAt())) {
+                future.complete(current);
+                return current;
+            }
+            CacheEntry loaded = fetch(uri, netUri, template, previous, now);
+            if (loaded.getData() != null) {
+                cache.put(uri, loaded);
+            }
+            future.complete(loaded);
+            return loaded;
+        } catch (RuntimeException x) {
+            fetchFailureCount.incrementAndGet();
+            if (previous != null) {
+                cache.put(uri, previous.retryAt(now + retryIntervalMillis));
+            }
+            future.completeExceptionally(x);
+            throw x;
+        } finally {
+            inflight.remove(uri, future);
+        }
+    }
+
+    private CacheEntry await(String uri, CompletableFuture<CacheEntry> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RestClientException("Unable to fetch metadata for " + uri, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RestClientException("Interrupted while fetching metadata for " + uri, e);
+        }
+    }
+
+    private CacheEntry fetch(String uri, URI netUri, RestTemplate template, CacheEntry previous, long now) {
+        logger.debug("Fetching metadata for "+uri);
+        HttpHeaders headers = new HttpHeaders();
+        if (previous != null && previous.getETag() != null) {
+            headers.setIfNoneMatch(previous.getETag());
+        }
+        if (previous != null && previous.getLastModified() != null) {
+            headers.set(HttpHeaders.IF_MODIFIED_SINCE, previous.getLastModified());
+        }
+        long start = System.nanoTime();
+        ResponseEntity<byte[]> response = template.exchange(netUri, HttpMethod.GET, new HttpEntity<>(headers), byte[].class);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        fetchCount.incrementAndGet();
+        totalFetchTime.addAndGet(elapsed);
+        lastFetchTime.set(elapsed);
+
+        HttpHeaders responseHeaders = response.getHeaders();
+        if (previous != null && response.getStatusCode() == HttpStatus.NOT_MODIFIED) {
+            logger.debug("Metadata for " + uri + " not modified");
+            notModifiedCount.incrementAndGet();
+            String eTag = responseHeaders.getETag() != null ? responseHeaders.getETag() : previous.getETag();
+            String lastModified = responseHeaders.getFirst(HttpHeaders.LAST_MODIFIED) != null ? responseHeaders.getFirst(HttpHeaders.LAST_MODIFIED) : previous.getLastModified();
+            return newEntry(now, previous.getData(), eTag, lastModified);
+        }
+        byte[] data = response.getBody();
+        if (data != null) {
+            lastPayloadSize.set(data.length);
+            maxPayloadSize.accumulateAndGet(data.length, Math::max);
+            logger.debug("Fetched " + data.length + " bytes of metadata for " + uri + " in " + elapsed + "ms");
+        }
+        return newEntry(now, data, responseHeaders.getETag(), responseHeaders.getFirst(HttpHeaders.LAST_MODIFIED));
+    }
+
+    private CacheEntry newEntry(long now, byte[] data, String eTag, String lastModified) {
+        long refreshAt = now + (long) (expiringTimeMillis * refreshAheadFactor);
+        return new CacheEntry(now, data, eTag, lastModified, refreshAt, now + expiringTimeMillis, now);
+    }
+
+    private void refreshInBackground(String uri, URI netUri, RestTemplate template, CacheEntry entry, long now) {
+        CompletableFuture<CacheEntry> future = new CompletableFuture<>();
+        if (inflight.putIfAbsent(uri, future) != null) {
+            return;
+        }
+        try {
+            getRefreshExecutor().execute(() -> {
+                try {
+                    load(future, uri, netUri, template, entry, now);
+                } catch (RuntimeException x) {
+                    logger.warn("Unable to refresh metadata for " + uri, x);
+                }
+            });
+        } catch (RuntimeException x) {
+            logger.debug("Unable to schedule metadata refresh for " + uri, x);
+            //the entry has not expired yet, callers that started waiting for the refresh get it instead
+            inflight.remove(uri, future);
+            future.complete(entry);
+        }
+    }
+
+    private ExecutorService getRefreshExecutor() {
+        if (refreshExecutor == null) {
+            synchronized (this) {
+                if (refreshExecutor == null) {
+                    refreshExecutor = Executors.newSingleThreadExecutor(r -> {
+                        Thread thread = new Thread(r, "url-content-refresh");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+        }
+        return refreshExecutor;
+    }
+
+    public void setRefreshExecutor(ExecutorService refreshExecutor) {
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    public void setRefreshAheadFactor(double refreshAheadFactor) {
+        this.refreshAheadFactor = refreshAheadFactor;
+    }
+
+    public void setRetryIntervalMillis(long retryIntervalMillis) {
+        this.retryIntervalMillis = retryIntervalMillis;
+    }
+
+    @Override
+    public void destroy() {
+        if (refreshExecutor != null) {
+            refreshExecutor.shutdownNow();
         }
     }
 
@@ -81,13 +295,64 @@ public class ExpiringUrlCache implements UrlContentCache {
         return cache.size();
     }
 
+    @ManagedMetric(category = "performance", displayName = "Number of fetches")
+    public long getFetchCount() {
+        return fetchCount.get();
+    }
+
+    @ManagedMetric(category = "performance", displayName = "Number of failed fetches")
+    public long getFetchFailureCount() {
+        return fetchFailureCount.get();
+    }
+
+    @ManagedMetric(category = "performance", displayName = "Number of fetches answered with 304 Not Modified")
+    public long getNotModifiedCount() {
+        return notModifiedCount.get();
+    }
+
+    @ManagedMetric(category = "performance", displayName = "Number of responses served from expired content")
+    public long getStaleResponseCount() {
+        return staleResponseCount.get();
+    }
+
+    @ManagedMetric(category = "performance", displayName = "Average fetch time (ms)")
+    public long getAverageFetchTime() {
+        long count = fetchCount.get();
+        return count == 0 ? 0 : totalFetchTime.get() / count;
+    }
+
+    @ManagedMetric(category = "performance", displayName = "Last fetch time (ms)")
+    public long getLastFetchTime() {
+        return lastFetchTime.get();
+    }
+
+    @ManagedMetric(category = "performance", displayName = "Last downloaded payload size (bytes)")
+    public long getLastPayloadSize() {
+        return lastPayloadSize.get();
+    }
+
+    @ManagedMetric(category = "performance", displayName = "Largest downloaded payload size (bytes)")
+    public long getMaxPayloadSize() {
+        return maxPayloadSize.get();
+    }
+
     static class CacheEntry {
         private final long timeEntered;
         private final byte[] data;
+        private final String eTag;
+        private final String lastModified;
+        private final long refreshAt;
+        private final long expiresAt;
+        private final long retryAt;
 
-        public CacheEntry(long timeEntered, byte[] data) {
+        public CacheEntry(long timeEntered, byte[] data, String eTag, String lastModified, long refreshAt, long expiresAt, long retryAt) {
             this.timeEntered = timeEntered;
             this.data = data;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.refreshAt = refreshAt;
+            this.expiresAt = expiresAt;
+            this.retryAt = retryAt;
         }
 
         public long getTimeEntered() {
@@ -98,5 +363,28 @@ public class ExpiringUrlCache implements UrlContentCache {
             return data;
         }
 
+        public String getETag() {
+            return eTag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        public long getRefreshAt() {
+            return refreshAt;
+        }
+
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+
+        public long getRetryAt() {
+            return retryAt;
+        }
+
+        CacheEntry retryAt(long retryAt) {
+            return new CacheEntry(timeEntered, data, eTag, lastModified, refreshAt, expiresAt, retryAt);
+        }
     }
 }
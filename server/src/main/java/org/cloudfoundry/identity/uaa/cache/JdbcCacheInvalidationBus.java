@@ -0,0 +1,328 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2017] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.cache;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets the servers sharing a database evict cached entities that another server changed,
+ * without an external broker. Writers record every change in the <code>cache_invalidation</code>
+ * table, as part of their own transaction. Every server polls the rows created since its last
+ * poll, through an index on <code>created</code>, and hands them to all
+ * {@link CacheInvalidationListener} beans.
+ *
+ * The time of a change is taken from the database clock, so that the clocks of the servers do
+ * not matter. Because a change only becomes visible when its transaction commits, every poll
+ * reads the rows of the last <code>overlapMillis</code> again and skips the ones already seen.
+ * Rows older than <code>retentionMillis</code> are deleted.
+ *
+ * Every row also records the version of the entity after the change, or null for deletes and
+ * for entities without a version. Evicting does not depend on which change comes first, so
+ * the order of <code>created</code> is enough for delivery and the version only tells which
+ * change a row stands for.
+ */
+@ManagedResource(
+    objectName = "cloudfoundry.identity:name=CacheInvalidationBus",
+    description = "Invalidates cached entities changed by other servers"
+)
+public class JdbcCacheInvalidationBus implements ApplicationListener<ContextRefreshedEvent>, DisposableBean {
+
+    private static Log logger = LogFactory.getLog(JdbcCacheInvalidationBus.class);
+
+    public static final String IDENTITY_ZONE = "identity_zone";
+    public static final String CLIENT = "client";
+    public static final String IDENTITY_PROVIDER = "identity_provider";
+    public static final String GROUP = "group";
+    public static final String USER = "user";
+    /**
+     * The external group mappings of a zone, with the origin as entity id
+     */
+    public static final String EXTERNAL_GROUP_MAPPING = "external_group_mapping";
+    public static final String SAML_SERVICE_PROVIDER = "saml_service_provider";
+
+    public static final String TABLE_NAME = "cache_invalidation";
+
+    private static final String INSERT_SQL = "insert into " + TABLE_NAME + " (id, entity_type, identity_zone_id, entity_id, version) values (?,?,?,?,?)";
+
+    private static final int[] INSERT_TYPES = {Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.INTEGER};
+
+    private static final String POLL_SQL = "select id, entity_type, identity_zone_id, entity_id, version, created from " + TABLE_NAME + " where created >= ? order by created";
+
+    private static final String LATEST_SQL = "select max(created) from " + TABLE_NAME;
+
+    private static final String PURGE_SQL = "delete from " + TABLE_NAME + " where created < ?";
+
+    private static final RowMapper<Invalidation> mapper = (rs, rowNum) -> new Invalidation(
+        rs.getString(1),
+        rs.getString(2),
+        rs.getString(3),
+        rs.getString(4),
+        rs.getObject(5) == null ? null : rs.getInt(5),
+        rs.getTimestamp(6).getTime()
+    );
+
+    private final JdbcTemplate jdbcTemplate;
+    private final List<CacheInvalidationListener> listeners = new CopyOnWriteArrayList<>();
+
+    private boolean enabled = false;
+    private long pollInterval = 1000;
+    private long overlapMillis = 60000;
+    private long retentionMillis = 3600000;
+    private ScheduledExecutorService executor;
+
+    //guarded by this
+    private Long cursor;
+    private final Map<String, Long> seen = new HashMap<>();
+    private long lastPurge = 0;
+
+    private final AtomicLong pollCount = new AtomicLong();
+    private final AtomicLong pollFailureCount = new AtomicLong();
+    private final AtomicLong invalidationCount = new AtomicLong();
+    private final AtomicLong lastPollTime = new AtomicLong();
+    private final AtomicLong lastLag = new AtomicLong();
+    private final AtomicLong maxLag = new AtomicLong();
+
+    public JdbcCacheInvalidationBus(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param enabled true if changes are recorded and polled, false (the default) if every
+     *            server only evicts its own changes
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @param pollInterval milliseconds between two polls
+     */
+    public void setPollInterval(long pollInterval) {
+        this.pollInterval = pollInterval;
+    }
+
+    /**
+     * @param overlapMillis how long a change can take to commit and still be seen, must be
+     *            longer than the longest transaction of a writer
+     */
+    public void setOverlapMillis(long overlapMillis) {
+        this.overlapMillis = overlapMillis;
+    }
+
+    /**
+     * @param retentionMillis how long a change is kept in the table, must be longer than the overlap
+     */
+    public void setRetentionMillis(long retentionMillis) {
+        this.retentionMillis = retentionMillis;
+    }
+
+    public void addListener(CacheInvalidationListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Records a change for all servers, in the transaction of the caller if there is one.
+     *
+     * @param entityId the id of the changed entity, null if any entity of the type in the zone may have changed
+     */
+    public void publish(String entityType, String zoneId, String entityId) {
+        publish(entityType, zoneId, entityId, null);
+    }
+
+    /**
+     * Records a change that left the entity at the version
+     *
+     * @param version the version of the entity after the change, null if unknown or deleted
+     */
+    public void publish(String entityType, String zoneId, String entityId, Integer version) {
+        if (!enabled || zoneId == null) {
+            return;
+        }
+        jdbcTemplate.update(INSERT_SQL, new Object[] {UUID.randomUUID().toString(), entityType, zoneId, entityId, version}, INSERT_TYPES);
+    }
+
+    /**
+     * Records the changes of several entities of the type in one batch
+     */
+    public void publishAll(String entityType, String zoneId, Collection<String> entityIds) {
+        if (!enabled || zoneId == null || entityIds.isEmpty()) {
+            return;
+        }
+        List<Object[]> batchArgs = new ArrayList<>(entityIds.size());
+        for (String entityId : entityIds) {
+            batchArgs.add(new Object[] {UUID.randomUUID().toString(), entityType, zoneId, entityId, null});
+        }
+        jdbcTemplate.batchUpdate(INSERT_SQL, batchArgs, INSERT_TYPES);
+    }
+
+    @Override
+    public void onApplicationEvent(ContextRefreshedEvent event) {
+        if (!enabled) {
+            return;
+        }
+        synchronized (this) {
+            if (executor != null) {
+                return;
+            }
+            for (CacheInvalidationListener listener : event.getApplicationContext().getBeansOfType(CacheInvalidationListener.class).values()) {
+                if (!listeners.contains(listener)) {
+                    addListener(listener);
+                }
+            }
+            executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "cache-invalidation-poller");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.scheduleWithFixedDelay(this::poll, 0, pollInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        synchronized (this) {
+            if (executor != null) {
+                executor.shutdownNow();
+                executor = null;
+            }
+        }
+    }
+
+    /**
+     * Hands the changes recorded since the last poll to the listeners. The first poll
+     * starts with the latest change recorded before it.
+     */
+    public synchronized void poll() {
+        try {
+            if (cursor == null) {
+                Timestamp latest = jdbcTemplate.queryForObject(LATEST_SQL, Timestamp.class);
+                cursor = latest == null ? 0 : latest.getTime();
+            }
+            List<Invalidation> invalidations = jdbcTemplate.query(POLL_SQL, mapper, new Timestamp(cursor - overlapMillis));
+            long now = System.currentTimeMillis();
+            for (Invalidation invalidation : invalidations) {
+                if (seen.putIfAbsent(invalidation.id, invalidation.created) != null) {
+                    continue;
+                }
+                deliver(invalidation);
+                invalidationCount.incrementAndGet();
+                long lag = Math.max(0, now - invalidation.created);
+                lastLag.set(lag);
+                maxLag.accumulateAndGet(lag, Math::max);
+                cursor = Math.max(cursor, invalidation.created);
+            }
+            long oldest = cursor - overlapMillis;
+            seen.values().removeIf(created -> created < oldest);
+            if (now - lastPurge > retentionMillis / 10) {
+                jdbcTemplate.update(PURGE_SQL, new Timestamp(cursor - retentionMillis));
+                lastPurge = now;
+            }
+            pollCount.incrementAndGet();
+            lastPollTime.set(now);
+        } catch (DataAccessException e) {
+            pollFailureCount.incrementAndGet();
+            logger.warn("Unable to poll cache invalidations", e);
+        }
+    }
+
+    private void deliver(Invalidation invalidation) {
+        for (CacheInvalidationListener listener : listeners) {
+            try {
+                listener.invalidate(invalidation.entityType, invalidation.zoneId, invalidation.entityId);
+            } catch (RuntimeException e) {
+                logger.warn("Unable to invalidate " + invalidation.entityType + " " + invalidation.entityId + " version " + invalidation.version + " in zone " + invalidation.zoneId, e);
+            }
+        }
+    }
+
+    @ManagedMetric(category = "performance", displayName = "Number of polls")
+    public long getPollCount() {
+        return pollCount.get();
+    }
+
+    @ManagedMetric(category = "performance", displayName = "Number of failed polls")
+    public long getPollFailureCount() {
+        return pollFailureCount.get();
+    }
+
+    @ManagedMetric(category = "performance", displayName = "Number of changes handed to the listeners")
+    public long getInvalidationCount() {
+        return invalidationCount.get();
+    }
+
+    @ManagedMetric(category = "performance", displayName = "Time since the last successful poll (ms)")
+    public long getTimeSinceLastPoll() {
+        long last = lastPollTime.get();
+        return last == 0 ? -1 : System.currentTimeMillis() - last;
+    }
+
+    /**
+     * The lag includes any difference between the clocks of the database and this server
+     */
+    @ManagedMetric(category = "performance", displayName = "Time between the last change and its invalidation (ms)")
+    public long getLastLag() {
+        return lastLag.get();
+    }
+
+    @ManagedMetric(category = "performance", displayName = "Largest time between a change and its invalidation (ms)")
+    public long getMaxLag() {
+        return maxLag.get();
+    }
+
+    private static final class Invalidation {
+        private final String id;
+        private final String entityType;
+        private final String zoneId;
+        private final String entityId;
+        private final Integer version;
+        private final long created;
+
+        private Invalidation(String id, String entityType, String zoneId, String entityId, Integer version, long created) {
+            this.id = id;
+            this.entityType = entityType;
+            this.zoneId = zoneId;
+            this.entityId = entityId;
+            this.version = version;
+            this.created = created;
+        }
+    }
+}
@@ -21,11 +21,13 @@ public interface UrlContentCache {
 
     /**
      * Retrieves and caches the content for a given URI by invoking
-     * {@link org.springframework.web.client.RestTemplate#getForObject(URI, Class)} method.
+     * {@link org.springframework.web.client.RestTemplate#exchange(URI, org.springframework.http.HttpMethod, org.springframework.http.HttpEntity, Class)}
+     * with a GET request, which is conditional when the content has been retrieved before.
      * The template may throw {@link org.springframework.web.client.RestClientException} to indicate content not available
      * @param uri - must be a valid URI
      * @param template - RestTemplate used for content retrieval
-     * @return byte[] for the content or null if a content retrieval error happened ({@link org.springframework.web.client.RestClientException})
+     * @return byte[] for the content, possibly stale content if a content retrieval error happened, or null if
+     * a content retrieval error happened ({@link org.springframework.web.client.RestClientException}) and no earlier content is available
      * @throws IllegalArgumentException if uri is not valid {@link URI}
      */
     byte[] getUrlContent(String uri, RestTemplate template);
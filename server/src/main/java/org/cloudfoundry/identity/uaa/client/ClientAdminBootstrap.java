@@ -16,6 +16,8 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.cloudfoundry.identity.uaa.audit.event.EntityDeletedEvent;
 import org.cloudfoundry.identity.uaa.authentication.SystemAuthentication;
+import org.cloudfoundry.identity.uaa.impl.config.BootstrapTasks;
+import org.cloudfoundry.identity.uaa.impl.config.JdbcBootstrapFingerprintStore;
 import org.cloudfoundry.identity.uaa.oauth.client.ClientConstants;
 import org.cloudfoundry.identity.uaa.user.UaaAuthority;
 import org.cloudfoundry.identity.uaa.zone.ClientServicesExtension;
@@ -38,15 +40,19 @@ import org.springframework.util.StringUtils;
 
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 import static java.util.Collections.emptyList;
 import static java.util.Optional.ofNullable;
@@ -55,6 +61,8 @@ public class ClientAdminBootstrap implements InitializingBean, ApplicationListen
 
     private static Log logger = LogFactory.getLog(ClientAdminBootstrap.class);
 
+    private static final String FINGERPRINT_TYPE = "client";
+
     private Map<String, Map<String, Object>> clients = new HashMap<String, Map<String, Object>>();
 
     private List<String> clientsToDelete = null;
@@ -71,6 +79,10 @@ public class ClientAdminBootstrap implements InitializingBean, ApplicationListen
 
     private ApplicationEventPublisher publisher;
 
+    private JdbcBootstrapFingerprintStore fingerprintStore;
+
+    private int threads = 1;
+
     public ClientAdminBootstrap(PasswordEncoder passwordEncoder) {
         this.passwordEncoder = passwordEncoder;
     }
@@ -89,6 +101,21 @@ public class ClientAdminBootstrap implements InitializingBean, ApplicationListen
         this.defaultOverride = defaultOverride;
     }
 
+    /**
+     * @param fingerprintStore if enabled, the clients that did not change since the last start are skipped
+     */
+    public void setFingerprintStore(JdbcBootstrapFingerprintStore fingerprintStore) {
+        this.fingerprintStore = fingerprintStore;
+    }
+
+    /**
+     * @param threads the number of threads that check and update the secrets of the clients,
+     *            when the fingerprint store is enabled (default 1)
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
     public PasswordEncoder getPasswordEncoder() {
         return passwordEncoder;
     }
@@ -145,6 +172,10 @@ public class ClientAdminBootstrap implements InitializingBean, ApplicationListen
         for (String clientId : autoApproveList) {
             try {
                 BaseClientDetails base = (BaseClientDetails) clientRegistrationService.loadClientByClientId(clientId, IdentityZone.getUaa().getId());
+                if (fingerprintStore != null && fingerprintStore.isEnabled() && base.getAutoApproveScopes().contains("true")) {
+                    //keeps the stored client, and with it the fingerprint, unchanged
+                    continue;
+                }
                 base.addAdditionalInformation(ClientConstants.AUTO_APPROVE, true);
                 logger.debug("Adding autoapprove flag to client: " + clientId);
                 clientRegistrationService.updateClientDetails(base, IdentityZone.getUaa().getId());
@@ -172,50 +203,16 @@ public class ClientAdminBootstrap implements InitializingBean, ApplicationListen
         List<String> slatedForDeletion = ofNullable(clientsToDelete).orElse(emptyList());
         Set<Map.Entry<String, Map<String, Object>>> entries = clients.entrySet();
         entries.removeIf(entry -> slatedForDeletion.contains(entry.getKey()));
+        if (fingerprintStore != null && fingerprintStore.isEnabled()) {
+            addChangedClients(entries);
+            return;
+        }
         for (Map.Entry<String, Map<String, Object>> entry : entries) {
             String clientId = entry.getKey();
 
             Map<String, Object> map = entry.getValue();
-            if(map.get("authorized-grant-types") == null) {
-                throw new InvalidClientDetailsException("Client must have at least one authorized-grant-type. client ID: " + clientId);
-            }
-            BaseClientDetails client = new BaseClientDetails(clientId, (String) map.get("resource-ids"),
-                (String) map.get("scope"), (String) map.get("authorized-grant-types"),
-                (String) map.get("authorities"), getRedirectUris(map));
-
-            client.setClientSecret(map.get("secret") == null ? "" : (String) map.get("secret"));
-
-            Integer validity = (Integer) map.get("access-token-validity");
-            Boolean override = (Boolean) map.get("override");
-            if (override == null) {
-                override = defaultOverride;
-            }
-            Map<String, Object> info = new HashMap<String, Object>(map);
-            if (validity != null) {
-                client.setAccessTokenValiditySeconds(validity);
-            }
-            validity = (Integer) map.get("refresh-token-validity");
-            if (validity != null) {
-                client.setRefreshTokenValiditySeconds(validity);
-            }
-            // UAA does not use the resource ids in client registrations
-            client.setResourceIds(Collections.singleton("none"));
-            if (client.getScope().isEmpty()) {
-                client.setScope(Collections.singleton("uaa.none"));
-            }
-            if (client.getAuthorities().isEmpty()) {
-                client.setAuthorities(Collections.singleton(UaaAuthority.UAA_NONE));
-            }
-            if (client.getAuthorizedGrantTypes().contains("authorization_code")) {
-                client.getAuthorizedGrantTypes().add("refresh_token");
-            }
-            for (String key : Arrays.asList("resource-ids", "scope", "authorized-grant-types", "authorities",
-                            "redirect-uri", "secret", "id", "override", "access-token-validity",
-                            "refresh-token-validity","show-on-homepage","app-launch-url","app-icon")) {
-                info.remove(key);
-            }
-
-            client.setAdditionalInformation(info);
+            BaseClientDetails client = buildClient(clientId, map);
+            Boolean override = isOverride(map);
             try {
                 clientRegistrationService.addClientDetails(client, IdentityZone.getUaa().getId());
             } catch (ClientAlreadyExistsException e) {
@@ -231,17 +228,213 @@ public class ClientAdminBootstrap implements InitializingBean, ApplicationListen
                 }
             }
 
-            for (String s : Arrays.asList("authorization_code", "implicit")) {
-                if (client.getAuthorizedGrantTypes().contains(s) && isMissingRedirectUris(client)) {
-                    throw new InvalidClientDetailsException(s + " grant type requires at least one redirect URL. ClientID: " + client.getClientId());
-                }
-            }
+            validateRedirectUris(client);
 
             ClientMetadata clientMetadata = buildClientMetadata(map, clientId);
             clientMetadataProvisioning.update(clientMetadata, IdentityZoneHolder.get().getId());
         }
     }
 
+    /**
+     * Writes only the clients whose configuration or stored state changed since their
+     * fingerprint was recorded, or whose secret no longer matches the stored hash, adding and
+     * updating them in batches and checking the secrets in parallel.
+     */
+    private void addChangedClients(Collection<Map.Entry<String, Map<String, Object>>> entries) throws Exception {
+        String zoneId = IdentityZone.getUaa().getId();
+        long start = System.nanoTime();
+        Map<String, String> fingerprints = fingerprintStore.getFingerprints(FINGERPRINT_TYPE, zoneId);
+        Map<String, ClientDetails> existingClients = getClientsById(zoneId);
+        Map<String, ClientMetadata> existingMetadata = getClientMetadataById(zoneId);
+        long loaded = System.nanoTime();
+
+        Map<String, BaseClientDetails> changed = new LinkedHashMap<>();
+        Map<String, ClientMetadata> changedMetadata = new HashMap<>();
+        Map<String, String> contents = new HashMap<>();
+        List<ClientDetails> unchanged = new LinkedList<>();
+        for (Map.Entry<String, Map<String, Object>> entry : entries) {
+            String clientId = entry.getKey();
+            Map<String, Object> map = entry.getValue();
+            BaseClientDetails client = buildClient(clientId, map);
+            if (autoApproveClients != null && autoApproveClients.contains(clientId)) {
+                client.addAdditionalInformation(ClientConstants.AUTO_APPROVE, true);
+                client.setAutoApproveScopes(Collections.singleton("true"));
+            }
+            validateRedirectUris(client);
+            ClientMetadata clientMetadata = buildClientMetadata(map, clientId);
+
+            String content = getContent(client, isOverride(map), clientMetadata);
+            ClientDetails existing = existingClients.get(clientId);
+            if (existing != null && JdbcBootstrapFingerprintStore.matches(fingerprints.get(clientId), content + getState(existing, existingMetadata.get(clientId)))) {
+                unchanged.add(client);
+            }
+            changed.put(clientId, client);
+            changedMetadata.put(clientId, clientMetadata);
+            contents.put(clientId, content);
+        }
+        // secrets are not part of the fingerprints, they are checked against the stored hashes
+        List<Callable<String>> secretChecks = new ArrayList<>();
+        for (ClientDetails client : unchanged) {
+            secretChecks.add(() -> !isOverride(clients.get(client.getClientId())) ||
+                                   !didPasswordChange(existingClients.get(client.getClientId()), client.getClientSecret()) ?
+                                   client.getClientId() : null);
+        }
+        for (String clientId : BootstrapTasks.runAll(secretChecks, threads, IdentityZone.getUaa(), "client-admin-bootstrap")) {
+            if (clientId != null) {
+                changed.remove(clientId);
+                contents.remove(clientId);
+            }
+        }
+
+        List<ClientDetails> added = new LinkedList<>();
+        List<ClientDetails> updated = new LinkedList<>();
+        List<ClientMetadata> metadata = new LinkedList<>();
+        for (BaseClientDetails client : changed.values()) {
+            String clientId = client.getClientId();
+            Boolean override = isOverride(clients.get(clientId));
+            if (!existingClients.containsKey(clientId)) {
+                added.add(client);
+            } else if (override == null || override) {
+                logger.debug("Overriding client details for " + clientId);
+                updated.add(client);
+            } else {
+                logger.debug("Client already exists: " + clientId);
+            }
+            metadata.add(changedMetadata.get(clientId));
+        }
+        long compared = System.nanoTime();
+
+        if (!added.isEmpty()) {
+            clientRegistrationService.addAllClientDetails(added, zoneId);
+        }
+        if (!updated.isEmpty()) {
+            clientRegistrationService.updateAllClientDetails(updated, zoneId);
+            List<Callable<Void>> secretUpdates = new ArrayList<>();
+            for (ClientDetails client : updated) {
+                secretUpdates.add(() -> {
+                    if (didPasswordChange(existingClients.get(client.getClientId()), client.getClientSecret())) {
+                        clientRegistrationService.updateClientSecret(client.getClientId(), client.getClientSecret(), zoneId);
+                    }
+                    return null;
+                });
+            }
+            BootstrapTasks.runAll(secretUpdates, threads, IdentityZone.getUaa(), "client-admin-bootstrap");
+        }
+        for (ClientMetadata clientMetadata : metadata) {
+            clientMetadataProvisioning.update(clientMetadata, zoneId);
+        }
+        long written = System.nanoTime();
+
+        if (!contents.isEmpty()) {
+            Map<String, ClientDetails> writtenClients = getClientsById(zoneId);
+            Map<String, ClientMetadata> writtenMetadata = getClientMetadataById(zoneId);
+            Map<String, String> newFingerprints = new HashMap<>();
+            for (Map.Entry<String, String> content : contents.entrySet()) {
+                ClientDetails client = writtenClients.get(content.getKey());
+                if (client != null) {
+                    newFingerprints.put(content.getKey(), JdbcBootstrapFingerprintStore.fingerprint(content.getValue() + getState(client, writtenMetadata.get(content.getKey()))));
+                }
+            }
+            fingerprintStore.saveFingerprints(FINGERPRINT_TYPE, zoneId, newFingerprints);
+        }
+        long end = System.nanoTime();
+        logger.info(String.format("Bootstrapped %d clients in %d ms (%d added, %d updated, %d unchanged): load %d ms, compare %d ms, write %d ms, fingerprint %d ms",
+                                  entries.size(),
+                                  TimeUnit.NANOSECONDS.toMillis(end - start),
+                                  added.size(),
+                                  updated.size(),
+                                  entries.size() - contents.size(),
+                                  TimeUnit.NANOSECONDS.toMillis(loaded - start),
+                                  TimeUnit.NANOSECONDS.toMillis(compared - loaded),
+                                  TimeUnit.NANOSECONDS.toMillis(written - compared),
+                                  TimeUnit.NANOSECONDS.toMillis(end - written)));
+    }
+
+    private Map<String, ClientDetails> getClientsById(String zoneId) {
+        Map<String, ClientDetails> result = new HashMap<>();
+        for (ClientDetails client : clientRegistrationService.listClientDetails(zoneId)) {
+            result.put(client.getClientId(), client);
+        }
+        return result;
+    }
+
+    private Map<String, ClientMetadata> getClientMetadataById(String zoneId) {
+        Map<String, ClientMetadata> result = new HashMap<>();
+        for (ClientMetadata clientMetadata : clientMetadataProvisioning.retrieveAll(zoneId)) {
+            result.put(clientMetadata.getClientId(), clientMetadata);
+        }
+        return result;
+    }
+
+    /**
+     * @return the configuration of the client, without the secret
+     */
+    private static String getContent(BaseClientDetails client, Boolean override, ClientMetadata clientMetadata) {
+        BaseClientDetails withoutSecret = new BaseClientDetails(client);
+        withoutSecret.setClientSecret(null);
+        return JdbcBootstrapFingerprintStore.getContent(withoutSecret, override, clientMetadata);
+    }
+
+    private String getState(ClientDetails client, ClientMetadata clientMetadata) {
+        return JdbcBootstrapFingerprintStore.getContent(client, client.getClientSecret(), clientMetadata);
+    }
+
+    private Boolean isOverride(Map<String, Object> map) {
+        Boolean override = (Boolean) map.get("override");
+        if (override == null) {
+            override = defaultOverride;
+        }
+        return override;
+    }
+
+    private BaseClientDetails buildClient(String clientId, Map<String, Object> map) {
+        if(map.get("authorized-grant-types") == null) {
+            throw new InvalidClientDetailsException("Client must have at least one authorized-grant-type. client ID: " + clientId);
+        }
+        BaseClientDetails client = new BaseClientDetails(clientId, (String) map.get("resource-ids"),
+            (String) map.get("scope"), (String) map.get("authorized-grant-types"),
+            (String) map.get("authorities"), getRedirectUris(map));
+
+        client.setClientSecret(map.get("secret") == null ? "" : (String) map.get("secret"));
+
+        Integer validity = (Integer) map.get("access-token-validity");
+        Map<String, Object> info = new HashMap<String, Object>(map);
+        if (validity != null) {
+            client.setAccessTokenValiditySeconds(validity);
+        }
+        validity = (Integer) map.get("refresh-token-validity");
+        if (validity != null) {
+            client.setRefreshTokenValiditySeconds(validity);
+        }
+        // UAA does not use the resource ids in client registrations
+        client.setResourceIds(Collections.singleton("none"));
+        if (client.getScope().isEmpty()) {
+            client.setScope(Collections.singleton("uaa.none"));
+        }
+        if (client.getAuthorities().isEmpty()) {
+            client.setAuthorities(Collections.singleton(UaaAuthority.UAA_NONE));
+        }
+        if (client.getAuthorizedGrantTypes().contains("authorization_code")) {
+            client.getAuthorizedGrantTypes().add("refresh_token");
+        }
+        for (String key : Arrays.asList("resource-ids", "scope", "authorized-grant-types", "authorities",
+                        "redirect-uri", "secret", "id", "override", "access-token-validity",
+                        "refresh-token-validity","show-on-homepage","app-launch-url","app-icon")) {
+            info.remove(key);
+        }
+
+        client.setAdditionalInformation(info);
+        return client;
+    }
+
+    private void validateRedirectUris(BaseClientDetails client) {
+        for (String s : Arrays.asList("authorization_code", "implicit")) {
+            if (client.getAuthorizedGrantTypes().contains(s) && isMissingRedirectUris(client)) {
+                throw new InvalidClientDetailsException(s + " grant type requires at least one redirect URL. ClientID: " + client.getClientId());
+            }
+        }
+    }
+
     private boolean isMissingRedirectUris(BaseClientDetails client) {
         return client.getRegisteredRedirectUri() == null || client.getRegisteredRedirectUri().isEmpty();
     }
@@ -269,6 +462,14 @@ public class ClientAdminBootstrap implements InitializingBean, ApplicationListen
     protected boolean didPasswordChange(String clientId, String rawPassword) {
         if (getPasswordEncoder()!=null) {
             ClientDetails existing = clientRegistrationService.loadClientByClientId(clientId, IdentityZoneHolder.get().getId());
+            return didPasswordChange(existing, rawPassword);
+        } else {
+            return true;
+        }
+    }
+
+    private boolean didPasswordChange(ClientDetails existing, String rawPassword) {
+        if (getPasswordEncoder()!=null) {
             String existingPasswordHash = existing.getClientSecret();
             return !getPasswordEncoder().matches(rawPassword, existingPasswordHash);
         } else {
@@ -263,9 +263,9 @@ public class ClientAdminEndpoints implements InitializingBean, ApplicationEventP
     }
 
     protected ClientDetails[] doInsertClientDetails(ClientDetails[] details) {
+        List<ClientDetails> created = clientRegistrationService.addAllClientDetails(Arrays.asList(details), IdentityZoneHolder.get().getId());
         for (int i=0; i<details.length; i++) {
-            details[i] = clientDetailsService.create(details[i], IdentityZoneHolder.get().getId());
-            details[i] = removeSecret(details[i]);
+            details[i] = removeSecret(created.get(i));
         }
         return details;
     }
@@ -294,8 +294,8 @@ public class ClientAdminEndpoints implements InitializingBean, ApplicationEventP
 
     protected ClientDetails[] doProcessUpdates(ClientDetails[] details) {
         ClientDetails[] result = new ClientDetails[details.length];
+        clientRegistrationService.updateAllClientDetails(Arrays.asList(details), IdentityZoneHolder.get().getId());
         for (int i=0; i<result.length; i++) {
-            clientRegistrationService.updateClientDetails(details[i], IdentityZoneHolder.get().getId());
             clientUpdates.incrementAndGet();
             result[i] = removeSecret(details[i]);
         }
@@ -14,9 +14,10 @@ package org.cloudfoundry.identity.uaa.codestore;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.resources.jdbc.DefaultDeleteReturningSqlAdapter;
+import org.cloudfoundry.identity.uaa.resources.jdbc.DeleteReturningSqlAdapter;
 import org.cloudfoundry.identity.uaa.util.TimeService;
 import org.springframework.dao.DataIntegrityViolationException;
-import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
@@ -50,6 +51,8 @@ public class JdbcExpiringCodeStore implements ExpiringCodeStore {
 
     private TimeService timeService;
 
+    private DeleteReturningSqlAdapter deleteReturningSqlAdapter = new DefaultDeleteReturningSqlAdapter();
+
     private AtomicLong lastExpired = new AtomicLong();
     private long expirationInterval = 60 * 1000; // once a minute
 
@@ -78,6 +81,10 @@ public class JdbcExpiringCodeStore implements ExpiringCodeStore {
         this.timeService = timeService;
     }
 
+    public void setDeleteReturningSqlAdapter(DeleteReturningSqlAdapter deleteReturningSqlAdapter) {
+        this.deleteReturningSqlAdapter = deleteReturningSqlAdapter;
+    }
+
     @Override
     public ExpiringCode generateCode(String data, Timestamp expiresAt, String intent, String zoneId) {
         cleanExpiredEntries();
@@ -120,18 +127,11 @@ public class JdbcExpiringCodeStore implements ExpiringCodeStore {
             throw new NullPointerException();
         }
 
-        try {
-            ExpiringCode expiringCode = jdbcTemplate.queryForObject(selectAllFields, rowMapper, code, zoneId);
-            if (expiringCode != null) {
-                jdbcTemplate.update(delete, code, zoneId);
-            }
-            if (expiringCode.getExpiresAt().getTime() < timeService.getCurrentTimeMillis()) {
-                expiringCode = null;
-            }
-            return expiringCode;
-        } catch (EmptyResultDataAccessException x) {
-            return null;
+        ExpiringCode expiringCode = deleteReturningSqlAdapter.consume(jdbcTemplate, rowMapper, tableName, fields, "code = ? and identity_zone_id = ?", code, zoneId);
+        if (expiringCode != null && expiringCode.getExpiresAt().getTime() < timeService.getCurrentTimeMillis()) {
+            expiringCode = null;
         }
+        return expiringCode;
     }
 
     @Override
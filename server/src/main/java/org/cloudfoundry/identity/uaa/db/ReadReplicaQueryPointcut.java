@@ -0,0 +1,43 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2017] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.db;
+
+import org.springframework.aop.aspectj.AspectJExpressionPointcut;
+
+/**
+ * Selects the query methods that {@link ReadReplicaRoutingDataSource#readOnlyQuery} lets the
+ * replica serve. It matches no class while the replica is disabled, so that no bean is proxied
+ * for it in the default deployment.
+ */
+public class ReadReplicaQueryPointcut extends AspectJExpressionPointcut {
+
+    private boolean enabled = false;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param enabled true if the replica is enabled, false (the default) if the expression matches nothing
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public boolean matches(Class<?> targetClass) {
+        return enabled && super.matches(targetClass);
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2017] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.db;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Sends the reads of a request to a read replica, and everything else to the primary database.
+ * A connection is taken from the replica when it is obtained within a read only transaction,
+ * or within {@link #readOnly(Supplier)}, while a request is being served. Once a request
+ * wrote to the primary, all its following reads use the primary, so that a request always
+ * reads its own writes. Work outside of requests, like the bootstraps, always uses the primary,
+ * and so do the reads within {@link #primary(Supplier)}.
+ *
+ * The routing is decided when a connection is obtained, so transactions must be managed
+ * through a {@link org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy}
+ * around this data source, for the read only flag of a transaction to be known by then.
+ */
+@ManagedResource(
+    objectName = "cloudfoundry.identity:name=ReadReplicaRoutingDataSource",
+    description = "Routes the reads of requests to a read replica"
+)
+public class ReadReplicaRoutingDataSource extends AbstractRoutingDataSource {
+
+    public enum Route {
+        PRIMARY,
+        REPLICA
+    }
+
+    public static final String WROTE_ATTRIBUTE = ReadReplicaRoutingDataSource.class.getName() + ".WROTE";
+
+    private static final ThreadLocal<Integer> readOnlyDepth = ThreadLocal.withInitial(() -> 0);
+
+    private static final ThreadLocal<Integer> primaryDepth = ThreadLocal.withInitial(() -> 0);
+
+    private boolean enabled = false;
+    private DataSource primary;
+    private DataSource replica;
+
+    private final AtomicLong primaryConnectionCount = new AtomicLong();
+    private final AtomicLong replicaConnectionCount = new AtomicLong();
+    private final AtomicLong stickyRequestCount = new AtomicLong();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param enabled true if reads are sent to the replica, false (the default) if all
+     *            connections are taken from the primary
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setPrimary(DataSource primary) {
+        this.primary = primary;
+    }
+
+    public void setReplica(DataSource replica) {
+        this.replica = replica;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        Map<Object, Object> targets = new HashMap<>();
+        targets.put(Route.PRIMARY, primary);
+        targets.put(Route.REPLICA, replica == null ? primary : replica);
+        setTargetDataSources(targets);
+        setDefaultTargetDataSource(primary);
+        super.afterPropertiesSet();
+    }
+
+    /**
+     * Runs a query that may be served by the replica
+     *
+     * @return the result of the query
+     */
+    public static <T> T readOnly(Supplier<T> query) {
+        int depth = enter(readOnlyDepth);
+        try {
+            return query.get();
+        } finally {
+            exit(readOnlyDepth, depth);
+        }
+    }
+
+    /**
+     * Runs a query on the primary, even when called within {@link #readOnly(Supplier)}. Meant for
+     * the loaders of caches, whose results outlive the request and must not be behind the primary.
+     * A read only transaction that already holds a replica connection keeps using it.
+     *
+     * @return the result of the query
+     */
+    public static <T> T primary(Supplier<T> query) {
+        int depth = enter(primaryDepth);
+        try {
+            return query.get();
+        } finally {
+            exit(primaryDepth, depth);
+        }
+    }
+
+    /**
+     * Around advice for the query methods of beans, that lets them be served by the replica
+     */
+    public Object readOnlyQuery(ProceedingJoinPoint joinPoint) throws Throwable {
+        int depth = enter(readOnlyDepth);
+        try {
+            return joinPoint.proceed();
+        } finally {
+            exit(readOnlyDepth, depth);
+        }
+    }
+
+    private static int enter(ThreadLocal<Integer> counter) {
+        int depth = counter.get();
+        counter.set(depth + 1);
+        return depth;
+    }
+
+    private static void exit(ThreadLocal<Integer> counter, int depth) {
+        if (depth == 0) {
+            counter.remove();
+        } else {
+            counter.set(depth);
+        }
+    }
+
+    @Override
+    protected Route determineCurrentLookupKey() {
+        if (!enabled || primaryDepth.get() > 0) {
+            return Route.PRIMARY;
+        }
+        if (TransactionSynchronizationManager.isActualTransactionActive()) {
+            if (!TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+                return Route.PRIMARY;
+            }
+        } else if (readOnlyDepth.get() == 0) {
+            return Route.PRIMARY;
+        }
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        if (attributes == null || attributes.getAttribute(WROTE_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST) != null) {
+            return Route.PRIMARY;
+        }
+        return Route.REPLICA;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        Route route = determineCurrentLookupKey();
+        return track(route, super.getConnection());
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        Route route = determineCurrentLookupKey();
+        return track(route, super.getConnection(username, password));
+    }
+
+    private Connection track(Route route, Connection connection) {
+        if (route == Route.REPLICA) {
+            replicaConnectionCount.incrementAndGet();
+            return connection;
+        }
+        primaryConnectionCount.incrementAndGet();
+        if (!enabled || RequestContextHolder.getRequestAttributes() == null) {
+            return connection;
+        }
+        return (Connection) Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class<?>[] {Connection.class},
+            new WriteTrackingHandler(connection)
+        );
+    }
+
+    /**
+     * Makes the rest of the current request read from the primary
+     */
+    protected void wrote() {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        if (attributes != null && attributes.getAttribute(WROTE_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST) == null) {
+            attributes.setAttribute(WROTE_ATTRIBUTE, Boolean.TRUE, RequestAttributes.SCOPE_REQUEST);
+            stickyRequestCount.incrementAndGet();
+        }
+    }
+
+    protected static boolean isWrite(String sql) {
+        return sql != null && !sql.trim().regionMatches(true, 0, "select", 0, 6);
+    }
+
+    @ManagedMetric(category = "performance", displayName = "Number of connections taken from the primary")
+    public long getPrimaryConnectionCount() {
+        return primaryConnectionCount.get();
+    }
+
+    @ManagedMetric(category = "performance", displayName = "Number of connections taken from the replica")
+    public long getReplicaConnectionCount() {
+        return replicaConnectionCount.get();
+    }
+
+    @ManagedMetric(category = "performance", displayName = "Number of requests that read from the primary after a write")
+    public long getStickyRequestCount() {
+        return stickyRequestCount.get();
+    }
+
+    /**
+     * Notices the statements of a primary connection that are not queries
+     */
+    private class WriteTrackingHandler implements InvocationHandler {
+        private final Object target;
+
+        private WriteTrackingHandler(Object target) {
+            this.target = target;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "prepareStatement":
+                case "prepareCall":
+                case "execute":
+                case "executeQuery":
+                case "executeUpdate":
+                case "executeLargeUpdate":
+                case "addBatch":
+                    if (args != null && args.length > 0 && args[0] instanceof String && isWrite((String) args[0])) {
+                        wrote();
+                    }
+                    break;
+                default:
+                    break;
+            }
+            Object result;
+            try {
+                result = method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getTargetException();
+            }
+            if ("createStatement".equals(method.getName())) {
+                return Proxy.newProxyInstance(
+                    getClass().getClassLoader(),
+                    new Class<?>[] {Statement.class},
+                    new WriteTrackingHandler(result)
+                );
+            }
+            return result;
+        }
+    }
+}
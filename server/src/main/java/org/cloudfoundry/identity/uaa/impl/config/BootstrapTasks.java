@@ -0,0 +1,84 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2017] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.impl.config;
+
+import org.cloudfoundry.identity.uaa.zone.IdentityZone;
+import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the password checks and writes of the bootstrap beans on a pool sized by
+ * <code>bootstrap.threads</code>, instead of the common fork join pool
+ */
+public final class BootstrapTasks {
+
+    private BootstrapTasks() {
+    }
+
+    /**
+     * Runs the tasks on the calling thread, or on up to <code>threads</code> threads
+     * in the given zone, and fails with the first task that failed.
+     *
+     * @param threadName the name of the threads of the pool
+     * @return the results of the tasks, in the order of the tasks
+     */
+    public static <T> List<T> runAll(List<Callable<T>> tasks, int threads, IdentityZone zone, String threadName) throws Exception {
+        List<T> results = new ArrayList<>(tasks.size());
+        if (threads <= 1 || tasks.size() <= 1) {
+            for (Callable<T> task : tasks) {
+                results.add(task.call());
+            }
+            return results;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, tasks.size()), runnable -> {
+            Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<T>> futures = new ArrayList<>(tasks.size());
+            for (Callable<T> task : tasks) {
+                futures.add(executor.submit(() -> {
+                    IdentityZoneHolder.set(zone);
+                    try {
+                        return task.call();
+                    } finally {
+                        IdentityZoneHolder.clear();
+                    }
+                }));
+            }
+            for (Future<T> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return results;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2017] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.impl.config;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import org.cloudfoundry.identity.uaa.resources.jdbc.DefaultUpsertSqlAdapter;
+import org.cloudfoundry.identity.uaa.resources.jdbc.UpsertSqlAdapter;
+import org.cloudfoundry.identity.uaa.resources.jdbc.UpsertSqlSupport;
+import org.cloudfoundry.identity.uaa.util.JsonUtils;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Remembers a fingerprint of every entry a bootstrap wrote, so that the next start can skip
+ * the entries that are unchanged. A fingerprint is a salted SHA-256 of the configured content
+ * of the entry together with the state the entry had in the database after it was written,
+ * so that an entry is written again when either the configuration or the stored entry changed.
+ * Secrets and passwords are left out of the content, the bootstraps check them against the
+ * stored hashes instead.
+ */
+public class JdbcBootstrapFingerprintStore {
+
+    public static final String TABLE_NAME = "bootstrap_fingerprint";
+
+    private static final List<String> COLUMNS = Arrays.asList("entry_type", "entry_id", "identity_zone_id", "fingerprint", "lastmodified");
+
+    private static final List<String> KEY_COLUMNS = Arrays.asList("entry_type", "entry_id", "identity_zone_id");
+
+    private static final String SELECT_SQL = "select entry_id, fingerprint from " + TABLE_NAME + " where entry_type = ? and identity_zone_id = ?";
+
+    private static final String UPDATE_SQL = "update " + TABLE_NAME + " set fingerprint = ?, lastmodified = ? where entry_type = ? and entry_id = ? and identity_zone_id = ?";
+
+    private static final int SALT_LENGTH = 16;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private UpsertSqlAdapter upsertSqlAdapter = new DefaultUpsertSqlAdapter();
+
+    private boolean enabled = false;
+
+    public JdbcBootstrapFingerprintStore(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    public void setUpsertSqlAdapter(UpsertSqlAdapter upsertSqlAdapter) {
+        this.upsertSqlAdapter = upsertSqlAdapter;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param enabled true if the bootstraps skip unchanged entries, false (the default) if they
+     *            write every entry on every start
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return the fingerprints of all entries of the type, by entry id
+     */
+    public Map<String, String> getFingerprints(String entryType, String zoneId) {
+        Map<String, String> fingerprints = new HashMap<>();
+        jdbcTemplate.query(SELECT_SQL, rs -> {
+            fingerprints.put(rs.getString(1), rs.getString(2));
+        }, entryType, zoneId);
+        return fingerprints;
+    }
+
+    /**
+     * Stores the fingerprints by entry id, replacing the previous fingerprints of these entries
+     */
+    public void saveFingerprints(String entryType, String zoneId, Map<String, String> fingerprints) {
+        if (fingerprints.isEmpty()) {
+            return;
+        }
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        List<Map.Entry<String, String>> rows = new ArrayList<>(fingerprints.entrySet());
+        UpsertSqlSupport.upsert(jdbcTemplate, upsertSqlAdapter, TABLE_NAME, COLUMNS, KEY_COLUMNS, rows,
+                                (ps, pos, row) -> {
+                                    ps.setString(pos++, entryType);
+                                    ps.setString(pos++, row.getKey());
+                                    ps.setString(pos++, zoneId);
+                                    ps.setString(pos++, row.getValue());
+                                    ps.setTimestamp(pos++, now);
+                                    return pos;
+                                },
+                                UPDATE_SQL,
+                                (ps, row) -> {
+                                    ps.setString(1, row.getValue());
+                                    ps.setTimestamp(2, now);
+                                    ps.setString(3, entryType);
+                                    ps.setString(4, row.getKey());
+                                    ps.setString(5, zoneId);
+                                });
+    }
+
+    /**
+     * @return a salted fingerprint of the content, so that equal content has different fingerprints
+     */
+    public static String fingerprint(String content) {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        String hexSalt = BaseEncoding.base16().lowerCase().encode(salt);
+        return hexSalt + ":" + hash(hexSalt, content);
+    }
+
+    /**
+     * @return true if the fingerprint was made from the content
+     */
+    public static boolean matches(String fingerprint, String content) {
+        if (fingerprint == null) {
+            return false;
+        }
+        int separator = fingerprint.indexOf(':');
+        if (separator < 0) {
+            return false;
+        }
+        String hexSalt = fingerprint.substring(0, separator);
+        return fingerprint.substring(separator + 1).equals(hash(hexSalt, content));
+    }
+
+    /**
+     * @return the parts as JSON, with the keys of all maps sorted, so that the same parts
+     *         always give the same content
+     */
+    public static String getContent(Object... parts) {
+        List<Object> canonical = new ArrayList<>(parts.length);
+        for (Object part : parts) {
+            canonical.add(sorted(part == null ? null : JsonUtils.convertValue(part, Object.class)));
+        }
+        return JsonUtils.writeValueAsString(canonical);
+    }
+
+    private static Object sorted(Object value) {
+        if (value instanceof Map) {
+            Map<String, Object> sorted = new TreeMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                sorted.put(String.valueOf(entry.getKey()), sorted(entry.getValue()));
+            }
+            return sorted;
+        }
+        if (value instanceof Collection) {
+            List<Object> list = new ArrayList<>();
+            for (Object item : (Collection<?>) value) {
+                list.add(sorted(item));
+            }
+            return list;
+        }
+        return value;
+    }
+
+    private static String hash(String hexSalt, String content) {
+        return Hashing.sha256().newHasher()
+            .putString(hexSalt, StandardCharsets.UTF_8)
+            .putString(content, StandardCharsets.UTF_8)
+            .hash()
+            .toString();
+    }
+}
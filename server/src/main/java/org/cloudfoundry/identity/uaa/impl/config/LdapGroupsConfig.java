@@ -32,6 +32,8 @@ public class LdapGroupsConfig {
     nestedLdapAuthoritiesPopulator.setMaxSearchDepth(ofNullable(Integer.parseInt(environment.getProperty("ldap.groups.maxSearchDepth"))).orElse(10));
     nestedLdapAuthoritiesPopulator.setAttributeNames(new HashSet<>(Arrays.asList("cn")));
     nestedLdapAuthoritiesPopulator.setIgnorePartialResultException(ofNullable(environment.getProperty("ldap.groups.ignorePartialResultException")).map(Boolean::parseBoolean).orElse(true));
+    nestedLdapAuthoritiesPopulator.setMatchingRuleInChain(environment.getProperty(NestedLdapAuthoritiesPopulator.LDAP_GROUPS_MATCHING_RULE_IN_CHAIN, Boolean.class, false));
+    nestedLdapAuthoritiesPopulator.setGroupCacheTtlSeconds(environment.getProperty(NestedLdapAuthoritiesPopulator.LDAP_GROUPS_CACHE_TTL, Integer.class, 0));
     return nestedLdapAuthoritiesPopulator;
   }
 }
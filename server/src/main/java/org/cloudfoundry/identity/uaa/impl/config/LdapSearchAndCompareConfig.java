@@ -2,6 +2,7 @@ package org.cloudfoundry.identity.uaa.impl.config;
 
 import org.cloudfoundry.identity.uaa.provider.ldap.ExtendedLdapUserMapper;
 import org.cloudfoundry.identity.uaa.provider.ldap.PasswordComparisonAuthenticator;
+import org.cloudfoundry.identity.uaa.provider.ldap.PooledLdapContextSource;
 import org.cloudfoundry.identity.uaa.provider.ldap.ProcessLdapProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Condition;
@@ -11,6 +12,7 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.core.env.Environment;
 import org.springframework.core.type.AnnotatedTypeMetadata;
 import org.springframework.ldap.core.support.BaseLdapPathContextSource;
+import org.springframework.ldap.core.support.DirContextAuthenticationStrategy;
 import org.springframework.security.authentication.encoding.PasswordEncoder;
 import org.springframework.security.core.authority.mapping.GrantedAuthoritiesMapper;
 import org.springframework.security.ldap.DefaultSpringSecurityContextSource;
@@ -40,14 +42,15 @@ public class LdapSearchAndCompareConfig {
                                                                                ProcessLdapProperties ldapPropertyProcessor) throws ClassNotFoundException, KeyManagementException, NoSuchAlgorithmException, InstantiationException, IllegalAccessException {
     String providerUrl = ofNullable(environment.getProperty("ldap.base.url"))
       .orElse("ldap://localhost:389/dc=test,dc=com");
-    DefaultSpringSecurityContextSource contextSource = new DefaultSpringSecurityContextSource(providerUrl);
+    DirContextAuthenticationStrategy authenticationStrategy = ldapPropertyProcessor.getAuthenticationStrategy();
+    DefaultSpringSecurityContextSource contextSource = PooledLdapContextSource.newContextSource(providerUrl, environment, authenticationStrategy);
     contextSource.setUserDn(ofNullable(environment.getProperty("ldap.base.userDn"))
       .orElse("cn=admin,ou=Users,dc=test,dc=com"));
     contextSource.setPassword(ofNullable(environment.getProperty("ldap.base.password"))
       .orElse("adminsecret"));
     contextSource.setBaseEnvironmentProperties(ldapProperties);
     contextSource.setPooled(false);
-    contextSource.setAuthenticationStrategy(ldapPropertyProcessor.getAuthenticationStrategy());
+    contextSource.setAuthenticationStrategy(authenticationStrategy);
     return contextSource;
   }
 
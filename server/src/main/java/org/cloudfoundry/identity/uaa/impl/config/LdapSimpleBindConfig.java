@@ -1,6 +1,7 @@
 package org.cloudfoundry.identity.uaa.impl.config;
 
 import org.cloudfoundry.identity.uaa.provider.ldap.ExtendedLdapUserMapper;
+import org.cloudfoundry.identity.uaa.provider.ldap.PooledLdapContextSource;
 import org.cloudfoundry.identity.uaa.provider.ldap.ProcessLdapProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Condition;
@@ -10,6 +11,7 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.core.env.Environment;
 import org.springframework.core.type.AnnotatedTypeMetadata;
 import org.springframework.ldap.core.support.BaseLdapPathContextSource;
+import org.springframework.ldap.core.support.DirContextAuthenticationStrategy;
 import org.springframework.security.core.authority.mapping.GrantedAuthoritiesMapper;
 import org.springframework.security.ldap.DefaultSpringSecurityContextSource;
 import org.springframework.security.ldap.authentication.BindAuthenticator;
@@ -39,10 +41,11 @@ public class LdapSimpleBindConfig {
   public DefaultSpringSecurityContextSource defaultSpringSecurityContextSource(Environment environment, Map ldapProperties, ProcessLdapProperties ldapPropertyProcessor) throws ClassNotFoundException, KeyManagementException, NoSuchAlgorithmException, InstantiationException, IllegalAccessException {
     String providerUrl = ofNullable(environment.getProperty("ldap.base.url"))
       .orElse("ldap://localhost:389/");
-    DefaultSpringSecurityContextSource contextSource = new DefaultSpringSecurityContextSource(providerUrl);
+    DirContextAuthenticationStrategy authenticationStrategy = ldapPropertyProcessor.getAuthenticationStrategy();
+    DefaultSpringSecurityContextSource contextSource = PooledLdapContextSource.newContextSource(providerUrl, environment, authenticationStrategy);
     contextSource.setBaseEnvironmentProperties(ldapProperties);
     contextSource.setPooled(false);
-    contextSource.setAuthenticationStrategy(ldapPropertyProcessor.getAuthenticationStrategy());
+    contextSource.setAuthenticationStrategy(authenticationStrategy);
     return contextSource;
   }
 
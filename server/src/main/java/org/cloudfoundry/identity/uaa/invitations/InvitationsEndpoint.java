@@ -8,6 +8,7 @@ import org.cloudfoundry.identity.uaa.provider.IdentityProviderProvisioning;
 import org.cloudfoundry.identity.uaa.scim.ScimUser;
 import org.cloudfoundry.identity.uaa.scim.ScimUserProvisioning;
 import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceConflictException;
+import org.cloudfoundry.identity.uaa.util.EmailDomainIndex;
 import org.cloudfoundry.identity.uaa.util.JsonUtils;
 import org.cloudfoundry.identity.uaa.util.UaaUrlUtils;
 import org.cloudfoundry.identity.uaa.zone.ClientServicesExtension;
@@ -38,7 +39,7 @@ import java.util.regex.Pattern;
 
 import static org.cloudfoundry.identity.uaa.codestore.ExpiringCodeType.INVITATION;
 import static org.cloudfoundry.identity.uaa.constants.OriginKeys.ORIGIN;
-import static org.cloudfoundry.identity.uaa.util.DomainFilter.filter;
+import static org.cloudfoundry.identity.uaa.util.DomainFilter.getEmailDomainIndex;
 import static org.cloudfoundry.identity.uaa.zone.IdentityZoneSwitchingFilter.HEADER;
 import static org.cloudfoundry.identity.uaa.zone.IdentityZoneSwitchingFilter.SUBDOMAIN_HEADER;
 import static org.springframework.security.oauth2.common.util.OAuth2Utils.CLIENT_ID;
@@ -82,7 +83,8 @@ public class InvitationsEndpoint {
 
         InvitationsResponse invitationsResponse = new InvitationsResponse();
 
-        List<IdentityProvider> activeProviders = providers.retrieveActive(IdentityZoneHolder.get().getId());
+        String zoneId = IdentityZoneHolder.get().getId();
+        EmailDomainIndex activeProviders = getEmailDomainIndex(providers, zoneId, () -> providers.retrieveActive(zoneId));
 
         HttpServletRequest request = ((ServletRequestAttributes) RequestContextHolder.getRequestAttributes()).getRequest();
         String subdomainHeader = request.getHeader(SUBDOMAIN_HEADER);
@@ -97,7 +99,7 @@ public class InvitationsEndpoint {
         for (String email : invitations.getEmails()) {
             try {
                 if (email!=null && emailPattern.matcher(email).matches()) {
-                    List<IdentityProvider> providers = filter(activeProviders, client, email);
+                    List<IdentityProvider> providers = activeProviders.filter(client, email);
                     if (providers.size() == 1) {
                         ScimUser user = findOrCreateUser(email, providers.get(0).getOriginKey());
                         String accountsUrl = UaaUrlUtils.getUaaUrl("/invitations/accept", !IdentityZoneHolder.isUaa());
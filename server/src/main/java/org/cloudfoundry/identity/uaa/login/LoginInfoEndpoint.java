@@ -12,6 +12,10 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.login;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.cloudfoundry.identity.uaa.authentication.AuthzAuthenticationRequest;
@@ -50,6 +54,7 @@ import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
 import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.authentication.BadCredentialsException;
 import org.springframework.security.core.Authentication;
@@ -58,7 +63,9 @@ import org.springframework.security.oauth2.provider.ClientDetails;
 import org.springframework.security.oauth2.provider.NoSuchClientException;
 import org.springframework.security.web.savedrequest.SavedRequest;
 import org.springframework.stereotype.Controller;
+import org.springframework.ui.ExtendedModelMap;
 import org.springframework.ui.Model;
+import org.springframework.util.CollectionUtils;
 import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestHeader;
@@ -68,6 +75,7 @@ import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.HttpMediaTypeNotAcceptableException;
+import org.springframework.web.servlet.support.RequestContextUtils;
 
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
@@ -93,6 +101,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -166,14 +175,26 @@ public class LoginInfoEndpoint {
 
     private XOAuthProviderConfigurator xoAuthProviderConfigurator;
 
+    /**
+     * Models of zones that are no longer visited, or that were deleted, fall out after an hour
+     */
+    private final Cache<String, ZoneLoginModel> loginModels = CacheBuilder.newBuilder()
+        .maximumSize(10000)
+        .expireAfterAccess(1, TimeUnit.HOURS)
+        .build();
+
+    private final ObjectMapper loginJsonMapper = Jackson2ObjectMapperBuilder.json().build();
+
     private Links globalLinks = new Links().setSelfService(new Links.SelfService().setPasswd(null).setSignup(null));
 
     public void setGlobalLinks(Links globalLinks) {
         this.globalLinks = globalLinks;
+        clearLoginModels();
     }
 
     public LoginInfoEndpoint setXoAuthProviderConfigurator(XOAuthProviderConfigurator xoAuthProviderConfigurator) {
         this.xoAuthProviderConfigurator = xoAuthProviderConfigurator;
+        clearLoginModels();
         return this;
     }
 
@@ -191,6 +212,7 @@ public class LoginInfoEndpoint {
 
     public void setIdpDefinitions(SamlIdentityProviderConfigurator idpDefinitions) {
         this.idpDefinitions = idpDefinitions;
+        clearLoginModels();
     }
 
     public AuthenticationManager getAuthenticationManager() {
@@ -205,6 +227,7 @@ public class LoginInfoEndpoint {
 
     public void setEntityID(String entityID) {
         this.entityID = entityID;
+        clearLoginModels();
     }
 
     public LoginInfoEndpoint() {
@@ -221,11 +244,25 @@ public class LoginInfoEndpoint {
     }
 
     @RequestMapping(value = {"/login"}, headers = "Accept=application/json")
+    public String loginForJson(Model model, Principal principal, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (writeLoginJson(principal, request, response)) {
+            return null;
+        }
+        return loginForJson(model, principal, request);
+    }
+
     public String loginForJson(Model model, Principal principal, HttpServletRequest request) {
         return login(model, principal, Collections.emptyList(), true, request);
     }
 
     @RequestMapping(value = {"/info"}, headers = "Accept=application/json")
+    public String infoForJson(Model model, Principal principal, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (writeLoginJson(principal, request, response)) {
+            return null;
+        }
+        return infoForJson(model, principal, request);
+    }
+
     public String infoForJson(Model model, Principal principal, HttpServletRequest request) {
         return login(model, principal, Collections.emptyList(), true, request);
     }
@@ -311,37 +348,14 @@ public class LoginInfoEndpoint {
             clientName = (String) clientInfo.get(ClientConstants.CLIENT_NAME);
         }
 
-        Map<String, SamlIdentityProviderDefinition> samlIdps = getSamlIdentityProviderDefinitions(allowedIdps);
-        Map<String, AbstractXOAuthIdentityProviderDefinition> oauthIdentityProviderDefinitions = getOauthIdentityProviderDefinitions(allowedIdps);
+        ZoneLoginModel loginModel = getLoginModel(allowedIdps);
+        Map<String, SamlIdentityProviderDefinition> samlIdps = loginModel.getSamlIdps(allowedIdps);
+        Map<String, AbstractXOAuthIdentityProviderDefinition> oauthIdentityProviderDefinitions = loginModel.getOauthIdps(allowedIdps);
         Map<String, AbstractIdentityProviderDefinition> combinedIdps = new HashMap<>();
         combinedIdps.putAll(samlIdps);
         combinedIdps.putAll(oauthIdentityProviderDefinitions);
 
-        boolean fieldUsernameShow = true;
-        boolean returnLoginPrompts = true;
-
-        IdentityProvider ldapIdentityProvider = null;
-        try {
-            ldapIdentityProvider = providerProvisioning.retrieveByOrigin(OriginKeys.LDAP, IdentityZoneHolder.get().getId());
-        } catch (EmptyResultDataAccessException e) {
-        }
-        IdentityProvider uaaIdentityProvider = providerProvisioning.retrieveByOrigin(OriginKeys.UAA, IdentityZoneHolder.get().getId());
-        //ldap and uaa disabled
-        if (!uaaIdentityProvider.isActive()) {
-            if (ldapIdentityProvider == null || !ldapIdentityProvider.isActive()) {
-                fieldUsernameShow = false;
-                returnLoginPrompts = false;
-            }
-        }
-
-        //ldap or uaa not part of allowedIdps
-        if (allowedIdps != null) {
-            if ((!allowedIdps.contains(OriginKeys.LDAP) &&
-                !allowedIdps.contains(OriginKeys.UAA) &&
-                !allowedIdps.contains(OriginKeys.KEYSTONE))) {
-                fieldUsernameShow = false;
-            }
-        }
+        boolean fieldUsernameShow = isFieldUsernameShow(loginModel, allowedIdps);
 
         Map.Entry<String, AbstractIdentityProviderDefinition> idpForRedirect = null;
 
@@ -374,12 +388,58 @@ public class LoginInfoEndpoint {
             return externalRedirect;
         }
 
+        populateLoginModel(model, loginModel, samlIdps, oauthIdentityProviderDefinitions, allowedIdps, clientName, excludedPrompts, jsonResponse, request);
+
+        if (principal == null) {
+
+            String formRedirectUri = request.getParameter(UaaSavedRequestAwareAuthenticationSuccessHandler.FORM_REDIRECT_PARAMETER);
+            if (hasText(formRedirectUri)) {
+                model.addAttribute(UaaSavedRequestAwareAuthenticationSuccessHandler.FORM_REDIRECT_PARAMETER, formRedirectUri);
+            }
+
+            boolean discoveryEnabled = IdentityZoneHolder.get().getConfig().isIdpDiscoveryEnabled();
+            boolean accountChooserEnabled = IdentityZoneHolder.get().getConfig().isAccountChooserEnabled();
+            boolean discoveryPerformed = Boolean.parseBoolean(request.getParameter("discoveryPerformed"));
+            boolean otherAccountSignIn = Boolean.parseBoolean(request.getParameter("otherAccountSignIn"));
+            boolean savedAccountsEmpty = getSavedAccounts(request.getCookies(), SavedAccountOption.class).isEmpty();
+
+            if (discoveryEnabled) {
+                boolean accountChooserNeeded = accountChooserEnabled
+                    && !(otherAccountSignIn || savedAccountsEmpty)
+                    && !discoveryPerformed;
+
+                if (accountChooserNeeded) {
+                    return "idp_discovery/account_chooser";
+                }
+
+                if (!discoveryPerformed) {
+                    return "idp_discovery/email";
+                }
+
+                return goToPasswordPage(request.getParameter("email"), model);
+            }
+
+            return "login";
+        }
+        return "home";
+    }
+
+    private void populateLoginModel(Model model,
+                                    ZoneLoginModel loginModel,
+                                    Map<String, SamlIdentityProviderDefinition> samlIdps,
+                                    Map<String, AbstractXOAuthIdentityProviderDefinition> oauthIdentityProviderDefinitions,
+                                    List<String> allowedIdps,
+                                    String clientName,
+                                    List<String> excludedPrompts,
+                                    boolean jsonResponse,
+                                    HttpServletRequest request) {
+        boolean fieldUsernameShow = isFieldUsernameShow(loginModel, allowedIdps);
         boolean linkCreateAccountShow = fieldUsernameShow;
         if (fieldUsernameShow && (allowedIdps != null && !allowedIdps.contains(OriginKeys.UAA))) {
             linkCreateAccountShow = false;
         }
         String zonifiedEntityID = getZonifiedEntityId();
-        Map links = getLinksInfo();
+        Map links = new HashMap<>(loginModel.getLinks());
         if (jsonResponse) {
             for (String attribute : UI_ONLY_ATTRIBUTES) {
                 links.remove(attribute);
@@ -443,45 +503,119 @@ public class LoginInfoEndpoint {
             excludedPrompts.add(PASSCODE);
         }
 
-        if(!returnLoginPrompts){
+        if (!loginModel.isLoginEnabled()) {
             excludedPrompts.add("username");
             excludedPrompts.add("password");
         }
 
         populatePrompts(model, excludedPrompts);
+    }
 
-        if (principal == null) {
-
-            String formRedirectUri = request.getParameter(UaaSavedRequestAwareAuthenticationSuccessHandler.FORM_REDIRECT_PARAMETER);
-            if (hasText(formRedirectUri)) {
-                model.addAttribute(UaaSavedRequestAwareAuthenticationSuccessHandler.FORM_REDIRECT_PARAMETER, formRedirectUri);
+    private static boolean isFieldUsernameShow(ZoneLoginModel loginModel, List<String> allowedIdps) {
+        //ldap or uaa not part of allowedIdps
+        if (allowedIdps != null) {
+            if ((!allowedIdps.contains(OriginKeys.LDAP) &&
+                !allowedIdps.contains(OriginKeys.UAA) &&
+                !allowedIdps.contains(OriginKeys.KEYSTONE))) {
+                return false;
             }
+        }
+        //ldap and uaa disabled
+        return loginModel.isLoginEnabled();
+    }
 
-            boolean discoveryEnabled = IdentityZoneHolder.get().getConfig().isIdpDiscoveryEnabled();
-            boolean accountChooserEnabled = IdentityZoneHolder.get().getConfig().isAccountChooserEnabled();
-            boolean discoveryPerformed = Boolean.parseBoolean(request.getParameter("discoveryPerformed"));
-            boolean otherAccountSignIn = Boolean.parseBoolean(request.getParameter("otherAccountSignIn"));
-            boolean savedAccountsEmpty = getSavedAccounts(request.getCookies(), SavedAccountOption.class).isEmpty();
+    /**
+     * Returns the login model of the current zone. It is shared between requests as long as
+     * neither the zone nor any of its identity providers have changed. Client specific
+     * models, and models of providers that do not track revisions, are built per request.
+     * Changes are detected with the revision of the cached identity providers of the zone, so
+     * the check only queries the database when the provider cache revalidates itself, at most
+     * once per <code>login.identityProviderCacheValidationInterval</code>.
+     */
+    protected ZoneLoginModel getLoginModel(List<String> allowedIdps) {
+        IdentityZone zone = IdentityZoneHolder.get();
+        Object providerRevision = providerProvisioning.getRevision(zone.getId());
+        if (providerRevision == null) {
+            return buildLoginModel(null, allowedIdps);
+        }
+        List<Object> revision = Arrays.asList(zone.getSubdomain(), zone.getVersion(), zone.getLastModified(), providerRevision);
+        ZoneLoginModel current = loginModels.getIfPresent(zone.getId());
+        if (current != null && current.revision.equals(revision)) {
+            return current;
+        }
+        ZoneLoginModel loginModel = buildLoginModel(revision, null);
+        loginModel = new ZoneLoginModel(loginModel, serializeLoginModel(loginModel));
+        loginModels.put(zone.getId(), loginModel);
+        return loginModel;
+    }
 
-            if (discoveryEnabled) {
-                boolean accountChooserNeeded = accountChooserEnabled
-                    && !(otherAccountSignIn || savedAccountsEmpty)
-                    && !discoveryPerformed;
+    private ZoneLoginModel buildLoginModel(List<Object> revision, List<String> allowedIdps) {
+        Map<String, SamlIdentityProviderDefinition> samlIdps = getSamlIdentityProviderDefinitions(allowedIdps);
+        Map<String, AbstractXOAuthIdentityProviderDefinition> oauthIdps = getOauthIdentityProviderDefinitions(allowedIdps);
 
-                if (accountChooserNeeded) {
-                    return "idp_discovery/account_chooser";
-                }
+        IdentityProvider ldapIdentityProvider = null;
+        try {
+            ldapIdentityProvider = providerProvisioning.retrieveByOrigin(OriginKeys.LDAP, IdentityZoneHolder.get().getId());
+        } catch (EmptyResultDataAccessException e) {
+        }
+        IdentityProvider uaaIdentityProvider = providerProvisioning.retrieveByOrigin(OriginKeys.UAA, IdentityZoneHolder.get().getId());
+        boolean loginEnabled = uaaIdentityProvider.isActive() || (ldapIdentityProvider != null && ldapIdentityProvider.isActive());
 
-                if (!discoveryPerformed) {
-                    return "idp_discovery/email";
-                }
+        return new ZoneLoginModel(revision, samlIdps, oauthIdps, loginEnabled, getLinksInfo());
+    }
 
-                return goToPasswordPage(request.getParameter("email"), model);
-            }
+    private byte[] serializeLoginModel(ZoneLoginModel loginModel) {
+        ExtendedModelMap model = new ExtendedModelMap();
+        populateLoginModel(model, loginModel, loginModel.getSamlIdps(null), loginModel.getOauthIdps(null), null, null, Collections.emptyList(), true, null);
+        try {
+            return loginJsonMapper.writeValueAsBytes(model);
+        } catch (JsonProcessingException e) {
+            logger.debug("Unable to serialize login model of zone " + IdentityZoneHolder.get().getId(), e);
+            return null;
+        }
+    }
 
-            return "login";
+    /**
+     * Writes the pre-serialized JSON login model for anonymous requests that carry no client,
+     * login hint or discovery state, which is the response every other JSON request would
+     * render as well.
+     * @return true if the response has been written
+     */
+    private boolean writeLoginJson(Principal principal, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (principal != null || !isDefaultLoginRequest(request)) {
+            return false;
         }
-        return "home";
+        byte[] json = getLoginModel(null).getJson();
+        if (json == null) {
+            return false;
+        }
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setCharacterEncoding(UTF_8.name());
+        response.addHeader("Pragma", "no-cache");
+        response.addHeader("Cache-Control", "no-cache, no-store, max-age=0");
+        response.addDateHeader("Expires", 1L);
+        response.setContentLength(json.length);
+        response.getOutputStream().write(json);
+        return true;
+    }
+
+    private boolean isDefaultLoginRequest(HttpServletRequest request) {
+        HttpSession session = request.getSession(false);
+        if (session != null && session.getAttribute(SAVED_REQUEST_SESSION_ATTRIBUTE) != null) {
+            return false;
+        }
+        if (!CollectionUtils.isEmpty(RequestContextUtils.getInputFlashMap(request))) {
+            return false;
+        }
+        if (hasText(request.getParameter(UaaSavedRequestAwareAuthenticationSuccessHandler.FORM_REDIRECT_PARAMETER))) {
+            return false;
+        }
+        IdentityZoneConfiguration config = IdentityZoneHolder.get().getConfig();
+        return config != null && !(config.isIdpDiscoveryEnabled() && Boolean.parseBoolean(request.getParameter("discoveryPerformed")));
+    }
+
+    protected void clearLoginModels() {
+        loginModels.invalidateAll();
     }
 
     @RequestMapping(value = {"/delete_saved_account"})
@@ -619,7 +753,10 @@ public class LoginInfoEndpoint {
             } catch (NoSuchClientException e) {
             }
         }
-        List<IdentityProvider> identityProviders = DomainFilter.filter(providerProvisioning.retrieveActive(IdentityZoneHolder.get().getId()), clientDetails, email);
+        String zoneId = IdentityZoneHolder.get().getId();
+        List<IdentityProvider> identityProviders =
+            DomainFilter.getEmailDomainIndex(providerProvisioning, zoneId, () -> providerProvisioning.retrieveActive(zoneId))
+                .filter(clientDetails, email);
 
         if (!StringUtils.hasText(skipDiscovery) && identityProviders.size() == 1) {
             IdentityProvider matchedIdp = identityProviders.get(0);
@@ -819,6 +956,7 @@ public class LoginInfoEndpoint {
 
     public void setUaaBaseUrl(String baseUrl) {
         this.baseUrl = baseUrl;
+        clearLoginModels();
         try {
             URI uri = new URI(baseUrl);
             setUaaHost(uri.getHost());
@@ -837,6 +975,7 @@ public class LoginInfoEndpoint {
 
     public void setBaseUrl(String baseUrl) {
         this.baseUrl = baseUrl;
+        clearLoginModels();
     }
 
     protected String getUaaBaseUrl() {
@@ -853,6 +992,7 @@ public class LoginInfoEndpoint {
 
     public void setExternalLoginUrl(String baseUrl) {
         this.externalLoginUrl = baseUrl;
+        clearLoginModels();
     }
 
     public String getExternalLoginUrl() {
@@ -894,9 +1034,82 @@ public class LoginInfoEndpoint {
 
     public void setProviderProvisioning(IdentityProviderProvisioning providerProvisioning) {
         this.providerProvisioning = providerProvisioning;
+        clearLoginModels();
     }
 
     @ResponseStatus(value = HttpStatus.FORBIDDEN, reason = "Unknown authentication token type, unable to derive user ID.")
     public static final class UnknownPrincipalException extends RuntimeException {}
 
+    /**
+     * Identity providers, links and login settings of a zone as shown on the login page,
+     * together with the serialized JSON form of the anonymous login model.
+     */
+    protected static final class ZoneLoginModel {
+        private final List<Object> revision;
+        private final Map<String, SamlIdentityProviderDefinition> samlIdps;
+        private final Map<String, AbstractXOAuthIdentityProviderDefinition> oauthIdps;
+        private final boolean loginEnabled;
+        private final Map<String, ?> links;
+        private final byte[] json;
+
+        private ZoneLoginModel(List<Object> revision,
+                               Map<String, SamlIdentityProviderDefinition> samlIdps,
+                               Map<String, AbstractXOAuthIdentityProviderDefinition> oauthIdps,
+                               boolean loginEnabled,
+                               Map<String, ?> links) {
+            this.revision = revision;
+            this.samlIdps = Collections.unmodifiableMap(new LinkedHashMap<>(samlIdps));
+            this.oauthIdps = Collections.unmodifiableMap(new LinkedHashMap<>(oauthIdps));
+            this.loginEnabled = loginEnabled;
+            this.links = Collections.unmodifiableMap(new HashMap<>(links));
+            this.json = null;
+        }
+
+        private ZoneLoginModel(ZoneLoginModel other, byte[] json) {
+            this.revision = other.revision;
+            this.samlIdps = other.samlIdps;
+            this.oauthIdps = other.oauthIdps;
+            this.loginEnabled = other.loginEnabled;
+            this.links = other.links;
+            this.json = json;
+        }
+
+        /**
+         * @return the SAML providers visible to a client with the given allowed providers.
+         * Models built for a specific client are already filtered.
+         */
+        public Map<String, SamlIdentityProviderDefinition> getSamlIdps(List<String> allowedIdps) {
+            if (allowedIdps == null || revision == null) {
+                return samlIdps;
+            }
+            return samlIdps.entrySet().stream()
+                .filter(e -> allowedIdps.contains(e.getValue().getIdpEntityAlias()))
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, (a, b) -> b, LinkedHashMap::new));
+        }
+
+        public Map<String, AbstractXOAuthIdentityProviderDefinition> getOauthIdps(List<String> allowedIdps) {
+            if (allowedIdps == null || revision == null) {
+                return oauthIdps;
+            }
+            return oauthIdps.entrySet().stream()
+                .filter(e -> allowedIdps.contains(e.getKey()))
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, (a, b) -> b, LinkedHashMap::new));
+        }
+
+        /**
+         * @return true if either the internal or the LDAP provider is active
+         */
+        public boolean isLoginEnabled() {
+            return loginEnabled;
+        }
+
+        public Map<String, ?> getLinks() {
+            return links;
+        }
+
+        public byte[] getJson() {
+            return json;
+        }
+    }
+
 }
@@ -0,0 +1,290 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2017] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.oauth;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.authentication.UaaAuthentication;
+import org.cloudfoundry.identity.uaa.authentication.UaaAuthenticationDetails;
+import org.cloudfoundry.identity.uaa.authentication.UaaPrincipal;
+import org.cloudfoundry.identity.uaa.util.UaaStringUtils;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Binary format of the authentication stored with an authorization code in
+ * <code>oauth_code.authentication</code>. The first byte is the format version, which
+ * never collides with the <code>{</code> that the previous JSON format starts with.
+ */
+public class AuthorizationCodeAuthenticationSerializer {
+
+    public static final byte VERSION_1 = 1;
+
+    private static final Log logger = LogFactory.getLog(AuthorizationCodeAuthenticationSerializer.class);
+
+    private static final byte NO_USER = 0;
+    private static final byte USER_PRINCIPAL = 1;
+    private static final byte USER_UAA_AUTHENTICATION = 2;
+
+    /**
+     * @return true if the data was written by {@link #serialize(OAuth2Authentication)}
+     */
+    public static boolean isSerialized(byte[] data) {
+        return data != null && data.length > 0 && data[0] == VERSION_1;
+    }
+
+    public static byte[] serialize(OAuth2Authentication authentication) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSION_1);
+            OAuth2Request request = authentication.getOAuth2Request();
+            writeString(out, request.getClientId());
+            writeStrings(out, UaaStringUtils.getStringsFromAuthorities(request.getAuthorities()));
+            out.writeBoolean(request.isApproved());
+            writeStrings(out, request.getScope());
+            writeStrings(out, request.getResourceIds());
+            writeString(out, request.getRedirectUri());
+            writeStrings(out, request.getResponseTypes());
+            writeStringMap(out, request.getRequestParameters());
+            writeUser(out, authentication.getUserAuthentication());
+            //like the JSON format, the extension properties are not stored
+            if (request.getExtensions() != null && request.getExtensions().size()>0) {
+                logger.warn("[oauth_code] Unable to serialize extensions:"+request.getExtensions());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static OAuth2Authentication deserialize(byte[] data) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            byte version = in.readByte();
+            if (version != VERSION_1) {
+                throw new IllegalArgumentException("Unsupported authorization code format version:" + version);
+            }
+            String clientId = readString(in);
+            Collection<? extends GrantedAuthority> authorities = UaaStringUtils.getAuthoritiesFromStrings(readStrings(in));
+            boolean approved = in.readBoolean();
+            Set<String> scope = readStrings(in);
+            Set<String> resourceIds = readStrings(in);
+            String redirectUri = readString(in);
+            Set<String> responseTypes = readStrings(in);
+            Map<String, String> requestParameters = readStringMap(in);
+            Authentication userAuthentication = readUser(in);
+            OAuth2Request request = new OAuth2Request(
+                requestParameters,
+                clientId,
+                authorities,
+                approved,
+                scope,
+                resourceIds,
+                redirectUri,
+                responseTypes,
+                new HashMap<String, Serializable>()
+            );
+            return new OAuth2Authentication(request, userAuthentication);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeUser(DataOutputStream out, Authentication userAuthentication) throws IOException {
+        if (userAuthentication == null) {
+            out.writeByte(NO_USER);
+            return;
+        }
+        boolean uaaAuthentication = userAuthentication instanceof UaaAuthentication;
+        out.writeByte(uaaAuthentication ? USER_UAA_AUTHENTICATION : USER_PRINCIPAL);
+        UaaPrincipal principal = (UaaPrincipal) userAuthentication.getPrincipal();
+        writeString(out, principal.getId());
+        writeString(out, principal.getName());
+        writeString(out, principal.getEmail());
+        writeString(out, principal.getOrigin());
+        writeString(out, principal.getExternalId());
+        writeString(out, principal.getZoneId());
+        writeStrings(out, UaaStringUtils.getStringsFromAuthorities(userAuthentication.getAuthorities()));
+        if (!uaaAuthentication) {
+            return;
+        }
+        UaaAuthentication authentication = (UaaAuthentication) userAuthentication;
+        if (authentication.getDetails() instanceof UaaAuthenticationDetails) {
+            UaaAuthenticationDetails details = (UaaAuthenticationDetails) authentication.getDetails();
+            out.writeBoolean(true);
+            out.writeBoolean(details.isAddNew());
+            writeString(out, details.getClientId());
+            writeString(out, details.getOrigin());
+            writeString(out, details.getSessionId());
+        } else {
+            out.writeBoolean(false);
+        }
+        writeStrings(out, authentication.getExternalGroups());
+        out.writeLong(authentication.getExpiresAt());
+        out.writeLong(authentication.getAuthenticatedTime());
+        out.writeBoolean(authentication.isAuthenticated());
+        Long lastLoginSuccessTime = authentication.getLastLoginSuccessTime();
+        out.writeBoolean(lastLoginSuccessTime != null);
+        if (lastLoginSuccessTime != null) {
+            out.writeLong(lastLoginSuccessTime);
+        }
+        Map<String, List<String>> userAttributes = authentication.getUserAttributesAsMap();
+        out.writeInt(userAttributes.size());
+        for (Map.Entry<String, List<String>> entry : userAttributes.entrySet()) {
+            writeString(out, entry.getKey());
+            writeStrings(out, entry.getValue());
+        }
+        writeStrings(out, authentication.getAuthenticationMethods());
+        writeStrings(out, authentication.getAuthContextClassRef());
+    }
+
+    private static Authentication readUser(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        if (type == NO_USER) {
+            return null;
+        }
+        UaaPrincipal principal = new UaaPrincipal(readString(in), readString(in), readString(in), readString(in), readString(in), readString(in));
+        List<? extends GrantedAuthority> authorities = UaaStringUtils.getAuthoritiesFromStrings(readStrings(in));
+        if (type == USER_PRINCIPAL) {
+            return new UaaAuthentication(principal, authorities, UaaAuthenticationDetails.UNKNOWN);
+        }
+        UaaAuthenticationDetails details = null;
+        if (in.readBoolean()) {
+            details = new UaaAuthenticationDetails(in.readBoolean(), readString(in), readString(in), readString(in));
+        }
+        Set<String> externalGroups = readStrings(in);
+        long expiresAt = in.readLong();
+        long authenticatedTime = in.readLong();
+        boolean authenticated = in.readBoolean();
+        Long lastLoginSuccessTime = in.readBoolean() ? in.readLong() : null;
+        int attributeCount = in.readInt();
+        Map<String, List<String>> userAttributes = new HashMap<>();
+        for (int i = 0; i < attributeCount; i++) {
+            userAttributes.put(readString(in), readStringList(in));
+        }
+        UaaAuthentication authentication = new UaaAuthentication(principal,
+                                                                 null,
+                                                                 authorities,
+                                                                 externalGroups,
+                                                                 userAttributes,
+                                                                 details,
+                                                                 authenticated,
+                                                                 authenticatedTime,
+                                                                 expiresAt);
+        authentication.setLastLoginSuccessTime(lastLoginSuccessTime);
+        authentication.setAuthenticationMethods(readStrings(in));
+        authentication.setAuthContextClassRef(readStrings(in));
+        return authentication;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeStrings(DataOutputStream out, Collection<String> values) throws IOException {
+        if (values == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(values.size());
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    /**
+     * @return the strings in the order they were written, or null if null was written
+     */
+    private static Set<String> readStrings(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            return null;
+        }
+        Set<String> values = new LinkedHashSet<>();
+        for (int i = 0; i < size; i++) {
+            values.add(readString(in));
+        }
+        return values;
+    }
+
+    private static List<String> readStringList(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            return null;
+        }
+        List<String> values = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            values.add(readString(in));
+        }
+        return values;
+    }
+
+    private static void writeStringMap(DataOutputStream out, Map<String, String> values) throws IOException {
+        if (values == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(values.size());
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            writeString(out, entry.getKey());
+            writeString(out, entry.getValue());
+        }
+    }
+
+    private static Map<String, String> readStringMap(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            return null;
+        }
+        Map<String, String> values = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            values.put(readString(in), readString(in));
+        }
+        return values;
+    }
+}
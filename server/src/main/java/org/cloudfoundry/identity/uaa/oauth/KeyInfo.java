@@ -66,14 +66,21 @@ public class KeyInfo {
         return getKeys().get(keyId);
     }
 
-    public static Map<String, KeyInfo> getKeys() {
+    /**
+     * @return the signing keys configured for the current zone, falling back to the
+     * keys of the default zone, without parsing them
+     */
+    static Map<String, String> getSigningKeys() {
         IdentityZoneConfiguration config = IdentityZoneHolder.get().getConfig();
         if (config == null || config.getTokenPolicy().getKeys() == null || config.getTokenPolicy().getKeys().isEmpty()) {
             config = IdentityZoneHolder.getUaaZone().getConfig();
         }
+        return config.getTokenPolicy().getKeys();
+    }
 
+    public static Map<String, KeyInfo> getKeys() {
         Map<String, KeyInfo> keys = new HashMap<>();
-        for (Map.Entry<String, String> entry : config.getTokenPolicy().getKeys().entrySet()) {
+        for (Map.Entry<String, String> entry : getSigningKeys().entrySet()) {
             KeyInfo keyInfo = new KeyInfo();
             keyInfo.setKeyId(entry.getKey());
             keyInfo.setSigningKey(entry.getValue());
@@ -91,14 +98,18 @@ public class KeyInfo {
         return getKeys().get(getActiveKeyId());
     }
 
-    private static String getActiveKeyId() {
+    static String getActiveKeyId() {
         IdentityZoneConfiguration config = IdentityZoneHolder.get().getConfig();
         if(config == null) return IdentityZoneHolder.getUaaZone().getConfig().getTokenPolicy().getActiveKeyId();
         String activeKeyId = config.getTokenPolicy().getActiveKeyId();
 
-        Map<String, KeyInfo> keys;
-        if(!StringUtils.hasText(activeKeyId) && (keys = getKeys()).size() == 1) {
-            activeKeyId = keys.keySet().stream().findAny().get();
+        if(!StringUtils.hasText(activeKeyId)) {
+            Map<String, String> keys = getSigningKeys();
+            if (keys.isEmpty()) {
+                activeKeyId = LegacyTokenKey.LEGACY_TOKEN_KEY_ID;
+            } else if (keys.size() == 1) {
+                activeKeyId = keys.keySet().stream().findAny().get();
+            }
         }
 
         if(!StringUtils.hasText(activeKeyId)) {
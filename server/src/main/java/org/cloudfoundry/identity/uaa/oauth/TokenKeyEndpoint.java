@@ -12,30 +12,39 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.oauth;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.impl.config.LegacyTokenKey;
 import org.cloudfoundry.identity.uaa.oauth.token.VerificationKeyResponse;
 import org.cloudfoundry.identity.uaa.oauth.token.VerificationKeysListResponse;
+import org.cloudfoundry.identity.uaa.util.JsonUtils;
+import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.AccessDeniedException;
 import org.springframework.security.authentication.AnonymousAuthenticationToken;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.stereotype.Controller;
+import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.ResponseBody;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.Principal;
 import java.security.interfaces.RSAPublicKey;
 import java.util.Base64;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.stream.Collectors;
 
 import static org.cloudfoundry.identity.uaa.oauth.jwk.JsonWebKey.KeyUse.sig;
@@ -43,40 +52,68 @@ import static org.cloudfoundry.identity.uaa.oauth.jwk.JsonWebKey.KeyUse.sig;
 /**
  * OAuth2 token services that produces JWT encoded token values.
  *
+ * The serialized key responses are computed once per zone and reused until the
+ * zone's signing keys change. Their ETag is a hash of the response body, so edits
+ * to unrelated zone configuration do not invalidate the clients' copies.
  */
 @Controller
 public class TokenKeyEndpoint {
 
     protected final Log logger = LogFactory.getLog(getClass());
 
+    private final Cache<String, ZoneTokenKeys> zoneTokenKeys = CacheBuilder.newBuilder().maximumSize(10000).build();
+
+    private int maxAgeSeconds = 60;
+
+    public int getMaxAgeSeconds() {
+        return maxAgeSeconds;
+    }
+
+    public void setMaxAgeSeconds(int maxAgeSeconds) {
+        this.maxAgeSeconds = maxAgeSeconds;
+    }
+
     @RequestMapping(value = "/token_key", method = RequestMethod.GET)
     @ResponseBody
-    public ResponseEntity<VerificationKeyResponse> getKey(Principal principal,
+    public ResponseEntity<byte[]> getKey(Principal principal,
             @RequestHeader(value = "If-None-Match", required = false, defaultValue = "NaN") String eTag) {
-
-        String lastModified = KeyInfo.getLastModified().toString();
-        if (unmodifiedResource(eTag, lastModified)) {
-            return new ResponseEntity<>(HttpStatus.NOT_MODIFIED);
+        ZoneTokenKeys keys = getZoneTokenKeys();
+        if (!includeSymmetricalKeys(principal) && !keys.activeKeyAsymmetric) {
+            throw new AccessDeniedException("You need to authenticate to see a shared key");
         }
-
-        HttpHeaders header = new HttpHeaders();
-        header.put("ETag", Collections.singletonList(lastModified));
-        return new ResponseEntity<>(getKey(principal), header, HttpStatus.OK);
+        return cachedResponse(keys.activeKey, eTag);
     }
 
 
     @RequestMapping(value = "/token_keys", method = RequestMethod.GET)
     @ResponseBody
-    public ResponseEntity<VerificationKeysListResponse> getKeys(Principal principal,
+    public ResponseEntity<byte[]> getKeys(Principal principal,
             @RequestHeader(value = "If-None-Match", required = false, defaultValue = "NaN") String eTag) {
-        String lastModified = KeyInfo.getLastModified().toString();
-        if (unmodifiedResource(eTag, lastModified)) {
-            return new ResponseEntity<>(HttpStatus.NOT_MODIFIED);
-        }
+        ZoneTokenKeys keys = getZoneTokenKeys();
+        return cachedResponse(includeSymmetricalKeys(principal) ? keys.allKeys : keys.asymmetricKeys, eTag);
+    }
 
+    private ResponseEntity<byte[]> cachedResponse(CachedResponse response, String eTag) {
         HttpHeaders header = new HttpHeaders();
-        header.put("ETag", Collections.singletonList(lastModified));
-        return new ResponseEntity<>(getKeys(principal), header, HttpStatus.OK);
+        header.setETag(response.eTag);
+        header.setCacheControl("max-age=" + maxAgeSeconds);
+        if (unmodifiedResource(eTag, response.eTag)) {
+            return new ResponseEntity<>(header, HttpStatus.NOT_MODIFIED);
+        }
+        header.setContentType(MediaType.APPLICATION_JSON_UTF8);
+        return new ResponseEntity<>(response.body, header, HttpStatus.OK);
+    }
+
+    private ZoneTokenKeys getZoneTokenKeys() {
+        String zoneId = IdentityZoneHolder.get().getId();
+        KeyMaterial material = new KeyMaterial(KeyInfo.getSigningKeys(), KeyInfo.getActiveKeyId(), LegacyTokenKey.getLegacySigningKey());
+        ZoneTokenKeys keys = zoneTokenKeys.getIfPresent(zoneId);
+        if (keys == null || !keys.material.equals(material)) {
+            logger.debug("Computing token key responses for zone:" + zoneId);
+            keys = new ZoneTokenKeys(material, KeyInfo.getKeys(), KeyInfo.getActiveKey());
+            zoneTokenKeys.put(zoneId, keys);
+        }
+        return keys;
     }
 
     /**
@@ -123,8 +160,20 @@ public class TokenKeyEndpoint {
         return result;
     }
 
-    private boolean unmodifiedResource(String eTag, String lastModified) {
-        return !eTag.equals("NaN") && lastModified.equals(eTag);
+    private boolean unmodifiedResource(String ifNoneMatch, String eTag) {
+        if (ifNoneMatch.equals("NaN")) {
+            return false;
+        }
+        for (String candidate : StringUtils.commaDelimitedListToStringArray(ifNoneMatch)) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(eTag) || ("\"" + candidate + "\"").equals(eTag)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -163,4 +212,78 @@ public class TokenKeyEndpoint {
         }
         return false;
     }
+
+    /**
+     * The unparsed key configuration a set of cached responses was computed from.
+     */
+    private static final class KeyMaterial {
+        private final Map<String, String> signingKeys;
+        private final String activeKeyId;
+        private final String legacySigningKey;
+
+        KeyMaterial(Map<String, String> signingKeys, String activeKeyId, String legacySigningKey) {
+            this.signingKeys = signingKeys;
+            this.activeKeyId = activeKeyId;
+            this.legacySigningKey = legacySigningKey;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof KeyMaterial)) return false;
+            KeyMaterial that = (KeyMaterial) o;
+            return Objects.equals(signingKeys, that.signingKeys) &&
+                Objects.equals(activeKeyId, that.activeKeyId) &&
+                Objects.equals(legacySigningKey, that.legacySigningKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(signingKeys, activeKeyId, legacySigningKey);
+        }
+    }
+
+    private static final class ZoneTokenKeys {
+        private final KeyMaterial material;
+        private final boolean activeKeyAsymmetric;
+        private final CachedResponse activeKey;
+        private final CachedResponse allKeys;
+        private final CachedResponse asymmetricKeys;
+
+        ZoneTokenKeys(KeyMaterial material, Map<String, KeyInfo> keys, KeyInfo active) {
+            this.material = material;
+            if (active == null) {
+                throw new IllegalStateException("Unable to find active key for token key endpoint:" + material.activeKeyId);
+            }
+            this.activeKeyAsymmetric = active.isAssymetricKey();
+            this.activeKey = new CachedResponse(getVerificationKeyResponse(active));
+            List<VerificationKeyResponse> all = keys.values().stream()
+                .map(TokenKeyEndpoint::getVerificationKeyResponse)
+                .collect(Collectors.toList());
+            List<VerificationKeyResponse> asymmetric = keys.values().stream()
+                .filter(KeyInfo::isAssymetricKey)
+                .map(TokenKeyEndpoint::getVerificationKeyResponse)
+                .collect(Collectors.toList());
+            this.allKeys = new CachedResponse(new VerificationKeysListResponse(all));
+            this.asymmetricKeys = new CachedResponse(new VerificationKeysListResponse(asymmetric));
+        }
+    }
+
+    private static final class CachedResponse {
+        private final byte[] body;
+        private final String eTag;
+
+        CachedResponse(Object response) {
+            this.body = JsonUtils.writeValueAsBytes(response);
+            this.eTag = "\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(sha256(body)) + "\"";
+        }
+
+        private static byte[] sha256(byte[] body) {
+            try {
+                return MessageDigest.getInstance("SHA-256").digest(body);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
 }
@@ -22,6 +22,7 @@ import org.cloudfoundry.identity.uaa.audit.event.TokenIssuedEvent;
 import org.cloudfoundry.identity.uaa.authentication.Origin;
 import org.cloudfoundry.identity.uaa.authentication.UaaAuthentication;
 import org.cloudfoundry.identity.uaa.authentication.UaaPrincipal;
+import org.cloudfoundry.identity.uaa.db.ReadReplicaRoutingDataSource;
 import org.cloudfoundry.identity.uaa.oauth.jwt.Jwt;
 import org.cloudfoundry.identity.uaa.oauth.jwt.JwtHelper;
 import org.cloudfoundry.identity.uaa.oauth.token.ClaimConstants;
@@ -246,7 +247,7 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
 
         // TODO: Need to add a lookup by id so that the refresh token does not
         // need to contain a name
-        UaaUser user = userDatabase.retrieveUserById(userid);
+        UaaUser user = retrieveUserById(userid);
         ClientDetails client = clientDetailsService.loadClientByClientId(clientId, IdentityZoneHolder.get().getId());
 
         Integer refreshTokenIssuedAt = (Integer) claims.get(IAT);
@@ -432,7 +433,6 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
         }
         accessToken.setAdditionalInformation(info);
 
-        String content;
         Map<String, ?> jwtAccessToken = createJWTAccessToken(
             accessToken,
             userId,
@@ -447,12 +447,12 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
             revocableHashSignature,
             revocable
         );
+        String token;
         try {
-            content = JsonUtils.writeValueAsString(jwtAccessToken);
+            token = JwtHelper.encodeClaims(jwtAccessToken, getActiveKeyInfo().getSigner());
         } catch (JsonUtils.JsonUtilException e) {
             throw new IllegalStateException("Cannot convert access token to JSON", e);
         }
-        String token = JwtHelper.encode(content, getActiveKeyInfo().getSigner()).getEncoded();
         // This setter copies the value and returns. Don't change.
         accessToken.setValue(token);
         populateIdToken(accessToken,
@@ -529,8 +529,7 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
                     if(phoneNumber != null) clone.put(PHONE_NUMBER, phoneNumber);
                 }
 
-                String content = JsonUtils.writeValueAsString(clone);
-                String encoded = JwtHelper.encode(content, KeyInfo.getActiveKey().getSigner()).getEncoded();
+                String encoded = JwtHelper.encodeClaims(clone, KeyInfo.getActiveKey().getSigner());
                 token.setIdTokenValue(encoded);
             } catch (JsonUtils.JsonUtilException e) {
                 throw new IllegalStateException("Cannot convert ID token to JSON", e);
@@ -632,7 +631,7 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
             clientScopes = client.getAuthorities();
         } else {
             userId = getUserId(authentication);
-            user = userDatabase.retrieveUserById(userId);
+            user = retrieveUserById(userId);
             if (authentication.getUserAuthentication() instanceof UaaAuthentication) {
                 userAuthenticationTime = new Date(((UaaAuthentication)authentication.getUserAuthentication()).getAuthenticatedTime());
                 authenticationMethods = ((UaaAuthentication) authentication.getUserAuthentication()).getAuthenticationMethods();
@@ -875,9 +874,9 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
             externalAttributes = uaaTokenEnhancer.getExternalAttributes(authentication);
         }
 
-        String content;
+        String jwtToken;
         try {
-            content = JsonUtils.writeValueAsString(
+            jwtToken = JwtHelper.encodeClaims(
                 createJWTRefreshToken(
                     token,
                     tokenId,
@@ -889,12 +888,12 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
                     revocableHashSignature,
                     revocable,
                     externalAttributes
-                )
+                ),
+                getActiveKeyInfo().getSigner()
             );
         } catch (JsonUtils.JsonUtilException e) {
             throw new IllegalStateException("Cannot convert access token to JSON", e);
         }
-        String jwtToken = JwtHelper.encode(content, getActiveKeyInfo().getSigner()).getEncoded();
 
         ExpiringOAuth2RefreshToken refreshToken = new DefaultExpiringOAuth2RefreshToken(jwtToken, token.getExpiration());
 
@@ -1023,6 +1022,14 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
         this.userDatabase = userDatabase;
     }
 
+    /**
+     * Reads the user from the primary database, because its password, salt, email and user name
+     * make up the revocation signature of its tokens
+     */
+    private UaaUser retrieveUserById(String userId) {
+        return ReadReplicaRoutingDataSource.primary(() -> userDatabase.retrieveUserById(userId));
+    }
+
     @Override
     public OAuth2Authentication loadAuthentication(String accessToken) throws AuthenticationException {
         if (StringUtils.isEmpty(accessToken)) {
@@ -1072,7 +1079,7 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
         Authentication userAuthentication = null;
         // Is this a user token - minimum info is user_id
         if (claims.containsKey(USER_ID)) {
-            UaaUser user = userDatabase.retrieveUserById((String)claims.get(USER_ID));
+            UaaUser user = retrieveUserById((String)claims.get(USER_ID));
             UaaPrincipal principal = new UaaPrincipal(user);
             userAuthentication = new UaaAuthentication(principal, UaaAuthority.USER_AUTHORITIES, null);
         } else {
@@ -1188,7 +1195,7 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
         UaaUser user = null;
         if( UaaTokenUtils.isUserToken(claims)) {
             try {
-                user = userDatabase.retrieveUserById(userId);
+                user = retrieveUserById(userId);
             } catch (UsernameNotFoundException e) {
                 throw new InvalidTokenException("Token bears a non-existent user ID: " + userId);
             }
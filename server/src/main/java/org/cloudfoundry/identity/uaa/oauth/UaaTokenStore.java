@@ -21,11 +21,12 @@ import org.apache.commons.logging.LogFactory;
 import org.cloudfoundry.identity.uaa.authentication.UaaAuthentication;
 import org.cloudfoundry.identity.uaa.authentication.UaaAuthenticationDetails;
 import org.cloudfoundry.identity.uaa.authentication.UaaPrincipal;
+import org.cloudfoundry.identity.uaa.resources.jdbc.DefaultDeleteReturningSqlAdapter;
+import org.cloudfoundry.identity.uaa.resources.jdbc.DeleteReturningSqlAdapter;
 import org.cloudfoundry.identity.uaa.util.JsonUtils;
 import org.cloudfoundry.identity.uaa.util.UaaStringUtils;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
 import org.springframework.dao.DataIntegrityViolationException;
-import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.support.SqlLobValue;
@@ -68,33 +69,53 @@ public class UaaTokenStore implements AuthorizationCodeServices {
 
     protected static Log logger = LogFactory.getLog(UaaTokenStore.class);
 
-    private static final String SQL_SELECT_STATEMENT = "select code, user_id, client_id, expiresat, created, authentication from oauth_code where code = ?";
+    private static final String SQL_TABLE = "oauth_code";
+    private static final String SQL_FIELDS = "code, user_id, client_id, expiresat, created, authentication";
+    private static final String SQL_CODE_CLAUSE = "code = ?";
     private static final String SQL_INSERT_STATEMENT = "insert into oauth_code (code, user_id, client_id, expiresat, authentication, identity_zone_id) values (?, ?, ?, ?, ?, ?)";
-    private static final String SQL_DELETE_STATEMENT = "delete from oauth_code where code = ?";
     private static final String SQL_EXPIRE_STATEMENT = "delete from oauth_code where expiresat > 0 AND expiresat < ?";
     private static final String SQL_CLEAN_STATEMENT = "delete from oauth_code where created < ? and expiresat = 0";
 
-    private final DataSource dataSource;
+    private final JdbcTemplate template;
     private final long expirationTime;
     private final RandomValueStringGenerator generator = new RandomValueStringGenerator(10);
     private final RowMapper rowMapper = new TokenCodeRowMapper();
 
     private final AtomicLong lastClean = new AtomicLong(0);
 
+    private DeleteReturningSqlAdapter deleteReturningSqlAdapter = new DefaultDeleteReturningSqlAdapter();
+    private boolean binaryFormat = false;
+
     public UaaTokenStore(DataSource dataSource) {
         this(dataSource, EXPIRATION_TIME);
     }
 
     public UaaTokenStore(DataSource dataSource, long expirationTime) {
-        this.dataSource = dataSource;
+        this.template = new JdbcTemplate(dataSource);
         this.expirationTime = expirationTime;
     }
 
+    public void setDeleteReturningSqlAdapter(DeleteReturningSqlAdapter deleteReturningSqlAdapter) {
+        this.deleteReturningSqlAdapter = deleteReturningSqlAdapter;
+    }
+
+    public boolean isBinaryFormat() {
+        return binaryFormat;
+    }
+
+    /**
+     * @param binaryFormat true to store new codes in the format of {@link AuthorizationCodeAuthenticationSerializer},
+     *                     false (the default) to keep storing JSON. Both formats are always read, so that
+     *                     servers of the previous release can consume codes while this is off.
+     */
+    public void setBinaryFormat(boolean binaryFormat) {
+        this.binaryFormat = binaryFormat;
+    }
+
     @Override
     public String createAuthorizationCode(OAuth2Authentication authentication) {
         final int max_tries = 3;
         performExpirationClean();
-        JdbcTemplate template = new JdbcTemplate(dataSource);
         int tries = 0;
         while ((tries++)<=max_tries) {
             try {
@@ -124,29 +145,38 @@ public class UaaTokenStore implements AuthorizationCodeServices {
     @Override
     public OAuth2Authentication consumeAuthorizationCode(String code) throws InvalidGrantException {
         performExpirationClean();
-        JdbcTemplate template = new JdbcTemplate(dataSource);
-        try {
-            TokenCode tokenCode = (TokenCode) template.queryForObject(SQL_SELECT_STATEMENT, rowMapper, code);
-            if (tokenCode != null) {
-                try {
-                    if (tokenCode.isExpired()) {
-                        logger.debug("[oauth_code] Found code, but it expired:"+tokenCode);
-                        throw new InvalidGrantException("Authorization code expired: " + code);
-                    } else if (tokenCode.getExpiresAt() == 0) {
-                        return SerializationUtils.deserialize(tokenCode.getAuthentication());
-                    } else {
-                        return deserializeOauth2Authentication(tokenCode.getAuthentication());
-                    }
-                } finally {
-                    template.update(SQL_DELETE_STATEMENT, code);
-                }
+        TokenCode tokenCode = (TokenCode) deleteReturningSqlAdapter.consume(template, rowMapper, SQL_TABLE, SQL_FIELDS, SQL_CODE_CLAUSE, code);
+        if (tokenCode != null) {
+            if (tokenCode.isExpired()) {
+                logger.debug("[oauth_code] Found code, but it expired:"+tokenCode);
+                throw new InvalidGrantException("Authorization code expired: " + code);
+            } else if (tokenCode.getExpiresAt() == 0) {
+                return SerializationUtils.deserialize(tokenCode.getAuthentication());
+            } else {
+                return deserializeOauth2Authentication(tokenCode.getAuthentication());
             }
-        }catch (EmptyResultDataAccessException x) {
         }
         throw new InvalidGrantException("Invalid authorization code: " + code);
     }
 
     protected byte[] serializeOauth2Authentication(OAuth2Authentication auth2Authentication) {
+        if (binaryFormat) {
+            return AuthorizationCodeAuthenticationSerializer.serialize(auth2Authentication);
+        }
+        return serializeJsonOauth2Authentication(auth2Authentication);
+    }
+
+    protected OAuth2Authentication deserializeOauth2Authentication(byte[] data) {
+        if (AuthorizationCodeAuthenticationSerializer.isSerialized(data)) {
+            return AuthorizationCodeAuthenticationSerializer.deserialize(data);
+        }
+        return deserializeJsonOauth2Authentication(data);
+    }
+
+    /**
+     * Writes the JSON format, which is stored unless {@link #setBinaryFormat(boolean)} is on
+     */
+    protected byte[] serializeJsonOauth2Authentication(OAuth2Authentication auth2Authentication) {
         Authentication userAuthentication = auth2Authentication.getUserAuthentication();
         HashMap<String, Object> data = new HashMap<>();
         if (userAuthentication!=null) {
@@ -174,7 +204,7 @@ public class UaaTokenStore implements AuthorizationCodeServices {
         return JsonUtils.writeValueAsBytes(data);
     }
 
-    protected OAuth2Authentication deserializeOauth2Authentication(byte[] data) {
+    protected OAuth2Authentication deserializeJsonOauth2Authentication(byte[] data) {
         Map<String,Object> map = JsonUtils.readValue(data, new TypeReference<Map<String,Object>>() {});
         Authentication userAuthentication = null;
         if (map.get(USER_AUTHENTICATION_UAA_AUTHENTICATION) != null) {
@@ -216,7 +246,6 @@ public class UaaTokenStore implements AuthorizationCodeServices {
         if ((System.currentTimeMillis()-last) > getExpirationTime()) {
             //avoid concurrent deletes from the same UAA - performance improvement
             if (lastClean.compareAndSet(last, last+getExpirationTime())) {
-                JdbcTemplate template = new JdbcTemplate(dataSource);
                 int expired = template.update(SQL_EXPIRE_STATEMENT, System.currentTimeMillis());
                 logger.debug("[oauth_code] Removed "+expired+" expired entries.");
                 expired = template.update(SQL_CLEAN_STATEMENT, new Timestamp(System.currentTimeMillis()-LEGACY_CODE_EXPIRATION_TIME));
@@ -15,6 +15,7 @@ package org.cloudfoundry.identity.uaa.oauth;
 import static org.cloudfoundry.identity.uaa.approval.Approval.ApprovalStatus.APPROVED;
 import static org.cloudfoundry.identity.uaa.approval.Approval.ApprovalStatus.DENIED;
 
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Date;
@@ -107,6 +108,7 @@ public class UserManagedAuthzApprovalHandler implements UserApprovalHandler {
             if (foundUserApprovalParameter) {
                 authorizationRequest.setScope(approvedScopes);
 
+                List<Approval> approvals = new ArrayList<>();
                 for (String requestedScope : requestedScopes) {
                     if (approvedScopes.contains(requestedScope)) {
                         Approval approval = new Approval()
@@ -115,7 +117,7 @@ public class UserManagedAuthzApprovalHandler implements UserApprovalHandler {
                             .setScope(requestedScope)
                             .setExpiresAt(expiry)
                             .setStatus(APPROVED);
-                        approvalStore.addApproval(approval, IdentityZoneHolder.get().getId());
+                        approvals.add(approval);
                     }
                     else {
                         Approval approval = new Approval()
@@ -124,14 +126,16 @@ public class UserManagedAuthzApprovalHandler implements UserApprovalHandler {
                             .setScope(requestedScope)
                             .setExpiresAt(expiry)
                             .setStatus(DENIED);
-                        approvalStore.addApproval(approval, IdentityZoneHolder.get().getId());
+                        approvals.add(approval);
                     }
                 }
+                approvalStore.addApprovals(approvals, IdentityZoneHolder.get().getId());
 
             }
             else { // Deny all except auto approved scopes
                 authorizationRequest.setScope(autoApprovedScopes);
 
+                List<Approval> approvals = new ArrayList<>();
                 for (String requestedScope : requestedScopes) {
                     if (!autoApprovedScopes.contains(requestedScope)) {
                         Approval approval = new Approval()
@@ -140,9 +144,10 @@ public class UserManagedAuthzApprovalHandler implements UserApprovalHandler {
                             .setScope(requestedScope)
                             .setExpiresAt(expiry)
                             .setStatus(DENIED);
-                        approvalStore.addApproval(approval, IdentityZoneHolder.get().getId());
+                        approvals.add(approval);
                     }
                 }
+                approvalStore.addApprovals(approvals, IdentityZoneHolder.get().getId());
             }
 
             if (userAuthentication.isAuthenticated()) {
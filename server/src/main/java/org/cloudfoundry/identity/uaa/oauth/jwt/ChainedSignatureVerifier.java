@@ -37,6 +37,13 @@ public class ChainedSignatureVerifier implements SignatureVerifier {
         delegates = Collections.unmodifiableList(ds);
     }
 
+    public ChainedSignatureVerifier(List<SignatureVerifier> verifiers) {
+        if(verifiers == null || verifiers.isEmpty()) {
+            throw new IllegalArgumentException("verifiers cannot be null or empty");
+        }
+        delegates = Collections.unmodifiableList(new ArrayList<>(verifiers));
+    }
+
     @Override
     public void verify(byte[] content, byte[] signature) {
         Exception last = new InvalidSignatureException("No matching keys found.");
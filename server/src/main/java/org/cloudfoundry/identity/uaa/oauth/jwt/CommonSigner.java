@@ -18,19 +18,38 @@ import org.cloudfoundry.identity.uaa.oauth.KeyInfo;
 import org.springframework.security.jwt.crypto.sign.MacSigner;
 import org.springframework.security.jwt.crypto.sign.RsaSigner;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.interfaces.RSAPrivateKey;
+
 public class CommonSigner implements Signer {
 
+    private static final String MAC_ALGORITHM = "HMACSHA256";
+
     private final org.springframework.security.jwt.crypto.sign.Signer delegate;
     private final String keyId;
+    private final Key key;
 
     public CommonSigner(String keyId, String signingKey) {
         org.springframework.security.jwt.crypto.sign.Signer signer;
         if (signingKey == null) {
             throw new IllegalArgumentException(signingKey);
         } else if(KeyInfo.isAssymetricKey(signingKey)) {
-            signer = new RsaSigner(signingKey);
+            PrivateKey privateKey = KeyInfo.parseKeyPair(signingKey).getPrivate();
+            if (!(privateKey instanceof RSAPrivateKey)) {
+                throw new IllegalArgumentException("Not a private key");
+            }
+            signer = new RsaSigner((RSAPrivateKey) privateKey);
+            key = privateKey;
         } else {
-            signer = new MacSigner(signingKey);
+            SecretKeySpec secretKey = new SecretKeySpec(signingKey.getBytes(StandardCharsets.UTF_8), MAC_ALGORITHM);
+            signer = new MacSigner(secretKey);
+            key = secretKey;
         }
         delegate = signer;
         this.keyId = keyId;
@@ -46,6 +65,29 @@ public class CommonSigner implements Signer {
         return delegate.sign(bytes);
     }
 
+    /**
+     * Signs a region of the given buffer without copying it first, feeding the bytes
+     * straight into the underlying {@link Signature} or {@link Mac}.
+     */
+    @Override
+    public byte[] sign(byte[] bytes, int offset, int length) {
+        try {
+            if (key instanceof PrivateKey) {
+                Signature signature = Signature.getInstance(delegate.algorithm());
+                signature.initSign((PrivateKey) key);
+                signature.update(bytes, offset, length);
+                return signature.sign();
+            } else {
+                Mac mac = Mac.getInstance(delegate.algorithm());
+                mac.init(key);
+                mac.update(bytes, offset, length);
+                return mac.doFinal();
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     @Override
     public String algorithm() {
         return JwtAlgorithms.sigAlg(delegate.algorithm());
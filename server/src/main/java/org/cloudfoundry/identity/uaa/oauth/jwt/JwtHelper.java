@@ -83,6 +83,17 @@ public class JwtHelper {
                 .sign(concat(b64UrlEncode(header.bytes()), PERIOD, b64UrlEncode(claims)));
         return new JwtImpl(header, claims, crypto);
     }
+
+    /**
+     * Serializes and signs the claims directly into an encoded token, without the
+     * intermediate JSON string and segment copies of {@link #encode(CharSequence, Signer)}.
+     *
+     * @return the encoded header, claims and crypto segments concatenated with "."
+     * characters
+     */
+    public static String encodeClaims(Map<String, ?> claims, Signer signer) {
+        return StreamingJwtEncoder.encode(claims, signer);
+    }
 }
 
 /**
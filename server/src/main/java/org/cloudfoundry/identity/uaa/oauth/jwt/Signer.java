@@ -1,5 +1,11 @@
 package org.cloudfoundry.identity.uaa.oauth.jwt;
 
+import java.util.Arrays;
+
 public interface Signer extends org.springframework.security.jwt.crypto.sign.Signer {
     String keyId();
+
+    default byte[] sign(byte[] bytes, int offset, int length) {
+        return sign(Arrays.copyOfRange(bytes, offset, offset + length));
+    }
 }
@@ -0,0 +1,177 @@
+/*
+ * ****************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2017] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ * ****************************************************************************
+ */
+package org.cloudfoundry.identity.uaa.oauth.jwt;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.cloudfoundry.identity.uaa.util.JsonUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Encodes a signed JWT from a claims map in a single pass over per-thread buffers.
+ *
+ * The header and the claims are written by a Jackson {@link JsonGenerator} into a
+ * reusable JSON buffer, Base64url encoded straight into the token buffer, and the
+ * signing input is handed to the {@link Signer} as a region of that buffer. The
+ * output is byte for byte the same as {@link JwtHelper#encode(CharSequence, Signer)}
+ * applied to the serialized claims.
+ */
+final class StreamingJwtEncoder {
+
+    private static final byte[] BASE64URL = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_"
+        .getBytes(StandardCharsets.US_ASCII);
+    private static final byte PERIOD = '.';
+    private static final int INITIAL_BUFFER_SIZE = 2048;
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<StreamingJwtEncoder> ENCODERS = ThreadLocal.withInitial(StreamingJwtEncoder::new);
+
+    private final JsonBuffer json = new JsonBuffer();
+    private byte[] token = new byte[INITIAL_BUFFER_SIZE];
+    private int length;
+
+    private StreamingJwtEncoder() {
+    }
+
+    static String encode(Map<String, ?> claims, Signer signer) {
+        return ENCODERS.get().encodeToken(claims, signer);
+    }
+
+    private String encodeToken(Map<String, ?> claims, Signer signer) {
+        try {
+            length = 0;
+
+            json.reset();
+            writeHeader(signer);
+            appendBase64(json.buf, 0, json.count);
+            append(PERIOD);
+
+            json.reset();
+            writeClaims(claims);
+            appendBase64(json.buf, 0, json.count);
+
+            byte[] crypto = signer.sign(token, 0, length);
+            append(PERIOD);
+            appendBase64(crypto, 0, crypto.length);
+
+            return new String(token, 0, length, StandardCharsets.US_ASCII);
+        } finally {
+            if (token.length > MAX_RETAINED_BUFFER_SIZE) {
+                token = new byte[INITIAL_BUFFER_SIZE];
+            }
+            json.trim();
+        }
+    }
+
+    private void writeHeader(Signer signer) {
+        try (JsonGenerator generator = JsonUtils.createGenerator(json)) {
+            generator.writeStartObject();
+            generator.writeStringField("alg", signer.algorithm());
+            if (signer.keyId() != null) {
+                generator.writeStringField("kid", signer.keyId());
+            }
+            generator.writeStringField("typ", "JWT");
+            generator.writeEndObject();
+        } catch (IOException e) {
+            throw new JsonUtils.JsonUtilException(e);
+        }
+    }
+
+    private void writeClaims(Map<String, ?> claims) {
+        try (JsonGenerator generator = JsonUtils.createGenerator(json)) {
+            JsonUtils.writeValue(generator, claims);
+        } catch (IOException e) {
+            throw new JsonUtils.JsonUtilException(e);
+        }
+    }
+
+    private void append(byte b) {
+        ensureCapacity(1);
+        token[length++] = b;
+    }
+
+    private void appendBase64(byte[] src, int offset, int count) {
+        ensureCapacity((count + 2) / 3 * 4);
+        int end = offset + count;
+        int i = offset;
+        while (end - i >= 3) {
+            int bits = (src[i++] & 0xff) << 16 | (src[i++] & 0xff) << 8 | (src[i++] & 0xff);
+            token[length++] = BASE64URL[(bits >>> 18) & 0x3f];
+            token[length++] = BASE64URL[(bits >>> 12) & 0x3f];
+            token[length++] = BASE64URL[(bits >>> 6) & 0x3f];
+            token[length++] = BASE64URL[bits & 0x3f];
+        }
+        int remaining = end - i;
+        if (remaining == 1) {
+            int bits = (src[i] & 0xff) << 16;
+            token[length++] = BASE64URL[(bits >>> 18) & 0x3f];
+            token[length++] = BASE64URL[(bits >>> 12) & 0x3f];
+        } else if (remaining == 2) {
+            int bits = (src[i] & 0xff) << 16 | (src[i + 1] & 0xff) << 8;
+            token[length++] = BASE64URL[(bits >>> 18) & 0x3f];
+            token[length++] = BASE64URL[(bits >>> 12) & 0x3f];
+            token[length++] = BASE64URL[(bits >>> 6) & 0x3f];
+        }
+    }
+
+    private void ensureCapacity(int additional) {
+        if (length + additional > token.length) {
+            token = Arrays.copyOf(token, Math.max(token.length * 2, length + additional));
+        }
+    }
+
+    /**
+     * Growable byte sink for the JSON segments. Unlike {@link java.io.ByteArrayOutputStream}
+     * it exposes its backing array so the segments can be encoded without a copy.
+     */
+    private static class JsonBuffer extends OutputStream {
+        private byte[] buf = new byte[INITIAL_BUFFER_SIZE];
+        private int count;
+
+        @Override
+        public void write(int b) {
+            ensureCapacity(1);
+            buf[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity(len);
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+
+        void reset() {
+            count = 0;
+        }
+
+        void trim() {
+            if (buf.length > MAX_RETAINED_BUFFER_SIZE) {
+                buf = new byte[INITIAL_BUFFER_SIZE];
+            }
+            count = 0;
+        }
+
+        private void ensureCapacity(int additional) {
+            if (count + additional > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + additional));
+            }
+        }
+    }
+}
@@ -13,6 +13,8 @@
  */
 package org.cloudfoundry.identity.uaa.provider;
 
+import org.cloudfoundry.identity.uaa.util.EmailDomainIndex;
+
 import java.util.List;
 
 public interface IdentityProviderProvisioning {
@@ -29,5 +31,20 @@ public interface IdentityProviderProvisioning {
 
     IdentityProvider retrieveByOrigin(String origin, String zoneId);
 
+    /**
+     * @return a value that is equal between two calls as long as no identity provider of the
+     * zone has been created, changed or deleted in between, or null if this is not tracked
+     */
+    default Object getRevision(String zoneId) {
+        return null;
+    }
+
+    /**
+     * @return an index of the email domains of the active identity providers of the zone that
+     * is kept until one of them changes, or null if this is not kept
+     */
+    default EmailDomainIndex getEmailDomainIndex(String zoneId) {
+        return null;
+    }
 
 }
@@ -15,13 +15,21 @@ package org.cloudfoundry.identity.uaa.provider;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.cloudfoundry.identity.uaa.audit.event.SystemDeletable;
+import org.cloudfoundry.identity.uaa.cache.CacheInvalidationListener;
+import org.cloudfoundry.identity.uaa.cache.JdbcCacheInvalidationBus;
 import org.cloudfoundry.identity.uaa.constants.OriginKeys;
+import org.cloudfoundry.identity.uaa.db.ReadReplicaRoutingDataSource;
+import org.cloudfoundry.identity.uaa.util.EmailDomainIndex;
 import org.cloudfoundry.identity.uaa.util.JsonUtils;
 import org.cloudfoundry.identity.uaa.util.ObjectUtils;
+import org.cloudfoundry.identity.uaa.util.TimeService;
+import org.cloudfoundry.identity.uaa.util.TimeServiceImpl;
 import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.jdbc.core.ResultSetExtractor;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
@@ -30,11 +38,19 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
 
-public class JdbcIdentityProviderProvisioning implements IdentityProviderProvisioning, SystemDeletable {
+public class JdbcIdentityProviderProvisioning implements IdentityProviderProvisioning, SystemDeletable, CacheInvalidationListener {
 
     private static Log logger = LogFactory.getLog(JdbcIdentityProviderProvisioning.class);
 
@@ -58,25 +74,64 @@ public class JdbcIdentityProviderProvisioning implements IdentityProviderProvisi
 
     public static final String IDENTITY_PROVIDER_BY_ORIGIN_QUERY = "select " + ID_PROVIDER_FIELDS + " from identity_provider " + "where origin_key=? and identity_zone_id=? ";
 
+    public static final String IDENTITY_PROVIDER_REVISIONS_QUERY = "select id,version,lastmodified from identity_provider where identity_zone_id=?";
+
     protected final JdbcTemplate jdbcTemplate;
 
 
     private final RowMapper<IdentityProvider> mapper = new IdentityProviderRowMapper();
 
+    private final ConcurrentMap<String, ZoneProviders> cache = new ConcurrentHashMap<>();
+
+    private TimeService timeService = new TimeServiceImpl();
+
+    private long validationIntervalMillis = 0;
+
+    private JdbcCacheInvalidationBus invalidationBus;
+
     public JdbcIdentityProviderProvisioning(JdbcTemplate jdbcTemplate) {
         Assert.notNull(jdbcTemplate);
         this.jdbcTemplate = jdbcTemplate;
     }
 
+    public void setTimeService(TimeService timeService) {
+        this.timeService = timeService;
+    }
+
+    /**
+     * How long a cached zone is served before its revisions are checked against the
+     * database again. The default of 0 checks on every read. Writes made through this
+     * instance always take effect immediately.
+     */
+    public void setValidationIntervalMillis(long validationIntervalMillis) {
+        this.validationIntervalMillis = validationIntervalMillis;
+    }
+
+    /**
+     * @param invalidationBus records the changed providers for the caches of other servers
+     */
+    public void setInvalidationBus(JdbcCacheInvalidationBus invalidationBus) {
+        this.invalidationBus = invalidationBus;
+    }
+
     @Override
     public IdentityProvider retrieve(String id, String zoneId) {
-        IdentityProvider identityProvider = jdbcTemplate.queryForObject(IDENTITY_PROVIDER_BY_ID_QUERY, mapper, id, zoneId);
-        return identityProvider;
+        IdentityProvider identityProvider = getZoneProviders(zoneId).byId.get(id);
+        if (identityProvider == null) {
+            throw new EmptyResultDataAccessException(1);
+        }
+        return copy(identityProvider);
     }
 
     @Override
     public List<IdentityProvider> retrieveActive(String zoneId) {
-        return jdbcTemplate.query(IDENTITY_ACTIVE_PROVIDERS_QUERY, mapper, zoneId, true);
+        List<IdentityProvider> result = new ArrayList<>();
+        for (IdentityProvider identityProvider : getZoneProviders(zoneId).byId.values()) {
+            if (identityProvider.isActive()) {
+                result.add(copy(identityProvider));
+            }
+        }
+        return result;
     }
 
     @Override
@@ -84,14 +139,85 @@ public class JdbcIdentityProviderProvisioning implements IdentityProviderProvisi
         if (activeOnly) {
             return retrieveActive(zoneId);
         } else {
-            return jdbcTemplate.query(IDENTITY_PROVIDERS_QUERY, mapper, zoneId);
+            List<IdentityProvider> result = new ArrayList<>();
+            for (IdentityProvider identityProvider : getZoneProviders(zoneId).byId.values()) {
+                result.add(copy(identityProvider));
+            }
+            return result;
         }
     }
 
     @Override
     public IdentityProvider retrieveByOrigin(String origin, String zoneId) {
-        IdentityProvider identityProvider = jdbcTemplate.queryForObject(IDENTITY_PROVIDER_BY_ORIGIN_QUERY, mapper, origin, zoneId);
-        return identityProvider;
+        IdentityProvider identityProvider = getZoneProviders(zoneId).byOrigin.get(origin);
+        if (identityProvider == null) {
+            throw new EmptyResultDataAccessException(1);
+        }
+        return copy(identityProvider);
+    }
+
+    @Override
+    public Object getRevision(String zoneId) {
+        return getZoneProviders(zoneId).revisions;
+    }
+
+    @Override
+    public EmailDomainIndex getEmailDomainIndex(String zoneId) {
+        return getZoneProviders(zoneId).getEmailDomainIndex();
+    }
+
+    public void clearCache() {
+        cache.clear();
+    }
+
+    private ZoneProviders getZoneProviders(String zoneId) {
+        long now = timeService.getCurrentTimeMillis();
+        if (zoneId == null) {
+            return new ZoneProviders(Collections.emptyList(), now);
+        }
+        ZoneProviders current = cache.get(zoneId);
+        if (current != null && now - current.validated < validationIntervalMillis) {
+            return current;
+        }
+        if (current != null) {
+            Map<String, String> revisions = ReadReplicaRoutingDataSource.primary(() -> jdbcTemplate.query(IDENTITY_PROVIDER_REVISIONS_QUERY, new RevisionExtractor(), zoneId));
+            if (revisions.equals(current.revisions)) {
+                ZoneProviders validated = new ZoneProviders(current, now);
+                cache.replace(zoneId, current, validated);
+                return validated;
+            }
+        }
+        //the snapshot is served to later requests, so it is never read from a replica
+        ZoneProviders loaded = new ZoneProviders(ReadReplicaRoutingDataSource.primary(() -> jdbcTemplate.query(IDENTITY_PROVIDERS_QUERY, mapper, zoneId)), now);
+        if (current == null) {
+            cache.putIfAbsent(zoneId, loaded);
+        } else {
+            cache.replace(zoneId, current, loaded);
+        }
+        return loaded;
+    }
+
+    protected void invalidate(String zoneId) {
+        if (zoneId != null) {
+            cache.remove(zoneId);
+        }
+    }
+
+    @Override
+    public void invalidate(String entityType, String zoneId, String entityId) {
+        if (JdbcCacheInvalidationBus.IDENTITY_PROVIDER.equals(entityType) || JdbcCacheInvalidationBus.IDENTITY_ZONE.equals(entityType)) {
+            invalidate(zoneId);
+        }
+    }
+
+    private void publish(String zoneId, String id) {
+        publish(zoneId, id, null);
+    }
+
+    private void publish(String zoneId, String id, Integer version) {
+        if (invalidationBus != null) {
+            invalidationBus.publish(JdbcCacheInvalidationBus.IDENTITY_PROVIDER, zoneId, id, version);
+        }
     }
 
     @Override
@@ -115,8 +241,11 @@ public class JdbcIdentityProviderProvisioning implements IdentityProviderProvisi
                 ps.setBoolean(pos++, identityProvider.isActive());
                 }
             });
+            publish(zoneId, id, identityProvider.getVersion());
         } catch (DuplicateKeyException e) {
             throw new IdpAlreadyExistsException(e.getMostSpecificCause().getMessage());
+        } finally {
+            invalidate(zoneId);
         }
         return retrieve(id, zoneId);
     }
@@ -138,6 +267,8 @@ public class JdbcIdentityProviderProvisioning implements IdentityProviderProvisi
             ps.setString(pos++, zoneId);
             }
         });
+        invalidate(zoneId);
+        publish(zoneId, identityProvider.getId(), identityProvider.getVersion() + 1);
         return retrieve(identityProvider.getId(), zoneId);
     }
 
@@ -159,12 +290,24 @@ public class JdbcIdentityProviderProvisioning implements IdentityProviderProvisi
 
     @Override
     public int deleteByIdentityZone(String zoneId) {
-        return jdbcTemplate.update(DELETE_IDENTITY_PROVIDER_BY_ZONE_SQL, zoneId);
+        try {
+            int deleted = jdbcTemplate.update(DELETE_IDENTITY_PROVIDER_BY_ZONE_SQL, zoneId);
+            publish(zoneId, null);
+            return deleted;
+        } finally {
+            invalidate(zoneId);
+        }
     }
 
     @Override
     public int deleteByOrigin(String origin, String zoneId) {
-        return jdbcTemplate.update(DELETE_IDENTITY_PROVIDER_BY_ORIGIN_SQL, zoneId, origin);
+        try {
+            int deleted = jdbcTemplate.update(DELETE_IDENTITY_PROVIDER_BY_ORIGIN_SQL, zoneId, origin);
+            publish(zoneId, null);
+            return deleted;
+        } finally {
+            invalidate(zoneId);
+        }
     }
 
     @Override
@@ -185,6 +328,87 @@ public class JdbcIdentityProviderProvisioning implements IdentityProviderProvisi
         return logger;
     }
 
+    /**
+     * Cached providers are shared between requests, callers get their own copy
+     * since they routinely modify what they retrieve (redacting secrets, applying updates).
+     */
+    private static IdentityProvider copy(IdentityProvider cached) {
+        IdentityProvider identityProvider = new IdentityProvider();
+        identityProvider.setId(cached.getId());
+        identityProvider.setVersion(cached.getVersion());
+        identityProvider.setCreated(copy(cached.getCreated()));
+        identityProvider.setLastModified(copy(cached.getLastModified()));
+        identityProvider.setName(cached.getName());
+        identityProvider.setOriginKey(cached.getOriginKey());
+        if (cached.getConfig() != null) {
+            identityProvider.setConfig(JsonUtils.convertValue(cached.getConfig(), cached.getConfig().getClass()));
+        }
+        identityProvider.setType(cached.getType());
+        identityProvider.setIdentityZoneId(cached.getIdentityZoneId());
+        identityProvider.setActive(cached.isActive());
+        return identityProvider;
+    }
+
+    private static Date copy(Date date) {
+        return date == null ? null : new Date(date.getTime());
+    }
+
+    private static String revision(int version, Date lastModified) {
+        return version + ":" + (lastModified == null ? "" : lastModified.getTime());
+    }
+
+    private static final class ZoneProviders {
+        private final Map<String, IdentityProvider> byId;
+        private final Map<String, IdentityProvider> byOrigin;
+        private final Map<String, String> revisions;
+        private final long validated;
+        private volatile EmailDomainIndex emailDomainIndex;
+
+        private ZoneProviders(List<IdentityProvider> providers, long validated) {
+            Map<String, IdentityProvider> byId = new LinkedHashMap<>();
+            Map<String, IdentityProvider> byOrigin = new HashMap<>();
+            Map<String, String> revisions = new HashMap<>();
+            for (IdentityProvider provider : providers) {
+                byId.put(provider.getId(), provider);
+                byOrigin.put(provider.getOriginKey(), provider);
+                revisions.put(provider.getId(), revision(provider.getVersion(), provider.getLastModified()));
+            }
+            this.byId = Collections.unmodifiableMap(byId);
+            this.byOrigin = Collections.unmodifiableMap(byOrigin);
+            this.revisions = Collections.unmodifiableMap(revisions);
+            this.validated = validated;
+        }
+
+        private ZoneProviders(ZoneProviders other, long validated) {
+            this.byId = other.byId;
+            this.byOrigin = other.byOrigin;
+            this.revisions = other.revisions;
+            this.validated = validated;
+            this.emailDomainIndex = other.emailDomainIndex;
+        }
+
+        private EmailDomainIndex getEmailDomainIndex() {
+            EmailDomainIndex index = emailDomainIndex;
+            if (index == null) {
+                List<IdentityProvider> active = byId.values().stream().filter(IdentityProvider::isActive).collect(Collectors.toList());
+                index = new EmailDomainIndex(active, JdbcIdentityProviderProvisioning::copy);
+                emailDomainIndex = index;
+            }
+            return index;
+        }
+    }
+
+    private static final class RevisionExtractor implements ResultSetExtractor<Map<String, String>> {
+        @Override
+        public Map<String, String> extractData(ResultSet rs) throws SQLException {
+            Map<String, String> revisions = new HashMap<>();
+            while (rs.next()) {
+                revisions.put(rs.getString(1).trim(), revision(rs.getInt(2), rs.getTimestamp(3)));
+            }
+            return revisions;
+        }
+    }
+
     private static final class IdentityProviderRowMapper implements RowMapper<IdentityProvider> {
         @Override
         public IdentityProvider mapRow(ResultSet rs, int rowNum) throws SQLException {
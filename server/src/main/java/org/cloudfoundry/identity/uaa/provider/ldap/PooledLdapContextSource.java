@@ -0,0 +1,342 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2017] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.provider.ldap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.pool2.BasePooledObjectFactory;
+import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.impl.DefaultPooledObject;
+import org.apache.commons.pool2.impl.GenericObjectPool;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.core.env.Environment;
+import org.springframework.ldap.UncategorizedLdapException;
+import org.springframework.ldap.core.support.DirContextAuthenticationStrategy;
+import org.springframework.ldap.core.support.SimpleDirContextAuthenticationStrategy;
+import org.springframework.ldap.support.LdapUtils;
+import org.springframework.security.ldap.DefaultSpringSecurityContextSource;
+
+import javax.naming.CommunicationException;
+import javax.naming.Context;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.SearchControls;
+import javax.naming.ldap.LdapContext;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Context source that keeps two pools of open connections to the directory.
+ *
+ * The search pool holds connections bound as the configured manager DN and serves
+ * {@link #getReadOnlyContext()} and {@link #getReadWriteContext()}, which are used for user
+ * and group searches. The bind pool holds connections that are re-authenticated as the
+ * user on every {@link #getContext(String, String)} call, using an LDAP v3 re-bind over the
+ * existing connection instead of opening a new TCP/TLS connection per login.
+ *
+ * Contexts handed out are returned to their pool when closed, and bind connections lose the
+ * user's credentials on the way back. Connections of both pools are checked with a read of the
+ * root DSE before they are handed out and while they are idle, and connections that fail it or
+ * fail with a communication error are discarded. Only plain and ldaps:// connections are pooled, since StartTLS is negotiated
+ * per connection by the authentication strategy.
+ */
+public class PooledLdapContextSource extends DefaultSpringSecurityContextSource implements DisposableBean {
+
+    public static final String LDAP_POOL_ENABLED = "ldap.pool.enabled";
+    public static final String LDAP_POOL_MAX_ACTIVE = "ldap.pool.maxActive";
+    public static final String LDAP_POOL_MIN_IDLE = "ldap.pool.minIdle";
+    public static final String LDAP_POOL_MAX_IDLE_TIME = "ldap.pool.maxIdleTimeMillis";
+    public static final String LDAP_POOL_MAX_WAIT = "ldap.pool.maxWaitMillis";
+
+    private static final Log logger = LogFactory.getLog(PooledLdapContextSource.class);
+
+    private int maxActive = 8;
+    private int minIdle = 1;
+    private long maxIdleTimeMillis = 300000;
+    private long maxWaitMillis = 5000;
+
+    private GenericObjectPool<DirContext> searchPool;
+    private GenericObjectPool<DirContext> bindPool;
+
+    public PooledLdapContextSource(String providerUrl) {
+        super(providerUrl);
+    }
+
+    /**
+     * Returns a pooled context source when the environment enables pooling and the connection
+     * does not use StartTLS, and a plain one otherwise.
+     */
+    public static DefaultSpringSecurityContextSource newContextSource(String providerUrl,
+                                                                      Environment environment,
+                                                                      DirContextAuthenticationStrategy authenticationStrategy) {
+        boolean enabled = environment.getProperty(LDAP_POOL_ENABLED, Boolean.class, false);
+        if (!enabled || !(authenticationStrategy instanceof SimpleDirContextAuthenticationStrategy)) {
+            return new DefaultSpringSecurityContextSource(providerUrl);
+        }
+        PooledLdapContextSource contextSource = new PooledLdapContextSource(providerUrl);
+        contextSource.setMaxActive(environment.getProperty(LDAP_POOL_MAX_ACTIVE, Integer.class, contextSource.maxActive));
+        contextSource.setMinIdle(environment.getProperty(LDAP_POOL_MIN_IDLE, Integer.class, contextSource.minIdle));
+        contextSource.setMaxIdleTimeMillis(environment.getProperty(LDAP_POOL_MAX_IDLE_TIME, Long.class, contextSource.maxIdleTimeMillis));
+        contextSource.setMaxWaitMillis(environment.getProperty(LDAP_POOL_MAX_WAIT, Long.class, contextSource.maxWaitMillis));
+        return contextSource;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        super.afterPropertiesSet();
+        searchPool = new GenericObjectPool<>(new ContextFactory(), getPoolConfig());
+        bindPool = new GenericObjectPool<>(new BindContextFactory(), getPoolConfig());
+        try {
+            for (int i = 0; i < minIdle; i++) {
+                searchPool.addObject();
+                bindPool.addObject();
+            }
+        } catch (Exception e) {
+            logger.warn("Unable to open initial LDAP connections for " + getUrls()[0] + ": " + e.getMessage());
+        }
+    }
+
+    private GenericObjectPoolConfig getPoolConfig() {
+        GenericObjectPoolConfig config = new GenericObjectPoolConfig();
+        config.setMaxTotal(maxActive);
+        config.setMaxIdle(maxActive);
+        config.setMinIdle(0);
+        config.setMaxWaitMillis(maxWaitMillis);
+        config.setTestOnBorrow(true);
+        config.setTestWhileIdle(true);
+        config.setMinEvictableIdleTimeMillis(maxIdleTimeMillis);
+        config.setTimeBetweenEvictionRunsMillis(Math.max(1000, maxIdleTimeMillis / 2));
+        config.setJmxEnabled(false);
+        return config;
+    }
+
+    @Override
+    public DirContext getReadOnlyContext() {
+        return pooledContext(searchPool, borrow(searchPool));
+    }
+
+    @Override
+    public DirContext getReadWriteContext() {
+        return pooledContext(searchPool, borrow(searchPool));
+    }
+
+    @Override
+    public DirContext getContext(String principal, String credentials) {
+        DirContext ctx = borrow(bindPool);
+        try {
+            ctx.addToEnvironment(Context.SECURITY_AUTHENTICATION, "simple");
+            ctx.addToEnvironment(Context.SECURITY_PRINCIPAL, principal);
+            ctx.addToEnvironment(Context.SECURITY_CREDENTIALS, credentials);
+            ((LdapContext) ctx).reconnect(null);
+            return pooledContext(bindPool, ctx);
+        } catch (javax.naming.AuthenticationException e) {
+            //a failed re-bind leaves the connection open, the next bind re-authenticates it
+            bindPool.returnObject(ctx);
+            throw LdapUtils.convertLdapException(e);
+        } catch (NamingException e) {
+            invalidate(bindPool, ctx);
+            logger.debug("Pooled LDAP bind failed, retrying on a new connection: " + e.getMessage());
+            return super.getContext(principal, credentials);
+        }
+    }
+
+    /**
+     * @throws org.springframework.ldap.NamingException if a connection could not be opened, or an
+     * {@link UncategorizedLdapException} for the other failures of the pool, such as a timeout or a closed pool
+     */
+    private DirContext borrow(GenericObjectPool<DirContext> pool) {
+        try {
+            return pool.borrowObject();
+        } catch (org.springframework.ldap.NamingException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new UncategorizedLdapException("Unable to obtain a pooled LDAP connection", e);
+        }
+    }
+
+    private void invalidate(GenericObjectPool<DirContext> pool, DirContext ctx) {
+        try {
+            pool.invalidateObject(ctx);
+        } catch (Exception e) {
+            logger.debug("Unable to discard pooled LDAP connection", e);
+        }
+    }
+
+    private DirContext pooledContext(GenericObjectPool<DirContext> pool, DirContext target) {
+        return (DirContext) Proxy.newProxyInstance(getClass().getClassLoader(),
+                                                   new Class<?>[] {LdapContext.class},
+                                                   new PooledContextHandler(pool, target));
+    }
+
+    public int getActiveSearchConnections() {
+        return searchPool == null ? 0 : searchPool.getNumActive();
+    }
+
+    public int getIdleSearchConnections() {
+        return searchPool == null ? 0 : searchPool.getNumIdle();
+    }
+
+    public int getActiveBindConnections() {
+        return bindPool == null ? 0 : bindPool.getNumActive();
+    }
+
+    public int getIdleBindConnections() {
+        return bindPool == null ? 0 : bindPool.getNumIdle();
+    }
+
+    public int getWaitingRequests() {
+        return (searchPool == null ? 0 : searchPool.getNumWaiters()) + (bindPool == null ? 0 : bindPool.getNumWaiters());
+    }
+
+    public int getMaxActive() {
+        return maxActive;
+    }
+
+    public void setMaxActive(int maxActive) {
+        this.maxActive = maxActive;
+    }
+
+    public void setMinIdle(int minIdle) {
+        this.minIdle = minIdle;
+    }
+
+    public void setMaxIdleTimeMillis(long maxIdleTimeMillis) {
+        this.maxIdleTimeMillis = maxIdleTimeMillis;
+    }
+
+    public void setMaxWaitMillis(long maxWaitMillis) {
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    @Override
+    public void destroy() {
+        if (searchPool != null) {
+            searchPool.close();
+        }
+        if (bindPool != null) {
+            bindPool.close();
+        }
+    }
+
+    private class ContextFactory extends BasePooledObjectFactory<DirContext> {
+        @Override
+        public PooledObject<DirContext> wrap(DirContext ctx) {
+            return new DefaultPooledObject<>(ctx);
+        }
+
+        @Override
+        public DirContext create() {
+            return PooledLdapContextSource.super.getReadOnlyContext();
+        }
+
+        @Override
+        public void destroyObject(PooledObject<DirContext> p) throws Exception {
+            p.getObject().close();
+        }
+
+        /**
+         * Reads the root DSE, which the directory serves to any bound or anonymous connection
+         */
+        @Override
+        public boolean validateObject(PooledObject<DirContext> p) {
+            SearchControls controls = new SearchControls();
+            controls.setSearchScope(SearchControls.OBJECT_SCOPE);
+            controls.setCountLimit(1);
+            controls.setReturningAttributes(new String[0]);
+            try {
+                NamingEnumeration<?> results = p.getObject().search("", "objectclass=*", controls);
+                results.close();
+                return true;
+            } catch (NamingException e) {
+                return false;
+            }
+        }
+    }
+
+    private class BindContextFactory extends ContextFactory {
+        /**
+         * Removes the credentials of the last user from a connection that goes back to the pool.
+         * The next {@link #getContext(String, String)} sets its own before re-binding.
+         */
+        @Override
+        public void passivateObject(PooledObject<DirContext> p) throws Exception {
+            DirContext ctx = p.getObject();
+            ctx.removeFromEnvironment(Context.SECURITY_PRINCIPAL);
+            ctx.removeFromEnvironment(Context.SECURITY_CREDENTIALS);
+        }
+    }
+
+    private static final class PooledContextHandler implements InvocationHandler {
+        private final GenericObjectPool<DirContext> pool;
+        private final DirContext target;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        private volatile boolean broken = false;
+
+        private PooledContextHandler(GenericObjectPool<DirContext> pool, DirContext target) {
+            this.pool = pool;
+            this.target = target;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    release();
+                    return null;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled[" + target + "]";
+                default:
+                    break;
+            }
+            if (closed.get()) {
+                throw new NamingException("LDAP context has already been returned to the pool");
+            }
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof CommunicationException || cause instanceof ServiceUnavailableException) {
+                    broken = true;
+                }
+                throw cause;
+            }
+        }
+
+        private void release() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                if (broken) {
+                    pool.invalidateObject(target);
+                } else {
+                    pool.returnObject(target);
+                }
+            } catch (Exception e) {
+                logger.debug("Unable to return LDAP connection to the pool", e);
+            }
+        }
+    }
+}
@@ -15,6 +15,8 @@
 
 package org.cloudfoundry.identity.uaa.provider.ldap.extension;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.ldap.core.ContextSource;
@@ -27,10 +29,13 @@ import org.springframework.util.Assert;
 
 import javax.naming.directory.SearchControls;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -135,6 +140,10 @@ public class DefaultLdapAuthoritiesPopulator implements LdapAuthoritiesPopulator
      * Should we convert the role name to uppercase
      */
     private boolean convertToUpperCase = true;
+    /**
+     * Group memberships resolved per user DN and username, null if caching is disabled
+     */
+    private volatile Cache<List<String>, Set<GrantedAuthority>> groupMembershipCache;
 
     //~ Constructors ===================================================================================================
 
@@ -188,7 +197,7 @@ public class DefaultLdapAuthoritiesPopulator implements LdapAuthoritiesPopulator
             logger.debug("Getting authorities for user " + userDn);
         }
 
-        Set<GrantedAuthority> roles = getGroupMembershipRoles(userDn, username);
+        Set<GrantedAuthority> roles = getCachedGroupMembershipRoles(userDn, username);
 
         Set<GrantedAuthority> extraRoles = getAdditionalRoles(user, username);
 
@@ -206,6 +215,26 @@ public class DefaultLdapAuthoritiesPopulator implements LdapAuthoritiesPopulator
         return result;
     }
 
+    /**
+     * Returns the group membership roles of the user from the cache, searching the directory
+     * only if the user has not been resolved within the configured time to live.
+     */
+    protected Set<GrantedAuthority> getCachedGroupMembershipRoles(String userDn, String username) {
+        Cache<List<String>, Set<GrantedAuthority>> cache = groupMembershipCache;
+        if (cache == null) {
+            return getGroupMembershipRoles(userDn, username);
+        }
+        List<String> key = Arrays.asList(userDn, username);
+        Set<GrantedAuthority> roles = cache.getIfPresent(key);
+        if (roles == null) {
+            roles = Collections.unmodifiableSet(getGroupMembershipRoles(userDn, username));
+            cache.put(key, roles);
+        } else if (logger.isDebugEnabled()) {
+            logger.debug("Using cached roles for user '" + username + "', DN = '" + userDn + "'");
+        }
+        return new HashSet<>(roles);
+    }
+
     public Set<GrantedAuthority> getGroupMembershipRoles(String userDn, String username) {
         if (getGroupSearchBase() == null) {
             return new HashSet<GrantedAuthority>();
@@ -237,6 +266,32 @@ public class DefaultLdapAuthoritiesPopulator implements LdapAuthoritiesPopulator
         return authorities;
     }
 
+    /**
+     * Caches the resolved group memberships of each user for the given number of seconds.
+     * The populator belongs to the LDAP context of a single identity provider, which is
+     * rebuilt whenever the provider changes, so the cache never outlives the definition
+     * it was filled from.
+     *
+     * @param groupCacheTtlSeconds the time to live, 0 disables caching
+     */
+    public void setGroupCacheTtlSeconds(int groupCacheTtlSeconds) {
+        if (groupCacheTtlSeconds > 0) {
+            groupMembershipCache = CacheBuilder.newBuilder()
+                .expireAfterWrite(groupCacheTtlSeconds, TimeUnit.SECONDS)
+                .maximumSize(10000)
+                .build();
+        } else {
+            groupMembershipCache = null;
+        }
+    }
+
+    public void clearGroupCache() {
+        Cache<List<String>, Set<GrantedAuthority>> cache = groupMembershipCache;
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
     protected ContextSource getContextSource() {
         return getLdapTemplate().getContextSource();
     }
@@ -22,11 +22,16 @@ import org.springframework.ldap.core.DirContextOperations;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.util.StringUtils;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import static java.util.Collections.EMPTY_LIST;
@@ -64,11 +69,24 @@ import static java.util.Collections.EMPTY_LIST;
 
 public class NestedLdapAuthoritiesPopulator extends DefaultLdapAuthoritiesPopulator {
     public static final String MEMBER_OF = "memberOf";
+    /**
+     * LDAP_MATCHING_RULE_IN_CHAIN, matches the members of a group and all of its nested groups (Active Directory)
+     */
+    public static final String MATCHING_RULE_IN_CHAIN = "1.2.840.113556.1.4.1941";
+    public static final String LDAP_GROUPS_CACHE_TTL = "ldap.groups.cacheTtlSeconds";
+    public static final String LDAP_GROUPS_MATCHING_RULE_IN_CHAIN = "ldap.groups.matchingRuleInChain";
+    private static final Pattern SIMPLE_MEMBER_FILTER = Pattern.compile("\\(?\\s*([\\w-]+)\\s*=\\s*\\{0\\}\\s*\\)?");
+    private static final Pattern FILTER_PARAMETER = Pattern.compile("\\{([01])\\}");
     private static final Log logger = LogFactory.getLog(NestedLdapAuthoritiesPopulator.class);
 
     private Set<String> attributeNames;
 
     private int maxSearchDepth = 10;
+
+    private int maxFilterTerms = 100;
+
+    private boolean matchingRuleInChain = false;
+
     /**
      * Constructor for group search scenarios. <tt>userRoleAttributes</tt> may still be
      * set as a property.
@@ -102,58 +120,150 @@ public class NestedLdapAuthoritiesPopulator extends DefaultLdapAuthoritiesPopula
 
         Set<GrantedAuthority> authorities = new HashSet<GrantedAuthority>();
 
-        performNestedSearch(userDn, username, authorities, getMaxSearchDepth());
+        String inChainFilter = getMatchingRuleInChainFilter();
+        if (inChainFilter != null) {
+            performInChainSearch(userDn, username, inChainFilter, authorities);
+        } else {
+            performNestedSearch(userDn, username, authorities, getMaxSearchDepth());
+        }
 
         return authorities;
     }
 
+    /**
+     * Returns the filter that lets the directory resolve nested groups in a single search, or null
+     * if groups have to be resolved level by level. A single search is used when the configured group search
+     * filter already uses {@link #MATCHING_RULE_IN_CHAIN}, or when the in chain rule is enabled and the
+     * filter is a plain <tt>attribute={0}</tt> match that can be rewritten to use it.
+     */
+    protected String getMatchingRuleInChainFilter() {
+        String filter = getGroupSearchFilter();
+        if (filter.contains(MATCHING_RULE_IN_CHAIN)) {
+            return filter;
+        }
+        if (isMatchingRuleInChain()) {
+            Matcher matcher = SIMPLE_MEMBER_FILTER.matcher(filter);
+            if (matcher.matches()) {
+                return "(" + matcher.group(1) + ":" + MATCHING_RULE_IN_CHAIN + ":={0})";
+            }
+        }
+        return null;
+    }
+
+    protected void performInChainSearch(String userDn, String username, String filter, Set<GrantedAuthority> authorities) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Searching for nested roles for user '" + username + "', DN = " + "'" + userDn + "', with filter "
+                + filter + " in search base '" + getGroupSearchBase() + "'");
+        }
+        Set<Map<String,String[]>> userRoles = search(filter, new String[]{userDn, username});
+        for (Map<String,String[]> record : userRoles) {
+            addRoles(record, authorities);
+        }
+    }
+
+    /**
+     * Resolves nested groups breadth first. Each level is a single search that matches the members
+     * of all groups found on the previous level, instead of one search per group.
+     */
     protected void performNestedSearch(String userDn, String username, Set<GrantedAuthority> authorities, int depth) {
-        if (depth==0) {
-            //back out of recursion
+        if (logger.isDebugEnabled()) {
+            logger.debug("Searching for roles for user '" + username + "', DN = " + "'" + userDn + "', with filter "
+                + getGroupSearchFilter() + " in search base '" + getGroupSearchBase() + "'");
+        }
+
+        Set<String> visited = new HashSet<>();
+        List<String[]> level = Collections.singletonList(new String[]{userDn, username});
+        for (int remaining = depth; remaining > 0 && !level.isEmpty(); remaining--) {
+            List<String[]> next = new ArrayList<>();
+            for (int from = 0; from < level.size(); from += maxFilterTerms) {
+                List<String[]> batch = level.subList(from, Math.min(level.size(), from + maxFilterTerms));
+                for (Map<String,String[]> record : search(getBatchFilter(batch.size()), flatten(batch))) {
+                    String dn = record.get(SpringSecurityLdapTemplate.DN_KEY)[0];
+                    String roleName = addRoles(record, authorities);
+                    if (visited.add(dn.toLowerCase())) {
+                        next.add(new String[]{dn, roleName});
+                    }
+                }
+            }
+            level = next;
+        }
+
+        if (!level.isEmpty()) {
             logger.debug("Search aborted, max depth reached,"+
                 " for roles for user '" + username + "', DN = " + "'" + userDn + "', with filter "
                 + getGroupSearchFilter() + " in search base '" + getGroupSearchBase() + "'");
-            return;
         }
+    }
 
-        if (logger.isDebugEnabled()) {
-            logger.debug("Searching for roles for user '" + username + "', DN = " + "'" + userDn + "', with filter "
-                + getGroupSearchFilter() + " in search base '" + getGroupSearchBase() + "'");
+    /**
+     * Combines the group search filter for the given number of groups into a single OR filter.
+     * The parameters of the n-th group are <tt>{2n}</tt> for its DN and <tt>{2n+1}</tt> for its name.
+     */
+    protected String getBatchFilter(int size) {
+        String filter = getGroupSearchFilter();
+        if (size == 1) {
+            return filter;
+        }
+        if (!filter.trim().startsWith("(")) {
+            filter = "(" + filter + ")";
+        }
+        StringBuilder result = new StringBuilder("(|");
+        for (int i = 0; i < size; i++) {
+            Matcher matcher = FILTER_PARAMETER.matcher(filter);
+            StringBuffer term = new StringBuffer();
+            while (matcher.find()) {
+                int index = 2 * i + Integer.parseInt(matcher.group(1));
+                matcher.appendReplacement(term, Matcher.quoteReplacement("{" + index + "}"));
+            }
+            matcher.appendTail(term);
+            result.append(term);
         }
+        return result.append(")").toString();
+    }
+
+    private static String[] flatten(List<String[]> batch) {
+        String[] params = new String[batch.size() * 2];
+        for (int i = 0; i < batch.size(); i++) {
+            params[2 * i] = batch.get(i)[0];
+            params[2 * i + 1] = batch.get(i)[1];
+        }
+        return params;
+    }
 
+    private Set<Map<String,String[]>> search(String filter, String[] params) {
         if (StringUtils.hasText(getGroupRoleAttribute()) && !getAttributeNames().contains(getGroupRoleAttribute())) {
             getAttributeNames().add(getGroupRoleAttribute());
         }
 
         Set<Map<String,String[]>> userRoles = getLdapTemplate().searchForMultipleAttributeValues(
             getGroupSearchBase(),
-            getGroupSearchFilter(),
-            new String[]{userDn, username},
+            filter,
+            params,
             getAttributeNames().toArray(new String[getAttributeNames().size()]));
 
         if (logger.isDebugEnabled()) {
             logRoles(userRoles);
         }
+        return userRoles;
+    }
 
-        for (Map<String,String[]> record : userRoles) {
-            boolean circular = false;
-            String dn = record.get(SpringSecurityLdapTemplate.DN_KEY)[0];
-            String[] roleValues = record.get(getGroupRoleAttribute());
-            Set<String> roles = new HashSet<String>();
-            roles.addAll(Arrays.asList(roleValues!=null?roleValues:new String[0]));
-            for (String role : roles) {
-                if (isConvertToUpperCase()) {
-                    role = role.toUpperCase();
-                }
-                role = getRolePrefix() + role;
-                circular = circular | (!authorities.add(new LdapAuthority(role,dn,record)));
-            }
-            String roleName = roles.size()>0 ? roles.iterator().next() : dn;
-            if (!circular) {
-                performNestedSearch(dn, roleName, authorities, (depth - 1));
+    /**
+     * Adds the roles of a group record to the authorities
+     * @return the name used for the group in nested searches
+     */
+    private String addRoles(Map<String,String[]> record, Set<GrantedAuthority> authorities) {
+        String dn = record.get(SpringSecurityLdapTemplate.DN_KEY)[0];
+        String[] roleValues = record.get(getGroupRoleAttribute());
+        Set<String> roles = new HashSet<String>();
+        roles.addAll(Arrays.asList(roleValues!=null?roleValues:new String[0]));
+        for (String role : roles) {
+            if (isConvertToUpperCase()) {
+                role = role.toUpperCase();
             }
-
+            role = getRolePrefix() + role;
+            authorities.add(new LdapAuthority(role,dn,record));
         }
+        return roles.size()>0 ? roles.iterator().next() : dn;
     }
 
     protected void logRoles(Set<Map<String, String[]>> userRoles) {
@@ -196,6 +306,29 @@ public class NestedLdapAuthoritiesPopulator extends DefaultLdapAuthoritiesPopula
         this.maxSearchDepth = maxSearchDepth;
     }
 
+    public int getMaxFilterTerms() {
+        return maxFilterTerms;
+    }
+
+    /**
+     * The maximum number of groups combined into the filter of a single nested group search
+     */
+    public void setMaxFilterTerms(int maxFilterTerms) {
+        this.maxFilterTerms = Math.max(1, maxFilterTerms);
+    }
+
+    public boolean isMatchingRuleInChain() {
+        return matchingRuleInChain;
+    }
+
+    /**
+     * Resolve nested groups with a single {@link #MATCHING_RULE_IN_CHAIN} search.
+     * Only enable this for directories that support the rule, such as Active Directory.
+     */
+    public void setMatchingRuleInChain(boolean matchingRuleInChain) {
+        this.matchingRuleInChain = matchingRuleInChain;
+    }
+
 
 
 }
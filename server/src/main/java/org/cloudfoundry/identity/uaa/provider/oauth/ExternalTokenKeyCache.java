@@ -0,0 +1,295 @@
+/*
+ * ****************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2017] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ * ****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.provider.oauth;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.oauth.jwk.JsonWebKey;
+import org.cloudfoundry.identity.uaa.oauth.jwk.JsonWebKeyHelper;
+import org.cloudfoundry.identity.uaa.oauth.jwk.JsonWebKeySet;
+import org.cloudfoundry.identity.uaa.oauth.jwt.ChainedSignatureVerifier;
+import org.cloudfoundry.identity.uaa.oauth.jwt.CommonSignatureVerifier;
+import org.cloudfoundry.identity.uaa.util.TimeService;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.jwt.crypto.sign.SignatureVerifier;
+import org.springframework.util.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Caches the verification keys published by external OAuth/OIDC providers.
+ *
+ * Key sets are cached per (zone, origin, token key URL) for as long as the provider's
+ * {@code Cache-Control: max-age} allows, within configured bounds, and are refreshed
+ * in the background before they expire. A token signed with an unknown {@code kid}
+ * triggers a single, rate limited refetch. When the provider cannot be reached the
+ * last key set that was fetched successfully keeps being used. At most {@code maxEntries}
+ * key sets are kept, and a key set that was not used for two days is dropped, so that the
+ * key sets of deleted providers and zones do not pile up.
+ */
+public class ExternalTokenKeyCache implements DisposableBean {
+
+    private static final Log logger = LogFactory.getLog(ExternalTokenKeyCache.class);
+
+    private static final Pattern MAX_AGE = Pattern.compile("max-age\\s*=\\s*\"?(\\d+)\"?");
+
+    private static final long IDLE_EXPIRATION_MILLIS = 2 * 24 * 60 * 60 * 1000;
+
+    private final TimeService timeService;
+    private volatile Cache<String, KeySetHolder> keySets = newCache(1000);
+
+    private long defaultExpirationMillis = 10 * 60 * 1000;
+    private long minExpirationMillis = 60 * 1000;
+    private long maxExpirationMillis = 24 * 60 * 60 * 1000;
+    private long minRefreshIntervalMillis = 30 * 1000;
+    private double refreshAheadFactor = 0.8;
+
+    private volatile ExecutorService refreshExecutor;
+
+    public ExternalTokenKeyCache(TimeService timeService) {
+        this.timeService = timeService;
+    }
+
+    /**
+     * Returns a verifier for a token from the given key set.
+     *
+     * @param cacheKey identifies the provider's key set, e.g. zone, origin and token key URL
+     * @param kid the key id from the token header, may be null
+     * @param fetcher retrieves the key set from the provider; it must throw when the
+     *                keys cannot be fetched
+     * @return the verifier for {@code kid} if it is known, otherwise a verifier that
+     * tries all keys of the set
+     */
+    public SignatureVerifier getVerifier(String cacheKey, String kid, Supplier<ResponseEntity<String>> fetcher) {
+        KeySetHolder holder = keySets.asMap().computeIfAbsent(cacheKey, k -> new KeySetHolder());
+        holder.fetcher = fetcher;
+
+        KeySet keySet = holder.keySet;
+        long now = timeService.getCurrentTimeMillis();
+        if (keySet == null || now >= keySet.expiresAt) {
+            keySet = refresh(cacheKey, holder, keySet);
+        } else if (now >= keySet.refreshAt) {
+            refreshInBackground(cacheKey, holder);
+        }
+
+        if (StringUtils.hasText(kid) && !keySet.verifiersByKid.containsKey(kid)) {
+            logger.debug("Unknown key id:" + kid + " for " + cacheKey + ", refreshing token keys");
+            keySet = refresh(cacheKey, holder, keySet);
+        }
+        return keySet.getVerifier(kid);
+    }
+
+    public void clear() {
+        keySets.invalidateAll();
+    }
+
+    public long size() {
+        return keySets.size();
+    }
+
+    /**
+     * @param maxEntries the number of key sets kept, the least recently used are dropped first
+     */
+    public void setMaxEntries(int maxEntries) {
+        keySets = newCache(maxEntries);
+    }
+
+    private static Cache<String, KeySetHolder> newCache(int maxEntries) {
+        return CacheBuilder.newBuilder()
+            .expireAfterAccess(IDLE_EXPIRATION_MILLIS, TimeUnit.MILLISECONDS)
+            .maximumSize(maxEntries)
+            .build();
+    }
+
+    /**
+     * Fetches the key set unless another caller has just done so. Concurrent callers
+     * for the same key set wait for a single fetch. A failed fetch falls back to the
+     * last known key set, if any.
+     */
+    private KeySet refresh(String cacheKey, KeySetHolder holder, KeySet seen) {
+        synchronized (holder) {
+            KeySet current = holder.keySet;
+            if (current != null && current != seen) {
+                return current;
+            }
+            long now = timeService.getCurrentTimeMillis();
+            if (current != null && now - holder.lastFetchAttempt < minRefreshIntervalMillis) {
+                return current;
+            }
+            holder.lastFetchAttempt = now;
+            try {
+                KeySet fetched = fetch(holder.fetcher);
+                holder.keySet = fetched;
+                return fetched;
+            } catch (RuntimeException x) {
+                if (current == null) {
+                    throw x;
+                }
+                logger.warn("Unable to refresh token keys for " + cacheKey + ", using last known keys.", x);
+                return current;
+            }
+        }
+    }
+
+    private void refreshInBackground(String cacheKey, KeySetHolder holder) {
+        if (!holder.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        final KeySet seen = holder.keySet;
+        try {
+            getRefreshExecutor().execute(() -> {
+                try {
+                    refresh(cacheKey, holder, seen);
+                } finally {
+                    holder.refreshing.set(false);
+                }
+            });
+        } catch (RuntimeException x) {
+            holder.refreshing.set(false);
+            logger.debug("Unable to schedule token key refresh for " + cacheKey, x);
+        }
+    }
+
+    private KeySet fetch(Supplier<ResponseEntity<String>> fetcher) {
+        ResponseEntity<String> response = fetcher.get();
+        JsonWebKeySet<JsonWebKey> keys = JsonWebKeyHelper.deserialize(response.getBody());
+        long now = timeService.getCurrentTimeMillis();
+        long expiration = getExpirationMillis(response.getHeaders().getCacheControl());
+        return new KeySet(keys, now + (long) (expiration * refreshAheadFactor), now + expiration);
+    }
+
+    protected long getExpirationMillis(String cacheControl) {
+        long expiration = defaultExpirationMillis;
+        if (StringUtils.hasText(cacheControl)) {
+            String directives = cacheControl.toLowerCase();
+            Matcher matcher = MAX_AGE.matcher(directives);
+            if (directives.contains("no-cache") || directives.contains("no-store")) {
+                expiration = minExpirationMillis;
+            } else if (matcher.find()) {
+                try {
+                    expiration = Long.parseLong(matcher.group(1)) * 1000;
+                } catch (NumberFormatException x) {
+                    expiration = maxExpirationMillis;
+                }
+            }
+        }
+        return Math.max(minExpirationMillis, Math.min(maxExpirationMillis, expiration));
+    }
+
+    private ExecutorService getRefreshExecutor() {
+        if (refreshExecutor == null) {
+            synchronized (this) {
+                if (refreshExecutor == null) {
+                    refreshExecutor = Executors.newSingleThreadExecutor(r -> {
+                        Thread thread = new Thread(r, "external-token-key-refresh");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+        }
+        return refreshExecutor;
+    }
+
+    public void setRefreshExecutor(ExecutorService refreshExecutor) {
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    @Override
+    public void destroy() {
+        if (refreshExecutor != null) {
+            refreshExecutor.shutdownNow();
+        }
+    }
+
+    public void setDefaultExpirationMillis(long defaultExpirationMillis) {
+        this.defaultExpirationMillis = defaultExpirationMillis;
+    }
+
+    public void setMinExpirationMillis(long minExpirationMillis) {
+        this.minExpirationMillis = minExpirationMillis;
+    }
+
+    public void setMaxExpirationMillis(long maxExpirationMillis) {
+        this.maxExpirationMillis = maxExpirationMillis;
+    }
+
+    public void setMinRefreshIntervalMillis(long minRefreshIntervalMillis) {
+        this.minRefreshIntervalMillis = minRefreshIntervalMillis;
+    }
+
+    public void setRefreshAheadFactor(double refreshAheadFactor) {
+        this.refreshAheadFactor = refreshAheadFactor;
+    }
+
+    private static class KeySetHolder {
+        private volatile KeySet keySet;
+        private volatile Supplier<ResponseEntity<String>> fetcher;
+        private volatile long lastFetchAttempt;
+        private final AtomicBoolean refreshing = new AtomicBoolean(false);
+    }
+
+    /**
+     * An immutable key set with its verifiers built once, indexed by key id.
+     */
+    private static class KeySet {
+        private final Map<String, SignatureVerifier> verifiersByKid;
+        private final SignatureVerifier allKeysVerifier;
+        private final long refreshAt;
+        private final long expiresAt;
+
+        KeySet(JsonWebKeySet<JsonWebKey> keys, long refreshAt, long expiresAt) {
+            Map<String, SignatureVerifier> byKid = new HashMap<>();
+            List<SignatureVerifier> verifiers = new ArrayList<>();
+            for (JsonWebKey key : keys.getKeys()) {
+                SignatureVerifier verifier = new CommonSignatureVerifier(key.getValue());
+                verifiers.add(verifier);
+                if (key.getKid() != null) {
+                    byKid.put(key.getKid(), verifier);
+                }
+            }
+            this.verifiersByKid = Collections.unmodifiableMap(byKid);
+            this.allKeysVerifier = verifiers.isEmpty() ? null : new ChainedSignatureVerifier(verifiers);
+            this.refreshAt = refreshAt;
+            this.expiresAt = expiresAt;
+        }
+
+        SignatureVerifier getVerifier(String kid) {
+            SignatureVerifier verifier = kid == null ? null : verifiersByKid.get(kid);
+            if (verifier != null) {
+                return verifier;
+            }
+            if (allKeysVerifier == null) {
+                throw new IllegalArgumentException("keys cannot be null or empty");
+            }
+            return allKeysVerifier;
+        }
+    }
+}
@@ -47,6 +47,7 @@ import org.springframework.security.core.Authentication;
 import org.springframework.security.core.AuthenticationException;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.jwt.crypto.sign.SignatureVerifier;
 import org.springframework.security.jwt.crypto.sign.Signer;
 import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
 import org.springframework.util.LinkedMultiValueMap;
@@ -86,6 +87,8 @@ public class XOAuthAuthenticationManager extends ExternalLoginAuthenticationMana
 
     private UaaTokenServices tokenServices;
 
+    private ExternalTokenKeyCache tokenKeyCache = new ExternalTokenKeyCache(new TimeServiceImpl());
+
     //origin is per thread during execution
     private final ThreadLocal<String> origin = ThreadLocal.withInitial(() -> "unknown");
 
@@ -471,9 +474,9 @@ public class XOAuthAuthenticationManager extends ExternalLoginAuthenticationMana
             validation = validate(idToken)
                 .checkSignature(new ChainedSignatureVerifier(tokenKey));
         } else {
-            tokenKey = getTokenKeyFromOAuth(config);
-            validation = validate(idToken)
-                .checkSignature(new ChainedSignatureVerifier(tokenKey))
+            validation = validate(idToken);
+            validation = validation
+                .checkSignature(getTokenKeyVerifier(config, getKeyId(validation)))
                 .checkIssuer((isEmpty(config.getIssuer()) ? config.getTokenUrl().toString() : config.getIssuer()))
                 .checkAudience(config.getRelyingPartyId());
         }
@@ -488,20 +491,30 @@ public class XOAuthAuthenticationManager extends ExternalLoginAuthenticationMana
         return JsonWebKeyHelper.fromResultMaps(resultMaps);
     }
 
-    private JsonWebKeySet<JsonWebKey> getTokenKeyFromOAuth(AbstractXOAuthIdentityProviderDefinition config) {
+    private String getKeyId(TokenValidation validation) {
+        Jwt jwt = validation.getJwt();
+        return jwt == null || jwt.getHeader() == null ? null : jwt.getHeader().getKid();
+    }
+
+    private SignatureVerifier getTokenKeyVerifier(AbstractXOAuthIdentityProviderDefinition config, String kid) {
         String tokenKey = config.getTokenKey();
         if (StringUtils.hasText(tokenKey)) {
             Map<String, Object> p = new HashMap<>();
             p.put("value", tokenKey);
             p.put("kty", KeyInfo.isAssymetricKey(tokenKey) ? RSA.name() : MAC.name());
             logger.debug("Key configured, returning.");
-            return new JsonWebKeySet<>(Arrays.asList(new JsonWebKey(p)));
+            return new ChainedSignatureVerifier(new JsonWebKeySet<>(Arrays.asList(new JsonWebKey(p))));
         }
         URL tokenKeyUrl = config.getTokenKeyUrl();
         if (tokenKeyUrl == null || !StringUtils.hasText(tokenKeyUrl.toString())) {
-            return new JsonWebKeySet<>(Collections.emptyList());
+            return new ChainedSignatureVerifier(new JsonWebKeySet<>(Collections.emptyList()));
         }
 
+        String cacheKey = IdentityZoneHolder.get().getId() + "|" + getOrigin() + "|" + tokenKeyUrl;
+        return tokenKeyCache.getVerifier(cacheKey, kid, () -> getTokenKeyFromOAuth(config, tokenKeyUrl));
+    }
+
+    private ResponseEntity<String> getTokenKeyFromOAuth(AbstractXOAuthIdentityProviderDefinition config, URL tokenKeyUrl) {
         MultiValueMap<String, String> headers = new LinkedMultiValueMap<>();
         headers.add("Authorization", getClientAuthHeader(config));
         headers.add("Accept", "application/json");
@@ -510,7 +523,7 @@ public class XOAuthAuthenticationManager extends ExternalLoginAuthenticationMana
         ResponseEntity<String> responseEntity = getRestTemplate(config).exchange(tokenKeyUrl.toString(), HttpMethod.GET, tokenKeyRequest, String.class);
         logger.debug("Token key response:"+responseEntity.getStatusCode());
         if (responseEntity.getStatusCode() == HttpStatus.OK) {
-            return JsonWebKeyHelper.deserialize(responseEntity.getBody());
+            return responseEntity;
         } else {
             throw new InvalidTokenException("Unable to fetch verification keys, status:" + responseEntity.getStatusCode());
         }
@@ -581,6 +594,14 @@ public class XOAuthAuthenticationManager extends ExternalLoginAuthenticationMana
         this.tokenServices = tokenServices;
     }
 
+    public ExternalTokenKeyCache getTokenKeyCache() {
+        return tokenKeyCache;
+    }
+
+    public void setTokenKeyCache(ExternalTokenKeyCache tokenKeyCache) {
+        this.tokenKeyCache = tokenKeyCache;
+    }
+
     protected static class AuthenticationData {
 
         private Map<String, Object> claims;
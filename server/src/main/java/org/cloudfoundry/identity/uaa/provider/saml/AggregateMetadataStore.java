@@ -0,0 +1,531 @@
+/*
+ * ****************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2017] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ * ****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.provider.saml;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.util.TimeService;
+import org.joda.time.DateTime;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.xml.parse.ParserPool;
+import org.opensaml.xml.parse.XMLParserException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.util.StreamUtils;
+import org.springframework.util.StringUtils;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.xml.XMLConstants;
+import javax.xml.crypto.MarshalException;
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.crypto.dsig.XMLSignatureException;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMValidateContext;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.PublicKey;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Holds federation aggregate metadata (for example InCommon or eduGAIN) that contains thousands
+ * of entities, shared by all zones that reference the same metadata URL.
+ *
+ * An aggregate is downloaded straight to disk, its signature is verified once, and every
+ * EntityDescriptor is written as a standalone document into a memory mapped file indexed by entityID.
+ * Identity providers then only unmarshal the single entity they use. Refreshes run in the background
+ * and use conditional requests, and the last good aggregate keeps being served while a refresh runs and
+ * if a refresh fails. The entities of an aggregate must fit in a single mapping of at most 2GB.
+ */
+public class AggregateMetadataStore implements DisposableBean {
+
+    private static Log logger = LogFactory.getLog(AggregateMetadataStore.class);
+
+    private final TimeService timeService;
+    private final ConcurrentMap<String, AggregateHolder> aggregates = new ConcurrentHashMap<>();
+
+    private ParserPool parserPool;
+    private File directory = new File(System.getProperty("java.io.tmpdir"), "uaa-saml-aggregates");
+    private long refreshIntervalMillis = 60 * 60 * 1000;
+    private long retryIntervalMillis = 60 * 1000;
+    private List<PublicKey> signingKeys = Collections.emptyList();
+    private volatile ExecutorService refreshExecutor;
+
+    public AggregateMetadataStore(TimeService timeService) {
+        this.timeService = timeService;
+    }
+
+    /**
+     * Returns the metadata of a single entity of an aggregate as a standalone XML document.
+     *
+     * @param url the aggregate metadata URL
+     * @param entityID the entity to return
+     * @param template used to download the aggregate
+     * @param requireTrusted whether the aggregate must be signed by one of the configured signing certificates
+     * @throws MetadataProviderException if the aggregate cannot be loaded or does not contain the entity
+     */
+    public byte[] getEntityMetadata(String url, String entityID, RestTemplate template, boolean requireTrusted) throws MetadataProviderException {
+        AggregateHolder holder = aggregates.computeIfAbsent(url, k -> new AggregateHolder());
+        Aggregate aggregate = holder.aggregate;
+        if (aggregate == null) {
+            aggregate = initialLoad(url, holder, template);
+        } else if (timeService.getCurrentTimeMillis() >= aggregate.refreshAt && holder.refreshing.compareAndSet(false, true)) {
+            // one thread refreshes, callers keep reading the current aggregate meanwhile
+            refreshInBackground(url, holder, template);
+            aggregate = holder.aggregate;
+        }
+        if (requireTrusted && !aggregate.trusted) {
+            throw new MetadataProviderException("Aggregate metadata " + url + " is not signed by a trusted certificate");
+        }
+        byte[] entity = aggregate.read(entityID);
+        if (entity == null && aggregate.isDeleted()) {
+            // replaced by a refresh since it was read
+            aggregate = holder.aggregate;
+            entity = aggregate.read(entityID);
+        }
+        if (entity == null) {
+            throw new MetadataProviderException("Entity " + entityID + " not found in aggregate metadata " + url);
+        }
+        return entity;
+    }
+
+    public int size() {
+        return aggregates.size();
+    }
+
+    /**
+     * Loads an aggregate that is not available yet. This is the only load that callers wait for.
+     */
+    private Aggregate initialLoad(String url, AggregateHolder holder, RestTemplate template) throws MetadataProviderException {
+        synchronized (holder) {
+            Aggregate current = holder.aggregate;
+            if (current != null) {
+                return current;
+            }
+            try {
+                Aggregate loaded = load(url, null, template);
+                holder.aggregate = loaded;
+                return loaded;
+            } catch (RestClientException x) {
+                throw new MetadataProviderException("Unable to fetch aggregate metadata " + url, x);
+            }
+        }
+    }
+
+    private void refreshInBackground(String url, AggregateHolder holder, RestTemplate template) {
+        try {
+            getRefreshExecutor().execute(() -> {
+                try {
+                    refresh(url, holder, template);
+                } finally {
+                    holder.refreshing.set(false);
+                }
+            });
+        } catch (RuntimeException x) {
+            logger.debug("Unable to schedule refresh of aggregate metadata " + url, x);
+            holder.refreshing.set(false);
+        }
+    }
+
+    private ExecutorService getRefreshExecutor() {
+        if (refreshExecutor == null) {
+            synchronized (this) {
+                if (refreshExecutor == null) {
+                    refreshExecutor = Executors.newSingleThreadExecutor(r -> {
+                        Thread thread = new Thread(r, "saml-aggregate-refresh");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+        }
+        return refreshExecutor;
+    }
+
+    /**
+     * Replaces the current aggregate with a fresh copy. Only called for the refresh that set {@link AggregateHolder#refreshing}.
+     */
+    private void refresh(String url, AggregateHolder holder, RestTemplate template) {
+        Aggregate current = holder.aggregate;
+        if (timeService.getCurrentTimeMillis() < current.refreshAt) {
+            // refreshed since it was read
+            return;
+        }
+        try {
+            Aggregate loaded = load(url, current, template);
+            holder.aggregate = loaded;
+            if (current != loaded) {
+                current.delete();
+            }
+        } catch (MetadataProviderException | RuntimeException x) {
+            logger.warn("Unable to refresh aggregate metadata " + url + ", using the last known aggregate.", x);
+            current.refreshAt = timeService.getCurrentTimeMillis() + retryIntervalMillis;
+        }
+    }
+
+    private Aggregate load(String url, Aggregate current, RestTemplate template) throws MetadataProviderException {
+        File download = null;
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new MetadataProviderException("Unable to create aggregate metadata directory " + directory);
+            }
+            download = File.createTempFile("aggregate", ".xml", directory);
+            Download result = download(url, current, template, download);
+            long now = timeService.getCurrentTimeMillis();
+            if (result == null) {
+                logger.debug("Aggregate metadata " + url + " not modified");
+                current.refreshAt = now + refreshIntervalMillis;
+                return current;
+            }
+            logger.info("Indexing aggregate metadata " + url + " (" + download.length() + " bytes)");
+            Aggregate aggregate = index(url, download, result);
+            aggregate.refreshAt = now + refreshIntervalMillis;
+            logger.info("Indexed " + aggregate.size() + " entities of aggregate metadata " + url);
+            return aggregate;
+        } catch (IOException e) {
+            throw new MetadataProviderException("Unable to store aggregate metadata " + url, e);
+        } finally {
+            if (download != null && !download.delete()) {
+                download.deleteOnExit();
+            }
+        }
+    }
+
+    private Download download(String url, Aggregate current, RestTemplate template, File file) throws MetadataProviderException {
+        URI uri;
+        try {
+            uri = new URI(url);
+        } catch (URISyntaxException e) {
+            throw new MetadataProviderException("Invalid aggregate metadata URL " + url, e);
+        }
+        return template.execute(
+            uri,
+            HttpMethod.GET,
+            request -> {
+                if (current != null && current.eTag != null) {
+                    request.getHeaders().setIfNoneMatch(current.eTag);
+                }
+                if (current != null && current.lastModified != null) {
+                    request.getHeaders().set(HttpHeaders.IF_MODIFIED_SINCE, current.lastModified);
+                }
+            },
+            response -> {
+                if (current != null && response.getStatusCode() == HttpStatus.NOT_MODIFIED) {
+                    return null;
+                }
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+                    StreamUtils.copy(response.getBody(), out);
+                }
+                return new Download(response.getHeaders().getETag(), response.getHeaders().getFirst(HttpHeaders.LAST_MODIFIED));
+            }
+        );
+    }
+
+    /**
+     * Parses the aggregate once, verifies its signature and writes each entity to the store file.
+     * The parsed document is only referenced for the duration of this call.
+     */
+    private Aggregate index(String url, File download, Download result) throws MetadataProviderException, IOException {
+        Document document;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(download))) {
+            document = parserPool.parse(in);
+        } catch (XMLParserException e) {
+            throw new MetadataProviderException("Unable to parse aggregate metadata " + url, e);
+        }
+        Element root = document.getDocumentElement();
+        if (root.hasAttributeNS(null, "validUntil") && new DateTime(root.getAttributeNS(null, "validUntil")).isBeforeNow()) {
+            throw new MetadataProviderException("Aggregate metadata " + url + " expired at " + root.getAttributeNS(null, "validUntil"));
+        }
+        boolean trusted = verifySignature(url, root);
+
+        List<Element> entities = new ArrayList<>();
+        if (SAMLConstants.SAML20MD_NS.equals(root.getNamespaceURI()) && "EntityDescriptor".equals(root.getLocalName())) {
+            entities.add(root);
+        } else {
+            NodeList nodes = root.getElementsByTagNameNS(SAMLConstants.SAML20MD_NS, "EntityDescriptor");
+            for (int i = 0; i < nodes.getLength(); i++) {
+                entities.add((Element) nodes.item(i));
+            }
+        }
+
+        File store = File.createTempFile("entities", ".bin", directory);
+        Map<String, int[]> offsets = new HashMap<>();
+        try {
+            Transformer transformer = TransformerFactory.newInstance().newTransformer();
+            transformer.setOutputProperty(OutputKeys.ENCODING, StandardCharsets.UTF_8.name());
+            int position = 0;
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(16 * 1024);
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(store))) {
+                for (Element entity : entities) {
+                    String entityID = entity.getAttributeNS(null, "entityID");
+                    if (!StringUtils.hasText(entityID) || offsets.containsKey(entityID)) {
+                        continue;
+                    }
+                    buffer.reset();
+                    transformer.transform(new DOMSource(standalone(entity)), new StreamResult(buffer));
+                    if (buffer.size() > Integer.MAX_VALUE - position) {
+                        throw new MetadataProviderException("Entities of aggregate metadata " + url + " exceed " + Integer.MAX_VALUE + " bytes");
+                    }
+                    buffer.writeTo(out);
+                    offsets.put(entityID, new int[] {position, buffer.size()});
+                    position += buffer.size();
+                }
+            }
+            MappedByteBuffer mapped;
+            try (FileChannel channel = FileChannel.open(store.toPath(), StandardOpenOption.READ)) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            return new Aggregate(store, mapped, offsets, trusted, result.eTag, result.lastModified);
+        } catch (TransformerException | MetadataProviderException | IOException | RuntimeException e) {
+            if (!store.delete()) {
+                store.deleteOnExit();
+            }
+            if (e instanceof TransformerException) {
+                throw new MetadataProviderException("Unable to store entities of aggregate metadata " + url, e);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Copies an entity with the namespace declarations it inherits from its ancestors.
+     */
+    private static Element standalone(Element entity) {
+        Element copy = (Element) entity.cloneNode(true);
+        for (Node parent = entity.getParentNode(); parent instanceof Element; parent = parent.getParentNode()) {
+            NamedNodeMap attributes = parent.getAttributes();
+            for (int i = 0; i < attributes.getLength(); i++) {
+                Node attribute = attributes.item(i);
+                if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attribute.getNamespaceURI()) &&
+                    !copy.hasAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, attribute.getLocalName())) {
+                    copy.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, attribute.getNodeName(), attribute.getNodeValue());
+                }
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * @return true if the aggregate carries an enveloped signature over the whole document made by one of
+     * the configured signing certificates
+     * @throws MetadataProviderException if signing certificates are configured and the signature is missing or invalid
+     */
+    private boolean verifySignature(String url, Element root) throws MetadataProviderException {
+        if (signingKeys.isEmpty()) {
+            return false;
+        }
+        NodeList signatures = root.getElementsByTagNameNS(XMLSignature.XMLNS, "Signature");
+        Element signatureElement = null;
+        for (int i = 0; i < signatures.getLength(); i++) {
+            if (signatures.item(i).getParentNode() == root) {
+                signatureElement = (Element) signatures.item(i);
+                break;
+            }
+        }
+        if (signatureElement == null) {
+            throw new MetadataProviderException("Aggregate metadata " + url + " is not signed");
+        }
+        String id = root.getAttributeNS(null, "ID");
+        XMLSignatureFactory factory = XMLSignatureFactory.getInstance("DOM");
+        for (PublicKey key : signingKeys) {
+            DOMValidateContext context = new DOMValidateContext(key, signatureElement);
+            if (StringUtils.hasText(id)) {
+                context.setIdAttributeNS(root, null, "ID");
+            }
+            try {
+                XMLSignature signature = factory.unmarshalXMLSignature(context);
+                if (!signsDocument(signature, id)) {
+                    throw new MetadataProviderException("Aggregate metadata " + url + " signature does not cover the document");
+                }
+                if (signature.validate(context)) {
+                    return true;
+                }
+            } catch (MarshalException | XMLSignatureException e) {
+                logger.debug("Aggregate metadata " + url + " signature validation failed", e);
+            }
+        }
+        throw new MetadataProviderException("Aggregate metadata " + url + " signature is not valid");
+    }
+
+    private static boolean signsDocument(XMLSignature signature, String id) {
+        List references = signature.getSignedInfo().getReferences();
+        if (references.size() != 1) {
+            return false;
+        }
+        String uri = ((Reference) references.get(0)).getURI();
+        return "".equals(uri) || (StringUtils.hasText(id) && ("#" + id).equals(uri));
+    }
+
+    public void setParserPool(ParserPool parserPool) {
+        this.parserPool = parserPool;
+    }
+
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    public void setRefreshIntervalMillis(long refreshIntervalMillis) {
+        this.refreshIntervalMillis = refreshIntervalMillis;
+    }
+
+    public void setRetryIntervalMillis(long retryIntervalMillis) {
+        this.retryIntervalMillis = retryIntervalMillis;
+    }
+
+    public void setRefreshExecutor(ExecutorService refreshExecutor) {
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    /**
+     * @param signingCertificates PEM encoded certificates of the federations whose aggregates are trusted
+     */
+    public void setSigningCertificates(List<String> signingCertificates) throws CertificateException {
+        List<PublicKey> keys = new ArrayList<>();
+        if (signingCertificates != null) {
+            CertificateFactory factory = CertificateFactory.getInstance("X.509");
+            for (String certificate : signingCertificates) {
+                if (StringUtils.hasText(certificate)) {
+                    X509Certificate x509 = (X509Certificate) factory.generateCertificate(new ByteArrayInputStream(certificate.trim().getBytes(StandardCharsets.UTF_8)));
+                    keys.add(x509.getPublicKey());
+                }
+            }
+        }
+        this.signingKeys = Collections.unmodifiableList(keys);
+    }
+
+    @Override
+    public void destroy() {
+        if (refreshExecutor != null) {
+            refreshExecutor.shutdownNow();
+        }
+        for (AggregateHolder holder : aggregates.values()) {
+            if (holder.aggregate != null) {
+                holder.aggregate.delete();
+            }
+        }
+        aggregates.clear();
+    }
+
+    private static class AggregateHolder {
+        private volatile Aggregate aggregate;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+    }
+
+    private static class Download {
+        private final String eTag;
+        private final String lastModified;
+
+        Download(String eTag, String lastModified) {
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private static class Aggregate {
+        private final File file;
+        private volatile ByteBuffer entities;
+        private final Map<String, int[]> offsets;
+        private final boolean trusted;
+        private final String eTag;
+        private final String lastModified;
+        private volatile long refreshAt;
+
+        Aggregate(File file, ByteBuffer entities, Map<String, int[]> offsets, boolean trusted, String eTag, String lastModified) {
+            this.file = file;
+            this.entities = entities;
+            this.offsets = offsets;
+            this.trusted = trusted;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @return the entity, or null if the aggregate does not contain it or has been deleted
+         */
+        byte[] read(String entityID) {
+            int[] slice = offsets.get(entityID);
+            ByteBuffer mapped = entities;
+            if (slice == null || mapped == null) {
+                return null;
+            }
+            byte[] result = new byte[slice[1]];
+            ByteBuffer view = mapped.duplicate();
+            view.position(slice[0]);
+            view.get(result);
+            return result;
+        }
+
+        boolean isDeleted() {
+            return entities == null;
+        }
+
+        int size() {
+            return offsets.size();
+        }
+
+        /**
+         * Drops the mapping, which is unmapped once the readers that still hold it are done, and deletes the file
+         */
+        void delete() {
+            entities = null;
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+}
@@ -18,6 +18,7 @@ public class ConfigMetadataProvider extends AbstractMetadataProvider implements
     private final String metadata;
     private final String zoneId;
     private final String alias;
+    private volatile XMLObject parsed;
 
     public ConfigMetadataProvider(String zoneId, String alias, String metadata) {
         this.metadata = metadata;
@@ -29,13 +30,22 @@ public class ConfigMetadataProvider extends AbstractMetadataProvider implements
         return metadata.getBytes(StandardCharsets.UTF_8);
     }
 
+    /**
+     * The metadata is static, so it is unmarshalled once and the result is shared by all lookups.
+     */
     @Override
     public XMLObject doGetMetadata() throws MetadataProviderException {
+        XMLObject result = parsed;
+        if (result != null) {
+            return result;
+        }
 
         InputStream stream = new ByteArrayInputStream(metadata.getBytes(StandardCharsets.UTF_8));
 
         try {
-            return unmarshallMetadata(stream);
+            result = unmarshallMetadata(stream);
+            parsed = result;
+            return result;
         } catch (UnmarshallingException e) {
             log.error("Unable to unmarshall metadata", e);
             throw new MetadataProviderException(e);
@@ -216,12 +216,10 @@ public class LoginSamlAuthenticationProvider extends SAMLAuthenticationProvider
 
     protected Collection<? extends GrantedAuthority> mapAuthorities(String origin, Collection<? extends GrantedAuthority> authorities) {
         Collection<GrantedAuthority> result = new LinkedList<>();
-            for (GrantedAuthority authority : authorities ) {
-                String externalGroup = authority.getAuthority();
-                    for (ScimGroupExternalMember internalGroup : externalMembershipManager.getExternalGroupMapsByExternalGroup(externalGroup, origin, IdentityZoneHolder.get().getId())) {
-                        result.add(new SimpleGrantedAuthority(internalGroup.getDisplayName()));
-                    }
-            }
+        List<String> externalGroups = authorities.stream().map(GrantedAuthority::getAuthority).collect(Collectors.toList());
+        for (ScimGroupExternalMember internalGroup : externalMembershipManager.getExternalGroupMapsByExternalGroups(externalGroups, origin, IdentityZoneHolder.get().getId())) {
+            result.add(new SimpleGrantedAuthority(internalGroup.getDisplayName()));
+        }
         return result;
     }
 
@@ -59,7 +59,12 @@ public class LoginSamlDiscovery extends SAMLDiscovery {
         //we have received the alias in our request
         //so we need to translate that into an entityID
         String idpAlias = request.getParameter(paramName==null?"idp":paramName);
-        if ( idpAlias!=null ) {
+        if ( idpAlias!=null && metadata instanceof NonSnarlMetadataManager) {
+            String idp = ((NonSnarlMetadataManager) metadata).getIDPEntityIdForAlias(idpAlias);
+            if (idp != null) {
+                return idp;
+            }
+        } else if ( idpAlias!=null ) {
             Set<String> idps = metadata.getIDPEntityNames();
             for (String idp : idps) {
                 try {
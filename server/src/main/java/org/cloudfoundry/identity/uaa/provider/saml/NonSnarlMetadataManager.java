@@ -15,6 +15,9 @@
 
 package org.cloudfoundry.identity.uaa.provider.saml;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.cloudfoundry.identity.uaa.provider.IdentityProvider;
 import org.cloudfoundry.identity.uaa.provider.SamlIdentityProviderDefinition;
 import org.cloudfoundry.identity.uaa.zone.IdentityZone;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
@@ -68,13 +71,19 @@ import org.springframework.util.StringUtils;
 import org.w3c.dom.Element;
 
 import javax.xml.namespace.QName;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 
@@ -91,6 +100,10 @@ public class NonSnarlMetadataManager extends MetadataManager implements Extended
     private final SamlIdentityProviderConfigurator configurator;
     private ZoneAwareMetadataGenerator generator;
 
+    // Per zone index of the parsed metadata, rebuilt when the zone or its SAML providers change
+    private final Cache<String, ZoneIndex> indexes = CacheBuilder.newBuilder().maximumSize(10000).build();
+    private long urlMetadataRefreshMillis = 10 * 60 * 1000;
+
     public NonSnarlMetadataManager(SamlIdentityProviderConfigurator configurator) throws MetadataProviderException {
         super(Collections.EMPTY_LIST);
         this.configurator = configurator;
@@ -131,34 +144,82 @@ public class NonSnarlMetadataManager extends MetadataManager implements Extended
     }
 
     public List<MetadataProvider> getProviders() {
-        List<MetadataProvider> result = new ArrayList<>();
-        for (ExtendedMetadataDelegate delegate : getAvailableProviders()) {
-            result.add(delegate);
-        }
-        return result;
+        return new ArrayList<>(getIndex().providers);
     }
 
     public List<ExtendedMetadataDelegate> getAvailableProviders() {
+        return new ArrayList<>(getIndex().providers);
+    }
+
+    /**
+     * Returns the metadata index of the current zone. The index is rebuilt when the zone or any of its
+     * active SAML identity providers has changed, and periodically when a provider's metadata is
+     * fetched from a URL.
+     */
+    protected MetadataIndex getIndex() {
         IdentityZone zone = IdentityZoneHolder.get();
-        List<ExtendedMetadataDelegate> result = new ArrayList<>();
+        List<IdentityProvider<SamlIdentityProviderDefinition>> providers = configurator.getIdentityProvidersForZone(zone);
+        String fingerprint = getFingerprint(zone, providers);
+        ZoneIndex zoneIndex = indexes.asMap().computeIfAbsent(zone.getId(), id -> new ZoneIndex());
+        MetadataIndex index = zoneIndex.index;
+        if (index != null && index.isCurrent(fingerprint)) {
+            return index;
+        }
+        // only the rebuilds of the same zone wait for each other
+        synchronized (zoneIndex) {
+            index = zoneIndex.index;
+            if (index == null || !index.isCurrent(fingerprint)) {
+                index = buildIndex(zone, fingerprint, providers);
+                zoneIndex.index = index;
+            }
+            return index;
+        }
+    }
+
+    private static final class ZoneIndex {
+        private volatile MetadataIndex index;
+    }
+
+    private static String getFingerprint(IdentityZone zone, List<IdentityProvider<SamlIdentityProviderDefinition>> providers) {
+        StringBuilder result = new StringBuilder();
+        result.append(zone.getId()).append(':').append(zone.getVersion()).append(':')
+            .append(zone.getLastModified() == null ? 0 : zone.getLastModified().getTime()).append(':')
+            .append(zone.getSubdomain());
+        for (IdentityProvider<SamlIdentityProviderDefinition> provider : providers) {
+            result.append('|').append(provider.getId()).append(':').append(provider.getVersion()).append(':')
+                .append(provider.getLastModified() == null ? 0 : provider.getLastModified().getTime());
+        }
+        return result.toString();
+    }
+
+    private MetadataIndex buildIndex(IdentityZone zone, String fingerprint, List<IdentityProvider<SamlIdentityProviderDefinition>> providers) {
+        List<ExtendedMetadataDelegate> delegates = new ArrayList<>();
         try {
-            result.add(getLocalServiceProvider());
+            delegates.add(getLocalServiceProvider());
         } catch (MetadataProviderException e) {
             throw new IllegalStateException(e);
         }
-        for (SamlIdentityProviderDefinition definition : configurator.getIdentityProviderDefinitions()) {
+        boolean urlMetadata = false;
+        for (IdentityProvider<SamlIdentityProviderDefinition> provider : providers) {
+            SamlIdentityProviderDefinition definition = provider.getConfig();
             log.info("Adding SAML IDP zone[" + zone.getId() + "] alias[" + definition.getIdpEntityAlias() + "]");
             try {
                 ExtendedMetadataDelegate delegate = configurator.getExtendedMetadataDelegate(definition);
                 initializeProvider(delegate);
                 initializeProviderData(delegate);
                 initializeProviderFilters(delegate);
-                result.add(delegate);
+                delegates.add(delegate);
+                urlMetadata |= definition.getType() == SamlIdentityProviderDefinition.MetadataLocation.URL;
             } catch (MetadataProviderException e) {
                 log.error("Invalid SAML IDP zone[" + zone.getId() + "] alias[" + definition.getIdpEntityAlias() + "]", e);
             }
         }
-        return result;
+        long expiresAt = urlMetadata ? System.currentTimeMillis() + urlMetadataRefreshMillis : Long.MAX_VALUE;
+        return new MetadataIndex(fingerprint, expiresAt, delegates);
+    }
+
+    public void setUrlMetadataRefreshMillis(long urlMetadataRefreshMillis) {
+        this.urlMetadataRefreshMillis = urlMetadataRefreshMillis;
     }
 
     @Override
@@ -390,34 +451,12 @@ public class NonSnarlMetadataManager extends MetadataManager implements Extended
 
     @Override
     public Set<String> getIDPEntityNames() {
-        Set<String> result = new HashSet<>();
-        for (ExtendedMetadataDelegate delegate : getAvailableProviders()) {
-            try {
-                String idp = getProviderIdpAlias(delegate);
-                if (StringUtils.hasText(idp)) {
-                    result.add(idp);
-                }
-            } catch (MetadataProviderException e) {
-                log.error("Unable to get IDP alias for:"+delegate, e);
-            }
-        }
-        return result;
+        return getIndex().idpEntityNames;
     }
 
     @Override
     public Set<String> getSPEntityNames() {
-        Set<String> result = new HashSet<>();
-        for (ExtendedMetadataDelegate delegate : getAvailableProviders()) {
-            try {
-                String sp = getHostedSpName(delegate);
-                if (StringUtils.hasText(sp)) {
-                    result.add(sp);
-                }
-            } catch (MetadataProviderException e) {
-                log.error("Unable to get IDP alias for:"+delegate, e);
-            }
-        }
-        return result;
+        return getIndex().spEntityNames;
     }
 
     @Override
@@ -432,17 +471,8 @@ public class NonSnarlMetadataManager extends MetadataManager implements Extended
 
     @Override
     public String getHostedSPName() {
-        for (ExtendedMetadataDelegate delegate : getAvailableProviders()) {
-            try {
-                String spName = getHostedSpName(delegate);
-                if (StringUtils.hasText(spName)) {
-                    return spName;
-                }
-            } catch (MetadataProviderException e) {
-                log.error("Unable to find hosted SP name:"+delegate, e);
-            }
-        }
-        return null;
+        Iterator<String> iterator = getSPEntityNames().iterator();
+        return iterator.hasNext() ? iterator.next() : null;
     }
 
     @Override
@@ -467,11 +497,9 @@ public class NonSnarlMetadataManager extends MetadataManager implements Extended
 
     @Override
     public ExtendedMetadata getExtendedMetadata(String entityID) throws MetadataProviderException {
-        for (MetadataProvider provider : getProviders()) {
-            ExtendedMetadata extendedMetadata = getExtendedMetadata(entityID, provider);
-            if (extendedMetadata != null) {
-                return extendedMetadata;
-            }
+        ExtendedMetadata extendedMetadata = getIndex().extendedMetadata.get(entityID);
+        if (extendedMetadata != null) {
+            return extendedMetadata.clone();
         }
         return getDefaultExtendedMetadata().clone();
     }
@@ -489,19 +517,9 @@ public class NonSnarlMetadataManager extends MetadataManager implements Extended
 
     @Override
     public EntityDescriptor getEntityDescriptor(byte[] hash) throws MetadataProviderException {
-        for (String idp : getIDPEntityNames()) {
-            if (SAMLUtil.compare(hash, idp)) {
-                return getEntityDescriptor(idp);
-            }
-        }
-
-        for (String sp : getSPEntityNames()) {
-            if (SAMLUtil.compare(hash, sp)) {
-                return getEntityDescriptor(sp);
-            }
-        }
-
-        return null;
+        MetadataIndex index = getIndex();
+        String entityID = index.entityIdsByHash.get(encodeHash(hash));
+        return entityID == null ? null : index.entityDescriptors.get(entityID);
     }
 
     @Override
@@ -509,32 +527,31 @@ public class NonSnarlMetadataManager extends MetadataManager implements Extended
         if (entityAlias == null) {
             return null;
         }
+        MetadataIndex index = getIndex();
+        String conflict = index.aliasConflicts.get(entityAlias);
+        if (conflict != null) {
+            throw new MetadataProviderException(conflict);
+        }
+        return index.entityIdsByAlias.get(entityAlias);
+    }
 
-        String entityId = null;
+    /**
+     * @return the entityID of the identity provider with the given alias in the current zone, or null
+     */
+    public String getIDPEntityIdForAlias(String idpAlias) {
+        return idpAlias == null ? null : getIndex().idpEntityIdsByAlias.get(idpAlias);
+    }
 
-        for (String idp : getIDPEntityNames()) {
-            ExtendedMetadata extendedMetadata = getExtendedMetadata(idp);
-            if (extendedMetadata.isLocal() && entityAlias.equals(extendedMetadata.getAlias())) {
-                if (entityId != null && !entityId.equals(idp)) {
-                    throw new MetadataProviderException("Alias " + entityAlias + " is used both for entity " + entityId + " and " + idp);
-                } else {
-                    entityId = idp;
-                }
-            }
-        }
+    private static String encodeHash(byte[] hash) {
+        return Base64.getEncoder().encodeToString(hash);
+    }
 
-        for (String sp : getSPEntityNames()) {
-            ExtendedMetadata extendedMetadata = getExtendedMetadata(sp);
-            if (extendedMetadata.isLocal() && entityAlias.equals(extendedMetadata.getAlias())) {
-                if (entityId != null && !entityId.equals(sp)) {
-                    throw new MetadataProviderException("Alias " + entityAlias + " is used both for entity " + entityId + " and " + sp);
-                } else {
-                    entityId = sp;
-                }
-            }
+    private static String sha1(String entityID) {
+        try {
+            return encodeHash(MessageDigest.getInstance("SHA-1").digest(entityID.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
         }
-
-        return entityId;
     }
 
     @Override
@@ -575,7 +592,7 @@ public class NonSnarlMetadataManager extends MetadataManager implements Extended
 
     public EntitiesDescriptor getEntitiesDescriptor(String name) throws MetadataProviderException {
         EntitiesDescriptor descriptor = null;
-        for (MetadataProvider provider : getProviders()) {
+        for (MetadataProvider provider : getIndex().providers) {
             log.debug("Checking child metadata provider for entities descriptor with name: {}", name);
             try {
                 descriptor = provider.getEntitiesDescriptor(name);
@@ -593,60 +610,36 @@ public class NonSnarlMetadataManager extends MetadataManager implements Extended
 
     /** {@inheritDoc} */
     public EntityDescriptor getEntityDescriptor(String entityID) throws MetadataProviderException {
-        EntityDescriptor descriptor = null;
-        for (MetadataProvider provider : getProviders()) {
-            log.debug("Checking child metadata provider for entity descriptor with entity ID: {}", entityID);
-            try {
-                descriptor = provider.getEntityDescriptor(entityID);
-                if (descriptor != null) {
-                    break;
-                }
-            } catch (MetadataProviderException e) {
-                log.warn("Error retrieving metadata from provider of type {}, proceeding to next provider",
-                         provider.getClass().getName(), e);
-                continue;
-            }
-        }
-        return descriptor;
+        return getIndex().entityDescriptors.get(entityID);
     }
 
     /** {@inheritDoc} */
     public List<RoleDescriptor> getRole(String entityID, QName roleName) throws MetadataProviderException {
-        List<RoleDescriptor> roleDescriptors = null;
-        for (MetadataProvider provider : getProviders()) {
-            log.debug("Checking child metadata provider for entity descriptor with entity ID: {}", entityID);
-            try {
-                roleDescriptors = provider.getRole(entityID, roleName);
-                if (roleDescriptors != null && !roleDescriptors.isEmpty()) {
-                    break;
-                }
-            } catch (MetadataProviderException e) {
-                log.warn("Error retrieving metadata from provider of type {}, proceeding to next provider",
-                         provider.getClass().getName(), e);
-                continue;
-            }
+        MetadataProvider provider = getIndex().providersByEntityId.get(entityID);
+        if (provider == null) {
+            return null;
+        }
+        try {
+            return provider.getRole(entityID, roleName);
+        } catch (MetadataProviderException e) {
+            log.warn("Error retrieving metadata from provider of type {}", provider.getClass().getName(), e);
+            return null;
         }
-        return roleDescriptors;
     }
 
     /** {@inheritDoc} */
     public RoleDescriptor getRole(String entityID, QName roleName, String supportedProtocol)
         throws MetadataProviderException {
-        RoleDescriptor roleDescriptor = null;
-        for (MetadataProvider provider : getProviders()) {
-            log.debug("Checking child metadata provider for entity descriptor with entity ID: {}", entityID);
-            try {
-                roleDescriptor = provider.getRole(entityID, roleName, supportedProtocol);
-                if (roleDescriptor != null) {
-                    break;
-                }
-            } catch (MetadataProviderException e) {
-                log.warn("Error retrieving metadata from provider of type {}, proceeding to next provider",
-                         provider.getClass().getName(), e);
-                continue;
-            }
+        MetadataProvider provider = getIndex().providersByEntityId.get(entityID);
+        if (provider == null) {
+            return null;
+        }
+        try {
+            return provider.getRole(entityID, roleName, supportedProtocol);
+        } catch (MetadataProviderException e) {
+            log.warn("Error retrieving metadata from provider of type {}", provider.getClass().getName(), e);
+            return null;
         }
-        return roleDescriptor;
     }
 
     @Override
@@ -666,7 +659,7 @@ public class NonSnarlMetadataManager extends MetadataManager implements Extended
         /** Constructor. */
         public ChainingEntitiesDescriptor() throws MetadataProviderException {
             childDescriptors = new ArrayList<XMLObject>();
-            for (MetadataProvider provider : getProviders()) {
+            for (MetadataProvider provider : getIndex().providers) {
                 childDescriptors.add(provider.getMetadata());
             }
         }
@@ -938,4 +931,87 @@ public class NonSnarlMetadataManager extends MetadataManager implements Extended
         }
 
     }
-}
\ No newline at end of file
+
+    /**
+     * Immutable view of the metadata available in a zone, built once from the parsed providers.
+     */
+    protected class MetadataIndex {
+        private final String fingerprint;
+        private final long expiresAt;
+        private final List<ExtendedMetadataDelegate> providers;
+        private final Map<String, ExtendedMetadataDelegate> providersByEntityId = new HashMap<>();
+        private final Map<String, EntityDescriptor> entityDescriptors = new HashMap<>();
+        private final Map<String, ExtendedMetadata> extendedMetadata = new HashMap<>();
+        private final Map<String, String> entityIdsByAlias = new HashMap<>();
+        private final Map<String, String> aliasConflicts = new HashMap<>();
+        private final Map<String, String> entityIdsByHash = new HashMap<>();
+        private final Map<String, String> idpEntityIdsByAlias = new HashMap<>();
+        private final Set<String> idpEntityNames;
+        private final Set<String> spEntityNames;
+
+        MetadataIndex(String fingerprint, long expiresAt, List<ExtendedMetadataDelegate> providers) {
+            this.fingerprint = fingerprint;
+            this.expiresAt = expiresAt;
+            this.providers = Collections.unmodifiableList(providers);
+            Set<String> idps = new LinkedHashSet<>();
+            Set<String> sps = new LinkedHashSet<>();
+            for (ExtendedMetadataDelegate provider : providers) {
+                try {
+                    for (String entityID : parseProvider(provider)) {
+                        if (providersByEntityId.containsKey(entityID)) {
+                            continue;
+                        }
+                        providersByEntityId.put(entityID, provider);
+                        EntityDescriptor descriptor = provider.getEntityDescriptor(entityID);
+                        if (descriptor != null) {
+                            entityDescriptors.put(entityID, descriptor);
+                        }
+                        ExtendedMetadata metadata = getExtendedMetadata(entityID, provider);
+                        if (metadata != null) {
+                            extendedMetadata.put(entityID, metadata);
+                        }
+                    }
+                    String idp = getProviderIdpAlias(provider);
+                    if (StringUtils.hasText(idp)) {
+                        idps.add(idp);
+                    }
+                    String sp = getHostedSpName(provider);
+                    if (StringUtils.hasText(sp)) {
+                        sps.add(sp);
+                    }
+                } catch (MetadataProviderException e) {
+                    log.error("Unable to index metadata for:" + provider, e);
+                }
+            }
+            this.idpEntityNames = Collections.unmodifiableSet(idps);
+            this.spEntityNames = Collections.unmodifiableSet(sps);
+            indexAliasesAndHashes(idps);
+            indexAliasesAndHashes(sps);
+            for (String idp : idps) {
+                ExtendedMetadata metadata = extendedMetadata.get(idp);
+                if (metadata != null && metadata.getAlias() != null) {
+                    idpEntityIdsByAlias.putIfAbsent(metadata.getAlias(), idp);
+                }
+            }
+        }
+
+        private void indexAliasesAndHashes(Set<String> entityIDs) {
+            for (String entityID : entityIDs) {
+                entityIdsByHash.putIfAbsent(sha1(entityID), entityID);
+                ExtendedMetadata metadata = extendedMetadata.getOrDefault(entityID, getDefaultExtendedMetadata());
+                String alias = metadata.getAlias();
+                if (!metadata.isLocal() || alias == null) {
+                    continue;
+                }
+                String existing = entityIdsByAlias.putIfAbsent(alias, entityID);
+                if (existing != null && !existing.equals(entityID)) {
+                    aliasConflicts.put(alias, "Alias " + alias + " is used both for entity " + existing + " and " + entityID);
+                }
+            }
+        }
+
+        boolean isCurrent(String fingerprint) {
+            return this.fingerprint.equals(fingerprint) && System.currentTimeMillis() < expiresAt;
+        }
+    }
+}
@@ -21,6 +21,7 @@ import org.cloudfoundry.identity.uaa.constants.OriginKeys;
 import org.cloudfoundry.identity.uaa.provider.IdentityProvider;
 import org.cloudfoundry.identity.uaa.provider.IdentityProviderProvisioning;
 import org.cloudfoundry.identity.uaa.provider.SamlIdentityProviderDefinition;
+import org.cloudfoundry.identity.uaa.util.RestTemplateFactory;
 import org.cloudfoundry.identity.uaa.util.UaaHttpRequestUtils;
 import org.cloudfoundry.identity.uaa.zone.IdentityZone;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
@@ -49,6 +50,8 @@ public class SamlIdentityProviderConfigurator implements InitializingBean {
     private BasicParserPool parserPool;
     private IdentityProviderProvisioning providerProvisioning;
     private UrlContentCache contentCache;
+    private RestTemplateFactory restTemplateFactory;
+    private AggregateMetadataStore aggregateMetadataStore;
 
     private Timer dummyTimer = new Timer() {
         @Override public void cancel() { super.cancel(); }
@@ -74,15 +77,51 @@ public class SamlIdentityProviderConfigurator implements InitializingBean {
         return this;
     }
 
+    public RestTemplateFactory getRestTemplateFactory() {
+        return restTemplateFactory;
+    }
+
+    public SamlIdentityProviderConfigurator setRestTemplateFactory(RestTemplateFactory restTemplateFactory) {
+        this.restTemplateFactory = restTemplateFactory;
+        return this;
+    }
+
+    public AggregateMetadataStore getAggregateMetadataStore() {
+        return aggregateMetadataStore;
+    }
+
+    public SamlIdentityProviderConfigurator setAggregateMetadataStore(AggregateMetadataStore aggregateMetadataStore) {
+        this.aggregateMetadataStore = aggregateMetadataStore;
+        return this;
+    }
+
+    protected RestTemplate getMetadataRestTemplate(boolean skipSslValidation) {
+        if (restTemplateFactory != null) {
+            return restTemplateFactory.getRestTemplate(skipSslValidation);
+        }
+        return new RestTemplate(UaaHttpRequestUtils.createRequestFactory(skipSslValidation));
+    }
+
     public List<SamlIdentityProviderDefinition> getIdentityProviderDefinitions() {
         return getIdentityProviderDefinitionsForZone(IdentityZoneHolder.get());
     }
 
     public List<SamlIdentityProviderDefinition> getIdentityProviderDefinitionsForZone(IdentityZone zone) {
         List<SamlIdentityProviderDefinition> result = new LinkedList<>();
+        for (IdentityProvider<SamlIdentityProviderDefinition> provider : getIdentityProvidersForZone(zone)) {
+            result.add(provider.getConfig());
+        }
+        return result;
+    }
+
+    /**
+     * @return the active SAML identity providers of the zone, including their id, version and modification time
+     */
+    public List<IdentityProvider<SamlIdentityProviderDefinition>> getIdentityProvidersForZone(IdentityZone zone) {
+        List<IdentityProvider<SamlIdentityProviderDefinition>> result = new LinkedList<>();
         for (IdentityProvider provider: providerProvisioning.retrieveActive(zone.getId())) {
             if (OriginKeys.SAML.equals(provider.getType())) {
-                result.add((SamlIdentityProviderDefinition) provider.getConfig());
+                result.add(provider);
             }
         }
         return result;
@@ -200,7 +239,7 @@ public class SamlIdentityProviderConfigurator implements InitializingBean {
                                                                      HttpClientParams params) throws ClassNotFoundException, MetadataProviderException, URISyntaxException, InstantiationException, IllegalAccessException {
         ExtendedMetadata extendedMetadata = new ExtendedMetadata();
         extendedMetadata.setAlias(def.getIdpEntityAlias());
-        RestTemplate template = new RestTemplate(UaaHttpRequestUtils.createRequestFactory(def.isSkipSslValidation()));
+        RestTemplate template = getMetadataRestTemplate(def.isSkipSslValidation());
         FixedHttpMetaDataProvider fixedHttpMetaDataProvider =
             FixedHttpMetaDataProvider.buildProvider(dummyTimer, getClientParams(),
                                                     adjustURIForPort(def.getMetaDataLocation()),
@@ -227,6 +266,14 @@ public class SamlIdentityProviderConfigurator implements InitializingBean {
     protected ExtendedMetadataDelegate configureURLMetadata(SamlIdentityProviderDefinition def) throws MetadataProviderException {
         try {
             def = def.clone();
+            if (StringUtils.hasText(def.getAggregateEntityId()) && aggregateMetadataStore != null) {
+                byte[] metadata = aggregateMetadataStore.getEntityMetadata(adjustURIForPort(def.getMetaDataLocation()),
+                                                                           def.getAggregateEntityId(),
+                                                                           getMetadataRestTemplate(def.isSkipSslValidation()),
+                                                                           def.isMetadataTrustCheck());
+                def.setMetaDataLocation(new String(metadata, StandardCharsets.UTF_8));
+                return configureXMLMetadata(def);
+            }
             ExtendedMetadata extendedMetadata = new ExtendedMetadata();
             extendedMetadata.setAlias(def.getIdpEntityAlias());
             FixedHttpMetaDataProvider fixedHttpMetaDataProvider = getFixedHttpMetaDataProvider(def, dummyTimer, getClientParams());
@@ -12,6 +12,8 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.provider.saml;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.cloudfoundry.identity.uaa.saml.SamlKey;
 import org.cloudfoundry.identity.uaa.util.KeyWithCert;
 import org.cloudfoundry.identity.uaa.zone.SamlConfig;
@@ -20,12 +22,18 @@ import org.slf4j.LoggerFactory;
 import org.springframework.security.saml.key.JKSKeyManager;
 import org.springframework.security.saml.key.KeyManager;
 
+import java.nio.charset.StandardCharsets;
 import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 
 import static java.util.Optional.ofNullable;
 
@@ -33,12 +41,76 @@ public final class SamlKeyManagerFactory {
 
     protected final static Logger logger = LoggerFactory.getLogger(SamlKeyManagerFactory.class);
 
+    /**
+     * Zones that stop signing, or are deleted on another server, fall out after an hour
+     */
+    private static final Cache<String, CachedKeyManager> KEY_MANAGERS = CacheBuilder.newBuilder()
+        .maximumSize(10000)
+        .expireAfterAccess(1, TimeUnit.HOURS)
+        .build();
+
     private SamlKeyManagerFactory() {}
 
     public static KeyManager getKeyManager(SamlConfig config) {
         return getKeyManager(config.getKeys(), config.getActiveKeyId());
     }
 
+    /**
+     * Returns a key manager shared by all threads serving the zone. Keys are only parsed
+     * again when the key material of the zone changes, and the replacement is swapped in atomically.
+     *
+     * @return the key manager, or null if the zone has no active key
+     */
+    public static KeyManager getKeyManager(String zoneId, SamlConfig config) {
+        if (zoneId == null) {
+            return getKeyManager(config);
+        }
+        String fingerprint = fingerprint(config);
+        CachedKeyManager cached = KEY_MANAGERS.getIfPresent(zoneId);
+        if (cached == null || !cached.fingerprint.equals(fingerprint)) {
+            cached = KEY_MANAGERS.asMap().compute(zoneId, (id, current) ->
+                current != null && current.fingerprint.equals(fingerprint) ?
+                    current :
+                    new CachedKeyManager(fingerprint, getKeyManager(config))
+            );
+        }
+        return cached.keyManager;
+    }
+
+    /**
+     * Drops the key manager of a deleted zone
+     */
+    public static void evict(String zoneId) {
+        KEY_MANAGERS.invalidate(zoneId);
+    }
+
+    public static void clearCache() {
+        KEY_MANAGERS.invalidateAll();
+    }
+
+    private static String fingerprint(SamlConfig config) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            update(digest, config.getActiveKeyId());
+            for (Map.Entry<String, SamlKey> entry : new TreeMap<>(config.getKeys()).entrySet()) {
+                update(digest, entry.getKey());
+                update(digest, entry.getValue().getKey());
+                update(digest, entry.getValue().getPassphrase());
+                update(digest, entry.getValue().getCertificate());
+            }
+            return Base64.getEncoder().encodeToString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        if (value != null) {
+            digest.update(value.getBytes(StandardCharsets.UTF_8));
+        }
+        digest.update((byte) 0);
+    }
+
     private static KeyManager getKeyManager(Map<String, SamlKey> keys, String activeKeyId) {
         SamlKey activeKey = keys.get(activeKeyId);
 
@@ -85,4 +157,14 @@ public final class SamlKeyManagerFactory {
                     t);
         }
     }
+
+    private static class CachedKeyManager {
+        private final String fingerprint;
+        private final KeyManager keyManager;
+
+        CachedKeyManager(String fingerprint, KeyManager keyManager) {
+            this.fingerprint = fingerprint;
+            this.keyManager = keyManager;
+        }
+    }
 }
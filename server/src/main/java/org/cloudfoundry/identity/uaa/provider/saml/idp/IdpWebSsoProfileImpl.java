@@ -12,7 +12,11 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.provider.saml.idp;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.cloudfoundry.identity.uaa.authentication.UaaPrincipal;
+import org.cloudfoundry.identity.uaa.cache.CacheInvalidationListener;
+import org.cloudfoundry.identity.uaa.cache.JdbcCacheInvalidationBus;
 import org.cloudfoundry.identity.uaa.scim.ScimUser;
 import org.cloudfoundry.identity.uaa.scim.jdbc.JdbcScimUserProvisioning;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
@@ -47,12 +51,15 @@ import org.opensaml.saml2.metadata.SPSSODescriptor;
 import org.opensaml.saml2.metadata.provider.MetadataProviderException;
 import org.opensaml.ws.message.encoder.MessageEncodingException;
 import org.opensaml.xml.XMLObjectBuilder;
+import org.opensaml.xml.XMLObjectBuilderFactory;
 import org.opensaml.xml.io.Marshaller;
 import org.opensaml.xml.io.MarshallingException;
 import org.opensaml.xml.schema.XSString;
+import org.opensaml.xml.security.SecurityConfiguration;
 import org.opensaml.xml.security.SecurityException;
 import org.opensaml.xml.security.SecurityHelper;
 import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.keyinfo.KeyInfoGenerator;
 import org.opensaml.xml.signature.Signature;
 import org.opensaml.xml.signature.SignatureException;
 import org.opensaml.xml.signature.Signer;
@@ -63,17 +70,28 @@ import org.springframework.security.saml.context.SAMLMessageContext;
 import org.springframework.security.saml.websso.WebSSOProfileImpl;
 import org.springframework.util.StringUtils;
 
+import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 
-public class IdpWebSsoProfileImpl extends WebSSOProfileImpl implements IdpWebSsoProfile {
+public class IdpWebSsoProfileImpl extends WebSSOProfileImpl implements IdpWebSsoProfile, CacheInvalidationListener {
 
     private JdbcSamlServiceProviderProvisioning samlServiceProviderProvisioning;
     private JdbcScimUserProvisioning scimUserProvisioning;
 
+    private volatile Builders builders;
+    private Cache<String, IssuanceContext> issuanceContexts = newIssuanceContextCache(60);
+    private final AtomicLong evictions = new AtomicLong();
+    private final Cache<PublicKey, SignatureParameters> signatureParameters = CacheBuilder.newBuilder()
+        .maximumSize(1000)
+        .build();
+
     @Override
     public void sendResponse(Authentication authentication, SAMLMessageContext context, IdpWebSSOProfileOptions options)
             throws SAMLException, MetadataProviderException, MessageEncodingException, SecurityException,
@@ -134,9 +152,7 @@ public class IdpWebSsoProfileImpl extends WebSSOProfileImpl implements IdpWebSso
 
     private Response createResponse(SAMLMessageContext context, AssertionConsumerService assertionConsumerService,
             Assertion assertion, AuthnRequest authnRequest) {
-        @SuppressWarnings("unchecked")
-        SAMLObjectBuilder<Response> responseBuilder = (SAMLObjectBuilder<Response>) builderFactory
-                .getBuilder(Response.DEFAULT_ELEMENT_NAME);
+        SAMLObjectBuilder<Response> responseBuilder = builders().response;
         Response response = responseBuilder.buildObject();
 
         buildCommonAttributes(context.getLocalEntityId(), response, assertionConsumerService, authnRequest);
@@ -163,9 +179,7 @@ public class IdpWebSsoProfileImpl extends WebSSOProfileImpl implements IdpWebSso
 
     private Assertion buildAssertion(Authentication authentication, AuthnRequest authnRequest,
             IdpWebSSOProfileOptions options, String audienceURI, String issuerEntityId) throws SAMLException{
-        @SuppressWarnings("unchecked")
-        SAMLObjectBuilder<Assertion> assertionBuilder = (SAMLObjectBuilder<Assertion>) builderFactory
-                .getBuilder(Assertion.DEFAULT_ELEMENT_NAME);
+        SAMLObjectBuilder<Assertion> assertionBuilder = builders().assertion;
         Assertion assertion = assertionBuilder.buildObject();
         assertion.setID(generateID());
         assertion.setIssueInstant(new DateTime());
@@ -182,21 +196,15 @@ public class IdpWebSsoProfileImpl extends WebSSOProfileImpl implements IdpWebSso
     }
 
     private void buildAssertionAuthnStatement(Assertion assertion) {
-        @SuppressWarnings("unchecked")
-        SAMLObjectBuilder<AuthnStatement> authnStatementBuilder = (SAMLObjectBuilder<AuthnStatement>) builderFactory
-                .getBuilder(AuthnStatement.DEFAULT_ELEMENT_NAME);
+        SAMLObjectBuilder<AuthnStatement> authnStatementBuilder = builders().authnStatement;
         AuthnStatement authnStatement = authnStatementBuilder.buildObject();
         authnStatement.setAuthnInstant(new DateTime());
         authnStatement.setSessionIndex(generateID());
 
-        @SuppressWarnings("unchecked")
-        SAMLObjectBuilder<AuthnContext> authnContextBuilder = (SAMLObjectBuilder<AuthnContext>) builderFactory
-                .getBuilder(AuthnContext.DEFAULT_ELEMENT_NAME);
+        SAMLObjectBuilder<AuthnContext> authnContextBuilder = builders().authnContext;
         AuthnContext authnContext = authnContextBuilder.buildObject();
 
-        @SuppressWarnings("unchecked")
-        SAMLObjectBuilder<AuthnContextClassRef> authnContextClassRefBuilder = (SAMLObjectBuilder<AuthnContextClassRef>) builderFactory
-                .getBuilder(AuthnContextClassRef.DEFAULT_ELEMENT_NAME);
+        SAMLObjectBuilder<AuthnContextClassRef> authnContextClassRefBuilder = builders().authnContextClassRef;
         AuthnContextClassRef authnContextClassRef = authnContextClassRefBuilder.buildObject();
         //TODO - BEGIN we don't know this, should read value from authentication object
         authnContextClassRef.setAuthnContextClassRef(AuthnContext.PASSWORD_AUTHN_CTX);
@@ -207,21 +215,15 @@ public class IdpWebSsoProfileImpl extends WebSSOProfileImpl implements IdpWebSso
     }
 
     private void buildAssertionConditions(Assertion assertion, int assertionTtlSeconds, String audienceURI) {
-        @SuppressWarnings("unchecked")
-        SAMLObjectBuilder<Conditions> conditionsBuilder = (SAMLObjectBuilder<Conditions>) builderFactory
-                .getBuilder(Conditions.DEFAULT_ELEMENT_NAME);
+        SAMLObjectBuilder<Conditions> conditionsBuilder = builders().conditions;
         Conditions conditions = conditionsBuilder.buildObject();
         conditions.setNotBefore(new DateTime());
         conditions.setNotOnOrAfter(new DateTime().plusSeconds(assertionTtlSeconds));
 
-        @SuppressWarnings("unchecked")
-        SAMLObjectBuilder<AudienceRestriction> audienceRestrictionBuilder = (SAMLObjectBuilder<AudienceRestriction>) builderFactory
-                .getBuilder(AudienceRestriction.DEFAULT_ELEMENT_NAME);
+        SAMLObjectBuilder<AudienceRestriction> audienceRestrictionBuilder = builders().audienceRestriction;
         AudienceRestriction audienceRestriction = audienceRestrictionBuilder.buildObject();
 
-        @SuppressWarnings("unchecked")
-        SAMLObjectBuilder<Audience> audienceBuilder = (SAMLObjectBuilder<Audience>) builderFactory
-                .getBuilder(Audience.DEFAULT_ELEMENT_NAME);
+        SAMLObjectBuilder<Audience> audienceBuilder = builders().audience;
         Audience audience = audienceBuilder.buildObject();
         audience.setAudienceURI(audienceURI);
         audienceRestriction.getAudiences().add(audience);
@@ -231,14 +233,10 @@ public class IdpWebSsoProfileImpl extends WebSSOProfileImpl implements IdpWebSso
 
     private void buildAssertionSubject(Assertion assertion, AuthnRequest authnRequest, int assertionTtlSeconds,
             UaaPrincipal uaaPrincipal) throws SAMLException {
-        @SuppressWarnings("unchecked")
-        SAMLObjectBuilder<Subject> subjectBuilder = (SAMLObjectBuilder<Subject>) builderFactory
-                .getBuilder(Subject.DEFAULT_ELEMENT_NAME);
+        SAMLObjectBuilder<Subject> subjectBuilder = builders().subject;
         Subject subject = subjectBuilder.buildObject();
 
-        @SuppressWarnings("unchecked")
-        SAMLObjectBuilder<NameID> nameIdBuilder = (SAMLObjectBuilder<NameID>) builderFactory
-                .getBuilder(NameID.DEFAULT_ELEMENT_NAME);
+        SAMLObjectBuilder<NameID> nameIdBuilder = builders().nameId;
         NameID nameID = nameIdBuilder.buildObject();
 
         String nameIDFormat = NameIDType.UNSPECIFIED;
@@ -266,16 +264,12 @@ public class IdpWebSsoProfileImpl extends WebSSOProfileImpl implements IdpWebSso
         nameID.setFormat(nameIDFormat);
         subject.setNameID(nameID);
 
-        @SuppressWarnings("unchecked")
-        SAMLObjectBuilder<SubjectConfirmation> subjectConfirmationBuilder = (SAMLObjectBuilder<SubjectConfirmation>) builderFactory
-                .getBuilder(SubjectConfirmation.DEFAULT_ELEMENT_NAME);
+        SAMLObjectBuilder<SubjectConfirmation> subjectConfirmationBuilder = builders().subjectConfirmation;
         SubjectConfirmation subjectConfirmation = subjectConfirmationBuilder.buildObject();
         subjectConfirmation.setMethod(SubjectConfirmation.METHOD_BEARER);
 
 
-        @SuppressWarnings("unchecked")
-        SAMLObjectBuilder<SubjectConfirmationData> subjectConfirmationDataBuilder = (SAMLObjectBuilder<SubjectConfirmationData>) builderFactory
-                .getBuilder(SubjectConfirmationData.DEFAULT_ELEMENT_NAME);
+        SAMLObjectBuilder<SubjectConfirmationData> subjectConfirmationDataBuilder = builders().subjectConfirmationData;
         SubjectConfirmationData subjectConfirmationData = subjectConfirmationDataBuilder.buildObject();
 
         subjectConfirmationData.setNotOnOrAfter(new DateTime().plusSeconds(assertionTtlSeconds));
@@ -287,9 +281,7 @@ public class IdpWebSsoProfileImpl extends WebSSOProfileImpl implements IdpWebSso
     }
 
     protected void buildAttributeStatement(Assertion assertion, Authentication authentication, String providerEntityId) {
-        @SuppressWarnings("unchecked")
-        SAMLObjectBuilder<AttributeStatement> attributeStatementBuilder = (SAMLObjectBuilder<AttributeStatement>) builderFactory
-                .getBuilder(AttributeStatement.DEFAULT_ELEMENT_NAME);
+        SAMLObjectBuilder<AttributeStatement> attributeStatementBuilder = builders().attributeStatement;
         AttributeStatement attributeStatement = attributeStatementBuilder.buildObject();
 
         List<String> authorities = new ArrayList<>();
@@ -311,43 +303,60 @@ public class IdpWebSsoProfileImpl extends WebSSOProfileImpl implements IdpWebSso
         Attribute zoneAttribute = buildStringAttribute("zoneId", Collections.singletonList(principal.getZoneId()));
         attributeStatement.getAttributes().add(zoneAttribute);
 
-        Map<String, Object> attributeMappings = samlServiceProviderProvisioning.retrieveByEntityId(providerEntityId, IdentityZoneHolder.get().getId()).getConfig().getAttributeMappings();
-
-        if (attributeMappings.size() > 0) {
-            ScimUser user = scimUserProvisioning.retrieve(principal.getId(), IdentityZoneHolder.get().getId());
-
-            String givenName = user.getGivenName();
-            if (StringUtils.hasText(givenName) && attributeMappings.containsKey("given_name")) {
-                Attribute givenNameAttribute = buildStringAttribute(attributeMappings.get("given_name").toString(), Collections.singletonList(givenName));
-                attributeStatement.getAttributes().add(givenNameAttribute);
+        IssuanceContext issuanceContext = getIssuanceContext(providerEntityId);
+        if (issuanceContext.hasUserAttributeMappings()) {
+            String givenName, familyName, phoneNumber;
+            if (principal.isUserAttributesLoaded()) {
+                givenName = principal.getGivenName();
+                familyName = principal.getFamilyName();
+                phoneNumber = principal.getPhoneNumber();
+            } else {
+                ScimUser user = scimUserProvisioning.retrieve(principal.getId(), IdentityZoneHolder.get().getId());
+                givenName = user.getGivenName();
+                familyName = user.getFamilyName();
+                phoneNumber = scimUserProvisioning.extractPhoneNumber(user);
             }
+            addMappedAttribute(attributeStatement, issuanceContext.givenNameAttribute, givenName);
+            addMappedAttribute(attributeStatement, issuanceContext.familyNameAttribute, familyName);
+            addMappedAttribute(attributeStatement, issuanceContext.phoneNumberAttribute, phoneNumber);
+        }
 
-            String familyName = user.getFamilyName();
-            if (StringUtils.hasText(familyName) && attributeMappings.containsKey("family_name")) {
-                Attribute familyNameAttribute = buildStringAttribute(attributeMappings.get("family_name").toString(), Collections.singletonList(familyName));
-                attributeStatement.getAttributes().add(familyNameAttribute);
-            }
+        assertion.getAttributeStatements().add(attributeStatement);
+    }
 
-            String phoneNumber = scimUserProvisioning.extractPhoneNumber(user);
-            if (StringUtils.hasText(phoneNumber) && attributeMappings.containsKey("phone_number")) {
-                Attribute phoneNumberAttribute = buildStringAttribute(attributeMappings.get("phone_number").toString(), Collections.singletonList(phoneNumber));
-                attributeStatement.getAttributes().add(phoneNumberAttribute);
-            }
+    private void addMappedAttribute(AttributeStatement attributeStatement, String attributeName, String value) {
+        if (attributeName != null && StringUtils.hasText(value)) {
+            attributeStatement.getAttributes().add(buildStringAttribute(attributeName, Collections.singletonList(value)));
         }
+    }
 
-        assertion.getAttributeStatements().add(attributeStatement);
+    /**
+     * Returns the prepared issuance context of a service provider, reading its definition
+     * from the database at most once per expiry period, or after the service providers of
+     * its zone changed.
+     */
+    protected IssuanceContext getIssuanceContext(String providerEntityId) {
+        String zoneId = IdentityZoneHolder.get().getId();
+        String key = zoneId + "|" + providerEntityId;
+        IssuanceContext context = issuanceContexts.getIfPresent(key);
+        if (context == null) {
+            long evicted = evictions.get();
+            SamlServiceProvider provider = samlServiceProviderProvisioning.retrieveByEntityId(providerEntityId, zoneId);
+            context = new IssuanceContext(provider.getConfig().getAttributeMappings());
+            //a change made while loading may not be part of the context
+            if (evicted == evictions.get()) {
+                issuanceContexts.put(key, context);
+            }
+        }
+        return context;
     }
 
     public Attribute buildStringAttribute(String name, List<String> values) {
-        @SuppressWarnings("unchecked")
-        SAMLObjectBuilder<Attribute> attributeBuilder = (SAMLObjectBuilder<Attribute>) builderFactory
-                .getBuilder(Attribute.DEFAULT_ELEMENT_NAME);
+        SAMLObjectBuilder<Attribute> attributeBuilder = builders().attribute;
         Attribute attribute = (Attribute) attributeBuilder.buildObject();
         attribute.setName(name);
 
-        @SuppressWarnings("unchecked")
-        XMLObjectBuilder<XSString> xsStringBuilder = (XMLObjectBuilder<XSString>) builderFactory
-                .getBuilder(XSString.TYPE_NAME);
+        XMLObjectBuilder<XSString> xsStringBuilder = builders().xsString;
         for (String value : values) {
             // Set custom Attributes
             XSString attributeValue = xsStringBuilder.buildObject(AttributeValue.DEFAULT_ELEMENT_NAME,
@@ -364,15 +373,11 @@ public class IdpWebSsoProfileImpl extends WebSSOProfileImpl implements IdpWebSso
     }
 
     private void buildStatus(Response response, String statusCodeStr) {
-        @SuppressWarnings("unchecked")
-        SAMLObjectBuilder<StatusCode> statusCodeBuilder = (SAMLObjectBuilder<StatusCode>) builderFactory
-                .getBuilder(StatusCode.DEFAULT_ELEMENT_NAME);
+        SAMLObjectBuilder<StatusCode> statusCodeBuilder = builders().statusCode;
         StatusCode statusCode = statusCodeBuilder.buildObject();
         statusCode.setValue(statusCodeStr);
 
-        @SuppressWarnings("unchecked")
-        SAMLObjectBuilder<Status> statusBuilder = (SAMLObjectBuilder<Status>) builderFactory
-                .getBuilder(Status.DEFAULT_ELEMENT_NAME);
+        SAMLObjectBuilder<Status> statusBuilder = builders().status;
         Status status = statusBuilder.buildObject();
         status.setStatusCode(statusCode);
         response.setStatus(status);
@@ -380,25 +385,173 @@ public class IdpWebSsoProfileImpl extends WebSSOProfileImpl implements IdpWebSso
 
     private void signAssertion(Assertion assertion, Credential credential)
             throws SecurityException, MarshallingException, SignatureException {
-        SignatureBuilder signatureBuilder = (SignatureBuilder) builderFactory
-                .getBuilder(Signature.DEFAULT_ELEMENT_NAME);
-        Signature signature = signatureBuilder.buildObject();
+        Signature signature = builders().signature.buildObject();
         signature.setSigningCredential(credential);
 
-        SecurityHelper.prepareSignatureParams(signature, credential, null, null);
+        getSignatureParameters(credential).apply(signature, credential);
         assertion.setSignature(signature);
 
-        Marshaller marshaller = Configuration.getMarshallerFactory().getMarshaller(assertion);
-        marshaller.marshall(assertion);
+        builders().assertionMarshaller.marshall(assertion);
 
         Signer.signObject(signature);
     }
 
+    /**
+     * Resolves the algorithms and key info generator of a signing credential once, instead of
+     * consulting the global security configuration for every assertion.
+     */
+    private SignatureParameters getSignatureParameters(Credential credential) {
+        PublicKey publicKey = credential.getPublicKey();
+        if (publicKey == null) {
+            return new SignatureParameters(credential);
+        }
+        SignatureParameters parameters = signatureParameters.getIfPresent(publicKey);
+        if (parameters == null) {
+            parameters = new SignatureParameters(credential);
+            signatureParameters.put(publicKey, parameters);
+        }
+        return parameters;
+    }
+
+    private Builders builders() {
+        Builders result = builders;
+        if (result == null) {
+            result = builders = new Builders(builderFactory);
+        }
+        return result;
+    }
+
+    private static Cache<String, IssuanceContext> newIssuanceContextCache(int expirySeconds) {
+        return CacheBuilder.newBuilder()
+            .expireAfterWrite(expirySeconds, TimeUnit.SECONDS)
+            .maximumSize(10000)
+            .build();
+    }
+
+    public void setIssuanceContextExpirySeconds(int issuanceContextExpirySeconds) {
+        this.issuanceContexts = newIssuanceContextCache(issuanceContextExpirySeconds);
+    }
+
     public void setSamlServiceProviderProvisioning(JdbcSamlServiceProviderProvisioning samlServiceProviderProvisioning) {
         this.samlServiceProviderProvisioning = samlServiceProviderProvisioning;
+        samlServiceProviderProvisioning.addListener(this);
+    }
+
+    /**
+     * Evicts the issuance contexts of a zone whose service providers changed. They are keyed by
+     * entity ID, while changes are recorded by id, so all the contexts of the zone are evicted.
+     */
+    @Override
+    public void invalidate(String entityType, String zoneId, String entityId) {
+        if (JdbcCacheInvalidationBus.SAML_SERVICE_PROVIDER.equals(entityType) || JdbcCacheInvalidationBus.IDENTITY_ZONE.equals(entityType)) {
+            evictions.incrementAndGet();
+            String prefix = zoneId + "|";
+            issuanceContexts.asMap().keySet().removeIf(key -> key.startsWith(prefix));
+        }
     }
 
     public void setScimUserProvisioning(JdbcScimUserProvisioning scimUserProvisioning) {
         this.scimUserProvisioning = scimUserProvisioning;
     }
+
+    /**
+     * What the issuance of an assertion for a service provider needs from its definition.
+     */
+    protected static class IssuanceContext {
+        private final Map<String, Object> attributeMappings;
+        private final String givenNameAttribute;
+        private final String familyNameAttribute;
+        private final String phoneNumberAttribute;
+
+        IssuanceContext(Map<String, Object> attributeMappings) {
+            this.attributeMappings = attributeMappings == null ? Collections.emptyMap() : Collections.unmodifiableMap(new HashMap<>(attributeMappings));
+            this.givenNameAttribute = mappedName("given_name");
+            this.familyNameAttribute = mappedName("family_name");
+            this.phoneNumberAttribute = mappedName("phone_number");
+        }
+
+        private String mappedName(String key) {
+            Object name = attributeMappings.get(key);
+            return name == null ? null : name.toString();
+        }
+
+        public Map<String, Object> getAttributeMappings() {
+            return attributeMappings;
+        }
+
+        boolean hasUserAttributeMappings() {
+            return givenNameAttribute != null || familyNameAttribute != null || phoneNumberAttribute != null;
+        }
+    }
+
+    private static class SignatureParameters {
+        private final String signatureAlgorithm;
+        private final String canonicalizationAlgorithm;
+        private final Integer hmacOutputLength;
+        private final KeyInfoGenerator keyInfoGenerator;
+
+        SignatureParameters(Credential credential) {
+            SecurityConfiguration config = Configuration.getGlobalSecurityConfiguration();
+            this.signatureAlgorithm = config.getSignatureAlgorithmURI(credential);
+            this.canonicalizationAlgorithm = config.getSignatureCanonicalizationAlgorithm();
+            this.hmacOutputLength = SecurityHelper.isHMAC(signatureAlgorithm) ? config.getSignatureHMACOutputLength() : null;
+            this.keyInfoGenerator = SecurityHelper.getKeyInfoGenerator(credential, config, null);
+        }
+
+        void apply(Signature signature, Credential credential) throws SecurityException {
+            signature.setSignatureAlgorithm(signatureAlgorithm);
+            signature.setCanonicalizationAlgorithm(canonicalizationAlgorithm);
+            if (hmacOutputLength != null) {
+                signature.setHMACOutputLength(hmacOutputLength);
+            }
+            if (keyInfoGenerator != null) {
+                signature.setKeyInfo(keyInfoGenerator.generate(credential));
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static class Builders {
+        private final SAMLObjectBuilder<Assertion> assertion;
+        private final SAMLObjectBuilder<AuthnStatement> authnStatement;
+        private final SAMLObjectBuilder<AuthnContext> authnContext;
+        private final SAMLObjectBuilder<AuthnContextClassRef> authnContextClassRef;
+        private final SAMLObjectBuilder<Conditions> conditions;
+        private final SAMLObjectBuilder<AudienceRestriction> audienceRestriction;
+        private final SAMLObjectBuilder<Audience> audience;
+        private final SAMLObjectBuilder<Subject> subject;
+        private final SAMLObjectBuilder<NameID> nameId;
+        private final SAMLObjectBuilder<SubjectConfirmation> subjectConfirmation;
+        private final SAMLObjectBuilder<SubjectConfirmationData> subjectConfirmationData;
+        private final SAMLObjectBuilder<AttributeStatement> attributeStatement;
+        private final SAMLObjectBuilder<Attribute> attribute;
+        private final XMLObjectBuilder<XSString> xsString;
+        private final SAMLObjectBuilder<StatusCode> statusCode;
+        private final SAMLObjectBuilder<Status> status;
+        private final SAMLObjectBuilder<Response> response;
+        private final SignatureBuilder signature;
+        private final Marshaller assertionMarshaller;
+
+        Builders(XMLObjectBuilderFactory factory) {
+            assertion = (SAMLObjectBuilder<Assertion>) factory.getBuilder(Assertion.DEFAULT_ELEMENT_NAME);
+            authnStatement = (SAMLObjectBuilder<AuthnStatement>) factory.getBuilder(AuthnStatement.DEFAULT_ELEMENT_NAME);
+            authnContext = (SAMLObjectBuilder<AuthnContext>) factory.getBuilder(AuthnContext.DEFAULT_ELEMENT_NAME);
+            authnContextClassRef = (SAMLObjectBuilder<AuthnContextClassRef>) factory.getBuilder(AuthnContextClassRef.DEFAULT_ELEMENT_NAME);
+            conditions = (SAMLObjectBuilder<Conditions>) factory.getBuilder(Conditions.DEFAULT_ELEMENT_NAME);
+            audienceRestriction = (SAMLObjectBuilder<AudienceRestriction>) factory.getBuilder(AudienceRestriction.DEFAULT_ELEMENT_NAME);
+            audience = (SAMLObjectBuilder<Audience>) factory.getBuilder(Audience.DEFAULT_ELEMENT_NAME);
+            subject = (SAMLObjectBuilder<Subject>) factory.getBuilder(Subject.DEFAULT_ELEMENT_NAME);
+            nameId = (SAMLObjectBuilder<NameID>) factory.getBuilder(NameID.DEFAULT_ELEMENT_NAME);
+            subjectConfirmation = (SAMLObjectBuilder<SubjectConfirmation>) factory.getBuilder(SubjectConfirmation.DEFAULT_ELEMENT_NAME);
+            subjectConfirmationData = (SAMLObjectBuilder<SubjectConfirmationData>) factory.getBuilder(SubjectConfirmationData.DEFAULT_ELEMENT_NAME);
+            attributeStatement = (SAMLObjectBuilder<AttributeStatement>) factory.getBuilder(AttributeStatement.DEFAULT_ELEMENT_NAME);
+            attribute = (SAMLObjectBuilder<Attribute>) factory.getBuilder(Attribute.DEFAULT_ELEMENT_NAME);
+            xsString = (XMLObjectBuilder<XSString>) factory.getBuilder(XSString.TYPE_NAME);
+            statusCode = (SAMLObjectBuilder<StatusCode>) factory.getBuilder(StatusCode.DEFAULT_ELEMENT_NAME);
+            status = (SAMLObjectBuilder<Status>) factory.getBuilder(Status.DEFAULT_ELEMENT_NAME);
+            response = (SAMLObjectBuilder<Response>) factory.getBuilder(Response.DEFAULT_ELEMENT_NAME);
+            signature = (SignatureBuilder) factory.getBuilder(Signature.DEFAULT_ELEMENT_NAME);
+            assertionMarshaller = Configuration.getMarshallerFactory().getMarshaller(Assertion.DEFAULT_ELEMENT_NAME);
+        }
+    }
 }
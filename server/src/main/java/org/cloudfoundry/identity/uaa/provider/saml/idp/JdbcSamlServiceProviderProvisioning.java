@@ -14,6 +14,8 @@ package org.cloudfoundry.identity.uaa.provider.saml.idp;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.cache.CacheInvalidationListener;
+import org.cloudfoundry.identity.uaa.cache.JdbcCacheInvalidationBus;
 import org.cloudfoundry.identity.uaa.provider.JdbcIdentityProviderProvisioning;
 import org.cloudfoundry.identity.uaa.util.JsonUtils;
 import org.springframework.dao.DataIntegrityViolationException;
@@ -31,6 +33,7 @@ import java.sql.Timestamp;
 import java.util.Date;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Rest-template-based data access for SAML Service Provider CRUD operations.
@@ -72,11 +75,41 @@ public class JdbcSamlServiceProviderProvisioning implements SamlServiceProviderP
 
     private final RowMapper<SamlServiceProvider> mapper = new SamlServiceProviderRowMapper();
 
+    private final List<CacheInvalidationListener> listeners = new CopyOnWriteArrayList<>();
+    private JdbcCacheInvalidationBus invalidationBus;
+
     public JdbcSamlServiceProviderProvisioning(JdbcTemplate jdbcTemplate) {
         Assert.notNull(jdbcTemplate);
         this.jdbcTemplate = jdbcTemplate;
     }
 
+    /**
+     * @param listener evicted on this server whenever a service provider is created, updated or deleted
+     */
+    public void addListener(CacheInvalidationListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @param invalidationBus records the changed service providers for the caches of other servers
+     */
+    public void setInvalidationBus(JdbcCacheInvalidationBus invalidationBus) {
+        this.invalidationBus = invalidationBus;
+    }
+
+    private void publish(String zoneId, String id) {
+        publish(zoneId, id, null);
+    }
+
+    private void publish(String zoneId, String id, Integer version) {
+        for (CacheInvalidationListener listener : listeners) {
+            listener.invalidate(JdbcCacheInvalidationBus.SAML_SERVICE_PROVIDER, zoneId, id);
+        }
+        if (invalidationBus != null) {
+            invalidationBus.publish(JdbcCacheInvalidationBus.SAML_SERVICE_PROVIDER, zoneId, id, version);
+        }
+    }
+
     @Override
     public SamlServiceProvider retrieve(String id, String zoneId) {
         SamlServiceProvider serviceProvider = jdbcTemplate.queryForObject(SERVICE_PROVIDER_BY_ID_QUERY, mapper, id, zoneId);
@@ -86,16 +119,21 @@ public class JdbcSamlServiceProviderProvisioning implements SamlServiceProviderP
     @Override
     public void delete(String id, String zoneId) {
         jdbcTemplate.update(DELETE_SERVICE_PROVIDER_SQL, id, zoneId);
+        publish(zoneId, id);
     }
 
     @Override
     public int deleteByEntityId(String entityId, String zoneId) {
-        return jdbcTemplate.update(DELETE_SERVICE_PROVIDER_BY_ENTITY_ID_SQL, entityId, zoneId);
+        int deleted = jdbcTemplate.update(DELETE_SERVICE_PROVIDER_BY_ENTITY_ID_SQL, entityId, zoneId);
+        publish(zoneId, null);
+        return deleted;
     }
 
     @Override
     public int deleteByIdentityZone(String zoneId) {
-        return jdbcTemplate.update(DELETE_SERVICE_PROVIDER_BY_ZONE_SQL, zoneId);
+        int deleted = jdbcTemplate.update(DELETE_SERVICE_PROVIDER_BY_ZONE_SQL, zoneId);
+        publish(zoneId, null);
+        return deleted;
     }
 
     @Override
@@ -142,6 +180,7 @@ public class JdbcSamlServiceProviderProvisioning implements SamlServiceProviderP
         } catch (DuplicateKeyException e) {
             throw new SamlSpAlreadyExistsException(e.getMostSpecificCause().getMessage());
         }
+        publish(zoneId, id, serviceProvider.getVersion());
         return retrieve(id, zoneId);
     }
 
@@ -161,6 +200,7 @@ public class JdbcSamlServiceProviderProvisioning implements SamlServiceProviderP
                 ps.setString(pos++, zoneId);
             }
         });
+        publish(zoneId, serviceProvider.getId().trim(), serviceProvider.getVersion() + 1);
         return retrieve(serviceProvider.getId(), zoneId);
     }
 
@@ -119,7 +119,7 @@ public class NonSnarlIdpMetadataManager extends IdpMetadataManager implements Ex
                 ExtendedMetadataDelegate delegate = holder.getExtendedMetadataDelegate();
                 initializeProvider(delegate);
                 initializeProviderData(delegate);
-                initializeProviderFilters(delegate);
+                initializeFilters(holder);
                 result.add(delegate);
             } catch (MetadataProviderException e) {
                 log.error("Invalid SAML IDP zone[" + zone.getId() + "] alias[" + holder.getSamlServiceProvider().getEntityId() + "]", e);
@@ -129,6 +129,43 @@ public class NonSnarlIdpMetadataManager extends IdpMetadataManager implements Ex
 
     }
 
+    /**
+     * Looks up a registered service provider of the current zone by entityID, without
+     * generating the local IDP metadata or visiting the zone's other providers.
+     */
+    protected ExtendedMetadataDelegate getServiceProvider(String entityID) {
+        if (entityID == null) {
+            return null;
+        }
+        SamlServiceProviderHolder holder = configurator.getSamlServiceProviderForZone(IdentityZoneHolder.get(), entityID);
+        if (holder == null) {
+            return null;
+        }
+        try {
+            return initializeFilters(holder);
+        } catch (MetadataProviderException e) {
+            log.error("Invalid SAML SP zone[" + IdentityZoneHolder.get().getId() + "] alias[" + entityID + "]", e);
+            return null;
+        }
+    }
+
+    /**
+     * Adds the signature filter to the shared delegate of a holder the first time the holder is used.
+     * A holder is replaced by the configurator when its service provider changes.
+     */
+    private ExtendedMetadataDelegate initializeFilters(SamlServiceProviderHolder holder) throws MetadataProviderException {
+        ExtendedMetadataDelegate delegate = holder.getExtendedMetadataDelegate();
+        if (!holder.isFiltersInitialized()) {
+            synchronized (holder) {
+                if (!holder.isFiltersInitialized()) {
+                    initializeProviderFilters(delegate);
+                    holder.setFiltersInitialized(true);
+                }
+            }
+        }
+        return delegate;
+    }
+
     public ExtendedMetadataDelegate getLocalIdp() throws MetadataProviderException {
         EntityDescriptor descriptor = generator.generateMetadata();
         ExtendedMetadata extendedMetadata = generator.generateExtendedMetadata();
@@ -229,6 +266,10 @@ public class NonSnarlIdpMetadataManager extends IdpMetadataManager implements Ex
      * {@inheritDoc}
      */
     public List<RoleDescriptor> getRole(String entityID, QName roleName) throws MetadataProviderException {
+        ExtendedMetadataDelegate serviceProvider = getServiceProvider(entityID);
+        if (serviceProvider != null) {
+            return serviceProvider.getRole(entityID, roleName);
+        }
         List<RoleDescriptor> roleDescriptors = null;
         for (MetadataProvider provider : getProviders()) {
             log.debug("Checking child metadata provider for entity descriptor with entity ID: {}", entityID);
@@ -252,6 +293,10 @@ public class NonSnarlIdpMetadataManager extends IdpMetadataManager implements Ex
     @Override
     public RoleDescriptor getRole(String entityID, QName roleName, String supportedProtocol)
         throws MetadataProviderException {
+        ExtendedMetadataDelegate serviceProvider = getServiceProvider(entityID);
+        if (serviceProvider != null) {
+            return serviceProvider.getRole(entityID, roleName, supportedProtocol);
+        }
         RoleDescriptor roleDescriptor = null;
         for (MetadataProvider provider : getProviders()) {
             log.debug("Checking child metadata provider for entity descriptor with entity ID: {}", entityID);
@@ -323,6 +368,10 @@ public class NonSnarlIdpMetadataManager extends IdpMetadataManager implements Ex
 
     @Override
     public EntityDescriptor getEntityDescriptor(String entityID) throws MetadataProviderException {
+        ExtendedMetadataDelegate serviceProvider = getServiceProvider(entityID);
+        if (serviceProvider != null) {
+            return serviceProvider.getEntityDescriptor(entityID);
+        }
         EntityDescriptor descriptor = null;
         for (MetadataProvider provider : getProviders()) {
             log.debug("Checking child metadata provider for entity descriptor with entity ID: {}", entityID);
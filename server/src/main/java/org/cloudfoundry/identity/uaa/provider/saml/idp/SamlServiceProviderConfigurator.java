@@ -24,6 +24,7 @@ import org.apache.http.client.utils.URIBuilder;
 import org.cloudfoundry.identity.uaa.cache.UrlContentCache;
 import org.cloudfoundry.identity.uaa.provider.saml.ConfigMetadataProvider;
 import org.cloudfoundry.identity.uaa.provider.saml.FixedHttpMetaDataProvider;
+import org.cloudfoundry.identity.uaa.util.RestTemplateFactory;
 import org.cloudfoundry.identity.uaa.util.UaaHttpRequestUtils;
 import org.cloudfoundry.identity.uaa.zone.IdentityZone;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
@@ -43,6 +44,8 @@ import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Holds internal state of available SAML Service Providers.
@@ -59,6 +62,9 @@ public class SamlServiceProviderConfigurator {
     private Set<String> supportedNameIDs = new HashSet<>(Arrays.asList(NameIDType.EMAIL, NameIDType.PERSISTENT,
             NameIDType.UNSPECIFIED));
     private UrlContentCache contentCache;
+    private RestTemplateFactory restTemplateFactory;
+
+    private final ConcurrentMap<String, ZoneServiceProviders> registry = new ConcurrentHashMap<>();
 
     private Timer dummyTimer = new Timer() {
 
@@ -112,6 +118,22 @@ public class SamlServiceProviderConfigurator {
         return this;
     }
 
+    public RestTemplateFactory getRestTemplateFactory() {
+        return restTemplateFactory;
+    }
+
+    public SamlServiceProviderConfigurator setRestTemplateFactory(RestTemplateFactory restTemplateFactory) {
+        this.restTemplateFactory = restTemplateFactory;
+        return this;
+    }
+
+    protected RestTemplate getMetadataRestTemplate(boolean skipSslValidation) {
+        if (restTemplateFactory != null) {
+            return restTemplateFactory.getRestTemplate(skipSslValidation);
+        }
+        return new RestTemplate(UaaHttpRequestUtils.createRequestFactory(skipSslValidation));
+    }
+
     public SamlServiceProviderConfigurator() {
         dummyTimer.cancel();
     }
@@ -120,18 +142,57 @@ public class SamlServiceProviderConfigurator {
         return getSamlServiceProvidersForZone(IdentityZoneHolder.get());
     }
 
+    /**
+     * Returns the active service providers of a zone with parsed and initialized metadata.
+     * Only providers that were added or changed since the last call have their metadata parsed;
+     * the others are served from the zone's registry.
+     */
     public List<SamlServiceProviderHolder> getSamlServiceProvidersForZone(IdentityZone zone) {
-        List<SamlServiceProviderHolder> result = new LinkedList<>();
-        for (SamlServiceProvider provider: providerProvisioning.retrieveActive(zone.getId())) {
-            try {
-                SamlServiceProviderHolder samlServiceProviderHolder =
-                        new SamlServiceProviderHolder(getExtendedMetadataDelegate(provider), provider);
-                result.add(samlServiceProviderHolder);
-            }catch(MetadataProviderException e) {
-                logger.error("Unable to configure SAML SP Metadata for ServiceProvider:" + provider.getEntityId(), e);
-            }
+        return getZoneServiceProviders(zone).holders;
+    }
+
+    /**
+     * @return the active service provider with the given entityID in the zone, or null
+     */
+    public SamlServiceProviderHolder getSamlServiceProviderForZone(IdentityZone zone, String entityId) {
+        return getZoneServiceProviders(zone).byEntityId.get(entityId);
+    }
+
+    private ZoneServiceProviders getZoneServiceProviders(IdentityZone zone) {
+        List<SamlServiceProvider> active = providerProvisioning.retrieveActive(zone.getId());
+        ZoneServiceProviders current = registry.get(zone.getId());
+        if (current != null && current.isCurrent(active)) {
+            return current;
+        }
+        ZoneServiceProviders updated = new ZoneServiceProviders(active, current);
+        registry.put(zone.getId(), updated);
+        return updated;
+    }
+
+    /**
+     * Adds or replaces a persisted service provider in its zone's registry, without parsing
+     * the metadata of the zone's other providers.
+     */
+    public void addSamlServiceProvider(SamlServiceProvider provider) {
+        registry.computeIfPresent(provider.getIdentityZoneId(), (zoneId, current) -> current.with(provider));
+    }
+
+    /**
+     * Removes a service provider from its zone's registry.
+     */
+    public void removeSamlServiceProvider(SamlServiceProvider provider) {
+        registry.computeIfPresent(provider.getIdentityZoneId(), (zoneId, current) -> current.without(key(provider)));
+    }
+
+    private SamlServiceProviderHolder createHolder(SamlServiceProvider provider) {
+        try {
+            ExtendedMetadataDelegate delegate = getExtendedMetadataDelegate(provider);
+            delegate.initialize();
+            return new SamlServiceProviderHolder(delegate, provider);
+        } catch (MetadataProviderException e) {
+            logger.error("Unable to configure SAML SP Metadata for ServiceProvider:" + provider.getEntityId(), e);
+            return null;
         }
-        return Collections.unmodifiableList(result);
     }
 
     /**
@@ -242,7 +303,7 @@ public class SamlServiceProviderConfigurator {
             fixedHttpMetaDataProvider = FixedHttpMetaDataProvider.buildProvider(
                 dummyTimer, getClientParams(),
                 adjustURIForPort(def.getMetaDataLocation()),
-                new RestTemplate(UaaHttpRequestUtils.createRequestFactory(def.isSkipSslValidation())),
+                getMetadataRestTemplate(def.isSkipSslValidation()),
                 this.contentCache
 
             );
@@ -293,4 +354,103 @@ public class SamlServiceProviderConfigurator {
     public void setSupportedNameIDs(Set<String> supportedNameIDs) {
         this.supportedNameIDs = supportedNameIDs;
     }
+
+    private static String key(SamlServiceProvider provider) {
+        return provider.getId() != null ? provider.getId() : provider.getEntityId();
+    }
+
+    private static String revision(SamlServiceProvider provider) {
+        long lastModified = provider.getLastModified() == null ? 0 : provider.getLastModified().getTime();
+        return provider.getVersion() + ":" + lastModified;
+    }
+
+    /**
+     * Immutable registry of the service providers of one zone. Changes produce a new instance
+     * that reuses the holders of unchanged providers, so readers never see a partial update.
+     */
+    private class ZoneServiceProviders {
+        private final Map<String, String> revisions;
+        private final Map<String, SamlServiceProviderHolder> byId;
+        private final Map<String, SamlServiceProviderHolder> byEntityId;
+        private final List<SamlServiceProviderHolder> holders;
+
+        ZoneServiceProviders(List<SamlServiceProvider> active, ZoneServiceProviders previous) {
+            Map<String, String> revisions = new HashMap<>();
+            Map<String, SamlServiceProviderHolder> byId = new LinkedHashMap<>();
+            for (SamlServiceProvider provider : active) {
+                String revision = revision(provider);
+                SamlServiceProviderHolder holder = previous != null && revision.equals(previous.revisions.get(key(provider))) ?
+                    previous.byId.get(key(provider)) :
+                    createHolder(provider);
+                // providers whose metadata could not be loaded are not recorded, so they are retried
+                if (holder != null) {
+                    revisions.put(key(provider), revision);
+                    byId.put(key(provider), holder);
+                }
+            }
+            this.revisions = revisions;
+            this.byId = byId;
+            this.byEntityId = indexByEntityId(byId.values());
+            this.holders = Collections.unmodifiableList(new ArrayList<>(byId.values()));
+        }
+
+        private ZoneServiceProviders(Map<String, String> revisions, Map<String, SamlServiceProviderHolder> byId) {
+            this.revisions = revisions;
+            this.byId = byId;
+            this.byEntityId = indexByEntityId(byId.values());
+            this.holders = Collections.unmodifiableList(new ArrayList<>(byId.values()));
+        }
+
+        private Map<String, SamlServiceProviderHolder> indexByEntityId(Collection<SamlServiceProviderHolder> holders) {
+            Map<String, SamlServiceProviderHolder> result = new HashMap<>();
+            for (SamlServiceProviderHolder holder : holders) {
+                result.putIfAbsent(holder.getSamlServiceProvider().getEntityId(), holder);
+            }
+            return result;
+        }
+
+        boolean isCurrent(List<SamlServiceProvider> active) {
+            if (active.size() != revisions.size()) {
+                return false;
+            }
+            for (SamlServiceProvider provider : active) {
+                if (!revision(provider).equals(revisions.get(key(provider)))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        ZoneServiceProviders with(SamlServiceProvider provider) {
+            if (!provider.isActive()) {
+                return without(key(provider));
+            }
+            String revision = revision(provider);
+            if (revision.equals(revisions.get(key(provider)))) {
+                return this;
+            }
+            SamlServiceProviderHolder holder = createHolder(provider);
+            Map<String, String> revisions = new HashMap<>(this.revisions);
+            Map<String, SamlServiceProviderHolder> byId = new LinkedHashMap<>(this.byId);
+            if (holder != null) {
+                revisions.put(key(provider), revision);
+                byId.put(key(provider), holder);
+            } else {
+                revisions.remove(key(provider));
+                byId.remove(key(provider));
+            }
+            return new ZoneServiceProviders(revisions, byId);
+        }
+
+        ZoneServiceProviders without(String id) {
+            if (!revisions.containsKey(id)) {
+                return this;
+            }
+            Map<String, String> revisions = new HashMap<>(this.revisions);
+            Map<String, SamlServiceProviderHolder> byId = new LinkedHashMap<>(this.byId);
+            revisions.remove(id);
+            byId.remove(id);
+            return new ZoneServiceProviders(revisions, byId);
+        }
+    }
 }
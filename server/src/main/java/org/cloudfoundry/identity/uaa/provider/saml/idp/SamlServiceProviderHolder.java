@@ -18,6 +18,7 @@ public class SamlServiceProviderHolder {
 
     private final ExtendedMetadataDelegate extendedMetadataDelegate;
     private final SamlServiceProvider samlServiceProvider;
+    private volatile boolean filtersInitialized;
 
     public SamlServiceProviderHolder(ExtendedMetadataDelegate extendedMetadataDelegate,
             SamlServiceProvider samlServiceProvider) {
@@ -34,6 +35,14 @@ public class SamlServiceProviderHolder {
         return samlServiceProvider;
     }
 
+    boolean isFiltersInitialized() {
+        return filtersInitialized;
+    }
+
+    void setFiltersInitialized(boolean filtersInitialized) {
+        this.filtersInitialized = filtersInitialized;
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
@@ -14,6 +14,7 @@ package org.cloudfoundry.identity.uaa.resources.jdbc;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.db.ReadReplicaRoutingDataSource;
 import org.cloudfoundry.identity.uaa.resources.Queryable;
 import org.springframework.dao.DataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
@@ -81,17 +82,15 @@ public abstract class AbstractQueryable<T> implements Queryable<T> {
 
         SearchQueryConverter.ProcessedFilter where = queryConverter.convert(filter, sortBy, ascending);
         logger.debug("Filtering groups with SQL: " + where);
-        List<T> result;
         try {
             String completeSql = getQuerySQL(filter, where);
             logger.debug("complete sql: " + completeSql + ", params: " + where.getParams());
             if (pageSize > 0 && pageSize < Integer.MAX_VALUE) {
-                result = pagingListFactory.createJdbcPagingList(completeSql, where.getParams(), rowMapper, pageSize);
+                return pagingListFactory.createJdbcPagingList(completeSql, where.getParams(), rowMapper, pageSize);
             }
             else {
-                result = jdbcTemplate.query(completeSql, where.getParams(), rowMapper);
+                return ReadReplicaRoutingDataSource.readOnly(() -> jdbcTemplate.query(completeSql, where.getParams(), rowMapper));
             }
-            return result;
         } catch (DataAccessException e) {
             logger.debug("Filter '" + filter + "' generated invalid SQL", e);
             throw new IllegalArgumentException("Invalid filter: " + filter);
@@ -0,0 +1,54 @@
+/*******************************************************************************
+ *
+ *     Copyright (c) [2017] Cloud Foundry Foundation. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.resources.jdbc;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+
+import java.util.List;
+
+/**
+ * Deletes rows and returns what was deleted, so that a single use value such as an
+ * authorization code is handed out to one caller only.
+ */
+public interface DeleteReturningSqlAdapter {
+
+    /**
+     * @return a statement that deletes the rows of the table matching the where clause and
+     * returns the given columns of the deleted rows, or null if the database cannot do both
+     * in one statement
+     */
+    String getDeleteReturningSql(String table, String columns, String where);
+
+    /**
+     * Deletes the rows matching the where clause and returns the first of them. When the
+     * database has no delete returning statement the rows are selected first, and only
+     * returned if this call is the one that deleted them.
+     *
+     * @return the deleted row, or null if no row was deleted by this call
+     */
+    default <T> T consume(JdbcTemplate template, RowMapper<T> mapper, String table, String columns, String where, Object... args) {
+        String sql = getDeleteReturningSql(table, columns, where);
+        if (sql != null) {
+            List<T> deleted = template.query(sql, mapper, args);
+            return deleted.isEmpty() ? null : deleted.get(0);
+        }
+        List<T> rows = template.query("select " + columns + " from " + table + " where " + where, mapper, args);
+        if (rows.isEmpty()) {
+            return null;
+        }
+        //a concurrent caller may have deleted the rows since they were selected
+        int deleted = template.update("delete from " + table + " where " + where, args);
+        return deleted > 0 ? rows.get(0) : null;
+    }
+}
@@ -20,6 +20,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 
+import org.cloudfoundry.identity.uaa.db.ReadReplicaRoutingDataSource;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
@@ -29,6 +30,10 @@ import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
  * List implementation backed by a database query, allowing iteration and
  * sublist operations without pulling the wole dataset into memory.
  * </p>
+ *
+ * <p>
+ * The pages may be read from a read replica, see {@link ReadReplicaRoutingDataSource}.
+ * </p>
  * 
  * <p>
  * Not thread safe.
@@ -73,7 +78,7 @@ public class JdbcPagingList<E> extends AbstractList<E> {
         this.sql = sql;
         this.args = args;
         this.mapper = mapper;
-        this.size = parameterJdbcTemplate.queryForObject(getCountSql(sql), args, Integer.class);
+        this.size = ReadReplicaRoutingDataSource.readOnly(() -> parameterJdbcTemplate.queryForObject(getCountSql(sql), args, Integer.class));
         this.pageSize = pageSize;
         this.limitSqlAdapter = limitSqlAdapter;
     }
@@ -84,7 +89,7 @@ public class JdbcPagingList<E> extends AbstractList<E> {
             throw new ArrayIndexOutOfBoundsException(index);
         }
         if (current == null || index - start >= pageSize || index < start) {
-            current = parameterJdbcTemplate.query(limitSqlAdapter.getLimitSql(sql, index, pageSize), args, mapper);
+            current = ReadReplicaRoutingDataSource.readOnly(() -> parameterJdbcTemplate.query(limitSqlAdapter.getLimitSql(sql, index, pageSize), args, mapper));
             start = index;
         }
         return current.get(index - start);
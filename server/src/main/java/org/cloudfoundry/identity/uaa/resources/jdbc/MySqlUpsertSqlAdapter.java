@@ -0,0 +1,31 @@
+/*******************************************************************************
+ *
+ *     Copyright (c) [2017] Cloud Foundry Foundation. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.resources.jdbc;
+
+import java.util.List;
+
+import static java.util.stream.Collectors.joining;
+
+public class MySqlUpsertSqlAdapter implements UpsertSqlAdapter {
+
+    @Override
+    public String getUpsertSql(String table, List<String> columns, List<String> keyColumns, int rows) {
+        return "insert into " + table + " (" + String.join(",", columns) + ") values " + UpsertSqlAdapter.getValuesSql(columns, rows) +
+            " on duplicate key update " +
+            columns.stream()
+                .filter(column -> !keyColumns.contains(column))
+                .map(column -> column + "=values(" + column + ")")
+                .collect(joining(","));
+    }
+
+}
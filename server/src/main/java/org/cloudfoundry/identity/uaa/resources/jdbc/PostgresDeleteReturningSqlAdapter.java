@@ -0,0 +1,22 @@
+/*******************************************************************************
+ *
+ *     Copyright (c) [2017] Cloud Foundry Foundation. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.resources.jdbc;
+
+public class PostgresDeleteReturningSqlAdapter implements DeleteReturningSqlAdapter {
+
+    @Override
+    public String getDeleteReturningSql(String table, String columns, String where) {
+        return "delete from " + table + " where " + where + " returning " + columns;
+    }
+
+}
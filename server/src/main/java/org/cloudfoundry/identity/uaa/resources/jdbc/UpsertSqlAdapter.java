@@ -0,0 +1,38 @@
+/*******************************************************************************
+ *
+ *     Copyright (c) [2017] Cloud Foundry Foundation. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.resources.jdbc;
+
+import java.util.Collections;
+import java.util.List;
+
+public interface UpsertSqlAdapter {
+
+    /**
+     * @param table the table to write to
+     * @param columns the columns of each row, the parameters are bound row by row in this order
+     * @param keyColumns the columns of the primary key, a subset of the columns
+     * @param rows the number of rows in the statement
+     * @return a statement that inserts the rows, updating the existing rows with the same key,
+     * or null if the database has no such statement
+     */
+    String getUpsertSql(String table, List<String> columns, List<String> keyColumns, int rows);
+
+    /**
+     * @return the parameter placeholders of the rows, such as <code>(?,?),(?,?)</code>
+     */
+    static String getValuesSql(List<String> columns, int rows) {
+        String row = "(" + String.join(",", Collections.nCopies(columns.size(), "?")) + ")";
+        return String.join(",", Collections.nCopies(rows, row));
+    }
+
+}
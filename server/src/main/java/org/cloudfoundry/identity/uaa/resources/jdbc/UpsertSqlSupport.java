@@ -0,0 +1,96 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2017] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.resources.jdbc;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes many rows of a table with the statements of an {@link UpsertSqlAdapter}
+ */
+public final class UpsertSqlSupport {
+
+    /**
+     * Keeps a multi row upsert well below the parameter limits of the databases
+     */
+    public static final int UPSERT_ROWS = 100;
+
+    private UpsertSqlSupport() {
+    }
+
+    /**
+     * Sets the values of the columns of a row
+     */
+    @FunctionalInterface
+    public interface RowValuesSetter<T> {
+        /**
+         * @param pos the position of the first value of the row
+         * @return the position after the values of the row
+         */
+        int setValues(PreparedStatement ps, int pos, T row) throws SQLException;
+    }
+
+    /**
+     * Inserts the rows, updating the existing rows with the same key. Uses one upsert statement per
+     * {@value #UPSERT_ROWS} rows, or one batch of updates and one batch of inserts for the rows that
+     * did not exist yet when the database has no upsert statement.
+     *
+     * @param rows the rows to write, with distinct keys
+     * @param insertValues sets the values of the columns of a row, in the order of the columns
+     * @param updateSql updates the row with the key of a row, used when there is no upsert statement
+     * @param updateValues sets the parameters of the update statement for a row
+     */
+    public static <T> void upsert(JdbcTemplate jdbcTemplate,
+                                  UpsertSqlAdapter upsertSqlAdapter,
+                                  String table,
+                                  List<String> columns,
+                                  List<String> keyColumns,
+                                  List<T> rows,
+                                  RowValuesSetter<T> insertValues,
+                                  String updateSql,
+                                  ParameterizedPreparedStatementSetter<T> updateValues) {
+        if (rows.isEmpty()) {
+            return;
+        }
+        if (upsertSqlAdapter.getUpsertSql(table, columns, keyColumns, 1) != null) {
+            for (int from = 0; from < rows.size(); from += UPSERT_ROWS) {
+                List<T> chunk = rows.subList(from, Math.min(rows.size(), from + UPSERT_ROWS));
+                jdbcTemplate.update(upsertSqlAdapter.getUpsertSql(table, columns, keyColumns, chunk.size()), ps -> {
+                    int pos = 1;
+                    for (T row : chunk) {
+                        pos = insertValues.setValues(ps, pos, row);
+                    }
+                });
+            }
+            return;
+        }
+        int[] updated = jdbcTemplate.batchUpdate(updateSql, rows, rows.size(), updateValues)[0];
+        List<T> missing = new ArrayList<>();
+        for (int i = 0; i < rows.size(); i++) {
+            if (updated[i] == 0) {
+                missing.add(rows.get(i));
+            }
+        }
+        if (!missing.isEmpty()) {
+            String insertSql = "insert into " + table + " (" + String.join(",", columns) + ") values " + UpsertSqlAdapter.getValuesSql(columns, 1);
+            jdbcTemplate.batchUpdate(insertSql, missing, missing.size(), (ps, row) -> insertValues.setValues(ps, 1, row));
+        }
+    }
+}
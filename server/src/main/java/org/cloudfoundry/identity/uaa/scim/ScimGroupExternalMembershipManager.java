@@ -15,6 +15,8 @@ package org.cloudfoundry.identity.uaa.scim;
 import org.cloudfoundry.identity.uaa.scim.exception.MemberAlreadyExistsException;
 import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceNotFoundException;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 public interface ScimGroupExternalMembershipManager {
@@ -31,6 +33,18 @@ public interface ScimGroupExternalMembershipManager {
     List<ScimGroupExternalMember> getExternalGroupMapsByExternalGroup(String externalGroup, String origin, final String zoneId)
         throws ScimResourceNotFoundException;
 
+    /**
+     * Resolves the mappings of all given external groups at once, in the order of the external groups
+     */
+    default List<ScimGroupExternalMember> getExternalGroupMapsByExternalGroups(Collection<String> externalGroups, String origin, final String zoneId)
+        throws ScimResourceNotFoundException {
+        List<ScimGroupExternalMember> result = new ArrayList<>();
+        for (String externalGroup : externalGroups) {
+            result.addAll(getExternalGroupMapsByExternalGroup(externalGroup, origin, zoneId));
+        }
+        return result;
+    }
+
     List<ScimGroupExternalMember> getExternalGroupMapsByGroupName(String groupName, String origin, final String zoneId)
         throws ScimResourceNotFoundException;
 
@@ -16,6 +16,7 @@ import org.cloudfoundry.identity.uaa.scim.exception.MemberAlreadyExistsException
 import org.cloudfoundry.identity.uaa.scim.exception.MemberNotFoundException;
 import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceNotFoundException;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Set;
 
@@ -127,4 +128,15 @@ public interface ScimGroupMembershipManager  {
      */
     Set<ScimGroup> getGroupsWithExternalMember(String memberId, String origin) throws ScimResourceNotFoundException;
 
+    /**
+     * Adds the member to all of the given groups at once. Groups the member already belongs to,
+     * and default groups, are skipped.
+     */
+    void addMemberToGroups(Collection<String> groupIds, ScimGroupMember member, String zoneId);
+
+    /**
+     * Removes the member from all of the given groups at once
+     */
+    int removeMemberFromGroups(Collection<String> groupIds, String memberId, String zoneId);
+
 }
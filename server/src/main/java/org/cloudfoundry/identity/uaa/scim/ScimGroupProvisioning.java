@@ -15,10 +15,23 @@ package org.cloudfoundry.identity.uaa.scim;
 import org.cloudfoundry.identity.uaa.resources.Queryable;
 import org.cloudfoundry.identity.uaa.resources.ResourceManager;
 
+import java.util.Collection;
+import java.util.List;
+
 public interface ScimGroupProvisioning extends ResourceManager<ScimGroup>, Queryable<ScimGroup> {
     String GROUP_BY_NAME_FILTER = "displayName eq \"%s\"";
 
     ScimGroup createOrGet(ScimGroup group, String zoneId);
 
     ScimGroup getByName(String displayName, String zoneId);
+
+    /**
+     * Retrieves the groups with any of the given display names, ignoring case
+     */
+    List<ScimGroup> getByNames(Collection<String> displayNames, String zoneId);
+
+    /**
+     * Creates the groups that do not exist yet and returns all groups with the given display names
+     */
+    List<ScimGroup> createOrGetAll(Collection<String> displayNames, String zoneId);
 }
@@ -12,6 +12,10 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.scim.bootstrap;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.cloudfoundry.identity.uaa.audit.event.EntityDeletedEvent;
@@ -21,6 +25,8 @@ import org.cloudfoundry.identity.uaa.authentication.manager.ExternalGroupAuthori
 import org.cloudfoundry.identity.uaa.authentication.manager.InvitedUserAuthenticatedEvent;
 import org.cloudfoundry.identity.uaa.authentication.manager.NewUserAuthenticatedEvent;
 import org.cloudfoundry.identity.uaa.constants.OriginKeys;
+import org.cloudfoundry.identity.uaa.impl.config.BootstrapTasks;
+import org.cloudfoundry.identity.uaa.impl.config.JdbcBootstrapFingerprintStore;
 import org.cloudfoundry.identity.uaa.scim.ScimGroup;
 import org.cloudfoundry.identity.uaa.scim.ScimGroupMember;
 import org.cloudfoundry.identity.uaa.scim.ScimGroupMembershipManager;
@@ -32,6 +38,7 @@ import org.cloudfoundry.identity.uaa.scim.exception.MemberAlreadyExistsException
 import org.cloudfoundry.identity.uaa.scim.exception.MemberNotFoundException;
 import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceNotFoundException;
 import org.cloudfoundry.identity.uaa.user.UaaUser;
+import org.cloudfoundry.identity.uaa.zone.IdentityZone;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.context.ApplicationEvent;
@@ -44,14 +51,23 @@ import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
 import javax.validation.constraints.NotNull;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -73,6 +89,13 @@ public class ScimUserBootstrap implements
 
     private static final Log logger = LogFactory.getLog(ScimUserBootstrap.class);
 
+    private static final String FINGERPRINT_TYPE = "user";
+
+    /**
+     * Keeps the filters that look up the bootstrap users short
+     */
+    private static final int LOOKUP_CHUNK_SIZE = 50;
+
     private final ScimUserProvisioning scimUserProvisioning;
 
     private final ScimGroupProvisioning scimGroupProvisioning;
@@ -87,6 +110,15 @@ public class ScimUserBootstrap implements
 
     private ApplicationEventPublisher publisher;
 
+    /**
+     * Hash of the external groups each user had at the last group sync, null if disabled
+     */
+    private Cache<List<String>, String> externalGroupSyncCache;
+
+    private JdbcBootstrapFingerprintStore fingerprintStore;
+
+    private int threads = 1;
+
     /**
      * Flag to indicate that user accounts can be updated as well as created.
      *
@@ -100,6 +132,34 @@ public class ScimUserBootstrap implements
         return override;
     }
 
+    /**
+     * Skips the external group sync of a login for the given number of seconds when the user
+     * has exactly the same external groups as on the last login. Group memberships changed in
+     * between by other means are then only corrected after that time.
+     *
+     * @param seconds how long a sync is remembered, 0 (the default) syncs on every login
+     */
+    public void setExternalGroupSyncCacheSeconds(int seconds) {
+        externalGroupSyncCache = seconds > 0 ?
+            CacheBuilder.newBuilder().expireAfterWrite(seconds, TimeUnit.SECONDS).maximumSize(100000).<List<String>, String>build() :
+            null;
+    }
+
+    /**
+     * @param fingerprintStore if enabled, the users that did not change since the last start are skipped
+     */
+    public void setFingerprintStore(JdbcBootstrapFingerprintStore fingerprintStore) {
+        this.fingerprintStore = fingerprintStore;
+    }
+
+    /**
+     * @param threads the number of threads that check the passwords of the unchanged users, and
+     *            that create and update the changed users, when the fingerprint store is enabled (default 1)
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
     public ScimUserBootstrap(ScimUserProvisioning scimUserProvisioning,
                              ScimGroupProvisioning scimGroupProvisioning,
                              ScimGroupMembershipManager membershipManager,
@@ -123,20 +183,189 @@ public class ScimUserBootstrap implements
         List<UaaUser> users = new LinkedList(ofNullable(this.users).orElse(emptyList()));
         List<String> deleteMe = ofNullable(usersToDelete).orElse(emptyList());
         users.removeIf(u -> deleteMe.contains(u.getUsername()));
+        if (fingerprintStore != null && fingerprintStore.isEnabled()) {
+            addChangedUsers(users);
+            return;
+        }
         for (UaaUser u : users) {
             addUser(u);
         }
     }
 
+    /**
+     * Creates the missing users and, with the override flag, updates only the users whose
+     * configuration or stored state changed since their fingerprint was recorded. Groups are
+     * created up front, so that the users can be written, and their passwords hashed, in parallel.
+     * Group memberships that were changed by other means are only corrected when the user changes.
+     */
+    private void addChangedUsers(List<UaaUser> users) throws Exception {
+        IdentityZone zone = IdentityZoneHolder.get();
+        long start = System.nanoTime();
+        Map<String, String> fingerprints = fingerprintStore.getFingerprints(FINGERPRINT_TYPE, zone.getId());
+        Map<String, ScimUser> existingUsers = getScimUsers(users, zone.getId());
+        long loaded = System.nanoTime();
+
+        Map<UaaUser, ScimUser> scimUsers = new LinkedHashMap<>();
+        Map<UaaUser, String> unchanged = new LinkedHashMap<>();
+        for (UaaUser user : users) {
+            ScimUser scimUser = existingUsers.get(getUserKey(user.getUsername(), user.getOrigin()));
+            if (scimUser == null && hasText(user.getId())) {
+                scimUser = getScimUser(user);
+            }
+            scimUsers.put(user, scimUser);
+            if (scimUser != null && override && JdbcBootstrapFingerprintStore.matches(fingerprints.get(scimUser.getId()), getContent(user) + getState(scimUser))) {
+                unchanged.put(user, scimUser.getId());
+            }
+        }
+        // passwords are not part of the fingerprints, they are checked against the stored hashes
+        List<Callable<UaaUser>> passwordChecks = new ArrayList<>();
+        for (Map.Entry<UaaUser, String> entry : unchanged.entrySet()) {
+            passwordChecks.add(() -> didPasswordChange(entry.getKey(), entry.getValue(), zone.getId()) ? entry.getKey() : null);
+        }
+        Set<UaaUser> passwordChanged = new HashSet<>(BootstrapTasks.runAll(passwordChecks, threads, zone, "scim-user-bootstrap"));
+        passwordChanged.remove(null);
+
+        List<Callable<Void>> writes = new ArrayList<>();
+        Map<UaaUser, String> contents = new LinkedHashMap<>();
+        Set<String> groups = new LinkedHashSet<>();
+        int added = 0;
+        for (Map.Entry<UaaUser, ScimUser> entry : scimUsers.entrySet()) {
+            UaaUser user = entry.getKey();
+            ScimUser scimUser = entry.getValue();
+            if (scimUser == null) {
+                if (isEmpty(user.getPassword()) && user.getOrigin().equals(OriginKeys.UAA)) {
+                    logger.debug("User's password cannot be empty");
+                    throw new InvalidPasswordException("Password cannot be empty", BAD_REQUEST);
+                }
+                writes.add(() -> {
+                    createNewUser(user);
+                    return null;
+                });
+                added++;
+            } else if (!override) {
+                logger.debug("Override flag not set. Not registering existing user: " + user);
+                continue;
+            } else if (unchanged.containsKey(user) && !passwordChanged.contains(user)) {
+                continue;
+            } else {
+                writes.add(() -> {
+                    updateUser(scimUser, user);
+                    return null;
+                });
+            }
+            groups.addAll(convertToGroups(user.getAuthorities()));
+            contents.put(user, getContent(user));
+        }
+        groups.removeIf(group -> !hasText(group));
+        if (!groups.isEmpty()) {
+            scimGroupProvisioning.createOrGetAll(groups, zone.getId());
+        }
+        long compared = System.nanoTime();
+
+        BootstrapTasks.runAll(writes, threads, zone, "scim-user-bootstrap");
+        long written = System.nanoTime();
+
+        if (!contents.isEmpty()) {
+            Map<String, ScimUser> writtenUsers = getScimUsers(contents.keySet(), zone.getId());
+            Map<String, String> newFingerprints = new HashMap<>();
+            for (Map.Entry<UaaUser, String> content : contents.entrySet()) {
+                ScimUser scimUser = writtenUsers.get(getUserKey(content.getKey().getUsername(), content.getKey().getOrigin()));
+                if (scimUser != null) {
+                    newFingerprints.put(scimUser.getId(), JdbcBootstrapFingerprintStore.fingerprint(content.getValue() + getState(scimUser)));
+                }
+            }
+            fingerprintStore.saveFingerprints(FINGERPRINT_TYPE, zone.getId(), newFingerprints);
+        }
+        long end = System.nanoTime();
+        logger.info(String.format("Bootstrapped %d users in %d ms (%d added, %d updated, %d unchanged): load %d ms, compare %d ms, write %d ms, fingerprint %d ms",
+                                  users.size(),
+                                  TimeUnit.NANOSECONDS.toMillis(end - start),
+                                  added,
+                                  writes.size() - added,
+                                  users.size() - writes.size(),
+                                  TimeUnit.NANOSECONDS.toMillis(loaded - start),
+                                  TimeUnit.NANOSECONDS.toMillis(compared - loaded),
+                                  TimeUnit.NANOSECONDS.toMillis(written - compared),
+                                  TimeUnit.NANOSECONDS.toMillis(end - written)));
+    }
+
+    /**
+     * Looks up the users by user name and origin, with one query per {@value #LOOKUP_CHUNK_SIZE} users
+     * @return the users by {@link #getUserKey(String, String)}
+     */
+    private Map<String, ScimUser> getScimUsers(Collection<UaaUser> users, String zoneId) {
+        Map<String, List<String>> usernamesByOrigin = new LinkedHashMap<>();
+        for (UaaUser user : users) {
+            String origin = user.getOrigin() == null ? OriginKeys.UAA : user.getOrigin();
+            usernamesByOrigin.computeIfAbsent(origin, o -> new ArrayList<>()).add(user.getUsername());
+        }
+        Map<String, ScimUser> result = new HashMap<>();
+        for (Map.Entry<String, List<String>> entry : usernamesByOrigin.entrySet()) {
+            List<String> usernames = entry.getValue();
+            for (int from = 0; from < usernames.size(); from += LOOKUP_CHUNK_SIZE) {
+                List<String> chunk = usernames.subList(from, Math.min(usernames.size(), from + LOOKUP_CHUNK_SIZE));
+                String filter = chunk.stream()
+                    .map(username -> "userName eq " + filterValue(username))
+                    .collect(Collectors.joining(" or ", "origin eq " + filterValue(entry.getKey()) + " and (", ")"));
+                for (ScimUser scimUser : scimUserProvisioning.query(filter, zoneId)) {
+                    result.putIfAbsent(getUserKey(scimUser.getUserName(), scimUser.getOrigin()), scimUser);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static String getUserKey(String username, String origin) {
+        return (origin == null ? OriginKeys.UAA : origin) + "\n" + (username == null ? null : username.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * @return the value as a string of a SCIM filter, with its quotes and backslashes escaped
+     */
+    private static String filterValue(String value) {
+        return "\"" + String.valueOf(value).replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    /**
+     * @return true if the password of a UAA user is not the one stored for it
+     */
+    private boolean didPasswordChange(UaaUser user, String id, String zoneId) {
+        if (!OriginKeys.UAA.equals(user.getOrigin()) || !hasText(user.getPassword())) {
+            return false;
+        }
+        return !scimUserProvisioning.checkPasswordMatches(id, user.getPassword(), zoneId);
+    }
+
+    /**
+     * @return the configuration of the user, without the password
+     */
+    private String getContent(UaaUser user) {
+        return JdbcBootstrapFingerprintStore.getContent(user.getId(),
+                                                        user.getUsername(),
+                                                        user.getEmail(),
+                                                        user.getGivenName(),
+                                                        user.getFamilyName(),
+                                                        user.getPhoneNumber(),
+                                                        user.getOrigin(),
+                                                        user.getExternalId(),
+                                                        new TreeSet<>(convertToGroups(user.getAuthorities())));
+    }
+
+    private static String getState(ScimUser user) {
+        return JdbcBootstrapFingerprintStore.getContent(user.getId(),
+                                                        user.getVersion(),
+                                                        user.getMeta().getLastModified(),
+                                                        user.getPasswordLastModified());
+    }
+
     public void deleteUsers(@NotNull  List<String> deleteList) throws Exception {
         if (deleteList.size()==0) {
             return;
         }
         StringBuilder filter = new StringBuilder();
         for (int i = deleteList.size()-1; i>=0; i--) {
-            filter.append("username eq \"");
-            filter.append(deleteList.get(i));
-            filter.append("\"");
+            filter.append("username eq ");
+            filter.append(filterValue(deleteList.get(i)));
             if (i>0) {
                 filter.append(" or ");
             }
@@ -148,9 +377,9 @@ public class ScimUserBootstrap implements
     }
 
     protected ScimUser getScimUser(UaaUser user) {
-        List<ScimUser> users = scimUserProvisioning.query("userName eq \"" + user.getUsername() + "\"" +
-            " and origin eq \"" +
-            (user.getOrigin() == null ? OriginKeys.UAA : user.getOrigin()) + "\"", IdentityZoneHolder.get().getId());
+        List<ScimUser> users = scimUserProvisioning.query("userName eq " + filterValue(user.getUsername()) +
+            " and origin eq " +
+            filterValue(user.getOrigin() == null ? OriginKeys.UAA : user.getOrigin()), IdentityZoneHolder.get().getId());
 
         if (users.isEmpty() && StringUtils.hasText(user.getId())) {
             try {
@@ -254,19 +483,7 @@ public class ScimUserBootstrap implements
             //delete previous membership relation ships
             String origin = exEvent.getUser().getOrigin();
             if (!OriginKeys.UAA.equals(origin)) {
-                Set<ScimGroup> groupsWithMember = membershipManager.getGroupsWithExternalMember(exEvent.getUser().getId(), origin);
-                Map<String, ScimGroup> groupsMap = groupsWithMember.stream().collect(Collectors.toMap(ScimGroup::getDisplayName, Function.identity()));
-                Collection<? extends GrantedAuthority> externalAuthorities = exEvent.getExternalAuthorities();
-                for (GrantedAuthority authority : externalAuthorities) {
-                    if (groupsMap.containsKey(authority.getAuthority())) {
-                        groupsMap.remove(authority.getAuthority());
-                    } else {
-                        addToGroup(exEvent.getUser().getId(), authority.getAuthority(), origin, exEvent.isAddGroups());
-                    }
-                }
-                for (ScimGroup group : groupsMap.values()) {
-                    membershipManager.removeMemberById(group.getId(), exEvent.getUser().getId(), group.getZoneId());
-                }
+                syncExternalGroups(exEvent.getUser().getId(), origin, exEvent.getExternalAuthorities(), exEvent.isAddGroups());
             }
             //update the user itself
             if(event.isUserModified()) {
@@ -283,6 +500,65 @@ public class ScimUserBootstrap implements
         }
     }
 
+    /**
+     * Brings the external group memberships of the user in line with the groups of the login:
+     * group names are resolved with one query, missing groups are created in one batch,
+     * new memberships are inserted in one batch and stale ones removed with one statement.
+     */
+    private void syncExternalGroups(String userId, String origin, Collection<? extends GrantedAuthority> externalAuthorities, boolean addGroups) {
+        String zoneId = IdentityZoneHolder.get().getId();
+        Set<String> groupNames = externalAuthorities.stream()
+            .map(GrantedAuthority::getAuthority)
+            .filter(StringUtils::hasText)
+            .collect(Collectors.toCollection(LinkedHashSet::new));
+
+        List<String> syncKey = Arrays.asList(zoneId, userId, origin);
+        String syncHash = getSyncHash(groupNames, addGroups);
+        Cache<List<String>, String> cache = externalGroupSyncCache;
+        if (cache != null && syncHash.equals(cache.getIfPresent(syncKey))) {
+            logger.debug("External groups of user " + userId + " unchanged since last login, skipping group sync");
+            return;
+        }
+
+        Set<ScimGroup> groupsWithMember = membershipManager.getGroupsWithExternalMember(userId, origin);
+        Map<String, ScimGroup> staleGroups = groupsWithMember.stream().collect(Collectors.toMap(ScimGroup::getDisplayName, Function.identity()));
+        List<String> newGroupNames = new ArrayList<>();
+        for (String groupName : groupNames) {
+            if (staleGroups.remove(groupName) == null) {
+                newGroupNames.add(groupName);
+            }
+        }
+
+        if (!newGroupNames.isEmpty()) {
+            List<ScimGroup> groups = addGroups ?
+                scimGroupProvisioning.createOrGetAll(newGroupNames, zoneId) :
+                scimGroupProvisioning.getByNames(newGroupNames, zoneId);
+            if (logger.isDebugEnabled() && groups.size() < newGroupNames.size()) {
+                logger.debug("Not all groups found with names:" + newGroupNames + ". Group membership will not be added.");
+            }
+            ScimGroupMember groupMember = new ScimGroupMember(userId);
+            groupMember.setOrigin(origin);
+            membershipManager.addMemberToGroups(groups.stream().map(ScimGroup::getId).collect(Collectors.toList()), groupMember, zoneId);
+        }
+        if (!staleGroups.isEmpty()) {
+            membershipManager.removeMemberFromGroups(staleGroups.values().stream().map(ScimGroup::getId).collect(Collectors.toList()), userId, zoneId);
+        }
+
+        if (cache != null) {
+            cache.put(syncKey, syncHash);
+        }
+    }
+
+    private static String getSyncHash(Set<String> groupNames, boolean addGroups) {
+        List<String> sorted = new ArrayList<>(groupNames);
+        Collections.sort(sorted);
+        Hasher hasher = Hashing.sha256().newHasher().putBoolean(addGroups);
+        for (String name : sorted) {
+            hasher.putString(name, StandardCharsets.UTF_8).putChar('\n');
+        }
+        return hasher.hash().toString();
+    }
+
     private void addToGroup(String scimUserId, String gName) {
         addToGroup(scimUserId,gName, OriginKeys.UAA, true);
     }
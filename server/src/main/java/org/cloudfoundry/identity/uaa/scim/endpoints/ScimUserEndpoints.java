@@ -229,7 +229,10 @@ public class ScimUserEndpoints implements InitializingBean, ApplicationEventPubl
             user.setPassword("");
         } else {
             //only validate for UAA users
-            List<IdentityProvider> idpsForEmailDomain = DomainFilter.getIdpsForEmailDomain(identityProviderProvisioning.retrieveActive(IdentityZoneHolder.get().getId()), user.getEmails().get(0).getValue());
+            String zoneId = IdentityZoneHolder.get().getId();
+            List<IdentityProvider> idpsForEmailDomain =
+                DomainFilter.getEmailDomainIndex(identityProviderProvisioning, zoneId, () -> identityProviderProvisioning.retrieveActive(zoneId))
+                    .getIdpsForEmailDomain(user.getEmails().get(0).getValue());
             idpsForEmailDomain = idpsForEmailDomain.stream().filter(idp -> !idp.getOriginKey().equals(OriginKeys.UAA)).collect(Collectors.toList());
             if(!idpsForEmailDomain.isEmpty()) {
                 List<String> idpOrigins = idpsForEmailDomain.stream().map(idp -> idp.getOriginKey()).collect(Collectors.toList());
@@ -14,6 +14,8 @@ package org.cloudfoundry.identity.uaa.scim.jdbc;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.cache.CacheInvalidationListener;
+import org.cloudfoundry.identity.uaa.cache.JdbcCacheInvalidationBus;
 import org.cloudfoundry.identity.uaa.scim.ScimGroup;
 import org.cloudfoundry.identity.uaa.scim.ScimGroupExternalMember;
 import org.cloudfoundry.identity.uaa.scim.ScimGroupExternalMembershipManager;
@@ -21,12 +23,15 @@ import org.cloudfoundry.identity.uaa.scim.ScimGroupProvisioning;
 import org.cloudfoundry.identity.uaa.scim.exception.MemberAlreadyExistsException;
 import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceConstraintFailedException;
 import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceNotFoundException;
+import org.cloudfoundry.identity.uaa.util.TimeService;
+import org.cloudfoundry.identity.uaa.util.TimeServiceImpl;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jca.cci.InvalidResultSetAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.jdbc.core.ResultSetExtractor;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
@@ -35,10 +40,19 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class JdbcScimGroupExternalMembershipManager
-    implements ScimGroupExternalMembershipManager {
+    implements ScimGroupExternalMembershipManager, CacheInvalidationListener {
 
     private JdbcTemplate jdbcTemplate;
 
@@ -82,6 +96,19 @@ public class JdbcScimGroupExternalMembershipManager
                       JOIN_WHERE_ID
         );
 
+    public static final String GET_EXTERNAL_GROUP_MAPPINGS_BY_ORIGIN_SQL =
+        String.format("select %s from %s where gm.identity_zone_id = ? and %s",
+                      JOIN_EXTERNAL_GROUP_MAPPING_FIELDS,
+                      JOIN_GROUP_TABLE,
+                      JOIN_WHERE_ID
+        );
+
+    public static final String EXTERNAL_GROUP_MAPPING_REVISION_SQL =
+        String.format("select count(*), max(gm.added), sum(g.version), max(g.lastModified) from %s where gm.identity_zone_id = ? and %s",
+                      JOIN_GROUP_TABLE,
+                      JOIN_WHERE_ID
+        );
+
     public static final String GET_GROUPS_WITH_EXTERNAL_GROUP_MAPPINGS_SQL =
         String.format("select %s from %s where gm.identity_zone_id = ? and g.id=? and %s and lower(external_group) like lower(?)",
                       JOIN_EXTERNAL_GROUP_MAPPING_FIELDS,
@@ -103,10 +130,43 @@ public class JdbcScimGroupExternalMembershipManager
 
     private ScimGroupProvisioning scimGroupProvisioning;
 
+    /**
+     * External group to internal group mappings per zone and origin, used by the login path
+     */
+    private final ConcurrentMap<List<String>, ExternalGroupIndex> indexes = new ConcurrentHashMap<>();
+
+    private TimeService timeService = new TimeServiceImpl();
+
+    private long validationIntervalMillis = 0;
+
+    private JdbcCacheInvalidationBus invalidationBus;
+
     public JdbcScimGroupExternalMembershipManager(JdbcTemplate jdbcTemplate) {
         Assert.notNull(jdbcTemplate);
         this.jdbcTemplate = jdbcTemplate;
     }
+
+    public void setTimeService(TimeService timeService) {
+        this.timeService = timeService;
+    }
+
+    /**
+     * How long a loaded set of mappings is used before it is checked against the database.
+     * Mappings changed through this instance are reloaded right away; the check picks up
+     * changes made by other servers, as well as group renames and deletions.
+     * The default of 0 checks on every lookup, which costs a single aggregate query.
+     */
+    public void setValidationIntervalMillis(long validationIntervalMillis) {
+        this.validationIntervalMillis = validationIntervalMillis;
+    }
+
+    /**
+     * @param invalidationBus records the changed mappings for the caches of other servers
+     */
+    public void setInvalidationBus(JdbcCacheInvalidationBus invalidationBus) {
+        this.invalidationBus = invalidationBus;
+    }
+
     @Override
     public ScimGroupExternalMember mapExternalGroup(final String groupId,
                                                     final String externalGroup,
@@ -135,6 +195,8 @@ public class JdbcScimGroupExternalMembershipManager
                     }
                 });
                 System.out.println("update count = " + result);
+                invalidate(zoneId, origin);
+                publish(zoneId, origin);
             } catch (DuplicateKeyException e) {
                 // we should not throw, if the mapping exist, we should leave it
                 // there.
@@ -170,6 +232,8 @@ public class JdbcScimGroupExternalMembershipManager
                     ps.setString(4, zoneId);
                 }
             });
+            invalidate(zoneId, origin);
+            publish(zoneId, origin);
             if (count==1) {
                 return result;
             } else if (count==0) {
@@ -244,6 +308,8 @@ public class JdbcScimGroupExternalMembershipManager
                     ps.setString(2, zoneId);
                 }
             });
+            invalidate(zoneId);
+            publish(zoneId, null);
     }
 
     @Override
@@ -252,15 +318,107 @@ public class JdbcScimGroupExternalMembershipManager
                                                                              final String zoneId)
         throws ScimResourceNotFoundException {
 
-        return jdbcTemplate.query(GET_GROUPS_BY_EXTERNAL_GROUP_MAPPING_SQL, new PreparedStatementSetter() {
-            @Override
-            public void setValues(PreparedStatement ps) throws SQLException {
-                ps.setString(1, zoneId);
-                ps.setString(2, origin);
-                ps.setString(3, externalGroup);
+        return getExternalGroupMapsByExternalGroups(Collections.singletonList(externalGroup), origin, zoneId);
+    }
 
+    @Override
+    public List<ScimGroupExternalMember> getExternalGroupMapsByExternalGroups(final Collection<String> externalGroups,
+                                                                              final String origin,
+                                                                              final String zoneId)
+        throws ScimResourceNotFoundException {
+
+        List<ScimGroupExternalMember> result = new ArrayList<>();
+        if (externalGroups == null || externalGroups.isEmpty()) {
+            return result;
+        }
+        ExternalGroupIndex index = getIndex(origin, zoneId);
+        for (String externalGroup : externalGroups) {
+            if (externalGroup == null) {
+                continue;
             }
-        }, rowMapper);
+            for (ScimGroupExternalMember member : index.byExternalGroup.getOrDefault(externalGroup.toLowerCase(Locale.ROOT), Collections.emptyList())) {
+                result.add(copy(member));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Drops all cached mappings, for use after the mappings were changed outside of this instance
+     */
+    public void clearCache() {
+        indexes.clear();
+    }
+
+    /**
+     * Drops the cached mappings of a zone when one of its groups or mappings was changed by any server
+     */
+    @Override
+    public void invalidate(String entityType, String zoneId, String entityId) {
+        if (JdbcCacheInvalidationBus.EXTERNAL_GROUP_MAPPING.equals(entityType) && entityId != null) {
+            invalidate(zoneId, entityId);
+        } else if (JdbcCacheInvalidationBus.EXTERNAL_GROUP_MAPPING.equals(entityType)
+            || JdbcCacheInvalidationBus.GROUP.equals(entityType)
+            || JdbcCacheInvalidationBus.IDENTITY_ZONE.equals(entityType)) {
+            invalidate(zoneId);
+        }
+    }
+
+    private ExternalGroupIndex getIndex(String origin, String zoneId) {
+        long now = timeService.getCurrentTimeMillis();
+        List<String> key = Arrays.asList(zoneId, origin);
+        ExternalGroupIndex current = indexes.get(key);
+        if (current != null && now - current.validated < validationIntervalMillis) {
+            return current;
+        }
+        if (current != null) {
+            String revision = jdbcTemplate.query(EXTERNAL_GROUP_MAPPING_REVISION_SQL, new RevisionExtractor(), zoneId, origin);
+            if (revision.equals(current.revision)) {
+                ExternalGroupIndex validated = new ExternalGroupIndex(current.byExternalGroup, current.revision, now);
+                indexes.replace(key, current, validated);
+                return validated;
+            }
+        }
+        //read the revision first, so that a concurrent change causes a reload on the next lookup
+        String revision = jdbcTemplate.query(EXTERNAL_GROUP_MAPPING_REVISION_SQL, new RevisionExtractor(), zoneId, origin);
+        List<ScimGroupExternalMember> mappings = jdbcTemplate.query(GET_EXTERNAL_GROUP_MAPPINGS_BY_ORIGIN_SQL, rowMapper, zoneId, origin);
+        Map<String, List<ScimGroupExternalMember>> byExternalGroup = new HashMap<>();
+        for (ScimGroupExternalMember member : mappings) {
+            byExternalGroup.computeIfAbsent(member.getExternalGroup().toLowerCase(Locale.ROOT), k -> new ArrayList<>()).add(member);
+        }
+        ExternalGroupIndex loaded = new ExternalGroupIndex(byExternalGroup, revision, now);
+        if (current == null) {
+            indexes.putIfAbsent(key, loaded);
+        } else {
+            indexes.replace(key, current, loaded);
+        }
+        return loaded;
+    }
+
+    private void invalidate(String zoneId, String origin) {
+        indexes.remove(Arrays.asList(zoneId, origin));
+    }
+
+    private void invalidate(String zoneId) {
+        indexes.keySet().removeIf(key -> zoneId.equals(key.get(0)));
+    }
+
+    /**
+     * @param origin the origin of the changed mappings, null if mappings of any origin may have changed
+     */
+    private void publish(String zoneId, String origin) {
+        if (invalidationBus != null) {
+            invalidationBus.publish(JdbcCacheInvalidationBus.EXTERNAL_GROUP_MAPPING, zoneId, origin);
+        }
+    }
+
+    private static ScimGroupExternalMember copy(ScimGroupExternalMember member) {
+        ScimGroupExternalMember result = new ScimGroupExternalMember(member.getGroupId(), member.getExternalGroup());
+        result.setDisplayName(member.getDisplayName());
+        result.setOrigin(member.getOrigin());
+        result.getMeta().setCreated(member.getMeta().getCreated());
+        result.getMeta().setLastModified(member.getMeta().getLastModified());
+        return result;
     }
 
     private ScimGroupExternalMember getExternalGroupMap(final String groupId,
@@ -295,6 +453,28 @@ public class JdbcScimGroupExternalMembershipManager
         }
     }
 
+    private static final class RevisionExtractor implements ResultSetExtractor<String> {
+        @Override
+        public String extractData(ResultSet rs) throws SQLException {
+            if (!rs.next()) {
+                return "";
+            }
+            return rs.getLong(1) + ":" + rs.getString(2) + ":" + rs.getString(3) + ":" + rs.getString(4);
+        }
+    }
+
+    private static final class ExternalGroupIndex {
+        private final Map<String, List<ScimGroupExternalMember>> byExternalGroup;
+        private final String revision;
+        private final long validated;
+
+        private ExternalGroupIndex(Map<String, List<ScimGroupExternalMember>> byExternalGroup, String revision, long validated) {
+            this.byExternalGroup = byExternalGroup;
+            this.revision = revision;
+            this.validated = validated;
+        }
+    }
+
     public void setScimGroupProvisioning(ScimGroupProvisioning scimGroupProvisioning) {
         this.scimGroupProvisioning = scimGroupProvisioning;
     }
@@ -35,6 +35,7 @@ import org.springframework.beans.factory.InitializingBean;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.dao.IncorrectResultSizeDataAccessException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementSetter;
 import org.springframework.jdbc.core.RowMapper;
@@ -47,6 +48,7 @@ import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
@@ -54,6 +56,7 @@ import java.util.List;
 import java.util.Set;
 
 import static java.util.Collections.emptySet;
+import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toSet;
 import static org.springframework.util.StringUtils.hasText;
 
@@ -89,6 +92,8 @@ public class JdbcScimGroupMembershipManager implements ScimGroupMembershipManage
 
     public static final String DELETE_MEMBER_IN_GROUPS_SQL_GROUP = String.format("delete from %s where member_id=? and member_type='GROUP' and identity_zone_id=?",MEMBERSHIP_TABLE);
 
+    public static final String DELETE_MEMBER_IN_GROUP_LIST_SQL = String.format("delete from %s where member_id=? and identity_zone_id=? and group_id in (%%s)",MEMBERSHIP_TABLE);
+
     public static final String GROUP_TABLE = "groups";
 
     public static final String GET_GROUPS_BY_EXTERNAL_MEMBER_SQL = String.format("select g.id, g.displayName, g.description, g.created, g.lastModified, g.version, g.identity_zone_id" +
@@ -195,6 +200,64 @@ public class JdbcScimGroupMembershipManager implements ScimGroupMembershipManage
         return getMemberById(groupId, member.getMemberId(), zoneId);
     }
 
+    @Override
+    public void addMemberToGroups(Collection<String> groupIds, ScimGroupMember member, String zoneId) {
+        Set<String> defaultGroupIds = getDefaultUserGroups(zoneId).stream().map(ScimGroup::getId).collect(toSet());
+        List<String> ids = groupIds.stream()
+            .filter(id -> !defaultGroupIds.contains(id))
+            .distinct()
+            .collect(toList());
+        if (ids.isEmpty()) {
+            return;
+        }
+        final String type = (member.getType() == null ? ScimGroupMember.Type.USER : member.getType()).toString();
+        final Timestamp added = new Timestamp(new Date().getTime());
+        logger.debug("Associating groups:"+ids+" with member:"+member);
+        try {
+            jdbcTemplate.batchUpdate(ADD_MEMBER_SQL, new BatchPreparedStatementSetter() {
+                @Override
+                public void setValues(PreparedStatement ps, int i) throws SQLException {
+                    ps.setString(1, ids.get(i));
+                    ps.setString(2, member.getMemberId());
+                    ps.setString(3, type);
+                    ps.setNull(4, Types.VARCHAR);
+                    ps.setTimestamp(5, added);
+                    ps.setString(6, member.getOrigin());
+                    ps.setString(7, zoneId);
+                }
+
+                @Override
+                public int getBatchSize() {
+                    return ids.size();
+                }
+            });
+        } catch (DuplicateKeyException e) {
+            //some memberships exist already, add the rest one by one
+            for (String groupId : ids) {
+                try {
+                    jdbcTemplate.update(ADD_MEMBER_SQL, groupId, member.getMemberId(), type, null, added, member.getOrigin(), zoneId);
+                } catch (DuplicateKeyException ignore) {
+                }
+            }
+        }
+    }
+
+    @Override
+    public int removeMemberFromGroups(Collection<String> groupIds, String memberId, String zoneId) {
+        List<String> ids = new ArrayList<>(new HashSet<>(groupIds));
+        int deleted = 0;
+        for (int from = 0; from < ids.size(); from += JdbcScimGroupProvisioning.MAX_IN_CLAUSE_PARAMETERS) {
+            List<String> chunk = ids.subList(from, Math.min(ids.size(), from + JdbcScimGroupProvisioning.MAX_IN_CLAUSE_PARAMETERS));
+            String sql = String.format(DELETE_MEMBER_IN_GROUP_LIST_SQL, String.join(",", Collections.nCopies(chunk.size(), "?")));
+            List<Object> args = new ArrayList<>(chunk.size() + 2);
+            args.add(memberId);
+            args.add(zoneId);
+            args.addAll(chunk);
+            deleted += jdbcTemplate.update(sql, args.toArray());
+        }
+        return deleted;
+    }
+
     @Override
     public List<ScimGroupMember> getMembers(final String groupId, boolean includeEntities, String zoneId) throws ScimResourceNotFoundException {
         List<ScimGroupMember> result = jdbcTemplate.query(
@@ -17,6 +17,7 @@ import org.apache.commons.logging.LogFactory;
 import org.cloudfoundry.identity.uaa.audit.AuditEventType;
 import org.cloudfoundry.identity.uaa.audit.event.AbstractUaaEvent;
 import org.cloudfoundry.identity.uaa.audit.event.SystemDeletable;
+import org.cloudfoundry.identity.uaa.cache.JdbcCacheInvalidationBus;
 import org.cloudfoundry.identity.uaa.resources.jdbc.AbstractQueryable;
 import org.cloudfoundry.identity.uaa.resources.jdbc.JdbcPagingListFactory;
 import org.cloudfoundry.identity.uaa.resources.jdbc.SimpleSearchQueryConverter;
@@ -31,17 +32,25 @@ import org.cloudfoundry.identity.uaa.zone.event.IdentityZoneModifiedEvent;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.dao.IncorrectResultSizeDataAccessException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementSetter;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
 
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 import java.util.UUID;
+import java.util.stream.Collectors;
 
 import static org.cloudfoundry.identity.uaa.zone.ZoneManagementScopes.getSystemScopes;
 import static org.springframework.util.StringUtils.hasText;
@@ -52,6 +61,7 @@ public class JdbcScimGroupProvisioning extends AbstractQueryable<ScimGroup>
     private JdbcScimGroupExternalMembershipManager externalGroupMappingManager;
     private JdbcTemplate jdbcTemplate;
     private JdbcScimGroupMembershipManager membershipManager;
+    private JdbcCacheInvalidationBus invalidationBus;
 
     private final Log logger = LogFactory.getLog(getClass());
 
@@ -89,6 +99,17 @@ public class JdbcScimGroupProvisioning extends AbstractQueryable<ScimGroup>
         GROUP_TABLE
     );
 
+    public static final String GET_GROUPS_BY_NAMES_SQL = String.format(
+        "select %s from %s where identity_zone_id=? and lower(displayName) in (%%s)",
+        GROUP_FIELDS,
+        GROUP_TABLE
+    );
+
+    /**
+     * Maximum number of parameters in a single <tt>in</tt> clause
+     */
+    public static final int MAX_IN_CLAUSE_PARAMETERS = 500;
+
     public static final String QUERY_FOR_FILTER = String.format(
         "select %s from %s",
         GROUP_FIELDS,
@@ -158,6 +179,14 @@ public class JdbcScimGroupProvisioning extends AbstractQueryable<ScimGroup>
         setQueryConverter(new SimpleSearchQueryConverter());
     }
 
+    /**
+     * @param invalidationBus records the changed groups for the caches of other servers
+     */
+    public void setInvalidationBus(JdbcCacheInvalidationBus invalidationBus) {
+        this.invalidationBus = invalidationBus;
+        this.externalGroupMappingManager.setInvalidationBus(invalidationBus);
+    }
+
     public void createAndIgnoreDuplicate(final String name, final String zoneId) {
         try {
             create(new ScimGroup(null, name, zoneId), zoneId);
@@ -188,6 +217,65 @@ public class JdbcScimGroupProvisioning extends AbstractQueryable<ScimGroup>
         }
     }
 
+    @Override
+    public List<ScimGroup> getByNames(Collection<String> displayNames, String zoneId) {
+        List<String> names = displayNames.stream()
+            .filter(StringUtils::hasText)
+            .map(name -> name.toLowerCase(Locale.ROOT))
+            .distinct()
+            .collect(Collectors.toList());
+        List<ScimGroup> result = new ArrayList<>();
+        for (int from = 0; from < names.size(); from += MAX_IN_CLAUSE_PARAMETERS) {
+            List<String> chunk = names.subList(from, Math.min(names.size(), from + MAX_IN_CLAUSE_PARAMETERS));
+            String sql = String.format(GET_GROUPS_BY_NAMES_SQL, String.join(",", Collections.nCopies(chunk.size(), "?")));
+            List<Object> args = new ArrayList<>(chunk.size() + 1);
+            args.add(zoneId);
+            args.addAll(chunk);
+            result.addAll(jdbcTemplate.query(sql, rowMapper, args.toArray()));
+        }
+        return result;
+    }
+
+    @Override
+    public List<ScimGroup> createOrGetAll(Collection<String> displayNames, String zoneId) {
+        List<ScimGroup> existing = getByNames(displayNames, zoneId);
+        Set<String> found = existing.stream().map(g -> g.getDisplayName().toLowerCase(Locale.ROOT)).collect(Collectors.toSet());
+        List<String> missing = displayNames.stream()
+            .filter(StringUtils::hasText)
+            .filter(name -> found.add(name.toLowerCase(Locale.ROOT)))
+            .collect(Collectors.toList());
+        if (missing.isEmpty()) {
+            return existing;
+        }
+        validateGroup(new ScimGroup(null, null, zoneId));
+        final Timestamp now = new Timestamp(new Date().getTime());
+        try {
+            jdbcTemplate.batchUpdate(ADD_GROUP_SQL, new BatchPreparedStatementSetter() {
+                @Override
+                public void setValues(PreparedStatement ps, int i) throws SQLException {
+                    int pos = 1;
+                    ps.setString(pos++, UUID.randomUUID().toString());
+                    ps.setString(pos++, missing.get(i));
+                    ps.setString(pos++, null);
+                    ps.setTimestamp(pos++, now);
+                    ps.setTimestamp(pos++, now);
+                    ps.setInt(pos++, 0);
+                    ps.setString(pos++, zoneId);
+                }
+
+                @Override
+                public int getBatchSize() {
+                    return missing.size();
+                }
+            });
+            publish(zoneId, null);
+        } catch (DuplicateKeyException e) {
+            //another request created some of the groups, create the rest one by one
+            missing.forEach(name -> createAndIgnoreDuplicate(name, zoneId));
+        }
+        return getByNames(displayNames, zoneId);
+    }
+
     @Override
     public void onApplicationEvent(AbstractUaaEvent event) {
         if (event!=null && event instanceof IdentityZoneModifiedEvent) {
@@ -251,6 +339,7 @@ public class JdbcScimGroupProvisioning extends AbstractQueryable<ScimGroup>
             throw new ScimResourceAlreadyExistsException("A group with displayName: " + group.getDisplayName()
                             + " already exists.");
         }
+        publish(zoneId, id, group.getVersion());
         return retrieve(id, zoneId);
     }
 
@@ -276,6 +365,7 @@ public class JdbcScimGroupProvisioning extends AbstractQueryable<ScimGroup>
             if (updated != 1) {
                 throw new IncorrectResultSizeDataAccessException(1, updated);
             }
+            publish(zoneId, id, group.getVersion() + 1);
             return retrieve(id, zoneId);
         } catch (DuplicateKeyException ex) {
             throw new InvalidScimResourceException("A group with displayName: " + group.getDisplayName()
@@ -297,6 +387,7 @@ public class JdbcScimGroupProvisioning extends AbstractQueryable<ScimGroup>
         if (deleted != 1) {
             throw new IncorrectResultSizeDataAccessException(1, deleted);
         }
+        publish(zoneId, id);
         return group;
     }
 
@@ -305,12 +396,19 @@ public class JdbcScimGroupProvisioning extends AbstractQueryable<ScimGroup>
         jdbcTemplate.update(DELETE_ZONE_ADMIN_GROUPS_BY_ZONE, IdentityZone.getUaa().getId(), "zones." + zoneId + ".%");
         jdbcTemplate.update(DELETE_EXTERNAL_GROUP_BY_ZONE, zoneId);
         jdbcTemplate.update(DELETE_GROUP_MEMBERSHIP_BY_ZONE, zoneId);
-        return jdbcTemplate.update(DELETE_GROUP_BY_ZONE, zoneId);
+        int deleted = jdbcTemplate.update(DELETE_GROUP_BY_ZONE, zoneId);
+        publish(IdentityZone.getUaa().getId(), null);
+        publish(zoneId, null);
+        publishMappings(zoneId, null);
+        return deleted;
     }
 
     public int deleteByOrigin(String origin, String zoneId) {
         jdbcTemplate.update(DELETE_EXTERNAL_GROUP_BY_PROVIDER, zoneId, origin);
-        return jdbcTemplate.update(DELETE_GROUP_MEMBERSHIP_BY_PROVIDER, zoneId, origin);
+        int deleted = jdbcTemplate.update(DELETE_GROUP_MEMBERSHIP_BY_PROVIDER, zoneId, origin);
+        publish(zoneId, null);
+        publishMappings(zoneId, origin);
+        return deleted;
     }
 
     @Override
@@ -326,6 +424,22 @@ public class JdbcScimGroupProvisioning extends AbstractQueryable<ScimGroup>
         return result;
     }
 
+    private void publish(String zoneId, String groupId) {
+        publish(zoneId, groupId, null);
+    }
+
+    private void publish(String zoneId, String groupId, Integer version) {
+        if (invalidationBus != null) {
+            invalidationBus.publish(JdbcCacheInvalidationBus.GROUP, zoneId, groupId, version);
+        }
+    }
+
+    private void publishMappings(String zoneId, String origin) {
+        if (invalidationBus != null) {
+            invalidationBus.publish(JdbcCacheInvalidationBus.EXTERNAL_GROUP_MAPPING, zoneId, origin);
+        }
+    }
+
     protected void validateGroup(ScimGroup group) throws ScimResourceConstraintFailedException {
         if (!hasText(group.getZoneId())) {
             throw new ScimResourceConstraintFailedException("zoneId is a required field");
@@ -15,6 +15,7 @@ package org.cloudfoundry.identity.uaa.scim.jdbc;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.cloudfoundry.identity.uaa.audit.event.SystemDeletable;
+import org.cloudfoundry.identity.uaa.cache.JdbcCacheInvalidationBus;
 import org.cloudfoundry.identity.uaa.constants.OriginKeys;
 import org.cloudfoundry.identity.uaa.resources.ResourceMonitor;
 import org.cloudfoundry.identity.uaa.resources.jdbc.AbstractQueryable;
@@ -31,6 +32,7 @@ import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceConstraintFailed
 import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceNotFoundException;
 import org.cloudfoundry.identity.uaa.scim.util.ScimUtils;
 import org.cloudfoundry.identity.uaa.user.JdbcUaaUserDatabase;
+import org.cloudfoundry.identity.uaa.user.UaaUserStatusCache;
 import org.cloudfoundry.identity.uaa.util.TimeService;
 import org.cloudfoundry.identity.uaa.util.TimeServiceImpl;
 import org.springframework.dao.DuplicateKeyException;
@@ -121,6 +123,10 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser>
 
     private TimeService timeService = new TimeServiceImpl();
 
+    private UaaUserStatusCache statusCache;
+
+    private JdbcCacheInvalidationBus invalidationBus;
+
     public JdbcScimUserProvisioning(JdbcTemplate jdbcTemplate, JdbcPagingListFactory pagingListFactory) {
         super(jdbcTemplate, pagingListFactory, mapper);
         Assert.notNull(jdbcTemplate);
@@ -132,6 +138,20 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser>
         this.timeService = timeService;
     }
 
+    /**
+     * @param statusCache evicted whenever the password or the active flag of a user may have changed
+     */
+    public void setStatusCache(UaaUserStatusCache statusCache) {
+        this.statusCache = statusCache;
+    }
+
+    /**
+     * @param invalidationBus records the changed users for the caches of other servers
+     */
+    public void setInvalidationBus(JdbcCacheInvalidationBus invalidationBus) {
+        this.invalidationBus = invalidationBus;
+    }
+
     @Override
     public ScimUser retrieve(String id, String zoneId) {
         try {
@@ -263,6 +283,7 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser>
                 ps.setString(pos++, zoneId);
             }
         });
+        invalidate(zoneId, id, updated == 0 ? null : user.getVersion() + 1);
         ScimUser result = retrieve(id, zoneId);
         if (updated == 0) {
             throw new OptimisticLockingFailureException(String.format(
@@ -296,6 +317,7 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser>
                 ps.setString(5, zoneId);
             }
         });
+        invalidate(zoneId, id);
         if (updated == 0) {
             throw new ScimResourceNotFoundException("User " + id + " does not exist");
         }
@@ -354,6 +376,7 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser>
         } else {
             updated = jdbcTemplate.update(DEACTIVATE_USER_SQL + " and version=?", false, user.getId(), zoneId, version);
         }
+        invalidate(zoneId, user.getId());
         if (updated == 0) {
             throw new OptimisticLockingFailureException(String.format(
                             "Attempt to update a user (%s) with wrong version: expected=%d but found=%d", user.getId(),
@@ -410,6 +433,7 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser>
         else {
             updated = jdbcTemplate.update(DELETE_USER_SQL + " and version=?", userId, zoneId, version);
         }
+        invalidate(zoneId, userId);
         return updated;
 
     }
@@ -438,12 +462,16 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser>
 
     public int deleteByIdentityZone(String zoneId) {
         jdbcTemplate.update(HARD_DELETE_OF_GROUP_MEMBERS_BY_ZONE, zoneId);
-        return jdbcTemplate.update(HARD_DELETE_BY_ZONE, zoneId);
+        int deleted = jdbcTemplate.update(HARD_DELETE_BY_ZONE, zoneId);
+        invalidateZone(zoneId);
+        return deleted;
     }
 
     public int deleteByOrigin(String origin, String zoneId) {
         jdbcTemplate.update(HARD_DELETE_OF_GROUP_MEMBERS_BY_PROVIDER, zoneId, origin);
-        return jdbcTemplate.update(HARD_DELETE_BY_PROVIDER, zoneId, origin);
+        int deleted = jdbcTemplate.update(HARD_DELETE_BY_PROVIDER, zoneId, origin);
+        invalidateZone(zoneId);
+        return deleted;
     }
 
     @Override
@@ -459,6 +487,28 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser>
     }
 
 
+    private void invalidate(String zoneId, String userId) {
+        invalidate(zoneId, userId, null);
+    }
+
+    private void invalidate(String zoneId, String userId, Integer version) {
+        if (statusCache != null) {
+            statusCache.evict(zoneId, userId);
+        }
+        if (invalidationBus != null) {
+            invalidationBus.publish(JdbcCacheInvalidationBus.USER, zoneId, userId, version);
+        }
+    }
+
+    private void invalidateZone(String zoneId) {
+        if (statusCache != null) {
+            statusCache.evictAll();
+        }
+        if (invalidationBus != null) {
+            invalidationBus.publish(JdbcCacheInvalidationBus.USER, zoneId, null);
+        }
+    }
+
     private static final class ScimUserRowMapper implements RowMapper<ScimUser> {
         @Override
         public ScimUser mapRow(ResultSet rs, int rowNum) throws SQLException {
@@ -30,8 +30,10 @@ import org.springframework.util.StringUtils;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
@@ -61,6 +63,8 @@ public class JdbcUaaUserDatabase implements UaaUserDatabase {
     public static final String DEFAULT_UPDATE_USER_LAST_LOGON = "update users set previous_logon_success_time = last_logon_success_time, last_logon_success_time = ? where id = ? and identity_zone_id=?";
 
     public static final String DEFAULT_USER_BY_ID_QUERY = "select " + USER_FIELDS + "from users where id = ? and active=? and identity_zone_id=?";
+
+    public static final String DEFAULT_USER_STATUS_BY_ID_QUERY = "select active,passwd_lastmodified from users where id = ? and identity_zone_id=?";
     private final TimeService timeService;
 
     private JdbcTemplate jdbcTemplate;
@@ -70,6 +74,8 @@ public class JdbcUaaUserDatabase implements UaaUserDatabase {
 
     private boolean caseInsensitive = false;
 
+    private UaaUserStatusCache statusCache;
+
     public void setJdbcTemplate(JdbcTemplate jdbcTemplate) {
         this.jdbcTemplate = jdbcTemplate;
     }
@@ -82,6 +88,13 @@ public class JdbcUaaUserDatabase implements UaaUserDatabase {
         this.caseInsensitive = caseInsensitive;
     }
 
+    /**
+     * @param statusCache caches the lookups of {@link #retrievePasswordLastModifiedById(String)}
+     */
+    public void setStatusCache(UaaUserStatusCache statusCache) {
+        this.statusCache = statusCache;
+    }
+
     public RowMapper<UaaUser> getMapper() {
         return mapper;
     }
@@ -111,6 +124,26 @@ public class JdbcUaaUserDatabase implements UaaUserDatabase {
         }
     }
 
+    @Override
+    public Date retrievePasswordLastModifiedById(String id) throws UsernameNotFoundException {
+        String zoneId = IdentityZoneHolder.get().getId();
+        UaaUserStatusCache.Status status = statusCache == null ?
+            retrieveUserStatus(id, zoneId) :
+            statusCache.get(zoneId, id, () -> retrieveUserStatus(id, zoneId));
+        if (!status.isActive()) {
+            throw new UsernameNotFoundException(id);
+        }
+        return status.getPasswordLastModified() == null ? null : new Date(status.getPasswordLastModified());
+    }
+
+    private UaaUserStatusCache.Status retrieveUserStatus(String id, String zoneId) {
+        List<UaaUserStatusCache.Status> results = jdbcTemplate.query(DEFAULT_USER_STATUS_BY_ID_QUERY, (rs, rowNum) -> {
+            Timestamp passwordLastModified = rs.getTimestamp(2);
+            return new UaaUserStatusCache.Status(rs.getBoolean(1), passwordLastModified == null ? null : passwordLastModified.getTime());
+        }, id, zoneId);
+        return results.isEmpty() ? UaaUserStatusCache.Status.NOT_FOUND : results.get(0);
+    }
+
     @Override
     public UaaUser retrieveUserByEmail(String email, String origin) throws UsernameNotFoundException {
         String sql = isCaseInsensitive() ? DEFAULT_CASE_INSENSITIVE_USER_BY_EMAIL_AND_ORIGIN_QUERY : DEFAULT_CASE_SENSITIVE_USER_BY_EMAIL_AND_ORIGIN_QUERY;
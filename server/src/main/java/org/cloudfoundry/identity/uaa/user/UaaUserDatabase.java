@@ -14,6 +14,8 @@ package org.cloudfoundry.identity.uaa.user;
 
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 
+import java.util.Date;
+
 /**
  * Interface for loading user data for the UAA.
  */
@@ -22,6 +24,17 @@ public interface UaaUserDatabase {
 
     UaaUser retrieveUserById(String id) throws UsernameNotFoundException;
 
+    /**
+     * Loads only the time the password of the user was last modified, without the
+     * authorities of the user.
+     *
+     * @return the time the password was last modified, null if it never was
+     * @throws UsernameNotFoundException if there is no active user with the id
+     */
+    default Date retrievePasswordLastModifiedById(String id) throws UsernameNotFoundException {
+        return retrieveUserById(id).getPasswordLastModified();
+    }
+
     UaaUser retrieveUserByEmail(String email, String origin) throws UsernameNotFoundException;
 
     UserInfo getUserInfo(String id);
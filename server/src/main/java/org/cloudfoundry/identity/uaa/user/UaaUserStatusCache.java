@@ -0,0 +1,127 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2017] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.user;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.cloudfoundry.identity.uaa.cache.CacheInvalidationListener;
+import org.cloudfoundry.identity.uaa.cache.JdbcCacheInvalidationBus;
+import org.cloudfoundry.identity.uaa.db.ReadReplicaRoutingDataSource;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Caches whether a user is active and when its password was last modified, which is all
+ * that is needed to decide if a session of the user is still valid. The user provisioning
+ * evicts a user when its password, or its active flag, changes. Changes made by other
+ * servers are seen once the cached status expires, or once the {@link JdbcCacheInvalidationBus}
+ * delivers them.
+ */
+public class UaaUserStatusCache implements CacheInvalidationListener {
+
+    private volatile Cache<List<String>, Status> cache;
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param ttlSeconds the time to live of a cached status, 0 (the default) disables caching
+     */
+    public void setTtlSeconds(int ttlSeconds) {
+        if (ttlSeconds > 0) {
+            cache = CacheBuilder.newBuilder()
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .maximumSize(10000)
+                .build();
+        } else {
+            cache = null;
+        }
+    }
+
+    /**
+     * @return the cached status of the user, or the status returned by the loader, which
+     *         always reads from the primary database
+     */
+    public Status get(String zoneId, String userId, Supplier<Status> loader) {
+        Cache<List<String>, Status> cache = this.cache;
+        if (cache == null) {
+            return ReadReplicaRoutingDataSource.primary(loader);
+        }
+        List<String> key = Arrays.asList(zoneId, userId);
+        Status status = cache.getIfPresent(key);
+        if (status == null) {
+            long evicted = evictions.get();
+            status = ReadReplicaRoutingDataSource.primary(loader);
+            //a change made while loading may not be part of the status
+            if (evicted == evictions.get()) {
+                cache.put(key, status);
+            }
+        }
+        return status;
+    }
+
+    public void evict(String zoneId, String userId) {
+        evictions.incrementAndGet();
+        Cache<List<String>, Status> cache = this.cache;
+        if (cache != null) {
+            cache.invalidate(Arrays.asList(zoneId, userId));
+        }
+    }
+
+    public void evictAll() {
+        evictions.incrementAndGet();
+        Cache<List<String>, Status> cache = this.cache;
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    @Override
+    public void invalidate(String entityType, String zoneId, String entityId) {
+        if (JdbcCacheInvalidationBus.USER.equals(entityType) && entityId != null) {
+            evict(zoneId, entityId);
+        } else if (JdbcCacheInvalidationBus.USER.equals(entityType) || JdbcCacheInvalidationBus.IDENTITY_ZONE.equals(entityType)) {
+            evictAll();
+        }
+    }
+
+    public static final class Status {
+        public static final Status NOT_FOUND = new Status(false, null);
+
+        private final boolean active;
+        private final Long passwordLastModified;
+
+        public Status(boolean active, Long passwordLastModified) {
+            this.active = active;
+            this.passwordLastModified = passwordLastModified;
+        }
+
+        /**
+         * @return false if the user is inactive or does not exist
+         */
+        public boolean isActive() {
+            return active;
+        }
+
+        /**
+         * @return milliseconds since the epoch, null if the password was never modified
+         */
+        public Long getPasswordLastModified() {
+            return passwordLastModified;
+        }
+    }
+}
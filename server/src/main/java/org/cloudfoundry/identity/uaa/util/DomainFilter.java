@@ -16,14 +16,15 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.cloudfoundry.identity.uaa.oauth.client.ClientConstants;
 import org.cloudfoundry.identity.uaa.provider.IdentityProvider;
+import org.cloudfoundry.identity.uaa.provider.IdentityProviderProvisioning;
 import org.springframework.security.oauth2.provider.ClientDetails;
 import org.springframework.util.StringUtils;
 
 import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
+import java.util.function.Supplier;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 import static java.util.Collections.EMPTY_LIST;
 import static org.cloudfoundry.identity.uaa.constants.OriginKeys.UAA;
@@ -33,46 +34,25 @@ public class DomainFilter {
     private static Log logger = LogFactory.getLog(DomainFilter.class);
 
     public static List<IdentityProvider> filter(List<IdentityProvider> activeProviders, ClientDetails client, String email) {
-        if (!StringUtils.hasText(email)) {
+        if (!StringUtils.hasText(email) || activeProviders == null) {
             return EMPTY_LIST;
         }
-
-        if (activeProviders!=null && activeProviders.size()>0) {
-            //filter client providers
-            List<String> clientFilter = getProvidersForClient(client);
-            if (clientFilter!=null) {
-                activeProviders =
-                    activeProviders.stream().filter(
-                        p -> clientFilter.contains(p.getOriginKey())
-                    ).collect(Collectors.toList());
-            }
-            //filter for email domain
-            if (email!=null && email.contains("@")) {
-                final String domain = email.substring(email.indexOf('@') + 1);
-                List<IdentityProvider> explicitlyMatched =
-                    activeProviders.stream().filter(
-                        p -> doesEmailDomainMatchProvider(p, domain, true)
-                    ).collect(Collectors.toList());
-                if (explicitlyMatched.size()>0) {
-                    return explicitlyMatched;
-                }
-
-                activeProviders =
-                    activeProviders.stream().filter(
-                        p -> doesEmailDomainMatchProvider(p, domain, false)
-                    ).collect(Collectors.toList());
-
-            }
-        }
-        return activeProviders != null ? activeProviders : EMPTY_LIST;
+        return new EmailDomainIndex(activeProviders).filter(client, email);
     }
 
     public static List<IdentityProvider> getIdpsForEmailDomain(List<IdentityProvider> activeProviders, String email) {
-        if (!StringUtils.hasText(email) || !email.contains("@")) {
-            return EMPTY_LIST;
-        }
-        final String domain = email.substring(email.indexOf('@') + 1);
-        return activeProviders.stream().filter(provider -> doesEmailDomainMatchProvider(provider, domain, true)).collect(Collectors.toList());
+        return new EmailDomainIndex(activeProviders).getIdpsForEmailDomain(email);
+    }
+
+    /**
+     * @return the email domain index the provisioning keeps for the zone, or one built from
+     * the given active providers if it doesn't keep one
+     */
+    public static EmailDomainIndex getEmailDomainIndex(IdentityProviderProvisioning provisioning,
+                                                       String zoneId,
+                                                       Supplier<List<IdentityProvider>> activeProviders) {
+        EmailDomainIndex index = provisioning.getEmailDomainIndex(zoneId);
+        return index != null ? index : new EmailDomainIndex(activeProviders.get());
     }
 
     protected static List<String> getProvidersForClient(ClientDetails client) {
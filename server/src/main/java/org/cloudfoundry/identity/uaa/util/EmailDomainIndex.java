@@ -0,0 +1,271 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2017] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.util;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.provider.IdentityProvider;
+import org.springframework.security.oauth2.provider.ClientDetails;
+import org.springframework.util.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import static java.util.Collections.EMPTY_LIST;
+import static org.cloudfoundry.identity.uaa.constants.OriginKeys.UAA;
+
+/**
+ * Index of the email domains of a list of identity providers, matching a domain the same way
+ * {@link DomainFilter#doesEmailDomainMatchProvider(IdentityProvider, String, boolean)} does.
+ *
+ * Literal domains are looked up in a hash map. Domains in which a whole label is a
+ * <code>*</code>, such as <code>*.example.com</code>, are stored in a trie of reversed labels,
+ * where the <code>*</code> matches exactly one label. Only domains with a wildcard inside a
+ * label, or with characters that are not escaped in the wildcard pattern, are matched with
+ * a regular expression.
+ */
+public class EmailDomainIndex {
+
+    private static Log logger = LogFactory.getLog(EmailDomainIndex.class);
+
+    /**
+     * Domains the internal provider matches when no explicit domain matched and it has
+     * no email domains configured
+     */
+    private static final List<String> UAA_DEFAULT_DOMAINS = Arrays.asList("*.*", "*.*.*", "*.*.*.*");
+
+    private static final Pattern IRREGULAR_CHARACTERS = Pattern.compile("[\\[\\]\\\\^]");
+
+    private final List<IdentityProvider> providers;
+    private final UnaryOperator<IdentityProvider> copier;
+    private final Map<String, BitSet> explicitDomains = new HashMap<>();
+    private final Map<String, BitSet> implicitDomains = new HashMap<>();
+    private final Node trie = new Node();
+    private final List<PatternEntry> patterns = new ArrayList<>();
+
+    public EmailDomainIndex(List<IdentityProvider> providers) {
+        this(providers, UnaryOperator.identity());
+    }
+
+    /**
+     * @param providers the providers to index, which must not be modified afterwards
+     * @param copier applied to every provider returned from this index
+     */
+    public EmailDomainIndex(List<IdentityProvider> providers, UnaryOperator<IdentityProvider> copier) {
+        this.providers = providers == null ? Collections.emptyList() : new ArrayList<>(providers);
+        this.copier = copier;
+        for (int i = 0; i < this.providers.size(); i++) {
+            IdentityProvider provider = this.providers.get(i);
+            List<String> domains = DomainFilter.getEmailDomain(provider);
+            if (domains != null) {
+                for (String domain : domains) {
+                    add(domain, i, true);
+                }
+            } else if (UAA.equals(provider.getOriginKey())) {
+                for (String domain : UAA_DEFAULT_DOMAINS) {
+                    add(domain, i, false);
+                }
+            }
+        }
+    }
+
+    private void add(String domain, int position, boolean explicit) {
+        if (domain == null) {
+            return;
+        }
+        if (IRREGULAR_CHARACTERS.matcher(domain).find() || hasPartialWildcard(domain)) {
+            try {
+                patterns.add(new PatternEntry(Pattern.compile(UaaStringUtils.constructSimpleWildcardPattern(domain)), position, explicit));
+            } catch (PatternSyntaxException e) {
+                logger.warn("Ignoring invalid email domain " + domain + " of identity provider " + providers.get(position).getOriginKey());
+            }
+        } else if (domain.contains("*")) {
+            Node node = trie;
+            List<String> labels = labels(domain);
+            for (int i = labels.size() - 1; i >= 0; i--) {
+                node = node.child(labels.get(i));
+            }
+            node.positions(explicit).set(position);
+        } else {
+            (explicit ? explicitDomains : implicitDomains).computeIfAbsent(domain, d -> new BitSet()).set(position);
+        }
+    }
+
+    private static boolean hasPartialWildcard(String domain) {
+        for (String label : labels(domain)) {
+            if (label.contains("*") && !"*".equals(label)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<String> labels(String domain) {
+        return Arrays.asList(domain.split("\\.", -1));
+    }
+
+    /**
+     * Returns the providers to offer for an email address, see
+     * {@link DomainFilter#filter(List, ClientDetails, String)}
+     */
+    public List<IdentityProvider> filter(ClientDetails client, String email) {
+        if (!StringUtils.hasText(email)) {
+            return EMPTY_LIST;
+        }
+        //filter client providers
+        List<String> clientFilter = DomainFilter.getProvidersForClient(client);
+        Predicate<IdentityProvider> allowed = p -> clientFilter == null || clientFilter.contains(p.getOriginKey());
+        //filter for email domain
+        if (email.contains("@")) {
+            final String domain = email.substring(email.indexOf('@') + 1);
+            List<IdentityProvider> explicitlyMatched = match(domain, true, allowed);
+            if (explicitlyMatched.size()>0) {
+                return explicitlyMatched;
+            }
+            return match(domain, false, allowed);
+        }
+        return getProviders(allowed);
+    }
+
+    /**
+     * Returns the providers that explicitly list the domain of the email address, see
+     * {@link DomainFilter#getIdpsForEmailDomain(List, String)}
+     */
+    public List<IdentityProvider> getIdpsForEmailDomain(String email) {
+        if (!StringUtils.hasText(email) || !email.contains("@")) {
+            return EMPTY_LIST;
+        }
+        final String domain = email.substring(email.indexOf('@') + 1);
+        return match(domain, true, p -> true);
+    }
+
+    /**
+     * @param domain the domain part of an email address
+     * @param explicit if false, the default domains of the internal provider are matched as well
+     * @param filter restricts the providers that are returned
+     * @return the matching providers, in the order they were indexed
+     */
+    public List<IdentityProvider> match(String domain, boolean explicit, Predicate<IdentityProvider> filter) {
+        BitSet matched = new BitSet();
+        collect(matched, explicitDomains.get(domain));
+        if (!explicit) {
+            collect(matched, implicitDomains.get(domain));
+        }
+        List<String> labels = labels(domain);
+        match(trie, labels, labels.size() - 1, explicit, matched);
+        for (PatternEntry entry : patterns) {
+            if ((entry.explicit || !explicit) && !matched.get(entry.position) && entry.pattern.matcher(domain).matches()) {
+                matched.set(entry.position);
+            }
+        }
+        List<IdentityProvider> result = new ArrayList<>();
+        for (int i = matched.nextSetBit(0); i >= 0; i = matched.nextSetBit(i + 1)) {
+            IdentityProvider provider = providers.get(i);
+            if (filter.test(provider)) {
+                result.add(copier.apply(provider));
+            }
+        }
+        return result;
+    }
+
+    private static void match(Node node, List<String> labels, int index, boolean explicit, BitSet matched) {
+        if (index < 0) {
+            collect(matched, node.explicitPositions);
+            if (!explicit) {
+                collect(matched, node.implicitPositions);
+            }
+            return;
+        }
+        String label = labels.get(index);
+        Node literal = node.children.get(label);
+        if (literal != null) {
+            match(literal, labels, index - 1, explicit, matched);
+        }
+        //the wildcard pattern excludes dots and backslashes from a label
+        if (node.wildcard != null && !label.isEmpty() && label.indexOf('\\') < 0) {
+            match(node.wildcard, labels, index - 1, explicit, matched);
+        }
+    }
+
+    private static void collect(BitSet matched, BitSet positions) {
+        if (positions != null) {
+            matched.or(positions);
+        }
+    }
+
+    /**
+     * @return all indexed providers accepted by the filter, in the order they were indexed
+     */
+    public List<IdentityProvider> getProviders(Predicate<IdentityProvider> filter) {
+        List<IdentityProvider> result = new ArrayList<>();
+        for (IdentityProvider provider : providers) {
+            if (filter.test(provider)) {
+                result.add(copier.apply(provider));
+            }
+        }
+        return result;
+    }
+
+    private static final class Node {
+        private final Map<String, Node> children = new HashMap<>();
+        private Node wildcard;
+        private BitSet explicitPositions;
+        private BitSet implicitPositions;
+
+        private Node child(String label) {
+            if ("*".equals(label)) {
+                if (wildcard == null) {
+                    wildcard = new Node();
+                }
+                return wildcard;
+            }
+            return children.computeIfAbsent(label, l -> new Node());
+        }
+
+        private BitSet positions(boolean explicit) {
+            if (explicit) {
+                if (explicitPositions == null) {
+                    explicitPositions = new BitSet();
+                }
+                return explicitPositions;
+            }
+            if (implicitPositions == null) {
+                implicitPositions = new BitSet();
+            }
+            return implicitPositions;
+        }
+    }
+
+    private static final class PatternEntry {
+        private final Pattern pattern;
+        private final int position;
+        private final boolean explicit;
+
+        private PatternEntry(Pattern pattern, int position, boolean explicit) {
+            this.pattern = pattern;
+            this.position = position;
+            this.explicit = explicit;
+        }
+    }
+}
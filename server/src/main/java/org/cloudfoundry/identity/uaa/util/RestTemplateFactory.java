@@ -16,13 +16,200 @@
 package org.cloudfoundry.identity.uaa.util;
 
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
 import org.springframework.web.client.RestTemplate;
 
-public class RestTemplateFactory {
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+/**
+ * Hands out rest templates for calls to external identity providers.
+ *
+ * Each distinct combination of SSL validation and timeouts gets one pooled, keep-alive
+ * HTTP client that is shared by all callers, so repeated token exchanges, token key and
+ * metadata downloads reuse connections instead of paying for a new TCP connect and TLS
+ * handshake each time. Proxies are taken from the standard system properties.
+ */
+@ManagedResource(
+    objectName = "cloudfoundry.identity:name=OutboundHttpConnections",
+    description = "Connection pools for calls to external identity providers"
+)
+public class RestTemplateFactory implements DisposableBean {
+
+    private static final Log logger = LogFactory.getLog(RestTemplateFactory.class);
+
+    private final ConcurrentMap<ClientKey, PooledClient> clients = new ConcurrentHashMap<>();
+
+    private int connectTimeout = 10000;
+    private int readTimeout = 10000;
+    private int connectionRequestTimeout = 5000;
+    private int maxTotalConnections = 200;
+    private int maxConnectionsPerRoute = 20;
+    private long maxIdleTimeMillis = 60000;
 
     public RestTemplate getRestTemplate(boolean skipSslValidation) {
-        return new RestTemplate(UaaHttpRequestUtils.createRequestFactory(skipSslValidation));
+        return getRestTemplate(skipSslValidation, connectTimeout, readTimeout);
+    }
+
+    public RestTemplate getRestTemplate(boolean skipSslValidation, int connectTimeout, int readTimeout) {
+        return getClient(skipSslValidation, connectTimeout, readTimeout).restTemplate;
+    }
+
+    public ClientHttpRequestFactory getRequestFactory(boolean skipSslValidation) {
+        return getClient(skipSslValidation, connectTimeout, readTimeout).requestFactory;
+    }
+
+    private PooledClient getClient(boolean skipSslValidation, int connectTimeout, int readTimeout) {
+        return clients.computeIfAbsent(new ClientKey(skipSslValidation, connectTimeout, readTimeout), this::createClient);
+    }
+
+    private PooledClient createClient(ClientKey key) {
+        PoolingHttpClientConnectionManager connectionManager = UaaHttpRequestUtils.createConnectionManager(key.skipSslValidation);
+        connectionManager.setMaxTotal(maxTotalConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectTimeout(key.connectTimeout)
+            .setSocketTimeout(key.readTimeout)
+            .setConnectionRequestTimeout(connectionRequestTimeout)
+            .build();
+        CloseableHttpClient httpClient = UaaHttpRequestUtils.getPooledClientBuilder(connectionManager)
+            .setDefaultRequestConfig(requestConfig)
+            .evictExpiredConnections()
+            .evictIdleConnections(maxIdleTimeMillis, TimeUnit.MILLISECONDS)
+            .build();
+        return new PooledClient(connectionManager, httpClient);
+    }
+
+    @ManagedMetric(category = "performance", displayName = "Leased outbound connections")
+    public int getLeasedConnections() {
+        return sum(PoolStats::getLeased);
+    }
+
+    @ManagedMetric(category = "performance", displayName = "Available outbound connections")
+    public int getAvailableConnections() {
+        return sum(PoolStats::getAvailable);
+    }
+
+    @ManagedMetric(category = "performance", displayName = "Requests waiting for an outbound connection")
+    public int getPendingConnections() {
+        return sum(PoolStats::getPending);
+    }
+
+    @ManagedAttribute(description = "Leased, available and pending connections per pool")
+    public Map<String, String> getPoolStats() {
+        Map<String, String> result = new LinkedHashMap<>();
+        clients.forEach((key, client) -> {
+            PoolStats stats = client.connectionManager.getTotalStats();
+            result.put(key.toString(), String.format("{\"leased\":%d,\"available\":%d,\"pending\":%d,\"max\":%d}",
+                                                     stats.getLeased(), stats.getAvailable(), stats.getPending(), stats.getMax()));
+        });
+        return result;
+    }
 
+    private int sum(ToIntFunction<PoolStats> stat) {
+        return clients.values().stream()
+            .mapToInt(client -> stat.applyAsInt(client.connectionManager.getTotalStats()))
+            .sum();
     }
 
+    @Override
+    public void destroy() {
+        for (PooledClient client : clients.values()) {
+            try {
+                client.httpClient.close();
+            } catch (IOException e) {
+                logger.debug("Unable to close pooled HTTP client", e);
+            }
+        }
+        clients.clear();
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    public void setConnectionRequestTimeout(int connectionRequestTimeout) {
+        this.connectionRequestTimeout = connectionRequestTimeout;
+    }
+
+    public void setMaxTotalConnections(int maxTotalConnections) {
+        this.maxTotalConnections = maxTotalConnections;
+    }
+
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    public void setMaxIdleTimeMillis(long maxIdleTimeMillis) {
+        this.maxIdleTimeMillis = maxIdleTimeMillis;
+    }
+
+    private static class PooledClient {
+        private final PoolingHttpClientConnectionManager connectionManager;
+        private final CloseableHttpClient httpClient;
+        private final ClientHttpRequestFactory requestFactory;
+        private final RestTemplate restTemplate;
+
+        PooledClient(PoolingHttpClientConnectionManager connectionManager, CloseableHttpClient httpClient) {
+            this.connectionManager = connectionManager;
+            this.httpClient = httpClient;
+            this.requestFactory = new HttpComponentsClientHttpRequestFactory(httpClient);
+            this.restTemplate = new RestTemplate(requestFactory);
+        }
+    }
+
+    private static class ClientKey {
+        private final boolean skipSslValidation;
+        private final int connectTimeout;
+        private final int readTimeout;
+
+        ClientKey(boolean skipSslValidation, int connectTimeout, int readTimeout) {
+            this.skipSslValidation = skipSslValidation;
+            this.connectTimeout = connectTimeout;
+            this.readTimeout = readTimeout;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            ClientKey that = (ClientKey) o;
+            return skipSslValidation == that.skipSslValidation &&
+                connectTimeout == that.connectTimeout &&
+                readTimeout == that.readTimeout;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = skipSslValidation ? 1 : 0;
+            result = 31 * result + connectTimeout;
+            result = 31 * result + readTimeout;
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "skipSslValidation=" + skipSslValidation + ",connectTimeout=" + connectTimeout + ",readTimeout=" + readTimeout;
+        }
+    }
 }
@@ -14,15 +14,23 @@ package org.cloudfoundry.identity.uaa.util;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.conn.ssl.SSLContextBuilder;
 import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
 import org.apache.http.impl.NoConnectionReuseStrategy;
 import org.apache.http.impl.client.DefaultRedirectStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.springframework.http.client.ClientHttpRequestFactory;
 import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.util.StringUtils;
 import org.springframework.web.context.request.RequestContextHolder;
 
 import javax.net.ssl.SSLContext;
@@ -63,6 +71,45 @@ public abstract class UaaHttpRequestUtils {
         return builder;
     }
 
+    /**
+     * Creates a connection pool that uses the same socket factories as {@link #getClientBuilder(boolean)}.
+     * A builder ignores its own SSL settings once a connection manager is set, so they have to be
+     * configured on the pool.
+     */
+    public static PoolingHttpClientConnectionManager createConnectionManager(boolean skipSslValidation) {
+        SSLConnectionSocketFactory sslSocketFactory;
+        if (skipSslValidation) {
+            sslSocketFactory = new SSLConnectionSocketFactory(getNonValidatingSslContext(),
+                                                              getSystemPropertyList("https.protocols"),
+                                                              getSystemPropertyList("https.cipherSuites"),
+                                                              SSLConnectionSocketFactory.getDefaultHostnameVerifier());
+        } else {
+            sslSocketFactory = SSLConnectionSocketFactory.getSystemSocketFactory();
+        }
+        Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+            .register("http", PlainConnectionSocketFactory.getSocketFactory())
+            .register("https", sslSocketFactory)
+            .build();
+        return new PoolingHttpClientConnectionManager(registry);
+    }
+
+    /**
+     * The client is shared by all zones, providers and users, so it must not keep the cookies
+     * of one call for the next.
+     */
+    protected static HttpClientBuilder getPooledClientBuilder(HttpClientConnectionManager connectionManager) {
+        return HttpClients.custom()
+            .useSystemProperties()
+            .setRedirectStrategy(new DefaultRedirectStrategy())
+            .disableCookieManagement()
+            .setConnectionManager(connectionManager);
+    }
+
+    private static String[] getSystemPropertyList(String name) {
+        String value = System.getProperty(name);
+        return StringUtils.hasText(value) ? StringUtils.tokenizeToStringArray(value, ",") : null;
+    }
+
     private static SSLContext getNonValidatingSslContext() {
         try {
             return new SSLContextBuilder().loadTrustMaterial(null, new TrustSelfSignedStrategy()).build();
@@ -19,6 +19,7 @@ import org.springframework.security.oauth2.provider.ClientRegistrationException;
 import org.springframework.security.oauth2.provider.ClientRegistrationService;
 import org.springframework.security.oauth2.provider.NoSuchClientException;
 
+import java.util.ArrayList;
 import java.util.List;
 
 public abstract class ClientServicesExtension implements ClientRegistrationService, ClientDetailsService {
@@ -35,6 +36,19 @@ public abstract class ClientServicesExtension implements ClientRegistrationServi
 
     public abstract void addClientDetails(ClientDetails clientDetails, String zoneId) throws ClientAlreadyExistsException;
 
+    /**
+     * Adds several clients. Callers that need all or none of them added run this in a transaction.
+     * @return the added clients, in the order they were given
+     */
+    public List<ClientDetails> addAllClientDetails(List<ClientDetails> clients, String zoneId) throws ClientAlreadyExistsException {
+        List<ClientDetails> result = new ArrayList<>(clients.size());
+        for (ClientDetails client : clients) {
+            addClientDetails(client, zoneId);
+            result.add(loadClientByClientId(client.getClientId(), zoneId));
+        }
+        return result;
+    }
+
     @Override
     public final void updateClientDetails(ClientDetails clientDetails) throws NoSuchClientException {
         updateClientDetails(clientDetails, IdentityZoneHolder.get().getId());
@@ -42,6 +56,15 @@ public abstract class ClientServicesExtension implements ClientRegistrationServi
 
     public abstract void updateClientDetails(ClientDetails clientDetails, String zoneId) throws NoSuchClientException;
 
+    /**
+     * Updates several clients. Callers that need all or none of them updated run this in a transaction.
+     */
+    public void updateAllClientDetails(List<ClientDetails> clients, String zoneId) throws NoSuchClientException {
+        for (ClientDetails client : clients) {
+            updateClientDetails(client, zoneId);
+        }
+    }
+
     @Override
     public final void updateClientSecret(String clientId, String secret) throws NoSuchClientException {
         updateClientSecret(clientId, secret, IdentityZoneHolder.get().getId());
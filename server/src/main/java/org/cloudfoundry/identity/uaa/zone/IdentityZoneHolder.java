@@ -47,9 +47,11 @@ public class IdentityZoneHolder {
     public static KeyManager getSamlSPKeyManager() {
         IdentityZoneWithKeyManager withKeyManager = THREADLOCAL.get();
         if (withKeyManager.getManager()==null) {
-            KeyManager keyManager = SamlKeyManagerFactory.getKeyManager(withKeyManager.getZone().getConfig().getSamlConfig());
+            IdentityZone zone = withKeyManager.getZone();
+            KeyManager keyManager = SamlKeyManagerFactory.getKeyManager(zone.getId(), zone.getConfig().getSamlConfig());
             if (keyManager==null) {
-                keyManager = SamlKeyManagerFactory.getKeyManager(getUaaZone().getConfig().getSamlConfig());
+                IdentityZone uaa = getUaaZone();
+                keyManager = SamlKeyManagerFactory.getKeyManager(uaa.getId(), uaa.getConfig().getSamlConfig());
             }
             withKeyManager.setManager(keyManager);
         }
@@ -15,6 +15,8 @@ package org.cloudfoundry.identity.uaa.zone;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.cloudfoundry.identity.uaa.audit.event.SystemDeletable;
+import org.cloudfoundry.identity.uaa.cache.JdbcCacheInvalidationBus;
+import org.cloudfoundry.identity.uaa.provider.saml.SamlKeyManagerFactory;
 import org.cloudfoundry.identity.uaa.util.JsonUtils;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.EmptyResultDataAccessException;
@@ -55,11 +57,20 @@ public class JdbcIdentityZoneProvisioning implements IdentityZoneProvisioning, S
 
     private final RowMapper<IdentityZone> mapper = new IdentityZoneRowMapper();
 
+    private JdbcCacheInvalidationBus invalidationBus;
+
     public JdbcIdentityZoneProvisioning(JdbcTemplate jdbcTemplate) {
         Assert.notNull(jdbcTemplate);
         this.jdbcTemplate = jdbcTemplate;
     }
 
+    /**
+     * @param invalidationBus records the changed zones for the caches of other servers
+     */
+    public void setInvalidationBus(JdbcCacheInvalidationBus invalidationBus) {
+        this.invalidationBus = invalidationBus;
+    }
+
     @Override
     public IdentityZone retrieve(String id) {
         try {
@@ -108,7 +119,7 @@ public class JdbcIdentityZoneProvisioning implements IdentityZoneProvisioning, S
         } catch (DuplicateKeyException e) {
             throw new ZoneAlreadyExistsException(e.getMostSpecificCause().getMessage(), e);
         }
-
+        publish(identityZone.getId().trim(), identityZone.getVersion());
         return retrieve(identityZone.getId());
     }
 
@@ -136,12 +147,22 @@ public class JdbcIdentityZoneProvisioning implements IdentityZoneProvisioning, S
             //duplicate subdomain
             throw new ZoneAlreadyExistsException(e.getMostSpecificCause().getMessage(), e);
         }
+        publish(identityZone.getId().trim(), identityZone.getVersion() + 1);
         return retrieve(identityZone.getId());
     }
 
     @Override
     public int deleteByIdentityZone(String zoneId) {
-        return jdbcTemplate.update(DELETE_IDENTITY_ZONE_SQL, zoneId);
+        int deleted = jdbcTemplate.update(DELETE_IDENTITY_ZONE_SQL, zoneId);
+        SamlKeyManagerFactory.evict(zoneId);
+        publish(zoneId, null);
+        return deleted;
+    }
+
+    private void publish(String zoneId, Integer version) {
+        if (invalidationBus != null) {
+            invalidationBus.publish(JdbcCacheInvalidationBus.IDENTITY_ZONE, zoneId, zoneId, version);
+        }
     }
 
     @Override
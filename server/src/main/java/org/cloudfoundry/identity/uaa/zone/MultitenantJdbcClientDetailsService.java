@@ -16,6 +16,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.cloudfoundry.identity.uaa.audit.event.SystemDeletable;
 import org.cloudfoundry.identity.uaa.authentication.UaaPrincipal;
+import org.cloudfoundry.identity.uaa.cache.JdbcCacheInvalidationBus;
 import org.cloudfoundry.identity.uaa.oauth.client.ClientConstants;
 import org.cloudfoundry.identity.uaa.resources.ResourceMonitor;
 import org.cloudfoundry.identity.uaa.security.ContextSensitiveOAuth2SecurityExpressionMethods;
@@ -42,7 +43,9 @@ import org.springframework.util.StringUtils;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -50,6 +53,12 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import static java.util.Collections.emptySet;
 import static org.cloudfoundry.identity.uaa.oauth.client.ClientConstants.REQUIRED_USER_GROUPS;
@@ -112,6 +121,10 @@ public class MultitenantJdbcClientDetailsService extends ClientServicesExtension
 
     private JdbcListFactory listFactory;
 
+    private ExecutorService secretEncoder;
+
+    private JdbcCacheInvalidationBus invalidationBus;
+
     public MultitenantJdbcClientDetailsService(JdbcTemplate jdbcTemplate) {
         Assert.notNull(jdbcTemplate, "JDbcTemplate required");
         this.jdbcTemplate = jdbcTemplate;
@@ -126,6 +139,31 @@ public class MultitenantJdbcClientDetailsService extends ClientServicesExtension
         this.passwordEncoder = passwordEncoder;
     }
 
+    /**
+     * @param secretEncoderThreads the number of threads that hash the secrets of the clients added in
+     *            one batch, 0 or 1 hashes them on the calling thread
+     */
+    public void setSecretEncoderThreads(int secretEncoderThreads) {
+        if (secretEncoderThreads > 1) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(secretEncoderThreads, secretEncoderThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "client-secret-encoder");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.allowCoreThreadTimeOut(true);
+            secretEncoder = executor;
+        } else {
+            secretEncoder = null;
+        }
+    }
+
+    /**
+     * @param invalidationBus records the changed clients for the caches of other servers
+     */
+    public void setInvalidationBus(JdbcCacheInvalidationBus invalidationBus) {
+        this.invalidationBus = invalidationBus;
+    }
+
     @Override
     public ClientDetails loadClientByClientId(String clientId, String zoneId) throws InvalidClientException {
         ClientDetails details;
@@ -145,6 +183,55 @@ public class MultitenantJdbcClientDetailsService extends ClientServicesExtension
         } catch (DuplicateKeyException e) {
             throw new ClientAlreadyExistsException("Client already exists: " + clientDetails.getClientId(), e);
         }
+        publish(zoneId, clientDetails.getClientId());
+    }
+
+    /**
+     * Inserts all clients in one batch, without reading them back. Runs in the caller's
+     * transaction, so a failed batch only leaves no client behind when the caller has one.
+     */
+    @Override
+    public List<ClientDetails> addAllClientDetails(List<ClientDetails> clients, String zoneId) throws ClientAlreadyExistsException {
+        String[] secrets = encodeSecrets(clients);
+        String userId = getUserId();
+        Timestamp lastModified = new Timestamp(System.currentTimeMillis());
+        List<Object[]> batchArgs = new ArrayList<>(clients.size());
+        List<ClientDetails> result = new ArrayList<>(clients.size());
+        List<String> clientIds = new ArrayList<>(clients.size());
+        for (int i = 0; i < clients.size(); i++) {
+            ClientDetails client = clients.get(i);
+            batchArgs.add(getInsertClientDetailsFields(client, secrets[i], userId, lastModified, zoneId));
+            BaseClientDetails added = new BaseClientDetails(client);
+            added.addAdditionalInformation("lastModified", lastModified);
+            result.add(added);
+            clientIds.add(client.getClientId());
+        }
+        try {
+            jdbcTemplate.batchUpdate(DEFAULT_INSERT_STATEMENT, batchArgs);
+        } catch (DuplicateKeyException e) {
+            throw new ClientAlreadyExistsException("One of the clients already exists: " + collectionToCommaDelimitedString(clientIds), e);
+        }
+        publishAll(zoneId, clientIds);
+        return result;
+    }
+
+    @Override
+    public void updateAllClientDetails(List<ClientDetails> clients, String zoneId) throws NoSuchClientException {
+        Timestamp lastModified = new Timestamp(System.currentTimeMillis());
+        List<Object[]> batchArgs = new ArrayList<>(clients.size());
+        List<String> clientIds = new ArrayList<>(clients.size());
+        for (ClientDetails client : clients) {
+            batchArgs.add(getFieldsForUpdate(client, lastModified, zoneId));
+            clientIds.add(client.getClientId());
+        }
+        int[] counts = jdbcTemplate.batchUpdate(DEFAULT_UPDATE_STATEMENT, batchArgs);
+        for (int i = 0; i < counts.length; i++) {
+            //some drivers do not report the number of rows of a batched statement
+            if (counts[i] != 1 && counts[i] != Statement.SUCCESS_NO_INFO) {
+                throw new NoSuchClientException("No client found with id = " + clients.get(i).getClientId() + " in identity zone "+IdentityZoneHolder.get().getName());
+            }
+        }
+        publishAll(zoneId, clientIds);
     }
 
     @Override
@@ -153,6 +240,7 @@ public class MultitenantJdbcClientDetailsService extends ClientServicesExtension
         if (count != 1) {
             throw new NoSuchClientException("No client found with id = " + clientDetails.getClientId() + " in identity zone "+IdentityZoneHolder.get().getName());
         }
+        publish(zoneId, clientDetails.getClientId());
     }
 
     @Override
@@ -161,6 +249,7 @@ public class MultitenantJdbcClientDetailsService extends ClientServicesExtension
         if (count != 1) {
             throw new NoSuchClientException("No client found with id = " + clientId);
         }
+        publish(zoneId, clientId);
     }
 
     @Override
@@ -173,18 +262,69 @@ public class MultitenantJdbcClientDetailsService extends ClientServicesExtension
     }
 
     private Object[] getInsertClientDetailsFields(ClientDetails clientDetails, String zoneId) {
-        Object[] fieldsForUpdate = getFieldsForUpdate(clientDetails, zoneId);
+        return getInsertClientDetailsFields(clientDetails,
+                                            encodeSecret(clientDetails.getClientSecret()),
+                                            getUserId(),
+                                            new Timestamp(System.currentTimeMillis()),
+                                            zoneId);
+    }
+
+    private Object[] getInsertClientDetailsFields(ClientDetails clientDetails, String encodedSecret, String userId, Timestamp lastModified, String zoneId) {
+        Object[] fieldsForUpdate = getFieldsForUpdate(clientDetails, lastModified, zoneId);
         Object[] clientDetailFieldsForUpdate = new Object[fieldsForUpdate.length + 2];
         System.arraycopy(fieldsForUpdate, 0, clientDetailFieldsForUpdate, 1, fieldsForUpdate.length);
-        clientDetailFieldsForUpdate[0] =
-            clientDetails.getClientSecret() != null ?
-                passwordEncoder.encode(clientDetails.getClientSecret()) :
-                null;
-        clientDetailFieldsForUpdate[clientDetailFieldsForUpdate.length - 1] = getUserId();
+        clientDetailFieldsForUpdate[0] = encodedSecret;
+        clientDetailFieldsForUpdate[clientDetailFieldsForUpdate.length - 1] = userId;
         return clientDetailFieldsForUpdate;
     }
 
+    private String encodeSecret(String secret) {
+        return secret != null ? passwordEncoder.encode(secret) : null;
+    }
+
+    /**
+     * Hashes the secrets of the clients on the secret encoder threads, if there are any.
+     * @return the encoded secrets, in the order of the clients
+     */
+    private String[] encodeSecrets(List<ClientDetails> clients) {
+        String[] secrets = new String[clients.size()];
+        ExecutorService executor = secretEncoder;
+        if (executor == null || clients.size() < 2) {
+            for (int i = 0; i < secrets.length; i++) {
+                secrets[i] = encodeSecret(clients.get(i).getClientSecret());
+            }
+            return secrets;
+        }
+        List<Future<String>> futures = new ArrayList<>(clients.size());
+        for (ClientDetails client : clients) {
+            String secret = client.getClientSecret();
+            futures.add(executor.submit(() -> encodeSecret(secret)));
+        }
+        try {
+            for (int i = 0; i < secrets.length; i++) {
+                secrets[i] = futures.get(i).get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while encoding client secrets", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Unable to encode client secret", e.getCause());
+        } finally {
+            for (Future<String> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return secrets;
+    }
+
     private Object[] getFieldsForUpdate(ClientDetails clientDetails, String zoneId) {
+        return getFieldsForUpdate(clientDetails, new Timestamp(System.currentTimeMillis()), zoneId);
+    }
+
+    private Object[] getFieldsForUpdate(ClientDetails clientDetails, Timestamp lastModified, String zoneId) {
 
         Map<String, Object> additionalInformation = new HashMap(clientDetails.getAdditionalInformation());
         Collection<String> requiredGroups = (Collection<String>) additionalInformation.remove(REQUIRED_USER_GROUPS);
@@ -208,7 +348,7 @@ public class MultitenantJdbcClientDetailsService extends ClientServicesExtension
             clientDetails.getRefreshTokenValiditySeconds(),
             json,
             getAutoApproveScopes(clientDetails),
-            new Timestamp(System.currentTimeMillis()),
+            lastModified,
             collectionToString(requiredGroups),
             clientDetails.getClientId(),
             zoneId
@@ -238,7 +378,9 @@ public class MultitenantJdbcClientDetailsService extends ClientServicesExtension
 
     @Override
     public int deleteByIdentityZone(String zoneId) {
-        return jdbcTemplate.update(DELETE_CLIENTS_BY_ZONE, zoneId);
+        int deleted = jdbcTemplate.update(DELETE_CLIENTS_BY_ZONE, zoneId);
+        publish(zoneId, null);
+        return deleted;
     }
 
     @Override
@@ -252,6 +394,7 @@ public class MultitenantJdbcClientDetailsService extends ClientServicesExtension
         if (count == 0) {
             throw new NoSuchClientException("No client found with id = " + clientId);
         }
+        publish(zoneId, clientId);
         return count;
     }
 
@@ -278,6 +421,7 @@ public class MultitenantJdbcClientDetailsService extends ClientServicesExtension
         if (count != 1) {
             throw new NoSuchClientException("No client found with id = " + clientId);
         }
+        publish(zoneId, clientId);
     }
 
     @Override
@@ -288,9 +432,22 @@ public class MultitenantJdbcClientDetailsService extends ClientServicesExtension
         if (count != 1) {
             throw new NoSuchClientException("Unable to update client with " + clientId);
         }
+        publish(zoneId, clientId);
     }
 
 
+    private void publish(String zoneId, String clientId) {
+        if (invalidationBus != null) {
+            invalidationBus.publish(JdbcCacheInvalidationBus.CLIENT, zoneId, clientId);
+        }
+    }
+
+    private void publishAll(String zoneId, List<String> clientIds) {
+        if (invalidationBus != null) {
+            invalidationBus.publishAll(JdbcCacheInvalidationBus.CLIENT, zoneId, clientIds);
+        }
+    }
+
     /**
      * Row mapper for ClientDetails.
      *
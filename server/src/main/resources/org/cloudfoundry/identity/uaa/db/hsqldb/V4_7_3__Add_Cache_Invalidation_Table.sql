@@ -0,0 +1,9 @@
+CREATE TABLE cache_invalidation (
+  id VARCHAR(36) NOT NULL PRIMARY KEY,
+  entity_type VARCHAR(32) NOT NULL,
+  identity_zone_id VARCHAR(36) NOT NULL,
+  entity_id VARCHAR(255),
+  version INTEGER,
+  created TIMESTAMP DEFAULT CURRENT_TIMESTAMP NOT NULL
+);
+CREATE INDEX cache_invalidation_created_idx ON cache_invalidation (created);
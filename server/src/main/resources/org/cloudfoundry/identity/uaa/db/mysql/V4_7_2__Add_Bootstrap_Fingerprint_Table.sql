@@ -0,0 +1,8 @@
+CREATE TABLE `bootstrap_fingerprint` (
+  `entry_type` varchar(32) NOT NULL,
+  `entry_id` varchar(255) NOT NULL,
+  `identity_zone_id` varchar(36) NOT NULL,
+  `fingerprint` varchar(255) NOT NULL,
+  `lastmodified` TIMESTAMP default current_timestamp NOT NULL,
+  PRIMARY KEY (`entry_type`, `entry_id`, `identity_zone_id`)
+);
@@ -0,0 +1,10 @@
+CREATE TABLE `cache_invalidation` (
+  `id` varchar(36) NOT NULL,
+  `entity_type` varchar(32) NOT NULL,
+  `identity_zone_id` varchar(36) NOT NULL,
+  `entity_id` varchar(255) default NULL,
+  `version` int(11) default NULL,
+  `created` TIMESTAMP default current_timestamp NOT NULL,
+  PRIMARY KEY (`id`)
+);
+CREATE INDEX cache_invalidation_created_idx ON cache_invalidation (created);
@@ -0,0 +1,8 @@
+CREATE TABLE bootstrap_fingerprint (
+  entry_type VARCHAR(32) NOT NULL,
+  entry_id VARCHAR(255) NOT NULL,
+  identity_zone_id VARCHAR(36) NOT NULL,
+  fingerprint VARCHAR(255) NOT NULL,
+  lastmodified TIMESTAMP default current_timestamp NOT NULL,
+  PRIMARY KEY (entry_type, entry_id, identity_zone_id)
+);
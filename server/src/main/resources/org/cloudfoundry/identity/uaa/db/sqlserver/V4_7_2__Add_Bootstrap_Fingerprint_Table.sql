@@ -0,0 +1,8 @@
+CREATE TABLE bootstrap_fingerprint (
+  entry_type NVARCHAR(32) NOT NULL,
+  entry_id NVARCHAR(255) NOT NULL,
+  identity_zone_id NVARCHAR(36) NOT NULL,
+  fingerprint NVARCHAR(255) NOT NULL,
+  lastmodified DATETIME default current_timestamp NOT NULL,
+  PRIMARY KEY (entry_type, entry_id, identity_zone_id)
+);
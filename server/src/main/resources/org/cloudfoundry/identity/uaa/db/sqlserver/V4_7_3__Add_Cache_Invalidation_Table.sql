@@ -0,0 +1,9 @@
+CREATE TABLE cache_invalidation (
+  id NVARCHAR(36) NOT NULL PRIMARY KEY,
+  entity_type NVARCHAR(32) NOT NULL,
+  identity_zone_id NVARCHAR(36) NOT NULL,
+  entity_id NVARCHAR(255),
+  version INT,
+  created DATETIME default current_timestamp NOT NULL
+);
+CREATE INDEX cache_invalidation_created_idx ON cache_invalidation (created);
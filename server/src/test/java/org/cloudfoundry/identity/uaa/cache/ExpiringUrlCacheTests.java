@@ -15,24 +15,39 @@
 
 package org.cloudfoundry.identity.uaa.cache;
 
+import com.google.common.cache.ForwardingCache;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.cloudfoundry.identity.uaa.util.TimeService;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -55,14 +70,14 @@ public class ExpiringUrlCacheTests {
         when(ticker.getCurrentTimeMillis()).thenAnswer(e -> System.currentTimeMillis());
         cache = new ExpiringUrlCache(EXPIRING_TIME_MILLIS, ticker, 2);
         template = mock(RestTemplate.class);
-        when(template.getForObject(any(URI.class), any())).thenReturn(content, new byte[1024]);
+        when(exchange(template, any(URI.class))).thenReturn(ok(content), ok(new byte[1024]));
         uri = "http://localhost:8080/uaa/.well-known/openid-configuration";
     }
 
     @Test
     public void correct_method_invoked_on_rest_template() throws URISyntaxException {
         cache.getUrlContent(uri, template);
-        verify(template, times(1)).getForObject(eq(new URI(uri)), same((new byte[0]).getClass()));
+        verify(template, times(1)).exchange(eq(new URI(uri)), eq(HttpMethod.GET), any(HttpEntity.class), same((new byte[0]).getClass()));
     }
 
     @Test(expected = IllegalArgumentException.class)
@@ -74,7 +89,7 @@ public class ExpiringUrlCacheTests {
     @Test
     public void rest_client_exception_returns_null() {
         template = mock(RestTemplate.class);
-        when(template.getForObject(any(URI.class), any())).thenThrow(new RestClientException("mock"));
+        when(exchange(template, any(URI.class))).thenThrow(new RestClientException("mock"));
         assertNull(cache.getUrlContent(uri, template));
         assertEquals(0, cache.size());
     }
@@ -83,7 +98,7 @@ public class ExpiringUrlCacheTests {
     public void calling_twice_uses_cache() throws Exception {
         byte[] c1 = cache.getUrlContent(uri, template);
         byte[] c2 = cache.getUrlContent(uri, template);
-        verify(template, times(1)).getForObject(eq(new URI(uri)), same((new byte[0]).getClass()));
+        verify(template, times(1)).exchange(eq(new URI(uri)), eq(HttpMethod.GET), any(HttpEntity.class), same((new byte[0]).getClass()));
         assertSame(c1, c2);
         assertEquals(1, cache.size());
     }
@@ -93,7 +108,7 @@ public class ExpiringUrlCacheTests {
         when(ticker.getCurrentTimeMillis()).thenReturn(System.currentTimeMillis(), System.currentTimeMillis() + EXPIRING_TIME_MILLIS + 10000);
         byte[] c1 = cache.getUrlContent(uri, template);
         byte[] c2 = cache.getUrlContent(uri, template);
-        verify(template, times(2)).getForObject(eq(new URI(uri)), same((new byte[0]).getClass()));
+        verify(template, times(2)).exchange(eq(new URI(uri)), eq(HttpMethod.GET), any(HttpEntity.class), same((new byte[0]).getClass()));
         assertNotSame(c1, c2);
     }
 
@@ -121,17 +136,153 @@ public class ExpiringUrlCacheTests {
         byte[] c2 = new byte[1024];
         byte[] c3 = new byte[1024];
         template = mock(RestTemplate.class);
-        when(template.getForObject(eq(new URI(uri1)), any())).thenReturn(c1);
-        when(template.getForObject(eq(new URI(uri2)), any())).thenReturn(c2);
-        when(template.getForObject(eq(new URI(uri3)), any())).thenReturn(c3);
+        when(exchange(template, eq(new URI(uri1)))).thenReturn(ok(c1));
+        when(exchange(template, eq(new URI(uri2)))).thenReturn(ok(c2));
+        when(exchange(template, eq(new URI(uri3)))).thenReturn(ok(c3));
         for (String uri : Arrays.asList(uri1, uri1, uri2, uri2, uri3, uri3)) {
             cache.getUrlContent(uri, template);
         }
         for (String uri : Arrays.asList(uri1, uri2, uri3)) {
-            verify(template, times(1)).getForObject(eq(new URI(uri)), same((new byte[0]).getClass()));
+            verify(template, times(1)).exchange(eq(new URI(uri)), eq(HttpMethod.GET), any(HttpEntity.class), same((new byte[0]).getClass()));
         }
         assertEquals(2, cache.size());
     }
 
+    @Test
+    public void concurrent_callers_share_a_single_fetch() throws Exception {
+        CountDownLatch fetching = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        template = mock(RestTemplate.class);
+        doAnswer(invocation -> {
+            fetching.countDown();
+            release.await();
+            return ok(content);
+        }).when(template).exchange(any(URI.class), any(HttpMethod.class), any(HttpEntity.class), eq(byte[].class));
+
+        AtomicReference<byte[]> first = new AtomicReference<>();
+        AtomicReference<byte[]> second = new AtomicReference<>();
+        Thread t1 = new Thread(() -> first.set(cache.getUrlContent(uri, template)));
+        Thread t2 = new Thread(() -> second.set(cache.getUrlContent(uri, template)));
+        t1.start();
+        fetching.await();
+        t2.start();
+        while (t2.getState() != Thread.State.WAITING && t2.isAlive()) {
+            Thread.sleep(5);
+        }
+        release.countDown();
+        t1.join();
+        t2.join();
+
+        assertSame(content, first.get());
+        assertSame(content, second.get());
+        verify(template, times(1)).exchange(any(URI.class), any(HttpMethod.class), any(HttpEntity.class), eq(byte[].class));
+    }
+
+    @Test
+    public void content_is_refreshed_in_background_before_expiry() throws Exception {
+        long start = System.currentTimeMillis();
+        when(ticker.getCurrentTimeMillis()).thenReturn(start, start + EXPIRING_TIME_MILLIS - 1000, start + EXPIRING_TIME_MILLIS - 500);
+        cache.setRefreshExecutor(MoreExecutors.newDirectExecutorService());
+        byte[] c1 = cache.getUrlContent(uri, template);
+        byte[] c2 = cache.getUrlContent(uri, template);
+        byte[] c3 = cache.getUrlContent(uri, template);
+        assertSame(c1, c2);
+        assertNotSame(c1, c3);
+        verify(template, times(2)).exchange(eq(new URI(uri)), eq(HttpMethod.GET), any(HttpEntity.class), same((new byte[0]).getClass()));
+    }
+
+    @Test
+    public void background_refresh_is_scheduled_once() throws Exception {
+        long start = System.currentTimeMillis();
+        when(ticker.getCurrentTimeMillis()).thenReturn(start, start + EXPIRING_TIME_MILLIS - 1000);
+        ExecutorService executor = mock(ExecutorService.class);
+        cache.setRefreshExecutor(executor);
+        byte[] c1 = cache.getUrlContent(uri, template);
+        assertSame(c1, cache.getUrlContent(uri, template));
+        assertSame(c1, cache.getUrlContent(uri, template));
+
+        ArgumentCaptor<Runnable> refresh = ArgumentCaptor.forClass(Runnable.class);
+        verify(executor, times(1)).execute(refresh.capture());
+        refresh.getValue().run();
+        assertNotSame(c1, cache.getUrlContent(uri, template));
+        verify(template, times(2)).exchange(eq(new URI(uri)), eq(HttpMethod.GET), any(HttpEntity.class), same((new byte[0]).getClass()));
+    }
+
+    @Test
+    public void fetch_completed_by_another_caller_is_not_repeated() throws Exception {
+        AtomicBoolean raced = new AtomicBoolean(false);
+        cache.cache = new ForwardingCache.SimpleForwardingCache<String, ExpiringUrlCache.CacheEntry>(cache.cache) {
+            @Override
+            public ExpiringUrlCache.CacheEntry getIfPresent(Object key) {
+                if (raced.compareAndSet(false, true)) {
+                    //another caller fetches and caches the content after this one found nothing
+                    cache.getUrlContent(uri, template);
+                    return null;
+                }
+                return super.getIfPresent(key);
+            }
+        };
+        assertSame(content, cache.getUrlContent(uri, template));
+        verify(template, times(1)).exchange(eq(new URI(uri)), eq(HttpMethod.GET), any(HttpEntity.class), same((new byte[0]).getClass()));
+    }
+
+    @Test
+    public void stale_content_is_served_when_fetch_fails() throws Exception {
+        long start = System.currentTimeMillis();
+        when(ticker.getCurrentTimeMillis()).thenReturn(start, start + EXPIRING_TIME_MILLIS + 1000);
+        template = mock(RestTemplate.class);
+        when(exchange(template, any(URI.class))).thenReturn(ok(content)).thenThrow(new RestClientException("mock"));
+        assertSame(content, cache.getUrlContent(uri, template));
+        assertSame(content, cache.getUrlContent(uri, template));
+        assertSame(content, cache.getUrlContent(uri, template));
+        verify(template, times(2)).exchange(eq(new URI(uri)), eq(HttpMethod.GET), any(HttpEntity.class), same((new byte[0]).getClass()));
+        assertEquals(1, cache.getFetchFailureCount());
+        assertEquals(2, cache.getStaleResponseCount());
+    }
+
+    @Test
+    public void stale_content_is_not_served_past_max_staleness() throws Exception {
+        long start = System.currentTimeMillis();
+        cache = new ExpiringUrlCache(EXPIRING_TIME_MILLIS, ticker, 2, 60 * 1000);
+        when(ticker.getCurrentTimeMillis()).thenReturn(start, start + EXPIRING_TIME_MILLIS + 61 * 1000);
+        template = mock(RestTemplate.class);
+        when(exchange(template, any(URI.class))).thenReturn(ok(content)).thenThrow(new RestClientException("mock"));
+        assertSame(content, cache.getUrlContent(uri, template));
+        assertNull(cache.getUrlContent(uri, template));
+    }
+
+    @Test
+    public void revalidation_uses_conditional_request() throws Exception {
+        long start = System.currentTimeMillis();
+        when(ticker.getCurrentTimeMillis()).thenReturn(start, start + EXPIRING_TIME_MILLIS + 1000);
+        HttpHeaders headers = new HttpHeaders();
+        headers.setETag("\"v1\"");
+        headers.set(HttpHeaders.LAST_MODIFIED, "Wed, 21 Oct 2015 07:28:00 GMT");
+        template = mock(RestTemplate.class);
+        when(exchange(template, any(URI.class)))
+            .thenReturn(new ResponseEntity<>(content, headers, HttpStatus.OK))
+            .thenReturn(new ResponseEntity<>(HttpStatus.NOT_MODIFIED));
+
+        byte[] c1 = cache.getUrlContent(uri, template);
+        byte[] c2 = cache.getUrlContent(uri, template);
+        assertSame(c1, c2);
+        assertEquals(1, cache.getNotModifiedCount());
+
+        ArgumentCaptor<HttpEntity> requests = ArgumentCaptor.forClass(HttpEntity.class);
+        verify(template, times(2)).exchange(eq(new URI(uri)), eq(HttpMethod.GET), requests.capture(), same((new byte[0]).getClass()));
+        assertTrue(requests.getAllValues().get(0).getHeaders().getIfNoneMatch().isEmpty());
+        HttpHeaders conditional = requests.getAllValues().get(1).getHeaders();
+        assertEquals(Collections.singletonList("\"v1\""), conditional.getIfNoneMatch());
+        assertEquals("Wed, 21 Oct 2015 07:28:00 GMT", conditional.getFirst(HttpHeaders.IF_MODIFIED_SINCE));
+    }
+
+    private static ResponseEntity<byte[]> exchange(RestTemplate template, URI uri) {
+        return template.exchange(uri, eq(HttpMethod.GET), any(HttpEntity.class), eq(byte[].class));
+    }
+
+    private static ResponseEntity<byte[]> ok(byte[] body) {
+        return new ResponseEntity<>(body, HttpStatus.OK);
+    }
+
 
 }
@@ -0,0 +1,186 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2017] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.cache;
+
+import org.apache.commons.lang.RandomStringUtils;
+import org.cloudfoundry.identity.uaa.provider.IdentityProvider;
+import org.cloudfoundry.identity.uaa.provider.JdbcIdentityProviderProvisioning;
+import org.cloudfoundry.identity.uaa.resources.jdbc.JdbcPagingListFactory;
+import org.cloudfoundry.identity.uaa.resources.jdbc.LimitSqlAdapterFactory;
+import org.cloudfoundry.identity.uaa.scim.ScimGroup;
+import org.cloudfoundry.identity.uaa.scim.jdbc.JdbcScimGroupExternalMembershipManager;
+import org.cloudfoundry.identity.uaa.scim.jdbc.JdbcScimGroupProvisioning;
+import org.cloudfoundry.identity.uaa.test.JdbcTestBase;
+import org.cloudfoundry.identity.uaa.zone.IdentityZone;
+import org.cloudfoundry.identity.uaa.zone.MultitenancyFixture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.support.GenericApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+public class JdbcCacheInvalidationBusTests extends JdbcTestBase {
+
+    private GenericApplicationContext nodeA;
+    private GenericApplicationContext nodeB;
+
+    @Before
+    public void startNodes() {
+        nodeA = startNode();
+        nodeB = startNode();
+    }
+
+    @After
+    public void stopNodes() {
+        //singletons registered as instances are not destroyed with their context
+        bus(nodeA).destroy();
+        bus(nodeB).destroy();
+        nodeA.close();
+        nodeB.close();
+    }
+
+    /**
+     * Two application contexts on the same database, as two servers would have
+     */
+    private GenericApplicationContext startNode() {
+        JdbcTemplate template = new JdbcTemplate(dataSource);
+        JdbcCacheInvalidationBus bus = new JdbcCacheInvalidationBus(template);
+        bus.setEnabled(true);
+        bus.setPollInterval(60000);
+        JdbcIdentityProviderProvisioning providerProvisioning = new JdbcIdentityProviderProvisioning(template);
+        providerProvisioning.setValidationIntervalMillis(Long.MAX_VALUE);
+        providerProvisioning.setInvalidationBus(bus);
+        JdbcScimGroupProvisioning groupProvisioning = new JdbcScimGroupProvisioning(template, new JdbcPagingListFactory(template, LimitSqlAdapterFactory.getLimitSqlAdapter()));
+        groupProvisioning.setInvalidationBus(bus);
+        JdbcScimGroupExternalMembershipManager externalMembershipManager = new JdbcScimGroupExternalMembershipManager(template);
+        externalMembershipManager.setScimGroupProvisioning(groupProvisioning);
+        externalMembershipManager.setValidationIntervalMillis(Long.MAX_VALUE);
+        externalMembershipManager.setInvalidationBus(bus);
+
+        GenericApplicationContext context = new GenericApplicationContext();
+        context.getBeanFactory().registerSingleton("cacheInvalidationBus", bus);
+        context.getBeanFactory().registerSingleton("identityProviderProvisioning", providerProvisioning);
+        context.getBeanFactory().registerSingleton("scimGroupProvisioning", groupProvisioning);
+        context.getBeanFactory().registerSingleton("externalGroupMembershipManager", externalMembershipManager);
+        context.refresh();
+        return context;
+    }
+
+    private static JdbcCacheInvalidationBus bus(GenericApplicationContext node) {
+        return node.getBean(JdbcCacheInvalidationBus.class);
+    }
+
+    private static JdbcIdentityProviderProvisioning providers(GenericApplicationContext node) {
+        return node.getBean(JdbcIdentityProviderProvisioning.class);
+    }
+
+    @Test
+    public void change_on_one_node_evicts_the_cache_of_the_other() {
+        String zoneId = IdentityZone.getUaa().getId();
+        IdentityProvider created = providers(nodeA).create(MultitenancyFixture.identityProvider(RandomStringUtils.randomAlphabetic(6), zoneId), zoneId);
+        bus(nodeB).poll();
+        assertEquals(created.getName(), providers(nodeB).retrieve(created.getId(), zoneId).getName());
+
+        String name = created.getName();
+        created.setName("renamed");
+        providers(nodeA).update(created, zoneId);
+        //node B serves its cached provider until it sees the change
+        assertEquals(name, providers(nodeB).retrieve(created.getId(), zoneId).getName());
+
+        long invalidations = bus(nodeB).getInvalidationCount();
+        bus(nodeB).poll();
+        assertEquals("renamed", providers(nodeB).retrieve(created.getId(), zoneId).getName());
+        assertEquals(invalidations + 1, bus(nodeB).getInvalidationCount());
+        assertTrue(bus(nodeB).getTimeSinceLastPoll() >= 0);
+        assertTrue(bus(nodeB).getMaxLag() >= bus(nodeB).getLastLag());
+    }
+
+    private static JdbcScimGroupProvisioning groups(GenericApplicationContext node) {
+        return node.getBean(JdbcScimGroupProvisioning.class);
+    }
+
+    private static JdbcScimGroupExternalMembershipManager externalGroups(GenericApplicationContext node) {
+        return node.getBean(JdbcScimGroupExternalMembershipManager.class);
+    }
+
+    @Test
+    public void external_group_mapping_on_one_node_evicts_the_cache_of_the_other() {
+        String zoneId = IdentityZone.getUaa().getId();
+        ScimGroup group = groups(nodeA).create(new ScimGroup(null, RandomStringUtils.randomAlphabetic(6), zoneId), zoneId);
+        externalGroups(nodeA).mapExternalGroup(group.getId(), "cn=mapped", "ldap", zoneId);
+        bus(nodeB).poll();
+        assertEquals(1, externalGroups(nodeB).getExternalGroupMapsByExternalGroup("cn=mapped", "ldap", zoneId).size());
+
+        externalGroups(nodeA).unmapExternalGroup(group.getId(), "cn=mapped", "ldap", zoneId);
+        //node B serves its cached mappings until it sees the change
+        assertEquals(1, externalGroups(nodeB).getExternalGroupMapsByExternalGroup("cn=mapped", "ldap", zoneId).size());
+        bus(nodeB).poll();
+        assertEquals(0, externalGroups(nodeB).getExternalGroupMapsByExternalGroup("cn=mapped", "ldap", zoneId).size());
+
+        externalGroups(nodeA).mapExternalGroup(group.getId(), "cn=mapped", "ldap", zoneId);
+        bus(nodeB).poll();
+        assertEquals(1, externalGroups(nodeB).getExternalGroupMapsByExternalGroup("cn=mapped", "ldap", zoneId).size());
+
+        groups(nodeA).deleteByOrigin("ldap", zoneId);
+        bus(nodeB).poll();
+        assertEquals(0, externalGroups(nodeB).getExternalGroupMapsByExternalGroup("cn=mapped", "ldap", zoneId).size());
+    }
+
+    @Test
+    public void changes_record_the_version_of_the_entity() {
+        String zoneId = IdentityZone.getUaa().getId();
+        IdentityProvider created = providers(nodeA).create(MultitenancyFixture.identityProvider(RandomStringUtils.randomAlphabetic(6), zoneId), zoneId);
+        created.setName("renamed");
+        providers(nodeA).update(created, zoneId);
+
+        List<Integer> versions = jdbcTemplate.queryForList("select version from cache_invalidation where entity_id=? order by version", Integer.class, created.getId());
+        assertEquals(Arrays.asList(created.getVersion(), created.getVersion() + 1), versions);
+    }
+
+    @Test
+    public void changes_are_delivered_once() {
+        CacheInvalidationListener listener = mock(CacheInvalidationListener.class);
+        bus(nodeB).addListener(listener);
+        bus(nodeB).poll();
+
+        bus(nodeA).publish(JdbcCacheInvalidationBus.CLIENT, "zone-id", "client-id");
+        bus(nodeB).poll();
+        bus(nodeB).poll();
+        verify(listener, times(1)).invalidate(JdbcCacheInvalidationBus.CLIENT, "zone-id", "client-id");
+    }
+
+    @Test
+    public void nothing_is_recorded_when_disabled() {
+        CacheInvalidationListener listener = mock(CacheInvalidationListener.class);
+        bus(nodeB).addListener(listener);
+        bus(nodeB).poll();
+
+        bus(nodeA).setEnabled(false);
+        bus(nodeA).publish(JdbcCacheInvalidationBus.CLIENT, "zone-id", "client-id");
+        bus(nodeB).poll();
+        verifyZeroInteractions(listener);
+        assertEquals(0, (int) jdbcTemplate.queryForObject("select count(*) from cache_invalidation where identity_zone_id=?", Integer.class, "zone-id"));
+    }
+}
@@ -15,6 +15,7 @@ package org.cloudfoundry.identity.uaa.client;
 
 import org.cloudfoundry.identity.uaa.audit.event.EntityDeletedEvent;
 import org.cloudfoundry.identity.uaa.authentication.SystemAuthentication;
+import org.cloudfoundry.identity.uaa.impl.config.JdbcBootstrapFingerprintStore;
 import org.cloudfoundry.identity.uaa.oauth.client.ClientConstants;
 import org.cloudfoundry.identity.uaa.test.JdbcTestBase;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
@@ -115,6 +116,52 @@ public class ClientAdminBootstrapTests extends JdbcTestBase {
         return map;
     }
 
+    @Test
+    public void unchanged_clients_are_skipped_with_fingerprints() throws Exception {
+        JdbcBootstrapFingerprintStore fingerprintStore = new JdbcBootstrapFingerprintStore(jdbcTemplate);
+        fingerprintStore.setEnabled(true);
+        bootstrap.setFingerprintStore(fingerprintStore);
+        String clientId = "client-"+new RandomValueStringGenerator().generate().toLowerCase();
+        Map<String, Object> map = createClientMap(clientId);
+        map.put("app-launch-url", "http://takemetothispage.com");
+        bootstrap.setClients(Collections.singletonMap(clientId, map));
+        bootstrap.setAutoApproveClients(singletonList(clientId));
+        bootstrap.afterPropertiesSet();
+        ClientDetails created = clientRegistrationService.loadClientByClientId(clientId, "uaa");
+        assertTrue(created.isAutoApprove("openid"));
+        assertTrue(bootstrap.getPasswordEncoder().matches("bar", created.getClientSecret()));
+        assertEquals("http://takemetothispage.com", clientMetadataProvisioning.retrieve(clientId, "uaa").getAppLaunchUrl().toString());
+
+        reset(clientRegistrationService);
+        bootstrap.afterPropertiesSet();
+        verify(clientRegistrationService, never()).addAllClientDetails(any(), anyString());
+        verify(clientRegistrationService, never()).updateAllClientDetails(any(), anyString());
+        verify(clientRegistrationService, never()).updateClientDetails(any(), anyString());
+
+        clientRegistrationService.updateClientSecret(clientId, "changed", "uaa");
+        reset(clientRegistrationService);
+        bootstrap.afterPropertiesSet();
+        verify(clientRegistrationService, times(1)).updateAllClientDetails(any(), anyString());
+        assertTrue(bootstrap.getPasswordEncoder().matches("bar", clientRegistrationService.loadClientByClientId(clientId, "uaa").getClientSecret()));
+
+        map.put("scope", "openid,profile");
+        reset(clientRegistrationService);
+        bootstrap.afterPropertiesSet();
+        verify(clientRegistrationService, times(1)).updateAllClientDetails(any(), anyString());
+        verify(clientRegistrationService, never()).updateClientSecret(any(), any(), anyString());
+        assertTrue(clientRegistrationService.loadClientByClientId(clientId, "uaa").getScope().contains("profile"));
+
+        map.put("secret", "baz");
+        reset(clientRegistrationService);
+        bootstrap.afterPropertiesSet();
+        verify(clientRegistrationService, times(1)).updateClientSecret(any(), any(), anyString());
+        assertTrue(bootstrap.getPasswordEncoder().matches("baz", clientRegistrationService.loadClientByClientId(clientId, "uaa").getClientSecret()));
+
+        reset(clientRegistrationService);
+        bootstrap.afterPropertiesSet();
+        verify(clientRegistrationService, never()).updateAllClientDetails(any(), anyString());
+    }
+
     @Test
     public void client_slated_for_deletion_does_not_get_inserted() throws Exception {
         String autoApproveId = "autoapprove-"+new RandomValueStringGenerator().generate().toLowerCase();
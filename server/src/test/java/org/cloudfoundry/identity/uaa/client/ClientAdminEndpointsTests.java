@@ -78,8 +78,10 @@ import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyList;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -144,6 +146,7 @@ public class ClientAdminEndpointsTests {
         clientDetailsResourceMonitor = Mockito.mock(ResourceMonitor.class);
         securityContextAccessor = Mockito.mock(SecurityContextAccessor.class);
         clientRegistrationService = Mockito.mock(ClientServicesExtension.class, withSettings().extraInterfaces(SystemDeletable.class));
+        when(clientRegistrationService.addAllClientDetails(anyList(), anyString())).thenAnswer(invocation -> invocation.getArgument(0));
         authenticationManager = Mockito.mock(AuthenticationManager.class);
         approvalStore = mock(ApprovalStore.class);
         clientDetailsValidator = new ClientAdminEndpointsValidator();
@@ -426,8 +429,24 @@ public class ClientAdminEndpointsTests {
             ClientDetails result = results[i];
             assertNull(result.getClientSecret());
         }
-        //TODO figure out how to verify all five invocations
-        //Mockito.verify(clientRegistrationService, times(inputs.length)).addClientDetails(details[0]);
+        ArgumentCaptor<List> clientsCaptor = ArgumentCaptor.forClass(List.class);
+        verify(clientRegistrationService).addAllClientDetails(clientsCaptor.capture(), eq(IdentityZoneHolder.get().getId()));
+        assertEquals(inputs.length, clientsCaptor.getValue().size());
+        verify(clientDetailsService, never()).create(any(ClientDetails.class), anyString());
+    }
+
+    @Test
+    public void testMultipleUpdateClientDetailsInOneBatch() throws Exception {
+        when(securityContextAccessor.isAdmin()).thenReturn(true);
+        for (int i=0; i<inputs.length; i++) {
+            when(clientDetailsService.retrieve(inputs[i].getClientId(), IdentityZoneHolder.get().getId())).thenReturn(details[i]);
+        }
+        ClientDetails[] results = endpoints.updateClientDetailsTx(inputs);
+        assertEquals(inputs.length, results.length);
+        ArgumentCaptor<List> clientsCaptor = ArgumentCaptor.forClass(List.class);
+        verify(clientRegistrationService).updateAllClientDetails(clientsCaptor.capture(), eq(IdentityZoneHolder.get().getId()));
+        assertEquals(inputs.length, clientsCaptor.getValue().size());
+        verify(clientRegistrationService, never()).updateClientDetails(any(ClientDetails.class), anyString());
     }
 
     @Test(expected = InvalidClientDetailsException.class)
@@ -33,9 +33,15 @@ import org.springframework.test.util.ReflectionTestUtils;
 
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -146,6 +152,32 @@ public class ExpiringCodeStoreTests extends JdbcTestBase {
         Assert.assertNull(expiringCodeStore.retrieveCode(generatedCode.getCode(), IdentityZoneHolder.get().getId()));
     }
 
+    @Test
+    public void testConcurrentRetrieveCodeReturnsCodeOnce() throws Exception {
+        String zoneId = IdentityZoneHolder.get().getId();
+        ExpiringCode generatedCode = expiringCodeStore.generateCode("{}", new Timestamp(System.currentTimeMillis() + 60000), null, zoneId);
+
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Callable<ExpiringCode>> redemptions = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                redemptions.add(() -> expiringCodeStore.retrieveCode(generatedCode.getCode(), zoneId));
+            }
+            int retrieved = 0;
+            for (Future<ExpiringCode> result : executor.invokeAll(redemptions)) {
+                if (result.get() != null) {
+                    Assert.assertEquals(generatedCode, result.get());
+                    retrieved++;
+                }
+            }
+            Assert.assertEquals(1, retrieved);
+            Assert.assertEquals(0, countCodes());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     @Test
     public void testRetrieveCode_In_Another_Zone() throws Exception {
         String data = "{}";
@@ -0,0 +1,164 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2017] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.db;
+
+import org.apache.commons.lang.RandomStringUtils;
+import org.cloudfoundry.identity.uaa.resources.jdbc.DefaultLimitSqlAdapter;
+import org.cloudfoundry.identity.uaa.resources.jdbc.JdbcPagingList;
+import org.cloudfoundry.identity.uaa.user.UaaUserStatusCache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReadReplicaRoutingDataSourceTests {
+
+    private static final String QUERY = "select name from read_replica_test";
+
+    private DriverManagerDataSource primary;
+    private DriverManagerDataSource replica;
+    private ReadReplicaRoutingDataSource routingDataSource;
+    private JdbcTemplate jdbcTemplate;
+    private DataSourceTransactionManager transactionManager;
+
+    /**
+     * Two databases with the same table, that tell which one answered a query
+     */
+    @Before
+    public void setUp() {
+        primary = database("primary");
+        replica = database("replica");
+        routingDataSource = new ReadReplicaRoutingDataSource();
+        routingDataSource.setPrimary(primary);
+        routingDataSource.setReplica(replica);
+        routingDataSource.setEnabled(true);
+        routingDataSource.afterPropertiesSet();
+        LazyConnectionDataSourceProxy dataSource = new LazyConnectionDataSourceProxy(routingDataSource);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        transactionManager = new DataSourceTransactionManager(dataSource);
+        startRequest();
+    }
+
+    @After
+    public void tearDown() {
+        RequestContextHolder.resetRequestAttributes();
+        new JdbcTemplate(primary).execute("SHUTDOWN");
+        new JdbcTemplate(replica).execute("SHUTDOWN");
+    }
+
+    private static DriverManagerDataSource database(String name) {
+        DriverManagerDataSource dataSource = new DriverManagerDataSource("jdbc:hsqldb:mem:" + name + RandomStringUtils.randomAlphabetic(8), "sa", "");
+        JdbcTemplate template = new JdbcTemplate(dataSource);
+        template.execute("create table read_replica_test (name varchar(36))");
+        template.update("insert into read_replica_test (name) values (?)", name);
+        return dataSource;
+    }
+
+    private static void startRequest() {
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(new MockHttpServletRequest()));
+    }
+
+    private String readOnlyQuery() {
+        return ReadReplicaRoutingDataSource.readOnly(() -> jdbcTemplate.queryForObject(QUERY, String.class));
+    }
+
+    @Test
+    public void read_only_queries_use_the_replica() {
+        long primaryConnections = routingDataSource.getPrimaryConnectionCount();
+        assertEquals("replica", readOnlyQuery());
+        assertEquals("primary", jdbcTemplate.queryForObject(QUERY, String.class));
+        assertEquals(1, routingDataSource.getReplicaConnectionCount());
+        assertEquals(primaryConnections + 1, routingDataSource.getPrimaryConnectionCount());
+    }
+
+    @Test
+    public void paging_lists_use_the_replica() {
+        List<String> names = new JdbcPagingList<>(jdbcTemplate, new DefaultLimitSqlAdapter(), QUERY, (rs, rowNum) -> rs.getString(1), 10);
+        assertEquals(1, names.size());
+        assertEquals("replica", names.get(0));
+    }
+
+    @Test
+    public void read_only_transactions_use_the_replica() {
+        TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+        transaction.setReadOnly(true);
+        assertEquals("replica", transaction.execute(status -> jdbcTemplate.queryForObject(QUERY, String.class)));
+    }
+
+    @Test
+    public void read_only_queries_in_a_read_write_transaction_use_the_primary() {
+        TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+        assertEquals("primary", transaction.execute(status -> readOnlyQuery()));
+    }
+
+    @Test
+    public void primary_queries_within_read_only_use_the_primary() {
+        assertEquals("primary", ReadReplicaRoutingDataSource.readOnly(() -> ReadReplicaRoutingDataSource.primary(() -> jdbcTemplate.queryForObject(QUERY, String.class))));
+        assertEquals("replica", readOnlyQuery());
+
+        TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+        transaction.setReadOnly(true);
+        assertEquals("primary", transaction.execute(status -> ReadReplicaRoutingDataSource.primary(() -> jdbcTemplate.queryForObject(QUERY, String.class))));
+    }
+
+    @Test
+    public void user_status_is_loaded_from_the_primary() {
+        UaaUserStatusCache statusCache = new UaaUserStatusCache();
+        statusCache.setTtlSeconds(60);
+        UaaUserStatusCache.Status status = ReadReplicaRoutingDataSource.readOnly(() -> statusCache.get("zone-id", "user-id", () ->
+            new UaaUserStatusCache.Status("primary".equals(jdbcTemplate.queryForObject(QUERY, String.class)), null)
+        ));
+        assertTrue(status.isActive());
+        assertEquals(0, routingDataSource.getReplicaConnectionCount());
+    }
+
+    @Test
+    public void a_request_reads_its_own_writes() {
+        assertEquals("replica", readOnlyQuery());
+        jdbcTemplate.update("update read_replica_test set name = ?", "written");
+        assertEquals("written", readOnlyQuery());
+        assertEquals(1, routingDataSource.getStickyRequestCount());
+
+        startRequest();
+        assertEquals("replica", readOnlyQuery());
+    }
+
+    @Test
+    public void work_outside_of_requests_uses_the_primary() {
+        RequestContextHolder.resetRequestAttributes();
+        assertEquals("primary", readOnlyQuery());
+    }
+
+    @Test
+    public void everything_uses_the_primary_when_disabled() {
+        routingDataSource.setEnabled(false);
+        assertEquals("primary", readOnlyQuery());
+        TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+        transaction.setReadOnly(true);
+        assertEquals("primary", transaction.execute(status -> jdbcTemplate.queryForObject(QUERY, String.class)));
+    }
+}
@@ -12,6 +12,7 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.login;
 
+import com.fasterxml.jackson.core.type.TypeReference;
 import org.cloudfoundry.identity.uaa.authentication.UaaAuthentication;
 import org.cloudfoundry.identity.uaa.authentication.UaaAuthenticationDetails;
 import org.cloudfoundry.identity.uaa.authentication.UaaPrincipal;
@@ -95,6 +96,7 @@ import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isNull;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -444,6 +446,30 @@ public class LoginInfoEndpointTests {
         assertEquals("/forgot_password", links.get("passwd"));
     }
 
+    @Test
+    public void json_login_model_is_reused_until_providers_change() throws Exception {
+        when(identityProviderProvisioning.getRevision(anyString())).thenReturn("revision-1");
+        LoginInfoEndpoint endpoint = getEndpoint();
+
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        assertNull(endpoint.loginForJson(model, null, new MockHttpServletRequest("GET", "/login"), response));
+        assertEquals(MediaType.APPLICATION_JSON_VALUE + ";charset=UTF-8", response.getContentType());
+        Map<String, Object> json = JsonUtils.readValue(response.getContentAsString(), new TypeReference<Map<String, Object>>() {});
+        Map<String, Object> links = (Map<String, Object>) json.get("links");
+        assertEquals("http://someurl", links.get("login"));
+        assertNull(links.get("createAccountLink"));
+        assertThat(json, hasKey("prompts"));
+        assertThat(json, hasKey("zone_name"));
+
+        endpoint.loginForJson(model, null, new MockHttpServletRequest("GET", "/login"), new MockHttpServletResponse());
+        endpoint.loginForHtml(model, null, new MockHttpServletRequest("GET", "/login"), Collections.singletonList(MediaType.TEXT_HTML));
+        verify(identityProviderProvisioning, times(1)).retrieveAll(anyBoolean(), anyString());
+
+        when(identityProviderProvisioning.getRevision(anyString())).thenReturn("revision-2");
+        endpoint.loginForJson(model, null, new MockHttpServletRequest("GET", "/login"), new MockHttpServletResponse());
+        verify(identityProviderProvisioning, times(2)).retrieveAll(anyBoolean(), anyString());
+    }
+
     @Test
     public void saml_links_for_json() throws Exception {
         LoginInfoEndpoint endpoint = getEndpoint();
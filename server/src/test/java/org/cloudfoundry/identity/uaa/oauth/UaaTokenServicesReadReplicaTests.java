@@ -0,0 +1,176 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2017] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.oauth;
+
+import org.apache.commons.lang.RandomStringUtils;
+import org.cloudfoundry.identity.uaa.approval.Approval;
+import org.cloudfoundry.identity.uaa.approval.Approval.ApprovalStatus;
+import org.cloudfoundry.identity.uaa.authentication.UaaPrincipal;
+import org.cloudfoundry.identity.uaa.db.ReadReplicaRoutingDataSource;
+import org.cloudfoundry.identity.uaa.resources.jdbc.JdbcPagingListFactory;
+import org.cloudfoundry.identity.uaa.resources.jdbc.LimitSqlAdapterFactory;
+import org.cloudfoundry.identity.uaa.scim.ScimUser;
+import org.cloudfoundry.identity.uaa.scim.jdbc.JdbcScimUserProvisioning;
+import org.cloudfoundry.identity.uaa.user.JdbcUaaUserDatabase;
+import org.cloudfoundry.identity.uaa.user.UaaUser;
+import org.cloudfoundry.identity.uaa.util.TimeServiceImpl;
+import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
+import org.flywaydb.core.Flyway;
+import org.flywaydb.core.api.MigrationVersion;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.security.oauth2.provider.AuthorizationRequest;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import java.sql.Timestamp;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.cloudfoundry.identity.uaa.oauth.TokenTestSupport.AUTHORIZATION_CODE;
+import static org.cloudfoundry.identity.uaa.oauth.TokenTestSupport.CLIENT_ID;
+import static org.cloudfoundry.identity.uaa.oauth.TokenTestSupport.GRANT_TYPE;
+import static org.cloudfoundry.identity.uaa.oauth.TokenTestSupport.REFRESH_TOKEN;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class UaaTokenServicesReadReplicaTests {
+
+    private EmbeddedDatabase primary;
+    private EmbeddedDatabase replica;
+    private TokenTestSupport tokenSupport;
+    private UaaTokenServices tokenServices;
+    private JdbcUaaUserDatabase userDatabase;
+    private UaaUser user;
+
+    /**
+     * A primary and a replica that both hold the same user
+     */
+    @Before
+    public void setUp() throws Exception {
+        primary = database();
+        replica = database();
+        JdbcTemplate primaryTemplate = new JdbcTemplate(primary);
+        JdbcScimUserProvisioning users = new JdbcScimUserProvisioning(primaryTemplate, new JdbcPagingListFactory(primaryTemplate, LimitSqlAdapterFactory.getLimitSqlAdapter()));
+        ScimUser scimUser = new ScimUser(null, "joe", "Joe", "User");
+        scimUser.addEmail("joe@test.org");
+        String userId = users.createUser(scimUser, "password", IdentityZoneHolder.get().getId()).getId();
+        copyUser(userId);
+
+        ReadReplicaRoutingDataSource routingDataSource = new ReadReplicaRoutingDataSource();
+        routingDataSource.setPrimary(primary);
+        routingDataSource.setReplica(replica);
+        routingDataSource.setEnabled(true);
+        routingDataSource.afterPropertiesSet();
+        userDatabase = new JdbcUaaUserDatabase(new JdbcTemplate(new LazyConnectionDataSourceProxy(routingDataSource)), new TimeServiceImpl());
+
+        tokenSupport = new TokenTestSupport(null);
+        tokenServices = tokenSupport.getUaaTokenServices();
+        tokenServices.setUserDatabase(userDatabase);
+        user = userDatabase.retrieveUserById(userId);
+    }
+
+    @After
+    public void tearDown() {
+        RequestContextHolder.resetRequestAttributes();
+        IdentityZoneHolder.clear();
+        tokenSupport.clear();
+        primary.shutdown();
+        replica.shutdown();
+    }
+
+    private static EmbeddedDatabase database() {
+        EmbeddedDatabase database = new EmbeddedDatabaseBuilder().setName(RandomStringUtils.randomAlphabetic(10)).build();
+        Flyway flyway = new Flyway();
+        flyway.setBaselineVersion(MigrationVersion.fromVersion("1.5.2"));
+        flyway.setLocations("classpath:/org/cloudfoundry/identity/uaa/db/hsqldb/");
+        flyway.setDataSource(database);
+        flyway.migrate();
+        return database;
+    }
+
+    private void copyUser(String userId) {
+        Map<String, Object> row = new JdbcTemplate(primary).queryForMap("select * from users where id = ?", userId);
+        String columns = String.join(",", row.keySet());
+        String values = row.keySet().stream().map(column -> "?").collect(Collectors.joining(","));
+        new JdbcTemplate(replica).update("insert into users (" + columns + ") values (" + values + ")", row.values().toArray());
+    }
+
+    private OAuth2AccessToken createAccessToken() {
+        Calendar expiresAt = Calendar.getInstance();
+        expiresAt.add(Calendar.HOUR, 1);
+        for (String scope : tokenSupport.requestedAuthScopes) {
+            tokenSupport.approvalStore.addApproval(new Approval()
+                .setUserId(user.getId())
+                .setClientId(CLIENT_ID)
+                .setScope(scope)
+                .setExpiresAt(expiresAt.getTime())
+                .setStatus(ApprovalStatus.APPROVED), IdentityZoneHolder.get().getId());
+        }
+        AuthorizationRequest authorizationRequest = new AuthorizationRequest(CLIENT_ID, tokenSupport.requestedAuthScopes);
+        authorizationRequest.setResourceIds(new HashSet<>(tokenSupport.resourceIds));
+        Map<String, String> azParameters = new HashMap<>(authorizationRequest.getRequestParameters());
+        azParameters.put(GRANT_TYPE, AUTHORIZATION_CODE);
+        authorizationRequest.setRequestParameters(azParameters);
+        UsernamePasswordAuthenticationToken userAuthentication = new UsernamePasswordAuthenticationToken(new UaaPrincipal(user), "n/a", null);
+        return tokenServices.createAccessToken(new OAuth2Authentication(authorizationRequest.createOAuth2Request(), userAuthentication));
+    }
+
+    private OAuth2AccessToken refresh(OAuth2AccessToken accessToken) {
+        AuthorizationRequest refreshAuthorizationRequest = new AuthorizationRequest(CLIENT_ID, tokenSupport.requestedAuthScopes);
+        refreshAuthorizationRequest.setResourceIds(new HashSet<>(tokenSupport.resourceIds));
+        Map<String, String> refreshAzParameters = new HashMap<>(refreshAuthorizationRequest.getRequestParameters());
+        refreshAzParameters.put(GRANT_TYPE, REFRESH_TOKEN);
+        refreshAuthorizationRequest.setRequestParameters(refreshAzParameters);
+        return tokenServices.refreshAccessToken(accessToken.getRefreshToken().getValue(), tokenSupport.requestFactory.createTokenRequest(refreshAuthorizationRequest, REFRESH_TOKEN));
+    }
+
+    @Test
+    public void password_change_revokes_tokens_while_the_replica_is_stale() {
+        OAuth2AccessToken accessToken = createAccessToken();
+        new JdbcTemplate(primary).update("update users set password = ?, passwd_lastmodified = ? where id = ?",
+                                         "changed", new Timestamp(System.currentTimeMillis()), user.getId());
+
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(new MockHttpServletRequest()));
+        ReadReplicaRoutingDataSource.readOnly(() -> {
+            //the replica has not seen the password change yet
+            assertEquals(user.getPassword(), userDatabase.retrieveUserById(user.getId()).getPassword());
+            try {
+                refresh(accessToken);
+                fail("The refresh token was revoked by the password change");
+            } catch (InvalidTokenException expected) {
+            }
+            try {
+                tokenServices.loadAuthentication(accessToken.getValue());
+                fail("The access token was revoked by the password change");
+            } catch (InvalidTokenException expected) {
+            }
+            return null;
+        });
+    }
+}
@@ -47,6 +47,7 @@ import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -54,6 +55,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import static org.hamcrest.CoreMatchers.is;
@@ -134,6 +140,46 @@ public class UaaTokenStoreTests extends JdbcTestBase {
         assertThat(userAuthentication.getExternalGroups(), containsInAnyOrder("group1","group2","group3"));
     }
 
+    @Test
+    public void test_json_is_stored_by_default() throws Exception {
+        assertFalse(store.isBinaryFormat());
+        String code = store.createAuthorizationCode(uaaAuthentication);
+        byte[] data = jdbcTemplate.queryForObject("SELECT authentication FROM oauth_code WHERE code = ?", new Object[] {code}, byte[].class);
+        assertEquals('{', data[0]);
+        assertFalse(AuthorizationCodeAuthenticationSerializer.isSerialized(data));
+        assertEquals(principal, store.consumeAuthorizationCode(code).getUserAuthentication().getPrincipal());
+    }
+
+    @Test
+    public void test_binary_format_is_stored_when_enabled() throws Exception {
+        store.setBinaryFormat(true);
+        String code = store.createAuthorizationCode(uaaAuthentication);
+        byte[] data = jdbcTemplate.queryForObject("SELECT authentication FROM oauth_code WHERE code = ?", new Object[] {code}, byte[].class);
+        assertTrue(AuthorizationCodeAuthenticationSerializer.isSerialized(data));
+        assertEquals(principal, store.consumeAuthorizationCode(code).getUserAuthentication().getPrincipal());
+    }
+
+    @Test
+    public void test_binary_format_is_smaller_than_json_and_json_is_still_read() throws Exception {
+        store.setBinaryFormat(true);
+        for (OAuth2Authentication original : Arrays.asList(clientAuthentication, usernamePasswordAuthentication, uaaAuthentication)) {
+            byte[] binary = store.serializeOauth2Authentication(original);
+            byte[] json = store.serializeJsonOauth2Authentication(original);
+            assertTrue(binary.length < json.length);
+
+            for (byte[] data : Arrays.asList(binary, json)) {
+                OAuth2Authentication authentication = store.deserializeOauth2Authentication(data);
+                assertEquals(original.getOAuth2Request(), authentication.getOAuth2Request());
+                if (original.isClientOnly()) {
+                    assertTrue(authentication.isClientOnly());
+                } else {
+                    assertEquals(principal, authentication.getUserAuthentication().getPrincipal());
+                    assertEquals(original.getAuthorities(), authentication.getAuthorities());
+                }
+            }
+        }
+    }
+
     @Test
     public void test_ConsumeClientCredentials_From_OldStore() throws  Exception {
         String code = legacyCodeServices.createAuthorizationCode(clientAuthentication);
@@ -193,6 +239,33 @@ public class UaaTokenStoreTests extends JdbcTestBase {
         assertNotNull(authentication);
     }
 
+    @Test
+    public void testConcurrentConsumeReturnsAuthenticationOnce() throws Exception {
+        String code = store.createAuthorizationCode(uaaAuthentication);
+
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Callable<OAuth2Authentication>> redemptions = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                redemptions.add(() -> store.consumeAuthorizationCode(code));
+            }
+            int consumed = 0;
+            for (Future<OAuth2Authentication> result : executor.invokeAll(redemptions)) {
+                try {
+                    assertNotNull(result.get());
+                    consumed++;
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof InvalidGrantException);
+                }
+            }
+            assertEquals(1, consumed);
+            assertThat(jdbcTemplate.queryForObject("SELECT count(*) FROM oauth_code WHERE code = ?", new Object[] {code}, Integer.class), is(0));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     @Test(expected = InvalidGrantException.class)
     public void testRetrieve_Expired_Token() throws Exception {
         String code = store.createAuthorizationCode(clientAuthentication);
@@ -387,6 +387,60 @@ public class JdbcApprovalStoreTests extends JdbcTestBase {
         assertEquals(2, dao.getApprovalsForUser("u1", IdentityZoneHolder.get().getId()).size());
     }
 
+    @Test
+    public void addApprovals_updates_existing_and_inserts_new_approvals() {
+        String zoneId = IdentityZoneHolder.get().getId();
+        Date expiresAt = new Timestamp(new Date().getTime() + 60000);
+        eventPublisher.clearEvents();
+
+        dao.addApprovals(Arrays.asList(
+            new Approval().setUserId("u1").setClientId("c1").setScope("uaa.user").setExpiresAt(expiresAt).setStatus(DENIED),
+            new Approval().setUserId("u1").setClientId("c1").setScope("openid").setExpiresAt(expiresAt).setStatus(APPROVED)
+        ), zoneId);
+
+        List<Approval> approvals = dao.getApprovals("u1", "c1", zoneId);
+        assertEquals(2, approvals.size());
+        for (Approval approval : approvals) {
+            assertEquals("uaa.user".equals(approval.getScope()) ? DENIED : APPROVED, approval.getStatus());
+            assertThat((int)Math.abs(expiresAt.getTime()/1000d - approval.getExpiresAt().getTime()/1000d), lessThan(2));
+        }
+        assertEquals(2, eventPublisher.getEventCount());
+        assertEquals(1, dao.getApprovals("u1", "c2", zoneId).size());
+    }
+
+    @Test
+    public void cached_approvals_are_evicted_by_changes() {
+        String zoneId = IdentityZoneHolder.get().getId();
+        dao.setCacheTtlSeconds(60);
+        assertEquals(1, dao.getApprovals("u1", "c1", zoneId).size());
+
+        jdbcTemplate.update("insert into authz_approvals (user_id, client_id, scope, expiresAt, status, lastModifiedAt, identity_zone_id) values (?,?,?,?,?,?,?)",
+                            "u1", "c1", "openid", new Timestamp(new Date().getTime() + 6000), APPROVED.toString(), new Timestamp(new Date().getTime()), zoneId);
+        assertEquals(1, dao.getApprovals("u1", "c1", zoneId).size());
+
+        addApproval("u1", "c1", "uaa.admin", 6000, APPROVED, UAA);
+        assertEquals(3, dao.getApprovals("u1", "c1", zoneId).size());
+
+        dao.revokeApprovalsForUser("u1", zoneId);
+        assertEquals(0, dao.getApprovals("u1", "c1", zoneId).size());
+        assertEquals(1, dao.getApprovals("u2", "c1", zoneId).size());
+    }
+
+    @Test
+    public void purge_deletes_expired_approvals_in_chunks() throws InterruptedException {
+        dao.setPurgeChunkSize(2);
+        addApproval("u3", "c3", "test1", 0, APPROVED, UAA);
+        addApproval("u3", "c3", "test2", 0, DENIED, UAA);
+        addApproval("u3", "c3", "test3", 0, APPROVED, UAA);
+        assertEquals(3, dao.getApprovalsForUser("u3", IdentityZoneHolder.get().getId()).size());
+
+        // On mysql, the expiry is rounded off to the nearest second
+        Thread.sleep(1500);
+        assertTrue(dao.purgeExpiredApprovals());
+        assertEquals(0, dao.getApprovalsForUser("u3", IdentityZoneHolder.get().getId()).size());
+        assertEquals(2, dao.getApprovalsForUser("u1", IdentityZoneHolder.get().getId()).size());
+    }
+
     @Test
     public void testAddingAndUpdatingAnApprovalPublishesEvents() throws Exception {
         UaaTestAccounts testAccounts = UaaTestAccounts.standard(null);
@@ -17,7 +17,12 @@ package org.cloudfoundry.identity.uaa.oauth.jwt;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.springframework.security.jwt.crypto.sign.MacSigner;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 
@@ -67,9 +72,41 @@ public class CommonSignerTest {
         assertEquals("id", signer.keyId());
     }
 
+    @Test
+    public void rsa_sign_region_matches_sign() {
+        assertSignRegionMatchesSign(new CommonSigner("id", rsaSigningKey));
+    }
+
+    @Test
+    public void mac_sign_region_matches_sign() {
+        assertSignRegionMatchesSign(new CommonSigner("id", macSigningKey));
+    }
+
+    @Test
+    public void mac_key_is_utf8_encoded() {
+        String key = "cl\u00e9-\u00fc\u00df";
+        byte[] content = "header.claims".getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals(new MacSigner(key).sign(content), new CommonSigner("id", key).sign(content));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void public_key_is_rejected() {
+        new CommonSigner("id", "-----BEGIN PUBLIC KEY-----\n" +
+            "MFswDQYJKoZIhvcNAQEBBQADSgAwRwJAcjAgsHEfrUxeTFwQPb17AkZ2Im4SfZdp\n" +
+            "Y8Ada9pZfxXz1PZSqv9TPTMAzNx+EkzMk2IMYN+uNm1bfDzaxVdz+QIDAQAB\n" +
+            "-----END PUBLIC KEY-----");
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void null_key_is_rejected() {
         new CommonSigner("id", null);
     }
 
-}
\ No newline at end of file
+    private void assertSignRegionMatchesSign(CommonSigner signer) {
+        byte[] content = "header.claims".getBytes(StandardCharsets.UTF_8);
+        byte[] buffer = new byte[content.length + 10];
+        System.arraycopy(content, 0, buffer, 3, content.length);
+        assertArrayEquals(signer.sign(content), signer.sign(buffer, 3, content.length));
+        assertArrayEquals(signer.sign(content), signer.sign(Arrays.copyOf(content, content.length), 0, content.length));
+    }
+}
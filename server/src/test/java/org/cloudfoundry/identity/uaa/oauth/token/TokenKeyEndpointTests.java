@@ -13,6 +13,8 @@
 package org.cloudfoundry.identity.uaa.oauth.token;
 
 import org.cloudfoundry.identity.uaa.oauth.TokenKeyEndpoint;
+import org.cloudfoundry.identity.uaa.oauth.jwk.JsonWebKey;
+import org.cloudfoundry.identity.uaa.oauth.jwk.JsonWebKeyHelper;
 import org.cloudfoundry.identity.uaa.util.JsonUtils;
 import org.cloudfoundry.identity.uaa.util.MapCollector;
 import org.cloudfoundry.identity.uaa.zone.IdentityZone;
@@ -36,9 +38,11 @@ import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.jwt.crypto.sign.RsaSigner;
 import org.springframework.security.jwt.crypto.sign.RsaVerifier;
 
+import java.nio.charset.StandardCharsets;
 import java.security.Principal;
 import java.util.Base64;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -47,6 +51,7 @@ import java.util.stream.Collectors;
 import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Mockito.mock;
@@ -247,28 +252,83 @@ public class TokenKeyEndpointTests {
     public void responseHeaderIncludesEtag() throws Exception {
         createAndSetTestZoneWithKeys(Collections.singletonMap("key1", SIGNING_KEY_1));
 
-        ResponseEntity<VerificationKeyResponse> keyResponse = tokenKeyEndpoint.getKey(mock(Principal.class), "NaN");
+        ResponseEntity<byte[]> keyResponse = tokenKeyEndpoint.getKey(mock(Principal.class), "NaN");
         HttpHeaders headers = keyResponse.getHeaders();
         assertNotNull(headers.get("ETag"));
+        assertEquals("max-age=60", headers.getCacheControl());
 
-        ResponseEntity<VerificationKeysListResponse> keysResponse = tokenKeyEndpoint.getKeys(mock(Principal.class), "NaN");
+        ResponseEntity<byte[]> keysResponse = tokenKeyEndpoint.getKeys(mock(Principal.class), "NaN");
         headers = keysResponse.getHeaders();
         assertNotNull(headers.get("ETag"));
+        assertEquals("max-age=60", headers.getCacheControl());
     }
 
     @Test
-    public void returns304IfUnmodified() throws Exception {
-        IdentityZone zone = createAndSetTestZoneWithKeys(null);
+    public void cachedResponseBodiesMatchVerificationKeyResponses() throws Exception {
+        Map<String, String> keys = new HashMap<>();
+        keys.put("key1", SIGNING_KEY_1);
+        keys.put("key2", "symmetricKey");
+        createAndSetTestZoneWithKeys(keys).getConfig().getTokenPolicy().setActiveKeyId("key1");
+
+        ResponseEntity<byte[]> keyResponse = tokenKeyEndpoint.getKey(mock(Principal.class), "NaN");
+        assertEquals(HttpStatus.OK, keyResponse.getStatusCode());
+        assertThat(getKeyIds(keyResponse), containsInAnyOrder("key1"));
+
+        ResponseEntity<byte[]> keysResponse = tokenKeyEndpoint.getKeys(mock(Principal.class), "NaN");
+        assertThat(getKeyIds(keysResponse), containsInAnyOrder("key1"));
+
+        ResponseEntity<byte[]> allKeysResponse = tokenKeyEndpoint.getKeys(validUaaResource, "NaN");
+        assertThat(getKeyIds(allKeysResponse), containsInAnyOrder("key1", "key2"));
+        assertNotEquals(keysResponse.getHeaders().getETag(), allKeysResponse.getHeaders().getETag());
+    }
 
-        String lastModified = String.valueOf(zone.getLastModified().getTime());
+    @Test
+    public void returns304IfUnmodified() throws Exception {
+        createAndSetTestZoneWithKeys(null);
 
-        ResponseEntity<VerificationKeyResponse> keyResponse = tokenKeyEndpoint.getKey(mock(Principal.class), lastModified);
+        String keyETag = tokenKeyEndpoint.getKey(mock(Principal.class), "NaN").getHeaders().getETag();
+        ResponseEntity<byte[]> keyResponse = tokenKeyEndpoint.getKey(mock(Principal.class), keyETag);
         assertEquals(keyResponse.getStatusCode(), HttpStatus.NOT_MODIFIED);
+        assertEquals(keyETag, keyResponse.getHeaders().getETag());
 
-        ResponseEntity<VerificationKeysListResponse> keysResponse = tokenKeyEndpoint.getKeys(mock(Principal.class), lastModified);
+        String keysETag = tokenKeyEndpoint.getKeys(mock(Principal.class), "NaN").getHeaders().getETag();
+        ResponseEntity<byte[]> keysResponse = tokenKeyEndpoint.getKeys(mock(Principal.class), keysETag);
         assertEquals(keysResponse.getStatusCode(), HttpStatus.NOT_MODIFIED);
     }
 
+    @Test
+    public void etagIsUnchangedByUnrelatedZoneChanges() throws Exception {
+        IdentityZone zone = createAndSetTestZoneWithKeys(Collections.singletonMap("key1", SIGNING_KEY_1));
+        String eTag = tokenKeyEndpoint.getKeys(mock(Principal.class), "NaN").getHeaders().getETag();
+
+        zone.setLastModified(new Date(zone.getLastModified().getTime() + 1000));
+        zone.setName("renamed");
+        assertEquals(HttpStatus.NOT_MODIFIED, tokenKeyEndpoint.getKeys(mock(Principal.class), eTag).getStatusCode());
+        assertEquals(HttpStatus.NOT_MODIFIED, tokenKeyEndpoint.getKeys(mock(Principal.class), "W/" + eTag).getStatusCode());
+    }
+
+    @Test
+    public void etagChangesWhenKeysChange() throws Exception {
+        IdentityZone zone = createAndSetTestZoneWithKeys(Collections.singletonMap("key1", SIGNING_KEY_1));
+        String eTag = tokenKeyEndpoint.getKeys(mock(Principal.class), "NaN").getHeaders().getETag();
+
+        Map<String, String> keys = new HashMap<>();
+        keys.put("key1", SIGNING_KEY_1);
+        keys.put("key2", SIGNING_KEY_2);
+        zone.getConfig().getTokenPolicy().setKeys(keys);
+
+        ResponseEntity<byte[]> keysResponse = tokenKeyEndpoint.getKeys(mock(Principal.class), eTag);
+        assertEquals(HttpStatus.OK, keysResponse.getStatusCode());
+        assertNotEquals(eTag, keysResponse.getHeaders().getETag());
+        assertThat(getKeyIds(keysResponse), containsInAnyOrder("key1", "key2"));
+    }
+
+    private List<String> getKeyIds(ResponseEntity<byte[]> response) {
+        return JsonWebKeyHelper.deserialize(new String(response.getBody(), StandardCharsets.UTF_8)).getKeys().stream()
+            .map(JsonWebKey::getKid)
+            .collect(Collectors.toList());
+    }
+
     private IdentityZone createAndSetTestZoneWithKeys(Map<String, String> keys) {
         IdentityZone zone = MultitenancyFixture.identityZone("test-zone", "test");
         IdentityZoneConfiguration config = new IdentityZoneConfiguration();
@@ -0,0 +1,133 @@
+/*
+ * ****************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2017] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ * ****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.provider.ldap.extension;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.ldap.core.ContextSource;
+import org.springframework.ldap.core.DirContextOperations;
+import org.springframework.security.core.GrantedAuthority;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.aryEq;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class NestedLdapAuthoritiesPopulatorTest {
+
+    private static final String BASE = "ou=groups,dc=test,dc=com";
+    private static final String USER_DN = "uid=marissa,ou=people,dc=test,dc=com";
+
+    private SpringSecurityLdapTemplate template;
+    private NestedLdapAuthoritiesPopulator populator;
+    private DirContextOperations user;
+
+    @Before
+    public void setup() {
+        template = mock(SpringSecurityLdapTemplate.class);
+        populator = new NestedLdapAuthoritiesPopulator(mock(ContextSource.class), BASE) {
+            @Override
+            protected SpringSecurityLdapTemplate getLdapTemplate() {
+                return template;
+            }
+        };
+        populator.setGroupRoleAttribute("cn");
+        populator.setGroupSearchFilter("member={0}");
+        populator.setRolePrefix("");
+        populator.setConvertToUpperCase(false);
+        populator.setAttributeNames(new HashSet<>(Arrays.asList("cn")));
+        user = mock(DirContextOperations.class);
+        when(user.getNameInNamespace()).thenReturn(USER_DN);
+    }
+
+    @Test
+    public void nested_groups_are_searched_once_per_level() {
+        when(template.searchForMultipleAttributeValues(eq(BASE), eq("member={0}"), aryEq(new Object[] {USER_DN, "marissa"}), any()))
+            .thenReturn(records("developers", "testers"));
+        when(template.searchForMultipleAttributeValues(eq(BASE), eq("(|(member={0})(member={2}))"), any(), any()))
+            .thenReturn(records("engineering"));
+        when(template.searchForMultipleAttributeValues(eq(BASE), eq("member={0}"), aryEq(new Object[] {dn("engineering"), "engineering"}), any()))
+            .thenReturn(records("developers"));
+
+        assertThat(roles(populator.getGrantedAuthorities(user, "marissa")), containsInAnyOrder("developers", "testers", "engineering"));
+        verify(template, times(3)).searchForMultipleAttributeValues(any(), any(), any(), any());
+    }
+
+    @Test
+    public void batch_filter_numbers_parameters_per_group() {
+        populator.setGroupSearchFilter("(|(member={0})(memberUid={1}))");
+        assertEquals("(|(|(member={0})(memberUid={1}))(|(member={2})(memberUid={3}))(|(member={4})(memberUid={5})))",
+                     populator.getBatchFilter(3));
+    }
+
+    @Test
+    public void matching_rule_in_chain_resolves_nested_groups_in_one_search() {
+        populator.setMatchingRuleInChain(true);
+        when(template.searchForMultipleAttributeValues(eq(BASE), eq("(member:1.2.840.113556.1.4.1941:={0})"), any(), any()))
+            .thenReturn(records("developers", "engineering"));
+
+        assertThat(roles(populator.getGrantedAuthorities(user, "marissa")), containsInAnyOrder("developers", "engineering"));
+        verify(template, times(1)).searchForMultipleAttributeValues(any(), any(), any(), any());
+    }
+
+    @Test
+    public void resolved_groups_are_cached() {
+        populator.setGroupCacheTtlSeconds(60);
+        when(template.searchForMultipleAttributeValues(eq(BASE), eq("member={0}"), any(), any()))
+            .thenReturn(records("developers"));
+
+        populator.getGrantedAuthorities(user, "marissa");
+        assertThat(roles(populator.getGrantedAuthorities(user, "marissa")), containsInAnyOrder("developers"));
+        verify(template, times(2)).searchForMultipleAttributeValues(any(), any(), any(), any());
+
+        populator.clearGroupCache();
+        populator.getGrantedAuthorities(user, "marissa");
+        verify(template, times(4)).searchForMultipleAttributeValues(any(), any(), any(), any());
+    }
+
+    private static Set<Map<String, String[]>> records(String... groups) {
+        Set<Map<String, String[]>> records = new HashSet<>();
+        for (String group : groups) {
+            Map<String, String[]> record = new HashMap<>();
+            record.put("cn", new String[] {group});
+            record.put(SpringSecurityLdapTemplate.DN_KEY, new String[] {dn(group)});
+            records.add(record);
+        }
+        return records;
+    }
+
+    private static String dn(String group) {
+        return "cn=" + group + "," + BASE;
+    }
+
+    private static Set<String> roles(Collection<GrantedAuthority> authorities) {
+        return authorities.stream().map(GrantedAuthority::getAuthority).collect(Collectors.toSet());
+    }
+}
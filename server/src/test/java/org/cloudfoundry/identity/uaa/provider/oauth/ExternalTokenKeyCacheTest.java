@@ -0,0 +1,177 @@
+/*
+ * ****************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2017] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ * ****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.provider.oauth;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import org.cloudfoundry.identity.uaa.oauth.jwt.CommonSigner;
+import org.cloudfoundry.identity.uaa.util.TimeService;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.jwt.crypto.sign.InvalidSignatureException;
+import org.springframework.security.jwt.crypto.sign.SignatureVerifier;
+import org.springframework.web.client.ResourceAccessException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ExternalTokenKeyCacheTest {
+
+    private static final String CACHE_KEY = "uaa|the_origin|http://localhost/token_keys";
+    private static final byte[] CONTENT = "header.claims".getBytes(StandardCharsets.UTF_8);
+
+    private long now;
+    private ExternalTokenKeyCache cache;
+    private AtomicInteger fetches;
+    private String keys;
+    private String cacheControl;
+    private boolean available;
+    private Supplier<ResponseEntity<String>> fetcher;
+
+    @Before
+    public void setup() {
+        now = 1000000;
+        cache = new ExternalTokenKeyCache(new TimeService() {
+            @Override
+            public long getCurrentTimeMillis() {
+                return now;
+            }
+        });
+        cache.setRefreshExecutor(MoreExecutors.newDirectExecutorService());
+        fetches = new AtomicInteger();
+        keys = keySet("key1", "secret1");
+        cacheControl = null;
+        available = true;
+        fetcher = () -> {
+            fetches.incrementAndGet();
+            if (!available) {
+                throw new ResourceAccessException("provider unavailable");
+            }
+            HttpHeaders headers = new HttpHeaders();
+            if (cacheControl != null) {
+                headers.setCacheControl(cacheControl);
+            }
+            return new ResponseEntity<>(keys, headers, HttpStatus.OK);
+        };
+    }
+
+    @Test
+    public void keys_are_cached_until_max_age() {
+        cacheControl = "public, max-age=120";
+        verify(cache.getVerifier(CACHE_KEY, "key1", fetcher), "secret1");
+        verify(cache.getVerifier(CACHE_KEY, "key1", fetcher), "secret1");
+        assertEquals(1, fetches.get());
+
+        now += 121 * 1000;
+        keys = keySet("key1", "secret2");
+        verify(cache.getVerifier(CACHE_KEY, "key1", fetcher), "secret2");
+        assertEquals(2, fetches.get());
+    }
+
+    @Test
+    public void keys_are_refreshed_in_background_before_expiry() {
+        cacheControl = "max-age=100";
+        verify(cache.getVerifier(CACHE_KEY, "key1", fetcher), "secret1");
+
+        now += 90 * 1000;
+        keys = keySet("key1", "secret2");
+        verify(cache.getVerifier(CACHE_KEY, "key1", fetcher), "secret1");
+        assertEquals(2, fetches.get());
+        verify(cache.getVerifier(CACHE_KEY, "key1", fetcher), "secret2");
+    }
+
+    @Test
+    public void unknown_kid_triggers_rate_limited_refetch() {
+        verify(cache.getVerifier(CACHE_KEY, "key1", fetcher), "secret1");
+        assertEquals(1, fetches.get());
+
+        now += 31 * 1000;
+        keys = keySet("key2", "secret2");
+        verify(cache.getVerifier(CACHE_KEY, "key2", fetcher), "secret2");
+        assertEquals(2, fetches.get());
+
+        cache.getVerifier(CACHE_KEY, "key3", fetcher);
+        cache.getVerifier(CACHE_KEY, "key3", fetcher);
+        assertEquals(2, fetches.get());
+    }
+
+    @Test
+    public void last_known_keys_are_used_when_provider_is_unavailable() {
+        verify(cache.getVerifier(CACHE_KEY, "key1", fetcher), "secret1");
+
+        now += 11 * 60 * 1000;
+        available = false;
+        verify(cache.getVerifier(CACHE_KEY, "key1", fetcher), "secret1");
+        verify(cache.getVerifier(CACHE_KEY, "key1", fetcher), "secret1");
+        assertEquals(2, fetches.get());
+    }
+
+    @Test(expected = ResourceAccessException.class)
+    public void failure_without_known_keys_is_thrown() {
+        available = false;
+        cache.getVerifier(CACHE_KEY, "key1", fetcher);
+    }
+
+    @Test
+    public void token_without_kid_uses_all_keys() {
+        keys = "{\"keys\":[" + key("key1", "secret1") + "," + key("key2", "secret2") + "]}";
+        verify(cache.getVerifier(CACHE_KEY, null, fetcher), "secret1");
+        verify(cache.getVerifier(CACHE_KEY, null, fetcher), "secret2");
+        assertEquals(1, fetches.get());
+    }
+
+    @Test
+    public void number_of_key_sets_is_bounded() {
+        cache.setMaxEntries(2);
+        for (int i = 0; i < 10; i++) {
+            verify(cache.getVerifier("uaa|origin" + i + "|http://localhost/token_keys", "key1", fetcher), "secret1");
+        }
+        assertTrue(cache.size() <= 2);
+    }
+
+    @Test
+    public void cache_control_is_bounded() {
+        assertEquals(10 * 60 * 1000, cache.getExpirationMillis(null));
+        assertEquals(60 * 1000, cache.getExpirationMillis("no-cache"));
+        assertEquals(60 * 1000, cache.getExpirationMillis("max-age=5"));
+        assertEquals(3600 * 1000, cache.getExpirationMillis("public, max-age=3600"));
+        assertEquals(24 * 60 * 60 * 1000, cache.getExpirationMillis("max-age=999999999"));
+    }
+
+    private void verify(SignatureVerifier verifier, String secret) {
+        byte[] signature = new CommonSigner(null, secret).sign(CONTENT);
+        try {
+            verifier.verify(CONTENT, signature);
+        } catch (InvalidSignatureException e) {
+            fail("Expected signature by " + secret + " to be verified");
+        }
+    }
+
+    private static String keySet(String kid, String secret) {
+        return "{\"keys\":[" + key(kid, secret) + "]}";
+    }
+
+    private static String key(String kid, String secret) {
+        return "{\"kty\":\"MAC\",\"kid\":\"" + kid + "\",\"value\":\"" + secret + "\"}";
+    }
+}
@@ -171,6 +171,7 @@ public class XOAuthAuthenticationManagerTest {
             when(externalMembershipManager.getExternalGroupMapsByExternalGroup(eq(scope), anyString(), anyString()))
                     .thenReturn(Arrays.asList(member));
         }
+        when(externalMembershipManager.getExternalGroupMapsByExternalGroups(any(), anyString(), anyString())).thenCallRealMethod();
 
         userDatabase = new InMemoryUaaUserDatabase(Collections.emptySet());
         publisher = mock(ApplicationEventPublisher.class);
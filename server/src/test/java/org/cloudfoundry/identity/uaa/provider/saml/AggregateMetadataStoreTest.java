@@ -0,0 +1,195 @@
+/*
+ * ****************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2017] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ * ****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.provider.saml;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import org.cloudfoundry.identity.uaa.util.TimeService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.xml.parse.BasicParserPool;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.web.client.RestTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.http.HttpMethod.GET;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.header;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.method;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withServerError;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withStatus;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
+
+public class AggregateMetadataStoreTest {
+
+    private static final String URL = "http://federation.example.com/metadata.xml";
+    private static final String AGGREGATE =
+        "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+        "<md:EntitiesDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\" xmlns:ds=\"http://www.w3.org/2000/09/xmldsig#\" Name=\"federation\">" +
+        "<md:EntityDescriptor entityID=\"http://idp1.example.com\">" +
+        "<md:IDPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">" +
+        "<md:SingleSignOnService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Redirect\" Location=\"http://idp1.example.com/sso\"/>" +
+        "</md:IDPSSODescriptor>" +
+        "</md:EntityDescriptor>" +
+        "<md:EntitiesDescriptor Name=\"nested\">" +
+        "<md:EntityDescriptor entityID=\"http://idp2.example.com\">" +
+        "<md:IDPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">" +
+        "<md:SingleSignOnService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Redirect\" Location=\"http://idp2.example.com/sso\"/>" +
+        "</md:IDPSSODescriptor>" +
+        "</md:EntityDescriptor>" +
+        "</md:EntitiesDescriptor>" +
+        "</md:EntitiesDescriptor>";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private long now;
+    private AggregateMetadataStore store;
+    private RestTemplate template;
+    private MockRestServiceServer server;
+
+    @Before
+    public void setup() throws Exception {
+        now = 1000000;
+        store = new AggregateMetadataStore(new TimeService() {
+            @Override
+            public long getCurrentTimeMillis() {
+                return now;
+            }
+        });
+        store.setParserPool(new BasicParserPool());
+        store.setDirectory(folder.newFolder());
+        store.setRefreshIntervalMillis(60000);
+        store.setRefreshExecutor(MoreExecutors.newDirectExecutorService());
+        template = new RestTemplate();
+        server = MockRestServiceServer.bindTo(template).build();
+    }
+
+    @After
+    public void teardown() {
+        store.destroy();
+    }
+
+    @Test
+    public void entities_are_split_and_shared() throws Exception {
+        server.expect(requestTo(URL)).andExpect(method(GET))
+            .andRespond(withSuccess(AGGREGATE, MediaType.APPLICATION_XML));
+
+        String idp1 = entity("http://idp1.example.com");
+        assertThat(idp1, containsString("http://idp1.example.com/sso"));
+        assertThat(idp1, not(containsString("http://idp2.example.com")));
+
+        String idp2 = entity("http://idp2.example.com");
+        assertThat(idp2, containsString("xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\""));
+        assertThat(idp2, containsString("http://idp2.example.com/sso"));
+
+        server.verify();
+    }
+
+    @Test(expected = MetadataProviderException.class)
+    public void unknown_entity_is_rejected() throws Exception {
+        server.expect(requestTo(URL)).andRespond(withSuccess(AGGREGATE, MediaType.APPLICATION_XML));
+        entity("http://unknown.example.com");
+    }
+
+    @Test(expected = MetadataProviderException.class)
+    public void unsigned_aggregate_is_not_trusted() throws Exception {
+        server.expect(requestTo(URL)).andRespond(withSuccess(AGGREGATE, MediaType.APPLICATION_XML));
+        store.getEntityMetadata(URL, "http://idp1.example.com", template, true);
+    }
+
+    @Test
+    public void refresh_uses_conditional_request() throws Exception {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setETag("\"v1\"");
+        server.expect(requestTo(URL)).andRespond(withSuccess(AGGREGATE, MediaType.APPLICATION_XML).headers(headers));
+        server.expect(requestTo(URL)).andExpect(header(HttpHeaders.IF_NONE_MATCH, "\"v1\""))
+            .andRespond(withStatus(HttpStatus.NOT_MODIFIED));
+
+        entity("http://idp1.example.com");
+        now += 61000;
+        assertThat(entity("http://idp1.example.com"), containsString("http://idp1.example.com/sso"));
+        server.verify();
+    }
+
+    @Test
+    public void last_aggregate_is_used_when_refresh_fails() throws Exception {
+        server.expect(requestTo(URL)).andRespond(withSuccess(AGGREGATE, MediaType.APPLICATION_XML));
+        server.expect(requestTo(URL)).andRespond(withServerError());
+
+        entity("http://idp2.example.com");
+        now += 61000;
+        assertThat(entity("http://idp2.example.com"), containsString("http://idp2.example.com/sso"));
+        assertThat(entity("http://idp1.example.com"), containsString("http://idp1.example.com/sso"));
+        server.verify();
+    }
+
+    @Test
+    public void current_aggregate_is_served_while_refreshing_in_the_background() throws Exception {
+        CountDownLatch refreshing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        server.expect(requestTo(URL)).andRespond(withSuccess(AGGREGATE, MediaType.APPLICATION_XML));
+        server.expect(requestTo(URL)).andRespond(request -> {
+            refreshing.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return withSuccess(AGGREGATE.replace("http://idp1.example.com/sso", "http://idp1.example.com/sso2"), MediaType.APPLICATION_XML).createResponse(request);
+        });
+        store.setRefreshExecutor(Executors.newSingleThreadExecutor());
+
+        entity("http://idp1.example.com");
+        now += 61000;
+        try {
+            assertThat(entity("http://idp1.example.com"), not(containsString("http://idp1.example.com/sso2")));
+            assertTrue(refreshing.await(10, TimeUnit.SECONDS));
+            assertThat(entity("http://idp1.example.com"), not(containsString("http://idp1.example.com/sso2")));
+
+            release.countDown();
+            long deadline = System.currentTimeMillis() + 10000;
+            String refreshed = entity("http://idp1.example.com");
+            while (!refreshed.contains("http://idp1.example.com/sso2") && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+                refreshed = entity("http://idp1.example.com");
+            }
+            assertThat(refreshed, containsString("http://idp1.example.com/sso2"));
+            assertThat(entity("http://idp2.example.com"), containsString("http://idp2.example.com/sso"));
+        } finally {
+            release.countDown();
+        }
+        server.verify();
+    }
+
+    private String entity(String entityID) throws MetadataProviderException {
+        return new String(store.getEntityMetadata(URL, entityID, template, false), StandardCharsets.UTF_8);
+    }
+}
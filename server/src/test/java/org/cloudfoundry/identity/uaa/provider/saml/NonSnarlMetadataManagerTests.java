@@ -0,0 +1,199 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2017] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.provider.saml;
+
+import org.cloudfoundry.identity.uaa.constants.OriginKeys;
+import org.cloudfoundry.identity.uaa.provider.IdentityProvider;
+import org.cloudfoundry.identity.uaa.provider.SamlIdentityProviderDefinition;
+import org.cloudfoundry.identity.uaa.zone.IdentityZone;
+import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.xml.parse.BasicParserPool;
+import org.springframework.security.saml.metadata.ExtendedMetadata;
+import org.springframework.security.saml.metadata.ExtendedMetadataDelegate;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.cloudfoundry.identity.uaa.provider.saml.SamlIdentityProviderConfiguratorTests.xmlWithoutID;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class NonSnarlMetadataManagerTests {
+
+    private static final String SP_XML = "<md:EntityDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\" entityID=\"%s\">" +
+        "<md:SPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">" +
+        "<md:AssertionConsumerService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\" Location=\"http://localhost:8080/uaa/saml/SSO\" index=\"0\"/>" +
+        "</md:SPSSODescriptor></md:EntityDescriptor>";
+
+    private static final String LOCAL_SP_ENTITY_ID = "cloudfoundry-saml-login";
+    private static final String LOCAL_SP_ALIAS = "cloudfoundry-saml-login";
+
+    private SamlIdentityProviderConfigurator configurator;
+    private NonSnarlMetadataManager manager;
+    private List<IdentityProvider<SamlIdentityProviderDefinition>> providers;
+    private List<SamlIdentityProviderDefinition> localDefinitions;
+
+    @BeforeClass
+    public static void initializeOpenSAML() throws Exception {
+        if (!org.apache.xml.security.Init.isInitialized()) {
+            DefaultBootstrap.bootstrap();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        IdentityZoneHolder.clear();
+        providers = new ArrayList<>();
+        localDefinitions = new ArrayList<>();
+        configurator = mock(SamlIdentityProviderConfigurator.class);
+        when(configurator.getIdentityProvidersForZone(any(IdentityZone.class))).thenAnswer(invocation -> new ArrayList<>(providers));
+        when(configurator.getExtendedMetadataDelegate(any(SamlIdentityProviderDefinition.class))).thenAnswer(invocation -> {
+            SamlIdentityProviderDefinition definition = (SamlIdentityProviderDefinition) invocation.getArguments()[0];
+            return delegate(definition.getMetaDataLocation(), definition.getIdpEntityAlias(), localDefinitions.contains(definition));
+        });
+        manager = new NonSnarlMetadataManager(configurator) {
+            @Override
+            public ExtendedMetadataDelegate getLocalServiceProvider() throws MetadataProviderException {
+                ExtendedMetadataDelegate localServiceProvider = delegate(String.format(SP_XML, LOCAL_SP_ENTITY_ID), LOCAL_SP_ALIAS, true);
+                localServiceProvider.initialize();
+                return localServiceProvider;
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        IdentityZoneHolder.clear();
+    }
+
+    private static ExtendedMetadataDelegate delegate(String xml, String alias, boolean local) {
+        ConfigMetadataProvider provider = new ConfigMetadataProvider(IdentityZone.getUaa().getId(), alias, xml);
+        provider.setParserPool(new BasicParserPool());
+        ExtendedMetadata extendedMetadata = new ExtendedMetadata();
+        extendedMetadata.setLocal(local);
+        extendedMetadata.setAlias(alias);
+        ExtendedMetadataDelegate delegate = new ExtendedMetadataDelegate(provider, extendedMetadata);
+        delegate.setMetadataTrustCheck(false);
+        return delegate;
+    }
+
+    private SamlIdentityProviderDefinition addProvider(String id, String alias, String xml) {
+        SamlIdentityProviderDefinition definition = new SamlIdentityProviderDefinition()
+            .setMetaDataLocation(xml)
+            .setIdpEntityAlias(alias)
+            .setZoneId(IdentityZone.getUaa().getId());
+        IdentityProvider<SamlIdentityProviderDefinition> provider = new IdentityProvider<>();
+        provider.setId(id);
+        provider.setOriginKey(alias);
+        provider.setType(OriginKeys.SAML);
+        provider.setConfig(definition);
+        providers.add(provider);
+        return definition;
+    }
+
+    private static byte[] sha1(String entityID) throws Exception {
+        return MessageDigest.getInstance("SHA-1").digest(entityID.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void lookup_by_entity_id() throws Exception {
+        addProvider("idp1", "idp-alias", String.format(xmlWithoutID, "http://idp1.example.com"));
+
+        assertEquals("http://idp1.example.com", manager.getEntityDescriptor("http://idp1.example.com").getEntityID());
+        assertEquals(LOCAL_SP_ENTITY_ID, manager.getEntityDescriptor(LOCAL_SP_ENTITY_ID).getEntityID());
+        assertNull(manager.getEntityDescriptor("http://unknown.example.com"));
+        assertEquals("idp-alias", manager.getExtendedMetadata("http://idp1.example.com").getAlias());
+        assertEquals("http://idp1.example.com", manager.getIDPEntityIdForAlias("idp-alias"));
+        assertThat(manager.getIDPEntityNames(), containsInAnyOrder("http://idp1.example.com"));
+        assertEquals(LOCAL_SP_ENTITY_ID, manager.getHostedSPName());
+    }
+
+    @Test
+    public void lookup_by_artifact_hash() throws Exception {
+        addProvider("idp1", "idp-alias", String.format(xmlWithoutID, "http://idp1.example.com"));
+
+        assertEquals("http://idp1.example.com", manager.getEntityDescriptor(sha1("http://idp1.example.com")).getEntityID());
+        assertEquals(LOCAL_SP_ENTITY_ID, manager.getEntityDescriptor(sha1(LOCAL_SP_ENTITY_ID)).getEntityID());
+        assertNull(manager.getEntityDescriptor(sha1("http://unknown.example.com")));
+    }
+
+    @Test
+    public void alias_of_local_entity() throws Exception {
+        assertEquals(LOCAL_SP_ENTITY_ID, manager.getEntityIdForAlias(LOCAL_SP_ALIAS));
+        assertNull(manager.getEntityIdForAlias("unknown-alias"));
+        assertNull(manager.getEntityIdForAlias(null));
+    }
+
+    @Test
+    public void alias_used_by_two_local_entities_is_a_conflict() throws Exception {
+        SamlIdentityProviderDefinition other = addProvider("sp2", LOCAL_SP_ALIAS, String.format(SP_XML, "other-local-sp"));
+        localDefinitions.add(other);
+
+        try {
+            manager.getEntityIdForAlias(LOCAL_SP_ALIAS);
+            fail("The alias is used by two local entities");
+        } catch (MetadataProviderException e) {
+            assertThat(manager.getSPEntityNames(), containsInAnyOrder(LOCAL_SP_ENTITY_ID, "other-local-sp"));
+        }
+    }
+
+    @Test
+    public void index_is_rebuilt_when_the_fingerprint_changes() throws Exception {
+        SamlIdentityProviderDefinition definition = addProvider("idp1", "idp-alias", String.format(xmlWithoutID, "http://idp1.example.com"));
+        manager.getIDPEntityNames();
+        manager.getIDPEntityNames();
+        verify(configurator, times(1)).getExtendedMetadataDelegate(any(SamlIdentityProviderDefinition.class));
+
+        definition.setMetaDataLocation(String.format(xmlWithoutID, "http://idp1-renamed.example.com"));
+        providers.get(0).setVersion(1);
+        assertThat(manager.getIDPEntityNames(), containsInAnyOrder("http://idp1-renamed.example.com"));
+        assertNull(manager.getEntityDescriptor("http://idp1.example.com"));
+        verify(configurator, times(2)).getExtendedMetadataDelegate(any(SamlIdentityProviderDefinition.class));
+    }
+
+    @Test
+    public void zones_have_their_own_index() throws Exception {
+        addProvider("idp1", "idp-alias", String.format(xmlWithoutID, "http://idp1.example.com"));
+        assertThat(manager.getIDPEntityNames(), containsInAnyOrder("http://idp1.example.com"));
+
+        IdentityZone zone = new IdentityZone();
+        zone.setId("other-zone");
+        zone.setSubdomain("other-zone");
+        IdentityZoneHolder.set(zone);
+        providers.clear();
+        assertEquals(0, manager.getIDPEntityNames().size());
+
+        IdentityZoneHolder.clear();
+        addProvider("idp1", "idp-alias", String.format(xmlWithoutID, "http://idp1.example.com"));
+        assertThat(manager.getIDPEntityNames(), containsInAnyOrder("http://idp1.example.com"));
+        verify(configurator, times(1)).getExtendedMetadataDelegate(any(SamlIdentityProviderDefinition.class));
+    }
+}
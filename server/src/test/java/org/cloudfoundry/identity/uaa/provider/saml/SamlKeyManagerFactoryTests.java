@@ -10,6 +10,7 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.springframework.security.saml.key.JKSKeyManager;
+import org.springframework.security.saml.key.KeyManager;
 import org.springframework.test.util.ReflectionTestUtils;
 
 import java.security.KeyStore;
@@ -190,6 +191,7 @@ public class SamlKeyManagerFactoryTests {
     @After
     public void clear() {
         IdentityZoneHolder.clear();
+        SamlKeyManagerFactory.clearCache();
     }
 
 
@@ -203,6 +205,34 @@ public class SamlKeyManagerFactoryTests {
 
     }
 
+    @Test
+    public void key_managers_are_cached_per_zone() {
+        KeyManager manager = SamlKeyManagerFactory.getKeyManager("zone-1", config);
+        assertSame(manager, SamlKeyManagerFactory.getKeyManager("zone-1", config));
+        assertNotSame(manager, SamlKeyManagerFactory.getKeyManager("zone-2", config));
+    }
+
+    @Test
+    public void cached_key_manager_is_replaced_on_key_rotation() {
+        KeyManager manager = SamlKeyManagerFactory.getKeyManager("zone-1", config);
+        assertEquals(SamlConfig.LEGACY_KEY_ID, manager.getDefaultCredentialName());
+
+        config.setActiveKeyId("key-1");
+        KeyManager rotated = SamlKeyManagerFactory.getKeyManager("zone-1", config);
+        assertNotSame(manager, rotated);
+        assertEquals("key-1", rotated.getDefaultCredentialName());
+        assertSame(rotated, SamlKeyManagerFactory.getKeyManager("zone-1", config));
+    }
+
+    @Test
+    public void key_manager_of_deleted_zone_is_evicted() {
+        KeyManager manager = SamlKeyManagerFactory.getKeyManager("zone-1", config);
+        KeyManager other = SamlKeyManagerFactory.getKeyManager("zone-2", config);
+        SamlKeyManagerFactory.evict("zone-1");
+        assertNotSame(manager, SamlKeyManagerFactory.getKeyManager("zone-1", config));
+        assertSame(other, SamlKeyManagerFactory.getKeyManager("zone-2", config));
+    }
+
     @Test
     public void multiple_keys_with_active_key() {
         config.setActiveKeyId("key-1");
@@ -1,8 +1,13 @@
 package org.cloudfoundry.identity.uaa.provider.saml.idp;
 
+import org.cloudfoundry.identity.uaa.authentication.UaaPrincipal;
+import org.cloudfoundry.identity.uaa.cache.JdbcCacheInvalidationBus;
 import org.cloudfoundry.identity.uaa.constants.OriginKeys;
 import org.cloudfoundry.identity.uaa.scim.ScimUser;
 import org.cloudfoundry.identity.uaa.scim.jdbc.JdbcScimUserProvisioning;
+import org.cloudfoundry.identity.uaa.user.UaaUser;
+import org.cloudfoundry.identity.uaa.user.UaaUserPrototype;
+import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -37,6 +42,9 @@ import static org.junit.Assert.assertNotNull;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class IdpWebSsoProfileImplTest {
@@ -200,6 +208,65 @@ public class IdpWebSsoProfileImplTest {
         assertAttributeValue(attributes, "cell_phone", user.getPhoneNumbers().get(0).getValue());
     }
 
+    @Test
+    public void attributeMappingsUseAttributesOfAuthenticatedPrincipal() throws Exception {
+        Map<String, Object> attributeMappings = new HashMap<>();
+        attributeMappings.put("given_name", "first_name");
+        attributeMappings.put("family_name", "last_name");
+        attributeMappings.put("phone_number", "cell_phone");
+        samlServiceProvider.getConfig().setAttributeMappings(attributeMappings);
+
+        String authenticationId = UUID.randomUUID().toString();
+        Authentication authentication = samlTestUtils.mockUaaAuthentication(authenticationId);
+        UaaPrincipal principal = new UaaPrincipal(new UaaUser(new UaaUserPrototype()
+            .withId(authenticationId)
+            .withUsername("marissa")
+            .withEmail("marissa@testing.org")
+            .withGivenName("Marissa")
+            .withFamilyName("Bloggs")
+            .withPhoneNumber("456")
+            .withOrigin(OriginKeys.UAA)
+            .withZoneId("uaa")));
+        when(authentication.getPrincipal()).thenReturn(principal);
+
+        SAMLMessageContext context = samlTestUtils.mockSamlMessageContext(
+            samlTestUtils.mockAuthnRequest(NameIDType.UNSPECIFIED));
+        IdpWebSSOProfileOptions options = new IdpWebSSOProfileOptions();
+        options.setAssertionsSigned(false);
+        profile.buildResponse(authentication, context, options);
+        profile.buildResponse(authentication, context, options);
+
+        Response response = (Response) context.getOutboundSAMLMessage();
+        List<Attribute> attributes = response.getAssertions().get(0).getAttributeStatements().get(0).getAttributes();
+        assertAttributeValue(attributes, "first_name", "Marissa");
+        assertAttributeValue(attributes, "last_name", "Bloggs");
+        assertAttributeValue(attributes, "cell_phone", "456");
+
+        verify(scimUserProvisioning, never()).retrieve(anyString(), anyString());
+        verify(samlServiceProviderProvisioning, times(1)).retrieveByEntityId(any(), any());
+    }
+
+    @Test
+    public void serviceProviderChangeEvictsIssuanceContext() throws Exception {
+        String authenticationId = UUID.randomUUID().toString();
+        Authentication authentication = samlTestUtils.mockUaaAuthentication(authenticationId);
+        SAMLMessageContext context = samlTestUtils.mockSamlMessageContext(
+            samlTestUtils.mockAuthnRequest(NameIDType.UNSPECIFIED));
+        IdpWebSSOProfileOptions options = new IdpWebSSOProfileOptions();
+        options.setAssertionsSigned(false);
+        profile.buildResponse(authentication, context, options);
+        profile.buildResponse(authentication, context, options);
+        verify(samlServiceProviderProvisioning, times(1)).retrieveByEntityId(any(), any());
+
+        profile.invalidate(JdbcCacheInvalidationBus.SAML_SERVICE_PROVIDER, IdentityZoneHolder.get().getId(), samlServiceProvider.getId());
+        profile.buildResponse(authentication, context, options);
+        verify(samlServiceProviderProvisioning, times(2)).retrieveByEntityId(any(), any());
+
+        profile.invalidate(JdbcCacheInvalidationBus.SAML_SERVICE_PROVIDER, "other-zone", null);
+        profile.buildResponse(authentication, context, options);
+        verify(samlServiceProviderProvisioning, times(2)).retrieveByEntityId(any(), any());
+    }
+
     @Test
     public void verifyAttributeMappingsIgnoredForNullValues() throws Exception {
         user.setPhoneNumbers(Collections.singletonList(new ScimUser.PhoneNumber(null)));
@@ -23,12 +23,15 @@ import org.junit.Before;
 import org.junit.Test;
 import org.opensaml.saml2.metadata.EntityDescriptor;
 import org.opensaml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml2.metadata.SPSSODescriptor;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
 import org.opensaml.xml.parse.BasicParserPool;
 import org.springframework.security.saml.metadata.ExtendedMetadataDelegate;
 
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.cloudfoundry.identity.uaa.provider.saml.idp.SamlTestUtils.mockSamlServiceProvider;
 import static org.cloudfoundry.identity.uaa.provider.saml.idp.SamlTestUtils.mockSamlServiceProviderForZone;
@@ -142,4 +145,27 @@ public class NonSnarlIdpMetadataManagerTest {
         assertEquals(confProvider.getEntityId(), entity.getEntityID());
     }
 
+    @Test
+    public void testProviderFiltersAreInitializedOncePerServiceProvider() throws Exception {
+        IdentityZone defaultZone = samlTestUtils.getUaaZoneWithSamlConfig();
+        IdentityZoneHolder.set(defaultZone);
+        SamlServiceProvider provider = mockSamlServiceProviderForZone(defaultZone.getId());
+        when(providerProvisioning.retrieveActive(defaultZone.getId())).thenReturn(Collections.singletonList(provider));
+        AtomicInteger filterInitializations = new AtomicInteger();
+        metadataManager = new NonSnarlIdpMetadataManager(configurator) {
+            @Override
+            protected void initializeProviderFilters(ExtendedMetadataDelegate provider) throws MetadataProviderException {
+                filterInitializations.incrementAndGet();
+                super.initializeProviderFilters(provider);
+            }
+        };
+        metadataManager.setGenerator(generator);
+        metadataManager.setKeyManager(new ZoneAwareKeyManager());
+
+        assertNotNull(metadataManager.getRole(provider.getEntityId(), SPSSODescriptor.DEFAULT_ELEMENT_NAME));
+        assertNotNull(metadataManager.getRole(provider.getEntityId(), SPSSODescriptor.DEFAULT_ELEMENT_NAME));
+        assertEquals(2, metadataManager.getAvailableProviders().size());
+        assertEquals(1, filterInitializations.get());
+    }
+
 }
@@ -28,6 +28,8 @@ import org.opensaml.xml.parse.BasicParserPool;
 import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 import java.util.UUID;
 
@@ -36,6 +38,9 @@ import static org.cloudfoundry.identity.uaa.provider.saml.idp.SamlTestUtils.mock
 import static org.cloudfoundry.identity.uaa.provider.saml.idp.SamlTestUtils.mockSamlServiceProviderForZone;
 import static org.cloudfoundry.identity.uaa.provider.saml.idp.SamlTestUtils.mockSamlServiceProviderForZoneWithoutSPSSOInMetadata;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -132,6 +137,54 @@ public class SamlServiceProviderConfiguratorTest {
         }
     }
 
+    @Test
+    public void testServiceProvidersAreReusedUntilChanged() throws Exception {
+        String zoneId = UUID.randomUUID().toString();
+        IdentityZone zone = new IdentityZone().setId(zoneId);
+        SamlServiceProvider sp1 = mockSamlServiceProvider("sp1").setId("id1").setIdentityZoneId(zoneId).setLastModified(new Date(1000));
+        SamlServiceProvider sp2 = mockSamlServiceProvider("sp2").setId("id2").setIdentityZoneId(zoneId).setLastModified(new Date(1000));
+        when(providerProvisioning.retrieveActive(zoneId)).thenReturn(Arrays.asList(sp1, sp2));
+
+        List<SamlServiceProviderHolder> first = conf.getSamlServiceProvidersForZone(zone);
+        assertEquals(2, first.size());
+        assertSame(first, conf.getSamlServiceProvidersForZone(zone));
+        SamlServiceProviderHolder holder1 = conf.getSamlServiceProviderForZone(zone, "sp1");
+        SamlServiceProviderHolder holder2 = conf.getSamlServiceProviderForZone(zone, "sp2");
+        assertEquals("sp1", holder1.getSamlServiceProvider().getEntityId());
+
+        SamlServiceProvider updated = mockSamlServiceProvider("sp2").setId("id2").setIdentityZoneId(zoneId).setVersion(1).setLastModified(new Date(2000));
+        when(providerProvisioning.retrieveActive(zoneId)).thenReturn(Arrays.asList(sp1, updated));
+        assertEquals(2, conf.getSamlServiceProvidersForZone(zone).size());
+        assertSame(holder1, conf.getSamlServiceProviderForZone(zone, "sp1"));
+        assertNotSame(holder2, conf.getSamlServiceProviderForZone(zone, "sp2"));
+
+        when(providerProvisioning.retrieveActive(zoneId)).thenReturn(Collections.singletonList(sp1));
+        assertEquals(1, conf.getSamlServiceProvidersForZone(zone).size());
+        assertSame(holder1, conf.getSamlServiceProviderForZone(zone, "sp1"));
+        assertNull(conf.getSamlServiceProviderForZone(zone, "sp2"));
+    }
+
+    @Test
+    public void testRegistryIsUpdatedIncrementally() throws Exception {
+        String zoneId = UUID.randomUUID().toString();
+        IdentityZone zone = new IdentityZone().setId(zoneId);
+        SamlServiceProvider sp1 = mockSamlServiceProvider("sp1").setId("id1").setIdentityZoneId(zoneId).setLastModified(new Date(1000));
+        when(providerProvisioning.retrieveActive(zoneId)).thenReturn(Collections.singletonList(sp1));
+        SamlServiceProviderHolder holder1 = conf.getSamlServiceProviderForZone(zone, "sp1");
+
+        SamlServiceProvider sp2 = mockSamlServiceProvider("sp2").setId("id2").setIdentityZoneId(zoneId).setLastModified(new Date(1000));
+        conf.addSamlServiceProvider(sp2);
+        when(providerProvisioning.retrieveActive(zoneId)).thenReturn(Arrays.asList(sp1, sp2));
+        SamlServiceProviderHolder holder2 = conf.getSamlServiceProviderForZone(zone, "sp2");
+        assertEquals("sp2", holder2.getSamlServiceProvider().getEntityId());
+        assertSame(holder1, conf.getSamlServiceProviderForZone(zone, "sp1"));
+
+        conf.removeSamlServiceProvider(sp2);
+        when(providerProvisioning.retrieveActive(zoneId)).thenReturn(Collections.singletonList(sp1));
+        assertEquals(1, conf.getSamlServiceProvidersForZone(zone).size());
+        assertSame(holder1, conf.getSamlServiceProviderForZone(zone, "sp1"));
+    }
+
     @Test(expected = MetadataProviderException.class)
     public void testValidateSamlServiceProviderWithConflictingEntityId() throws Exception {
         SamlServiceProvider sp = mockSamlServiceProviderForZone("uaa");
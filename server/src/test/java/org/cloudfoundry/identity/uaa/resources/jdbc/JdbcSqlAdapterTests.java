@@ -2,6 +2,11 @@ package org.cloudfoundry.identity.uaa.resources.jdbc;
 
 import org.junit.Test;
 
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class JdbcSqlAdapterTests {
@@ -24,4 +29,31 @@ public class JdbcSqlAdapterTests {
         generatedSql = sqlServerLimitAdapter.getLimitSql(originSql, 1, 1);
         assertTrue(generatedSql.equalsIgnoreCase("select * from table1 ORDER BY 1 OFFSET 1 ROWS FETCH NEXT 1 ROWS ONLY;"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testDeleteReturning() throws Exception {
+        String table = "oauth_code";
+        String columns = "code, expiresat";
+        String where = "code = ?";
+        assertNull(new DefaultDeleteReturningSqlAdapter().getDeleteReturningSql(table, columns, where));
+        assertEquals("delete from oauth_code where code = ? returning code, expiresat",
+                     new PostgresDeleteReturningSqlAdapter().getDeleteReturningSql(table, columns, where));
+        assertEquals("delete from oauth_code output deleted.code, deleted.expiresat where code = ?",
+                     new SQLServerDeleteReturningSqlAdapter().getDeleteReturningSql(table, columns, where));
+    }
+
+    @Test
+    public void testUpsert() throws Exception {
+        List<String> columns = Arrays.asList("user_id", "scope", "status");
+        List<String> keys = Arrays.asList("user_id", "scope");
+        assertNull(new DefaultUpsertSqlAdapter().getUpsertSql("approvals", columns, keys, 2));
+        assertEquals("insert into approvals (user_id,scope,status) values (?,?,?),(?,?,?) on conflict (user_id,scope) do update set status=excluded.status",
+                     new PostgresUpsertSqlAdapter().getUpsertSql("approvals", columns, keys, 2));
+        assertEquals("insert into approvals (user_id,scope,status) values (?,?,?),(?,?,?) on duplicate key update status=values(status)",
+                     new MySqlUpsertSqlAdapter().getUpsertSql("approvals", columns, keys, 2));
+        assertEquals("merge into approvals as t using (values (?,?,?),(?,?,?)) as s (user_id,scope,status) on t.user_id=s.user_id and t.scope=s.scope" +
+                         " when matched then update set status=s.status" +
+                         " when not matched then insert (user_id,scope,status) values (s.user_id,s.scope,s.status);",
+                     new SQLServerUpsertSqlAdapter().getUpsertSql("approvals", columns, keys, 2));
+    }
+}
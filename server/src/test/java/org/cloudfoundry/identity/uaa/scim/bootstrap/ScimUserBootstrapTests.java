@@ -15,6 +15,7 @@ package org.cloudfoundry.identity.uaa.scim.bootstrap;
 import org.cloudfoundry.identity.uaa.audit.event.EntityDeletedEvent;
 import org.cloudfoundry.identity.uaa.authentication.manager.ExternalGroupAuthorizationEvent;
 import org.cloudfoundry.identity.uaa.constants.OriginKeys;
+import org.cloudfoundry.identity.uaa.impl.config.JdbcBootstrapFingerprintStore;
 import org.cloudfoundry.identity.uaa.resources.jdbc.JdbcPagingListFactory;
 import org.cloudfoundry.identity.uaa.resources.jdbc.LimitSqlAdapterFactory;
 import org.cloudfoundry.identity.uaa.scim.ScimGroup;
@@ -63,6 +64,7 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
@@ -242,6 +244,75 @@ public class ScimUserBootstrapTests extends JdbcTestBase {
         assertEquals("Joel", user.getGivenName());
     }
 
+    @Test
+    public void unchanged_users_are_skipped_with_fingerprints() throws Exception {
+        String zoneId = IdentityZoneHolder.get().getId();
+        JdbcBootstrapFingerprintStore fingerprintStore = new JdbcBootstrapFingerprintStore(jdbcTemplate);
+        fingerprintStore.setEnabled(true);
+        UaaUser joe = new UaaUser("joe", "password", "joe@test.org", "Joe", "User");
+        joe = joe.authorities(AuthorityUtils.commaSeparatedStringToAuthorityList("openid,read"));
+        UaaUser mabel = new UaaUser("mabel", "password", "mabel@blah.com", "Mabel", "User");
+        ScimUserBootstrap bootstrap = new ScimUserBootstrap(db, gdb, mdb, Arrays.asList(joe, mabel));
+        bootstrap.setFingerprintStore(fingerprintStore);
+        bootstrap.setOverride(true);
+        bootstrap.setThreads(2);
+        bootstrap.afterPropertiesSet();
+        assertEquals(2, db.retrieveAll(zoneId).size());
+        assertEquals(2, fingerprintStore.getFingerprints("user", zoneId).size());
+
+        reset(db);
+        bootstrap.afterPropertiesSet();
+        verify(db, never()).update(anyString(), any(), anyString());
+        verify(db, never()).changePassword(anyString(), any(), anyString(), anyString());
+
+        ScimUser storedJoe = db.query("userName eq \"joe\"", zoneId).get(0);
+        storedJoe.setName(new ScimUser.Name("Changed", "User"));
+        db.update(storedJoe.getId(), storedJoe, zoneId);
+        reset(db);
+        bootstrap.afterPropertiesSet();
+        verify(db, times(1)).update(anyString(), any(), anyString());
+        assertEquals("Joe", db.query("userName eq \"joe\"", zoneId).get(0).getGivenName());
+
+        UaaUser joel = new UaaUser("joe", "password", "joe@test.org", "Joel", "User");
+        bootstrap = new ScimUserBootstrap(db, gdb, mdb, Arrays.asList(joel, mabel));
+        bootstrap.setFingerprintStore(fingerprintStore);
+        bootstrap.setOverride(true);
+        reset(db);
+        bootstrap.afterPropertiesSet();
+        verify(db, times(1)).update(anyString(), any(), anyString());
+        assertEquals("Joel", db.query("userName eq \"joe\"", zoneId).get(0).getGivenName());
+
+        UaaUser newPassword = new UaaUser("joe", "new-password", "joe@test.org", "Joel", "User");
+        bootstrap = new ScimUserBootstrap(db, gdb, mdb, Arrays.asList(newPassword, mabel));
+        bootstrap.setFingerprintStore(fingerprintStore);
+        bootstrap.setOverride(true);
+        reset(db);
+        bootstrap.afterPropertiesSet();
+        verify(db, times(1)).changePassword(anyString(), any(), anyString(), anyString());
+        assertTrue(db.checkPasswordMatches(storedJoe.getId(), "new-password", zoneId));
+    }
+
+    @Test
+    public void usernames_are_escaped_in_lookups() throws Exception {
+        db.setUsernamePattern(".+");
+        String username = "jo\"e\\ or userName pr";
+        UaaUser joe = new UaaUser(username, "password", "joe@test.org", "Joe", "User");
+        UaaUser mabel = new UaaUser("mabel", "password", "mabel@blah.com", "Mabel", "User");
+        ScimUserBootstrap bootstrap = new ScimUserBootstrap(db, gdb, mdb, Arrays.asList(joe, mabel));
+        bootstrap.setOverride(true);
+        bootstrap.afterPropertiesSet();
+
+        UaaUser joel = new UaaUser(username, "password", "joe@test.org", "Joel", "User");
+        bootstrap = new ScimUserBootstrap(db, gdb, mdb, Arrays.asList(joel, mabel));
+        bootstrap.setOverride(true);
+        bootstrap.afterPropertiesSet();
+
+        List<ScimUser> users = db.retrieveAll(IdentityZoneHolder.get().getId());
+        assertEquals(2, users.size());
+        ScimUser stored = users.stream().filter(user -> username.equals(user.getUserName())).findFirst().get();
+        assertEquals("Joel", stored.getGivenName());
+    }
+
     @Test
     public void canOverrideAuthorities() throws Exception {
         UaaUser joe = new UaaUser("joe", "password", "joe@test.org", "Joe", "User");
@@ -384,6 +455,34 @@ public class ScimUserBootstrapTests extends JdbcTestBase {
         nonExistentGroupThroughEvent(false);
     }
 
+    @Test
+    public void unchanged_external_groups_are_not_synced_again() throws Exception {
+        String[] externalAuthorities = new String[] {"extTest1","extTest2"};
+        String[] userAuthorities = new String[] {"usrTest1"};
+        String origin = "testOrigin";
+        addIdentityProvider(jdbcTemplate,origin);
+        String userId = new RandomValueStringGenerator().generate();
+        String username = new RandomValueStringGenerator().generate();
+        UaaUser user = getUaaUser(userAuthorities, origin, "test@test.org", "FirstName", "LastName", "testPassword", null, userId, username);
+        ScimUserBootstrap bootstrap = new ScimUserBootstrap(db, gdb, mdb, Arrays.asList(user));
+        bootstrap.setExternalGroupSyncCacheSeconds(60);
+        bootstrap.afterPropertiesSet();
+
+        ScimUser created = db.query("userName eq \""+username +"\" and origin eq \""+origin+"\"", IdentityZoneHolder.get().getId()).get(0);
+        user = getUaaUser(userAuthorities, origin, "test@test.org", "FirstName", "LastName", "testPassword", null, created.getId(), username);
+        bootstrap.onApplicationEvent(new ExternalGroupAuthorizationEvent(user, false, getAuthorities(externalAuthorities), true));
+        validateAuthoritiesCreated(externalAuthorities, userAuthorities, origin, created);
+
+        ScimGroup extTest2 = gdb.getByName("extTest2", IdentityZoneHolder.get().getId());
+        mdb.removeMemberById(extTest2.getId(), created.getId(), IdentityZoneHolder.get().getId());
+        bootstrap.onApplicationEvent(new ExternalGroupAuthorizationEvent(user, false, getAuthorities(externalAuthorities), true));
+        validateAuthoritiesCreated(new String[] {"extTest1"}, userAuthorities, origin, created);
+
+        externalAuthorities = new String[] {"extTest2","extTest3"};
+        bootstrap.onApplicationEvent(new ExternalGroupAuthorizationEvent(user, false, getAuthorities(externalAuthorities), true));
+        validateAuthoritiesCreated(externalAuthorities, userAuthorities, origin, created);
+    }
+
     protected void validateAuthoritiesCreated(String[] externalAuthorities, String[] userAuthorities, String origin, ScimUser created) {
         Set<ScimGroup> groups = mdb.getGroupsWithMember(created.getId(), true, IdentityZoneHolder.get().getId());
         String[] expected = merge(externalAuthorities,userAuthorities);
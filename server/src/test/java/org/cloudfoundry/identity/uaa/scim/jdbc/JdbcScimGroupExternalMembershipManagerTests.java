@@ -104,6 +104,36 @@ public class JdbcScimGroupExternalMembershipManagerTests extends JdbcTestBase {
         assertEquals(0, edao.getExternalGroupMapsByExternalGroup("cn=engineering,ou=groups,dc=example,dc=com", origin,"id").size());
     }
 
+    @Test
+    public void external_groups_are_resolved_in_bulk() {
+        String zoneId = IdentityZoneHolder.get().getId();
+        edao.mapExternalGroup("g1-"+zoneId, "cn=engineering,ou=groups,dc=example,dc=com", origin, zoneId);
+        edao.mapExternalGroup("g2-"+zoneId, "cn=engineering,ou=groups,dc=example,dc=com", origin, zoneId);
+        edao.mapExternalGroup("g3-"+zoneId, "cn=hr,ou=groups,dc=example,dc=com", origin, zoneId);
+
+        List<ScimGroupExternalMember> members = edao.getExternalGroupMapsByExternalGroups(
+            Arrays.asList("CN=Engineering,ou=groups,dc=example,dc=com", "cn=hr,ou=groups,dc=example,dc=com", "cn=unknown"), origin, zoneId);
+        assertEquals(3, members.size());
+        assertEquals("test3", members.get(2).getDisplayName());
+        assertEquals(0, edao.getExternalGroupMapsByExternalGroups(Arrays.asList("cn=hr,ou=groups,dc=example,dc=com"), OriginKeys.SAML, zoneId).size());
+
+        edao.unmapExternalGroup("g3-"+zoneId, "cn=hr,ou=groups,dc=example,dc=com", origin, zoneId);
+        assertEquals(0, edao.getExternalGroupMapsByExternalGroup("cn=hr,ou=groups,dc=example,dc=com", origin, zoneId).size());
+    }
+
+    @Test
+    public void changes_made_outside_this_instance_are_detected() {
+        String zoneId = IdentityZoneHolder.get().getId();
+        createGroupMapping();
+        assertEquals("test1", edao.getExternalGroupMapsByExternalGroup("cn=engineering,ou=groups,dc=example,dc=com", origin, zoneId).get(0).getDisplayName());
+
+        jdbcTemplate.update("update groups set displayName='renamed', version=version+1 where id=?", "g1-"+zoneId);
+        assertEquals("renamed", edao.getExternalGroupMapsByExternalGroup("cn=engineering,ou=groups,dc=example,dc=com", origin, zoneId).get(0).getDisplayName());
+
+        gdao.delete("g1-"+zoneId, -1, zoneId);
+        assertEquals(0, edao.getExternalGroupMapsByExternalGroup("cn=engineering,ou=groups,dc=example,dc=com", origin, zoneId).size());
+    }
+
     private void createGroupMapping() {
         ScimGroup group = gdao.retrieve("g1-"+IdentityZoneHolder.get().getId(), IdentityZoneHolder.get().getId());
         assertNotNull(group);
@@ -29,6 +29,7 @@ import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceNotFoundExceptio
 import org.cloudfoundry.identity.uaa.scim.test.TestUtils;
 import org.cloudfoundry.identity.uaa.test.JdbcTestBase;
 import org.cloudfoundry.identity.uaa.user.UaaAuthority;
+import org.cloudfoundry.identity.uaa.user.UaaUserStatusCache;
 import org.cloudfoundry.identity.uaa.zone.IdentityZone;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
 import org.cloudfoundry.identity.uaa.zone.JdbcIdentityZoneProvisioning;
@@ -69,6 +70,7 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class JdbcScimUserProvisioningTests extends JdbcTestBase {
@@ -569,6 +571,18 @@ public class JdbcScimUserProvisioningTests extends JdbcTestBase {
         assertTrue(BCrypt.checkpw("koala123$marissa", storedPassword));
     }
 
+    @Test
+    public void changingPasswordOrDeactivatingEvictsUserStatus() {
+        UaaUserStatusCache statusCache = mock(UaaUserStatusCache.class);
+        db.setStatusCache(statusCache);
+        db.changePassword(JOE_ID, null, "koala123$marissa", IdentityZoneHolder.get().getId());
+        verify(statusCache).evict(IdentityZoneHolder.get().getId(), JOE_ID);
+
+        String tmpUserId = createUserForDelete();
+        db.delete(tmpUserId, 0, IdentityZoneHolder.get().getId());
+        verify(statusCache).evict(IdentityZoneHolder.get().getId(), tmpUserId);
+    }
+
     @Test(expected = BadCredentialsException.class)
     public void cannotChangePasswordNonexistentUser() {
         db.changePassword(JOE_ID, "notjoespassword", "newpassword", IdentityZoneHolder.get().getId());
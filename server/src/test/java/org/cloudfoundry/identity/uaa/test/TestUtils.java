@@ -47,6 +47,8 @@ public class TestUtils {
 
     public static void cleanTestDatabaseData(JdbcTemplate jdbcTemplate) {
         jdbcTemplate.update("DELETE FROM authz_approvals");
+        jdbcTemplate.update("DELETE FROM bootstrap_fingerprint");
+        jdbcTemplate.update("DELETE FROM cache_invalidation");
         jdbcTemplate.update("DELETE FROM expiring_code_store");
         jdbcTemplate.update("DELETE FROM external_group_mapping");
         jdbcTemplate.update("DELETE FROM group_membership");
@@ -382,6 +382,45 @@ public class JdbcUaaUserDatabaseTests extends JdbcTestBase {
         assertEquals(joe.getCreated(), joe.getPasswordLastModified());
     }
 
+    @Test
+    public void retrievePasswordLastModifiedById() {
+        assertEquals(db.retrieveUserById(JOE_ID).getPasswordLastModified().getTime(), db.retrievePasswordLastModifiedById(JOE_ID).getTime());
+        template.update("update users set passwd_lastmodified=null where id=?", JOE_ID);
+        assertNull(db.retrievePasswordLastModifiedById(JOE_ID));
+        template.update("update users set active=? where id=?", false, JOE_ID);
+        try {
+            db.retrievePasswordLastModifiedById(JOE_ID);
+            fail("Inactive users must not be found");
+        } catch (UsernameNotFoundException x) {
+        }
+        try {
+            db.retrievePasswordLastModifiedById(ALICE_ID);
+            fail("Users of other zones must not be found");
+        } catch (UsernameNotFoundException x) {
+        }
+    }
+
+    @Test
+    public void retrievePasswordLastModifiedById_is_cached_until_evicted() {
+        UaaUserStatusCache statusCache = new UaaUserStatusCache();
+        statusCache.setTtlSeconds(60);
+        db.setStatusCache(statusCache);
+        long passwordLastModified = db.retrievePasswordLastModifiedById(JOE_ID).getTime();
+
+        template.update("update users set passwd_lastmodified=? where id=?", new Timestamp(passwordLastModified + 1000), JOE_ID);
+        assertEquals(passwordLastModified, db.retrievePasswordLastModifiedById(JOE_ID).getTime());
+        statusCache.evict(IdentityZoneHolder.get().getId(), JOE_ID);
+        assertEquals(passwordLastModified + 1000, db.retrievePasswordLastModifiedById(JOE_ID).getTime());
+
+        template.update("update users set active=? where id=?", false, JOE_ID);
+        statusCache.evict(IdentityZoneHolder.get().getId(), JOE_ID);
+        try {
+            db.retrievePasswordLastModifiedById(JOE_ID);
+            fail("Deactivated users must not be found once evicted");
+        } catch (UsernameNotFoundException x) {
+        }
+    }
+
     @Test
     public void null_if_noUserWithEmail() {
         assertNull(db.retrieveUserByEmail("email@doesnot.exist", OriginKeys.UAA));
@@ -253,6 +253,32 @@ public class DomainFilterTest {
         assertThat(filter.filter(activeProviders, client, email), Matchers.containsInAnyOrder(uaaProvider));
     }
 
+    @Test
+    public void test_email_domain_index_matches_like_wildcards() {
+        samlDef1.setEmailDomain(Arrays.asList("*.example.com", "Example.org"));
+        samlDef2.setEmailDomain(Arrays.asList("mail*.example.com", "example.org"));
+        ldapDef.setEmailDomain(Arrays.asList("*.*.example.com"));
+        configureTestData();
+        EmailDomainIndex index = new EmailDomainIndex(activeProviders);
+
+        assertThat(index.getIdpsForEmailDomain("a@sub.example.com"), Matchers.contains(samlProvider1));
+        assertThat(index.getIdpsForEmailDomain("a@mail1.example.com"), Matchers.contains(samlProvider1, samlProvider2));
+        assertThat(index.getIdpsForEmailDomain("a@a.b.example.com"), Matchers.contains(ldapProvider));
+        assertThat(index.getIdpsForEmailDomain("a@example.com"), Matchers.empty());
+        assertThat(index.getIdpsForEmailDomain("a@example.org"), Matchers.contains(samlProvider2));
+        assertThat(index.filter(client, "a@other.net"), Matchers.contains(uaaProvider));
+
+        for (String domain : Arrays.asList("sub.example.com", "mail1.example.com", "a.b.example.com", "example.com", "example.org", "other.net", "a..net")) {
+            for (IdentityProvider provider : activeProviders) {
+                for (boolean explicit : new boolean[] {true, false}) {
+                    assertEquals(domain + " " + provider.getOriginKey() + " " + explicit,
+                                 DomainFilter.doesEmailDomainMatchProvider(provider, domain, explicit),
+                                 index.match(domain, explicit, p -> p == provider).size() == 1);
+                }
+            }
+        }
+    }
+
     @Test
     public void test_domain_filter_match() {
         assertFalse(filter.doesEmailDomainMatchProvider(uaaProvider, "test.org", true));
@@ -15,18 +15,91 @@
 
 package org.cloudfoundry.identity.uaa.util;
 
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
+import org.springframework.web.client.RestTemplate;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 public class RestTemplateFactoryTests {
 
+    private RestTemplateFactory factory;
+    private HttpServer server;
+    private Set<InetSocketAddress> clientAddresses;
+    private List<String> cookies;
+
+    @Before
+    public void setup() throws Exception {
+        factory = new RestTemplateFactory();
+        clientAddresses = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        cookies = new CopyOnWriteArrayList<>();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            clientAddresses.add(exchange.getRemoteAddress());
+            List<String> cookie = exchange.getRequestHeaders().get("Cookie");
+            if (cookie != null) {
+                cookies.addAll(cookie);
+            }
+            exchange.getResponseHeaders().add("Set-Cookie", "JSESSIONID=upstream-session; Path=/");
+            byte[] body = "OK".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @After
+    public void teardown() {
+        server.stop(0);
+        factory.destroy();
+    }
+
     @Test
     public void getRestTemplate_sslValidation() {
-        //TODO
+        RestTemplate template = factory.getRestTemplate(false);
+        assertSame(template, factory.getRestTemplate(false));
+        assertNotSame(template, factory.getRestTemplate(true));
     }
 
     @Test
     public void getRestTemplate_noSslValidation() {
-        //TODO
+        RestTemplate template = factory.getRestTemplate(true);
+        assertSame(template, factory.getRestTemplate(true));
+        assertNotSame(template, factory.getRestTemplate(true, 1000, 1000));
+    }
+
+    @Test
+    public void connections_are_reused() {
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+        for (int i = 0; i < 5; i++) {
+            assertEquals("OK", factory.getRestTemplate(false).getForObject(url, String.class));
+        }
+        assertEquals(1, clientAddresses.size());
+        assertEquals(0, factory.getLeasedConnections());
+        assertEquals(1, factory.getAvailableConnections());
+        assertEquals(0, factory.getPendingConnections());
+        assertEquals(1, factory.getPoolStats().size());
     }
 
+    @Test
+    public void cookies_are_not_sent_back() {
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+        assertEquals("OK", factory.getRestTemplate(false).getForObject(url, String.class));
+        assertEquals("OK", factory.getRestTemplate(false).getForObject(url, String.class));
+        assertTrue(cookies.toString(), cookies.isEmpty());
+    }
 }
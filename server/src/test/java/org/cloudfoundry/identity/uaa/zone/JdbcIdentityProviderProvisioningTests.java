@@ -11,6 +11,7 @@ import org.cloudfoundry.identity.uaa.provider.LdapIdentityProviderDefinition;
 import org.cloudfoundry.identity.uaa.provider.UaaIdentityProviderDefinition;
 import org.cloudfoundry.identity.uaa.test.JdbcTestBase;
 import org.cloudfoundry.identity.uaa.util.JsonUtils;
+import org.cloudfoundry.identity.uaa.util.TimeService;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -27,6 +28,7 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertTrue;
 
 public class JdbcIdentityProviderProvisioningTests extends JdbcTestBase {
@@ -294,4 +296,60 @@ public class JdbcIdentityProviderProvisioningTests extends JdbcTestBase {
         IdentityProvider idp1 = db.create(idp, identityZoneId1);
         db.retrieveByOrigin(idp1.getOriginKey(), identityZone2.getId());
     }
+
+    @Test
+    public void retrieved_providers_are_copies() {
+        String zoneId = generator.generate();
+        IdentityProvider idp = MultitenancyFixture.identityProvider(RandomStringUtils.randomAlphabetic(6), zoneId);
+        idp.setConfig(new UaaIdentityProviderDefinition(null, null));
+        idp = db.create(idp, zoneId);
+
+        IdentityProvider first = db.retrieveByOrigin(idp.getOriginKey(), zoneId);
+        first.setName("modified");
+        first.setConfig(null);
+
+        IdentityProvider second = db.retrieve(idp.getId(), zoneId);
+        assertNotSame(first, second);
+        assertEquals(idp.getName(), second.getName());
+        assertNotNull(second.getConfig());
+    }
+
+    @Test
+    public void changes_made_outside_this_instance_are_detected() {
+        String zoneId = generator.generate();
+        IdentityProvider idp = MultitenancyFixture.identityProvider(RandomStringUtils.randomAlphabetic(6), zoneId);
+        idp = db.create(idp, zoneId);
+        assertEquals(1, db.retrieveAll(false, zoneId).size());
+
+        jdbcTemplate.update("update identity_provider set name=?, version=version+1 where id=?", "renamed", idp.getId());
+        assertEquals("renamed", db.retrieveByOrigin(idp.getOriginKey(), zoneId).getName());
+
+        jdbcTemplate.update("delete from identity_provider where id=?", idp.getId());
+        assertEquals(0, db.retrieveAll(false, zoneId).size());
+    }
+
+    @Test
+    public void cached_zone_is_revalidated_after_interval() {
+        final long[] now = {System.currentTimeMillis()};
+        db.setTimeService(new TimeService() {
+            @Override
+            public long getCurrentTimeMillis() {
+                return now[0];
+            }
+        });
+        db.setValidationIntervalMillis(10000);
+        String zoneId = generator.generate();
+        IdentityProvider idp = MultitenancyFixture.identityProvider(RandomStringUtils.randomAlphabetic(6), zoneId);
+        idp = db.create(idp, zoneId);
+        assertEquals(1, db.retrieveActive(zoneId).size());
+
+        jdbcTemplate.update("update identity_provider set active=?, version=version+1 where id=?", false, idp.getId());
+        assertEquals(1, db.retrieveActive(zoneId).size());
+
+        now[0] += 10000;
+        assertEquals(0, db.retrieveActive(zoneId).size());
+
+        db.update(db.retrieve(idp.getId(), zoneId).setActive(true), zoneId);
+        assertEquals(1, db.retrieveActive(zoneId).size());
+    }
 }
@@ -31,6 +31,7 @@ import org.springframework.util.StringUtils;
 import java.sql.Timestamp;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -52,10 +53,12 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyList;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
@@ -602,6 +605,75 @@ public class MultitenantJdbcClientDetailsServiceTests extends JdbcTestBase {
         service.updateClientDetails(clientDetails);
     }
 
+    @Test
+    public void testAddAllClientDetailsInOneBatch() {
+        service.setPasswordEncoder(new PasswordEncoder() {
+            public boolean matches(CharSequence rawPassword, String encodedPassword) {
+                return encodedPassword.equals(encode(rawPassword));
+            }
+
+            public String encode(CharSequence rawPassword) {
+                return "encoded-" + rawPassword;
+            }
+        });
+        service.setSecretEncoderThreads(4);
+        List<ClientDetails> clients = new LinkedList<>();
+        for (int i = 0; i < 10; i++) {
+            BaseClientDetails client = new BaseClientDetails("batch-client-" + i, null, "openid", "client_credentials", "uaa.none");
+            client.setClientSecret("secret-" + i);
+            clients.add(client);
+        }
+
+        List<ClientDetails> added = service.addAllClientDetails(clients, IdentityZoneHolder.get().getId());
+
+        assertEquals(clients.size(), added.size());
+        verify(template, times(1)).batchUpdate(anyString(), anyList());
+        verify(service, never()).loadClientByClientId(anyString(), anyString());
+        for (int i = 0; i < clients.size(); i++) {
+            assertEquals("batch-client-" + i, added.get(i).getClientId());
+            Map<String, Object> map = jdbcTemplate.queryForMap(SELECT_SQL, "batch-client-" + i);
+            assertEquals("encoded-secret-" + i, map.get("client_secret"));
+            assertNotNull(added.get(i).getAdditionalInformation().get("lastModified"));
+        }
+    }
+
+    @Test(expected = ClientAlreadyExistsException.class)
+    public void testAddAllClientDetailsWithDuplicateClient() {
+        BaseClientDetails clientDetails = new BaseClientDetails();
+        clientDetails.setClientId("duplicateClientIdInBatch");
+        service.addAllClientDetails(Arrays.<ClientDetails>asList(clientDetails, clientDetails), IdentityZoneHolder.get().getId());
+    }
+
+    @Test
+    public void testUpdateAllClientDetailsInOneBatch() {
+        List<ClientDetails> clients = new LinkedList<>();
+        for (int i = 0; i < 3; i++) {
+            BaseClientDetails client = new BaseClientDetails();
+            client.setClientId("batch-update-client-" + i);
+            service.addClientDetails(client);
+            client.setRegisteredRedirectUri(Collections.singleton("http://localhost:" + (8080 + i)));
+            clients.add(client);
+        }
+
+        service.updateAllClientDetails(clients, IdentityZoneHolder.get().getId());
+
+        for (int i = 0; i < clients.size(); i++) {
+            Map<String, Object> map = jdbcTemplate.queryForMap(SELECT_SQL, "batch-update-client-" + i);
+            assertEquals("http://localhost:" + (8080 + i), map.get("web_server_redirect_uri"));
+        }
+    }
+
+    @Test(expected = NoSuchClientException.class)
+    public void testUpdateAllClientDetailsWithNonExistentClient() {
+        BaseClientDetails existing = new BaseClientDetails();
+        existing.setClientId("existingClientIdInBatch");
+        service.addClientDetails(existing);
+        BaseClientDetails missing = new BaseClientDetails();
+        missing.setClientId("nosuchClientIdInBatch");
+
+        service.updateAllClientDetails(Arrays.<ClientDetails>asList(existing, missing), IdentityZoneHolder.get().getId());
+    }
+
     @Test
     public void testRemoveClient() {
 
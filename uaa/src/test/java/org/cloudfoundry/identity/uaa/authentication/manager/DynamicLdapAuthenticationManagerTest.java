@@ -4,13 +4,27 @@ import org.cloudfoundry.identity.uaa.provider.LdapIdentityProviderDefinition;
 import org.cloudfoundry.identity.uaa.scim.ScimGroupExternalMembershipManager;
 import org.cloudfoundry.identity.uaa.scim.ScimGroupProvisioning;
 import org.junit.Test;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
 import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.authentication.ProviderManager;
+import org.springframework.security.authentication.ProviderNotFoundException;
+import org.springframework.security.core.Authentication;
 import org.springframework.security.ldap.authentication.LdapAuthenticationProvider;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
 
 public class DynamicLdapAuthenticationManagerTest {
@@ -49,4 +63,140 @@ public class DynamicLdapAuthenticationManagerTest {
         assertEquals(1, providerManager.getProviders().size());
         assertTrue(providerManager.getProviders().get(0) instanceof LdapAuthenticationProvider);
     }
+
+    @Test
+    public void destroy_closes_the_context() throws Exception {
+        DynamicLdapAuthenticationManager manager = new DynamicLdapAuthenticationManager(ldapIdentityProviderDefinition,
+            mock(ScimGroupExternalMembershipManager.class),
+            mock(ScimGroupProvisioning.class),
+            mock(LdapLoginAuthenticationManager.class));
+        manager.getLdapAuthenticationManager();
+        ClassPathXmlApplicationContext context = manager.getContext();
+        assertTrue(context.isActive());
+
+        manager.destroy();
+        assertFalse(context.isActive());
+        assertNull(manager.getContext());
+        assertNull(manager.getLdapManagerActual());
+        assertTrue(manager.isRetired());
+    }
+
+    @Test
+    public void retired_manager_fails_without_recreating_the_context() throws Exception {
+        DynamicLdapAuthenticationManager manager = new DynamicLdapAuthenticationManager(ldapIdentityProviderDefinition,
+            mock(ScimGroupExternalMembershipManager.class),
+            mock(ScimGroupProvisioning.class),
+            mock(LdapLoginAuthenticationManager.class));
+        manager.getLdapAuthenticationManager();
+        manager.destroy();
+        try {
+            manager.authenticate(mock(Authentication.class));
+            fail("A retired manager must not authenticate");
+        } catch (ProviderNotFoundException expected) {
+        }
+        try {
+            manager.getLdapAuthenticationManager();
+            fail("A retired manager must not create a new context");
+        } catch (ProviderNotFoundException expected) {
+        }
+        assertNull(manager.getContext());
+    }
+
+    @Test
+    public void context_is_closed_once_when_destroy_races_with_authentications() throws Exception {
+        AtomicInteger closed = new AtomicInteger();
+        Authentication result = mock(Authentication.class);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (int i = 0; i < 50; i++) {
+                DynamicLdapAuthenticationManager manager = new DynamicLdapAuthenticationManager(ldapIdentityProviderDefinition,
+                    mock(ScimGroupExternalMembershipManager.class),
+                    mock(ScimGroupProvisioning.class),
+                    mock(LdapLoginAuthenticationManager.class)) {
+                    @Override
+                    public AuthenticationManager getLdapAuthenticationManager() {
+                        return authentication -> result;
+                    }
+
+                    @Override
+                    protected void closeContext() {
+                        closed.incrementAndGet();
+                        super.closeContext();
+                    }
+                };
+                CountDownLatch start = new CountDownLatch(1);
+                Future<?>[] logins = new Future<?>[3];
+                for (int j = 0; j < logins.length; j++) {
+                    logins[j] = executor.submit(() -> {
+                        start.await();
+                        try {
+                            manager.authenticate(mock(Authentication.class));
+                        } catch (ProviderNotFoundException retired) {
+                        }
+                        return null;
+                    });
+                }
+                Future<?> destroy = executor.submit(() -> {
+                    start.await();
+                    manager.destroy();
+                    manager.destroy();
+                    return null;
+                });
+                start.countDown();
+                for (Future<?> login : logins) {
+                    login.get(10, TimeUnit.SECONDS);
+                }
+                destroy.get(10, TimeUnit.SECONDS);
+                assertTrue(manager.isRetired());
+                assertEquals(i + 1, closed.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void destroy_waits_for_authentications_in_progress() throws Exception {
+        CountDownLatch authenticating = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Authentication result = mock(Authentication.class);
+        AuthenticationManager blocking = authentication -> {
+            authenticating.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return result;
+        };
+        DynamicLdapAuthenticationManager manager = new DynamicLdapAuthenticationManager(ldapIdentityProviderDefinition,
+            mock(ScimGroupExternalMembershipManager.class),
+            mock(ScimGroupProvisioning.class),
+            mock(LdapLoginAuthenticationManager.class)) {
+            @Override
+            public AuthenticationManager getLdapAuthenticationManager() {
+                super.getLdapAuthenticationManager();
+                return blocking;
+            }
+        };
+        manager.getLdapAuthenticationManager();
+        ClassPathXmlApplicationContext context = manager.getContext();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Authentication> login = executor.submit(() -> manager.authenticate(mock(Authentication.class)));
+            assertTrue(authenticating.await(10, TimeUnit.SECONDS));
+
+            manager.destroy();
+            assertTrue(context.isActive());
+
+            release.countDown();
+            assertSame(result, login.get(10, TimeUnit.SECONDS));
+            assertFalse(context.isActive());
+            assertNull(manager.getContext());
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
 }
@@ -11,6 +11,7 @@ import org.cloudfoundry.identity.uaa.provider.IdentityProviderProvisioning;
 import org.cloudfoundry.identity.uaa.zone.IdentityZone;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
 import org.cloudfoundry.identity.uaa.zone.MultitenancyFixture;
+import org.cloudfoundry.identity.uaa.zone.event.IdentityProviderModifiedEvent;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -19,6 +20,7 @@ import org.springframework.security.authentication.BadCredentialsException;
 import org.springframework.security.authentication.ProviderNotFoundException;
 import org.springframework.security.core.Authentication;
 
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
@@ -196,6 +198,59 @@ public class DynamicZoneAwareAuthenticationManagerTest {
         verifyZeroInteractions(mockManager);
     }
 
+    @Test
+    public void testLdapProviderIsPreparedWhenModified() throws Exception {
+        DynamicZoneAwareAuthenticationManager manager = new DynamicZoneAwareAuthenticationManager(
+            providerProvisioning,
+            uaaAuthenticationMgr,
+            scimGroupExternalMembershipManager,
+            scimGroupProvisioning,
+            ldapLoginAuthenticationManager
+        ) {
+            @Override
+            protected DynamicLdapAuthenticationManager newLdapAuthenticationManager(LdapIdentityProviderDefinition definition) {
+                DynamicLdapAuthenticationManager ldapManager = mock(DynamicLdapAuthenticationManager.class);
+                when(ldapManager.getDefinition()).thenReturn(definition);
+                return ldapManager;
+            }
+        };
+        manager.setPrepareExecutor(Runnable::run);
+
+        IdentityProvider provider = new IdentityProvider();
+        provider.setOriginKey(OriginKeys.LDAP);
+        provider.setIdentityZoneId(ZONE.getId());
+        provider.setConfig(ldapIdentityProviderDefinition);
+        manager.onApplicationEvent(IdentityProviderModifiedEvent.identityProviderCreated(provider));
+
+        DynamicLdapAuthenticationManager prepared = manager.getLdapAuthenticationManager(ZONE, provider);
+        verify(prepared, times(1)).getLdapAuthenticationManager();
+
+        manager.onApplicationEvent(IdentityProviderModifiedEvent.identityProviderModified(provider));
+        assertSame(prepared, manager.getLdapAuthenticationManager(ZONE, provider));
+
+        LdapIdentityProviderDefinition changed = LdapIdentityProviderDefinition.searchAndBindMapGroupToScopes(
+            "ldap://localhost:38890/",
+            "cn=admin,ou=Users,dc=test,dc=com",
+            "adminsecret",
+            "dc=test,dc=com",
+            "cn={0}",
+            "ou=scopes,dc=test,dc=com",
+            "member={0}",
+            "mail",
+            null,
+            false,
+            true,
+            true,
+            100,
+            true);
+        provider.setConfig(changed);
+        manager.onApplicationEvent(IdentityProviderModifiedEvent.identityProviderModified(provider));
+        DynamicLdapAuthenticationManager swapped = manager.getLdapAuthenticationManager(ZONE, provider);
+        assertNotSame(prepared, swapped);
+        assertSame(changed, swapped.getDefinition());
+        verify(prepared, times(1)).destroy();
+    }
+
     protected DynamicZoneAwareAuthenticationManager getDynamicZoneAwareAuthenticationManager() {
         return getDynamicZoneAwareAuthenticationManager(false);
     }
@@ -378,6 +378,7 @@ public class IdentityProviderEndpointsDocs extends InjectedMockContextTest {
     @After
     public void clearUaaConfig() throws Exception {
         getWebApplicationContext().getBean(JdbcTemplate.class).update("UPDATE identity_provider SET config=null WHERE origin_key='uaa'");
+        getWebApplicationContext().getBean(JdbcIdentityProviderProvisioning.class).clearCache();
     }
 
     @Test
@@ -401,6 +402,7 @@ public class IdentityProviderEndpointsDocs extends InjectedMockContextTest {
             fieldWithPath("config.socketFactoryClassName").optional(null).description("Either `\"org.apache.commons.httpclient.protocol.DefaultProtocolSocketFactory\"` or" +
                 "`\"org.apache.commons.httpclient.contrib.ssl.EasySSLProtocolSocketFactory\"` depending on if the `metaDataLocation` of type `URL` is HTTP or HTTPS, respectively"),
             fieldWithPath("config.authnContext").optional(null).type(ARRAY).description("List of AuthnContextClassRef to include in the SAMLRequest. If not specified no AuthnContext will be requested."),
+            fieldWithPath("config.aggregateEntityId").optional(null).type(STRING).description("The entityID of the identity provider when `metaDataLocation` is the URL of a federation aggregate containing many entities. The aggregate is downloaded once and shared by all providers that reference it."),
             ADD_SHADOW_USER_ON_LOGIN,
             EXTERNAL_GROUPS_WHITELIST,
             fieldWithPath("config.attributeMappings.user_name").optional("NameID").type(STRING).description("Map `user_name` to the attribute for user name in the provider assertion or token. The default for SAML is `NameID`."),
@@ -106,6 +106,7 @@ public class IdentityProviderEndpointsMockMvcTests extends InjectedMockContextTe
     @After
     public void clearUaaConfig() throws Exception {
         getWebApplicationContext().getBean(JdbcTemplate.class).update("UPDATE identity_provider SET config=null WHERE origin_key='uaa'");
+        getWebApplicationContext().getBean(JdbcIdentityProviderProvisioning.class).clearCache();
         mockMvcUtils.removeEventListener(getWebApplicationContext(), eventListener);
     }
 
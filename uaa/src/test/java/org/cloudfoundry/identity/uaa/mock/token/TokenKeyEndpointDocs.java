@@ -68,7 +68,7 @@ public class TokenKeyEndpointDocs extends InjectedMockContextTest {
         "QH+xY/4h8tgL+eASz5QWhj8DItm8wYGI5lKJr8f36jk0JLPUXODyDAeN6ekXY9LI\n" +
         "fudkijw0dnh28LJqbkFF5wLNtATzyCfzjp+czrPMn9uqLNKt/iVD\n" +
         "-----END RSA PRIVATE KEY-----";
-    public static final String ETAG_HEADER_DESCRIPTION = "The ETag version of the resource - used to decide if the client's version of the resource is already up to date. The UAA will set the ETag value to the epoch time in milliseconds of the last zone configuration change.";
+    public static final String ETAG_HEADER_DESCRIPTION = "The ETag version of the resource - used to decide if the client's version of the resource is already up to date. The UAA will set the ETag value to a hash of the response body, so it only changes when the zone's keys change.";
     public static final String IF_NONE_MATCH_DESCRIPTION = "See [Ref: RFC 2616](https://tools.ietf.org/html/rfc2616#section-14.26) ";
     public static final RequestHeadersSnippet TOKEN_KEY_REQUEST_HEADERS = requestHeaders(
         headerWithName("Authorization").description("No authorization is required for requesting public keys.").optional(),
@@ -109,7 +109,7 @@ public class TokenKeyEndpointDocs extends InjectedMockContextTest {
             get("/token_key")
                 .accept(APPLICATION_JSON)
                 .header("Authorization", basicDigestHeaderValue)
-                .header("If-None-Match", "1501570800000"))
+                .header("If-None-Match", "\"vMbpwyW3yOrZ1pE9sTQFgH2UkKzYmGZHE5R_ZGpHqkE\""))
 
             .andExpect(status().isOk())
             .andDo(document(
@@ -141,7 +141,7 @@ public class TokenKeyEndpointDocs extends InjectedMockContextTest {
                 get("/token_key")
                     .accept(APPLICATION_JSON)
                     .header("Authorization", basicDigestHeaderValue)
-                    .header("If-None-Match", "1501570800000"))
+                    .header("If-None-Match", "\"vMbpwyW3yOrZ1pE9sTQFgH2UkKzYmGZHE5R_ZGpHqkE\""))
                 .andExpect(status().isOk())
                 .andDo(document("{ClassName}/{methodName}", preprocessResponse(prettyPrint()), requestHeaders(
                     headerWithName("Authorization").description("Uses basic authorization with `base64(resource_server:shared_secret)` assuming the caller (a resource server) is actually also a registered client and has `uaa.resource` authority"),
@@ -171,7 +171,7 @@ public class TokenKeyEndpointDocs extends InjectedMockContextTest {
             get("/token_keys")
                 .accept(APPLICATION_JSON)
                 .header("Authorization", basicDigestHeaderValue)
-                .header("If-None-Match", "1501570800000")
+                .header("If-None-Match", "\"vMbpwyW3yOrZ1pE9sTQFgH2UkKzYmGZHE5R_ZGpHqkE\"")
         )
             .andExpect(status().isOk())
             .andDo(
@@ -234,17 +234,50 @@ public class TokenKeyEndpointMockMvcTests extends InjectedMockContextTest {
 
     @Test
     public void return304IfResourceUnchanged() throws Exception {
+        String keyETag = getMockMvc().perform(
+            get("/token_key")
+                .with(new SetServerNameRequestPostProcessor(testZone.getSubdomain() + ".localhost")))
+            .andExpect(status().isOk())
+            .andReturn().getResponse().getHeader("ETag");
+
         getMockMvc().perform(
             get("/token_key")
                 .with(new SetServerNameRequestPostProcessor(testZone.getSubdomain() + ".localhost"))
-                .header("If-None-Match", testZone.getLastModified().getTime()))
+                .header("If-None-Match", keyETag))
             .andExpect(status().isNotModified())
             .andReturn();
 
+        String keysETag = getMockMvc().perform(
+            get("/token_keys")
+                .with(new SetServerNameRequestPostProcessor(testZone.getSubdomain() + ".localhost")))
+            .andExpect(status().isOk())
+            .andReturn().getResponse().getHeader("ETag");
+
+        getMockMvc().perform(
+            get("/token_keys")
+                .with(new SetServerNameRequestPostProcessor(testZone.getSubdomain() + ".localhost"))
+                .header("If-None-Match", keysETag))
+            .andExpect(status().isNotModified())
+            .andReturn();
+    }
+
+    @Test
+    public void unrelatedZoneChangesDoNotChangeETag() throws Exception {
+        String keysETag = getMockMvc().perform(
+            get("/token_keys")
+                .with(new SetServerNameRequestPostProcessor(testZone.getSubdomain() + ".localhost")))
+            .andExpect(status().isOk())
+            .andExpect(header().string("Cache-Control", "max-age=60"))
+            .andReturn().getResponse().getHeader("ETag");
+
+        IdentityZoneProvisioning provisioning = getWebApplicationContext().getBean(IdentityZoneProvisioning.class);
+        testZone.setDescription("updated description");
+        testZone = provisioning.update(testZone);
+
         getMockMvc().perform(
             get("/token_keys")
                 .with(new SetServerNameRequestPostProcessor(testZone.getSubdomain() + ".localhost"))
-                .header("If-None-Match", testZone.getLastModified().getTime()))
+                .header("If-None-Match", keysETag))
             .andExpect(status().isNotModified())
             .andReturn();
     }
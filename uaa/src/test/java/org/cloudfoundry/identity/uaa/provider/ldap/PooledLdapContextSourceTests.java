@@ -0,0 +1,224 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2017] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.provider.ldap;
+
+import org.cloudfoundry.identity.uaa.mock.util.ApacheDSHelper;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.ldap.AuthenticationException;
+import org.springframework.ldap.UncategorizedLdapException;
+import org.springframework.security.ldap.server.ApacheDsSSLContainer;
+
+import javax.naming.CommunicationException;
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.directory.DirContext;
+import javax.naming.ldap.LdapContext;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.fail;
+
+public class PooledLdapContextSourceTests {
+
+    private static final String ADMIN = "cn=admin,ou=Users,dc=test,dc=com";
+    private static final String MARISSA = "cn=marissa,ou=Users,dc=test,dc=com";
+    private static final String MARISSA2 = "cn=marissa2,ou=Users,dc=test,dc=com";
+
+    private static ApacheDsSSLContainer apacheDS;
+
+    private TestContextSource contextSource;
+
+    @BeforeClass
+    public static void startApacheDS() throws Exception {
+        apacheDS = ApacheDSHelper.start(34389, 34636);
+    }
+
+    @AfterClass
+    public static void stopApacheDS() {
+        apacheDS.stop();
+    }
+
+    @Before
+    public void setUp() {
+        contextSource = new TestContextSource("ldap://localhost:34389/");
+        contextSource.setUserDn(ADMIN);
+        contextSource.setPassword("adminsecret");
+        contextSource.setMaxActive(1);
+        contextSource.setMinIdle(0);
+        contextSource.setMaxWaitMillis(1000);
+        contextSource.afterPropertiesSet();
+    }
+
+    @After
+    public void tearDown() {
+        contextSource.destroy();
+    }
+
+    @Test
+    public void user_is_bound_over_a_pooled_connection() throws Exception {
+        DirContext ctx = contextSource.getContext(MARISSA, "koala");
+        assertEquals(MARISSA, ctx.getEnvironment().get(Context.SECURITY_PRINCIPAL));
+        assertEquals(1, contextSource.getActiveBindConnections());
+        ctx.close();
+
+        assertEquals(0, contextSource.getActiveBindConnections());
+        assertEquals(1, contextSource.getIdleBindConnections());
+    }
+
+    @Test
+    public void credentials_are_removed_from_pooled_connections() throws Exception {
+        contextSource.getContext(MARISSA, "koala").close();
+
+        Hashtable<?, ?> environment = contextSource.created.get(0).getEnvironment();
+        assertFalse(environment.containsKey(Context.SECURITY_PRINCIPAL));
+        assertFalse(environment.containsKey(Context.SECURITY_CREDENTIALS));
+    }
+
+    @Test
+    public void failed_bind_returns_the_connection_to_the_pool() throws Exception {
+        try {
+            contextSource.getContext(MARISSA, "wrong-password");
+            fail("The password is wrong");
+        } catch (AuthenticationException expected) {
+        }
+        assertEquals(0, contextSource.getActiveBindConnections());
+        assertEquals(1, contextSource.getIdleBindConnections());
+        assertFalse(contextSource.created.get(0).getEnvironment().containsKey(Context.SECURITY_CREDENTIALS));
+
+        DirContext ctx = contextSource.getContext(MARISSA, "koala");
+        assertEquals(MARISSA, ctx.getEnvironment().get(Context.SECURITY_PRINCIPAL));
+        ctx.close();
+        assertEquals(1, contextSource.created.size());
+    }
+
+    @Test
+    public void next_user_reuses_the_connection() throws Exception {
+        contextSource.getContext(MARISSA, "koala").close();
+
+        DirContext ctx = contextSource.getContext(MARISSA2, "ldap");
+        assertEquals(MARISSA2, ctx.getEnvironment().get(Context.SECURITY_PRINCIPAL));
+        ctx.close();
+        assertEquals(1, contextSource.created.size());
+
+        try {
+            contextSource.getContext(MARISSA2, "koala");
+            fail("The password of the previous user must not be accepted");
+        } catch (AuthenticationException expected) {
+        }
+    }
+
+    @Test
+    public void communication_error_falls_back_to_a_new_connection() throws Exception {
+        contextSource.getContext(MARISSA, "koala").close();
+        contextSource.failReconnect = true;
+
+        DirContext ctx = contextSource.getContext(MARISSA, "koala");
+        assertEquals(MARISSA, ctx.getEnvironment().get(Context.SECURITY_PRINCIPAL));
+        ctx.close();
+
+        assertEquals(2, contextSource.created.size());
+        assertEquals(0, contextSource.getActiveBindConnections());
+        assertEquals(0, contextSource.getIdleBindConnections());
+    }
+
+    @Test
+    public void lost_bind_connection_is_replaced_before_it_is_handed_out() throws Exception {
+        contextSource.getContext(MARISSA, "koala").close();
+        contextSource.lostConnection = contextSource.created.get(0);
+
+        DirContext ctx = contextSource.getContext(MARISSA, "koala");
+        assertEquals(MARISSA, ctx.getEnvironment().get(Context.SECURITY_PRINCIPAL));
+        ctx.close();
+
+        assertEquals(2, contextSource.created.size());
+        assertEquals(1, contextSource.getIdleBindConnections());
+    }
+
+    @Test
+    public void lost_search_connection_is_replaced_before_it_is_handed_out() throws Exception {
+        contextSource.getReadOnlyContext().close();
+        contextSource.lostConnection = contextSource.created.get(0);
+
+        DirContext ctx = contextSource.getReadOnlyContext();
+        ctx.getAttributes(MARISSA);
+        ctx.close();
+
+        assertEquals(2, contextSource.created.size());
+        assertNotSame(contextSource.lostConnection, contextSource.created.get(1));
+    }
+
+    @Test
+    public void pool_failures_are_ldap_exceptions() throws Exception {
+        DirContext ctx = contextSource.getReadOnlyContext();
+        try {
+            contextSource.getReadOnlyContext();
+            fail("The only connection is in use");
+        } catch (UncategorizedLdapException expected) {
+        } finally {
+            ctx.close();
+        }
+
+        contextSource.destroy();
+        try {
+            contextSource.getContext(MARISSA, "koala");
+            fail("The pool is closed");
+        } catch (UncategorizedLdapException expected) {
+        }
+    }
+
+    /**
+     * Records the connections it opens, and can make their re-binds, or all the operations
+     * of one of them, fail as if the connection was lost
+     */
+    private static class TestContextSource extends PooledLdapContextSource {
+        private final List<DirContext> created = new CopyOnWriteArrayList<>();
+        private volatile boolean failReconnect = false;
+        private volatile DirContext lostConnection = null;
+
+        TestContextSource(String providerUrl) {
+            super(providerUrl);
+        }
+
+        @Override
+        protected DirContext getDirContextInstance(Hashtable<String, Object> environment) throws NamingException {
+            DirContext target = super.getDirContextInstance(environment);
+            DirContext ctx = (DirContext) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {LdapContext.class}, (proxy, method, args) -> {
+                if (failReconnect && "reconnect".equals(method.getName())) {
+                    throw new CommunicationException("connection lost");
+                }
+                if (proxy == lostConnection && !"close".equals(method.getName())) {
+                    throw new CommunicationException("connection lost");
+                }
+                try {
+                    return method.invoke(target, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            });
+            created.add(ctx);
+            return ctx;
+        }
+    }
+}